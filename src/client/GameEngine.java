@@ -6,6 +6,7 @@ import stage.*;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -150,8 +151,8 @@ public class GameEngine implements Runnable {
      */
     public void update() {
 
-        // 各クラスにフレーム更新を通知
-        stage.update();
+        // 各クラスにフレーム更新を通知（ロックステップで入力が揃っていなければ、ステージは進めない）
+        if (input.prepareFrame(stage)) stage.update();
         ui.update();
         input.onFrameUpdate();
 
@@ -167,6 +168,7 @@ public class GameEngine implements Runnable {
         if (!myTank.isDead()) {
             input.handleInput(myTank, getCanvasTransform(), stage);
         }
+        input.onFrameEnd();
 
         // 終了したときの処理
         if (this.stage.hasFinished()) {
@@ -242,6 +244,17 @@ public class GameEngine implements Runnable {
         return myTankID;
     }
 
+    /**
+     * カメラに映っている範囲をステージの座標系で取得します。
+     *
+     * @return 映っている範囲
+     */
+    public Rectangle2D.Double getVisibleArea() {
+        double visibleWidth = this.windowWidth / this.zoomDegrees;
+        double visibleHeight = this.windowHeight / this.zoomDegrees;
+        return new Rectangle2D.Double(this.cameraPosition.x - visibleWidth / 2, this.cameraPosition.y - visibleHeight / 2, visibleWidth, visibleHeight);
+    }
+
     /**
      * 現在のズーム倍率を取得します。
      *
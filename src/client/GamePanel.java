@@ -13,14 +13,19 @@ import java.awt.font.FontRenderContext;
 import java.awt.font.GlyphVector;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
-import java.util.ArrayList;
+import java.awt.geom.Rectangle2D;
 
 /**
  * ゲームの描画とゲームエンジンを管理するパネルクラス。
  * ゲームの状態を表示し、入力を受け付ける役割を持つ。
+ * 他のプレイヤーの戦車は、システムプロパティ<code>game.interpolation.delay</code>（ミリ秒、既定値100）だけ過去の状態を補間して描く。
+ * ロックステップの場合は全員の戦車を同じ入力で動かすので、補間はせず、操作は入力として{@link Lockstep}に渡す。
  */
 public class GamePanel extends JPanel {
 
+    private static final long INTERPOLATION_DELAY = Long.getLong("game.interpolation.delay", 100);
+    private static final long EXTRAPOLATION_LIMIT = 250; // 受信が途切れたときに動きを延長する最大の時間（ミリ秒）
+
     private final GameEngine gameEngine;
     private final NetworkManager networkManager;
 
@@ -43,7 +48,7 @@ public class GamePanel extends JPanel {
         int playerCount = networkManager.getPlayerCount();
 
         // ステージの作成
-        StageGenerator generator = createStageGenerator(playerCount);
+        StageGenerator generator = new StandardStageGenerator(playerCount);
         GameStage stage = new GameStage(generator);
         ScreenObject[] screenObjects = generator.getScreenObjects();
 
@@ -51,12 +56,23 @@ public class GamePanel extends JPanel {
         Tank myTank = (Tank) stage.getGameObject(myTankID);
         Team myTeam = myTank.getTeam();
 
+        // 他のプレイヤーの戦車は、受信した状態を補間して描く（ロックステップでは自分のステージで動かす）
+        Lockstep lockstep = networkManager.getLockstep();
+        for (int i = 0; i < playerCount && lockstep == null; i++) {
+            if (i != myTankID) ((Tank) stage.getGameObject(i)).enableInterpolation(INTERPOLATION_DELAY, EXTRAPOLATION_LIMIT);
+        }
+
+        // サーバがゲームを進める場合、衝突判定は自分の戦車の予測移動にだけ使う
+        if (networkManager.isAuthoritative()) stage.restrictCollisionTo(myTank);
+
         // UIの作成
         GameUI ui = new GamePanelUI(stage, myTeam);
 
         // 入力や通信に関する取り決め(Strategy)を作成
         NetworkStrategy networkStrategy = createNetworkStrategy();
-        InputStrategy inputStrategy = createInputStrategy(new MouseKeyboardInput(this), networkStrategy, myTankID);
+        InputStrategy inputStrategy = lockstep != null
+                ? createLockstepInputStrategy(new MouseKeyboardInput(this), lockstep)
+                : createInputStrategy(new MouseKeyboardInput(this), networkStrategy, myTankID);
 
         // ゲーム終了時のコールバックを作成
         Runnable onFinishCallback = createOnFinishCallback(myTeam);
@@ -125,27 +141,36 @@ public class GamePanel extends JPanel {
 
                 boolean hasFinished = stage.hasFinished();
 
-                // 発射
+                // 発射（サーバがゲームを進める場合、弾丸はスナップショットで届く）
                 if (inputHandler.shootBullet() && !hasFinished) {
-                    Bullet bullet = myTank.shootBullet();
-                    if (bullet != null) {
-                        stage.addGameObject(bullet);
+                    if (network.isAuthoritative()) {
                         network.shootGun(tankID);
+                    } else {
+                        Bullet bullet = myTank.shootBullet();
+                        if (bullet != null) {
+                            stage.addGameObject(bullet);
+                            network.shootGun(tankID);
+                        }
                     }
                 }
 
-                // 移動
+                // 移動（自分の戦車は入力をすぐに反映して予測する）
                 Point2D.Double moveVector = inputHandler.getMotionDirection(canvasTransform);
                 if (moveVector.x != 0 || moveVector.y != 0) {
                     myTank.move(moveVector);
+                    network.move(tankID, moveVector);
                 }
 
-                // ブロック生成
+                // ブロック生成（サーバがゲームを進める場合、ブロックはスナップショットで届く）
                 if (inputHandler.createBlock() && !hasFinished) {
-                    Block block = myTank.createBlock();
-                    if (block != null) {
-                        stage.addGameObject(block);
+                    if (network.isAuthoritative()) {
                         network.createBlock(tankID);
+                    } else {
+                        Block block = myTank.createBlock();
+                        if (block != null) {
+                            stage.addGameObject(block);
+                            network.createBlock(tankID);
+                        }
                     }
                 }
             }
@@ -154,6 +179,48 @@ public class GamePanel extends JPanel {
             public void onFrameUpdate() {
                 inputHandler.onFrameUpdate();
             }
+
+            @Override
+            public void onFrameEnd() {
+                // カメラの範囲が変わっていれば知らせ、このフレームの操作とスナップショットの確認を1回の書き込みで送る
+                network.reportView(gameEngine.getVisibleArea());
+                network.flush();
+            }
+        };
+    }
+
+    /**
+     * ロックステップのゲーム画面用のInputStrategyを生成する。
+     * 操作はその場では反映せず、入力として記録する。全員の入力が揃ったフレームで、全員の戦車に同じ順番で反映される。
+     *
+     * @param inputHandler ユーザー入力を処理するInputHandler
+     * @param lockstep ステージを進めるLockstep
+     * @return 生成されたInputStrategy
+     */
+    private InputStrategy createLockstepInputStrategy(InputHandler inputHandler, Lockstep lockstep) {
+        return new InputStrategy() {
+
+            @Override
+            public void handleInput(Tank myTank, AffineTransform canvasTransform, GameStage stage) {
+                lockstep.record(inputHandler.getAimedCoordinate(canvasTransform), inputHandler.getMotionDirection(canvasTransform),
+                        inputHandler.shootBullet(), inputHandler.createBlock());
+            }
+
+            @Override
+            public boolean prepareFrame(GameStage stage) {
+                return lockstep.advance(stage);
+            }
+
+            @Override
+            public void onFrameUpdate() {
+                inputHandler.onFrameUpdate();
+            }
+
+            @Override
+            public void onFrameEnd() {
+                // 進めたフレームで送った入力を1回の書き込みで送る
+                networkManager.flush();
+            }
         };
     }
 
@@ -169,6 +236,11 @@ public class GamePanel extends JPanel {
                 networkManager.aimAt(tankID, coordinate);
             }
 
+            @Override
+            public void move(int tankID, Point2D.Double vector) {
+                networkManager.move(tankID, vector);
+            }
+
             @Override
             public void shootGun(int tankID) {
                 networkManager.shootGun(tankID);
@@ -188,106 +260,22 @@ public class GamePanel extends JPanel {
             public void createBlock(int tankID) {
                 networkManager.createBlock(tankID);
             }
-        };
-    }
-
-    /**
-     * ゲーム画面用のStageGeneratorを生成する。
-     *
-     * @return 生成されたStageGenerator
-     */
-    private StageGenerator createStageGenerator(int playerCount) {
-            return new StageGenerator() {
-                private final Base redBase = new Base(2000, 2000, Team.RED, playerCount * 80);
-                private final Base blueBase = new Base(-2000, -2000, Team.BLUE, playerCount * 80);
-                private final int stageWidth = 6000;
-                private final int stageHeight = 6000;
-
-                @Override
-                public GameObject[] getGameObjects() {
-                    ArrayList<GameObject> objects = new ArrayList<>();
-
-                    // 戦車の生成
-                    for (int i = 0; i < playerCount; i++) {
-                        Tank tank = new Tank(i % 2 == 0 ? redBase : blueBase);
-                        objects.add(tank);
-                    }
-
-                    // 壁の生成
-                    int verticalWall = stageHeight / Wall.HEIGHT;
-                    int horizontalWall = stageWidth / Wall.WIDTH;
-                    for (int i = 0; i <= verticalWall; i++) {
-                        for (int j = 0; j <= horizontalWall; j++) {
-                            if (i != 0 && i != verticalWall && j != 0 && j != horizontalWall) continue;
-                            double x = Wall.WIDTH * i - stageWidth / 2.0;
-                            double y = Wall.HEIGHT * j - stageHeight / 2.0;
-                            Point2D.Double point = new Point2D.Double(x, y);
-                            Wall wall = new Wall(point);
-                            objects.add(wall);
-                        }
-                    }
-
-                    // リスポーン地点の生成
-                    objects.add(redBase);
-                    objects.add(blueBase);
-
-
-                    return objects.toArray(new GameObject[0]);
-                }
-
-                @Override
-                public ScreenObject[] getScreenObjects() {
-                    return new ScreenObject[0];
-                }
 
-                @Override
-                public Base getRedBase() {
-                    return redBase;
-                }
-
-                @Override
-                public Base getBlueBase() {
-                    return blueBase;
-                }
-
-                @Override
-                public double getStageWidth() {
-                    return stageWidth;
-                }
-
-                @Override
-                public double getStageHeight() {
-                    return stageHeight;
-                }
+            @Override
+            public void reportView(Rectangle2D.Double area) {
+                networkManager.reportView(area);
+            }
 
-                @Override
-                public void drawBackground(Graphics2D graphics, double visibleWidth, double visibleHeight, double animationFrame) {
-                    // 画像リソースの読み込み
-                    java.awt.image.BufferedImage floorTexture, outerStageTexture;
-                    try {
-                        floorTexture = javax.imageio.ImageIO.read(java.util.Objects.requireNonNull(getClass().getResource("assets/floor_texture.png")));
-                        outerStageTexture = javax.imageio.ImageIO.read(java.util.Objects.requireNonNull(getClass().getResource("assets/ocean_texture.png")));
-                    } catch (java.io.IOException e) {
-                        throw new RuntimeException(e);
-                    }
+            @Override
+            public boolean isAuthoritative() {
+                return networkManager.isAuthoritative();
+            }
 
-                    // ステージ外の描画
-                    double textureSize = 1000;
-                    double translate = animationFrame * 10 % textureSize;
-                    java.awt.geom.Rectangle2D outerStageAnchor = new java.awt.geom.Rectangle2D.Double(translate, translate, textureSize, textureSize);
-                    TexturePaint outerStagePaint = new TexturePaint(outerStageTexture, outerStageAnchor);
-                    graphics.setPaint(outerStagePaint);
-                    int fillWidth = (int) (stageWidth + visibleWidth);
-                    int fillHeight = (int) (stageHeight + visibleHeight);
-                    graphics.fillRect(-fillWidth / 2, -fillHeight / 2, fillWidth, fillHeight);
-
-                    // フローリングの描画
-                    java.awt.geom.Rectangle2D floorAnchor = new java.awt.geom.Rectangle2D.Double(0, 0, floorTexture.getWidth(), floorTexture.getHeight());
-                    TexturePaint floorPaint = new TexturePaint(floorTexture, floorAnchor);
-                    graphics.setPaint(floorPaint);
-                    graphics.fillRect(-stageWidth / 2, -stageHeight / 2, stageWidth, stageHeight);
-                }
-            };
+            @Override
+            public void flush() {
+                networkManager.flush();
+            }
+        };
     }
 
     /**
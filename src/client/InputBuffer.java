@@ -0,0 +1,62 @@
+package client;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * サーバーがまだ処理していない自分の移動入力を覚えておくリングバッファ。
+ * 移動入力には連番を付けて送り、スナップショットで処理済みの連番が届いたらそこまでを捨てる。
+ * 残った入力はサーバーの位置からやり直して、自分の戦車の予測位置を補正するのに使う（{@link stage.Tank#reconcile}）。
+ * ゲームのスレッドが入力を積み、受信のスレッドが確認するので、メソッドは同期する。
+ */
+class InputBuffer {
+
+	private final Point2D.Double[] moves;
+	private int nextSequence = 1;// 0は「まだ何も処理していない」を表す
+	private int oldestSequence = 1;// バッファに残っている最も古い入力の連番
+
+	/**
+	 * InputBufferのコンストラクタ。
+	 *
+	 * @param capacity 覚えておく入力の数。往復遅延の間に積まれる入力の数より大きくする
+	 */
+	InputBuffer(int capacity) {
+		this.moves = new Point2D.Double[capacity];
+	}
+
+	/**
+	 * 移動入力を積む。溢れた場合は最も古い入力を捨てる。
+	 *
+	 * @param vector 移動方向
+	 * @return この入力に付けた連番
+	 */
+	synchronized int add(Point2D.Double vector) {
+		int sequence = nextSequence++;
+		moves[sequence % moves.length] = new Point2D.Double(vector.x, vector.y);
+		if (sequence - oldestSequence >= moves.length) oldestSequence = sequence - moves.length + 1;
+		return sequence;
+	}
+
+	/**
+	 * サーバーが処理した最後の連番までの入力を捨てる。
+	 *
+	 * @param sequence サーバーが処理した最後の連番
+	 */
+	synchronized void acknowledge(int sequence) {
+		if (sequence >= oldestSequence) oldestSequence = Math.min(sequence + 1, nextSequence);
+	}
+
+	/**
+	 * サーバーがまだ処理していない入力を古い順に取得する。
+	 *
+	 * @return 未処理の移動入力
+	 */
+	synchronized List<Point2D.Double> pending() {
+		List<Point2D.Double> pending = new ArrayList<>(nextSequence - oldestSequence);
+		for (int sequence = oldestSequence; sequence < nextSequence; sequence++) {
+			pending.add(moves[sequence % moves.length]);
+		}
+		return pending;
+	}
+}
@@ -21,8 +21,26 @@ public interface InputStrategy {
      */
     void handleInput(Tank myTank, AffineTransform canvasTransform, GameStage stage);
 
+    /**
+     * ステージを1フレーム進める前に呼ばれます。
+     * ロックステップでは、全員の入力が揃ったフレームだけステージを進めるために使います。
+     *
+     * @param stage ゲームステージ
+     * @return このフレームでステージを進める場合はtrue
+     */
+    default boolean prepareFrame(GameStage stage) {
+        return true;
+    }
+
     /**
      * フレーム更新時の処理を行います。
      */
     void onFrameUpdate();
+
+    /**
+     * フレームの処理がすべて終わったときに呼ばれます。
+     * 戦車が撃破されていて{@link #handleInput}が呼ばれないフレームでも呼ばれます。
+     */
+    default void onFrameEnd() {
+    }
 }
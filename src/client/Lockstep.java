@@ -0,0 +1,221 @@
+package client;
+
+import protocol.FrameInput;
+import stage.Block;
+import stage.Bullet;
+import stage.GameObject;
+import stage.GameStage;
+import stage.Tank;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * ロックステップでステージを進めるクラス。
+ * 各クライアントは操作の代わりにフレームごとの入力だけを送り合い、全員の入力が揃ったフレームだけステージを進める。
+ * 全員が同じ入力を同じ順番で反映するので、位置やイベントを送らなくても全員のステージが同じ状態になる。
+ * 送信量はプレイヤー数だけで決まり、ステージ上のオブジェクトの数には依存しない。
+ * <p>
+ * 自分の入力は入力遅延の分だけ先のフレームに反映する。遅延の間に他のプレイヤーの入力が届けば、待たずに進められる。
+ * 最初の遅延の分のフレームは、全員の入力が空のものとして進める。
+ * 退出したプレイヤーは、サーバーが送る退出の入力（{@link FrameInput#left}）のフレーム以降、入力が無いものとして扱う。
+ * <p>
+ * {@link #CHECKSUM_INTERVAL}フレームごとに、進める前のステージのチェックサムを入力に付けて送り、他のプレイヤーと食い違っていれば警告する。
+ * 決定的なのは同じJavaの実装で動かした場合で、浮動小数点の計算結果が異なる環境の間では食い違うことがある。
+ * ゲームのスレッドが進め、受信のスレッドが入力を積むので、メソッドは同期する。
+ */
+class Lockstep {
+
+	private static final int CHECKSUM_INTERVAL = GameEngine.FPS;// 1秒ごと
+
+	private final int playerCount;
+	private final int mySlot;
+	private final int delay;
+	private final Consumer<FrameInput> sender;
+	private final Map<Integer, FrameInput[]> inputs = new HashMap<>();// フレーム番号→席ごとの入力
+	private final int[] leftFrom;// 席ごとの、入力が無くなるフレーム番号
+	private final Map<Integer, Integer> checksums = new HashMap<>();// フレーム番号→そのフレームを進める前の自分のチェックサム
+	private int frame = 0;// 次に進めるフレーム番号
+
+	// 次に送る自分の入力。ステージを進められないフレームの操作もまとめる
+	private double aimX, aimY;
+	private double moveX, moveY;
+	private boolean shoot, block;
+
+	private long stalls = 0;// 入力が揃わずに進められなかったフレームの数
+	private long desyncs = 0;// チェックサムが食い違った回数
+
+	/**
+	 * Lockstepのコンストラクタ。
+	 *
+	 * @param playerCount プレイヤー数
+	 * @param mySlot 自分の席番号（戦車ID）
+	 * @param delay 入力遅延（フレーム数）
+	 * @param sender 自分の入力を送る処理
+	 */
+	Lockstep(int playerCount, int mySlot, int delay, Consumer<FrameInput> sender) {
+		this.playerCount = playerCount;
+		this.mySlot = mySlot;
+		this.delay = Math.max(1, delay);
+		this.sender = sender;
+		this.leftFrom = new int[playerCount];
+		Arrays.fill(leftFrom, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * 受信した入力を積む。退出の入力なら、そのフレーム以降のその席の入力を捨てる。
+	 *
+	 * @param input 受信した入力
+	 */
+	synchronized void receive(FrameInput input) {
+		if (input.slot < 0 || input.slot >= playerCount) return;
+		if (input.left) {
+			leftFrom[input.slot] = Math.min(leftFrom[input.slot], input.frame);
+			for (Map.Entry<Integer, FrameInput[]> entry : inputs.entrySet()) {
+				if (entry.getKey() >= input.frame) entry.getValue()[input.slot] = null;
+			}
+			return;
+		}
+		if (input.frame < frame || input.frame >= leftFrom[input.slot]) return;// 進めたフレームか、退出した後の入力
+		inputs.computeIfAbsent(input.frame, f -> new FrameInput[playerCount])[input.slot] = input;
+	}
+
+	/**
+	 * このフレームの自分の操作を記録する。次にステージを進めるときに、入力遅延の分だけ先のフレームの入力として送る。
+	 * 発射と設置は、送るまでに1度でも押されていれば送る。
+	 *
+	 * @param aim 照準の位置
+	 * @param move 移動方向
+	 * @param shoot 弾丸を発射するか
+	 * @param block ブロックを設置するか
+	 */
+	synchronized void record(Point2D.Double aim, Point2D.Double move, boolean shoot, boolean block) {
+		this.aimX = aim.x;
+		this.aimY = aim.y;
+		this.moveX = move.x;
+		this.moveY = move.y;
+		this.shoot |= shoot;
+		this.block |= block;
+	}
+
+	/**
+	 * 次のフレームの全員の入力が揃っていれば、自分の次の入力を送り、入力をステージに反映する。
+	 * 反映した後にステージを1フレーム進めるのは呼び出し側の役目。
+	 *
+	 * @param stage ゲームステージ
+	 * @return 入力が揃っていて、ステージを進めてよい場合はtrue
+	 */
+	boolean advance(GameStage stage) {
+		FrameInput[] ready;
+		int current;
+		synchronized (this) {
+			ready = collect(frame);
+			if (ready == null) {
+				stalls++;
+				return false;
+			}
+			current = frame;
+			FrameInput own = FrameInput.of(frame + delay, mySlot, moveX, moveY, shoot, block, aimX, aimY);
+			if (frame % CHECKSUM_INTERVAL == 0) {
+				int checksum = stage.checksum();
+				checksums.put(frame, checksum);
+				own = own.withChecksum(checksum);
+			}
+			inputs.computeIfAbsent(own.frame, f -> new FrameInput[playerCount])[mySlot] = own;
+			sender.accept(own);
+			moveX = moveY = 0;
+			shoot = block = false;
+			inputs.remove(frame);
+			frame++;
+		}
+		verify(ready, current);
+		apply(stage, ready);
+		return true;
+	}
+
+	/**
+	 * フレームの全員の入力を集める。入力遅延の間のフレームと、退出した席は入力が無いものとしてnullのままにする。
+	 *
+	 * @return 席ごとの入力。まだ届いていない入力があればnull
+	 */
+	private FrameInput[] collect(int frame) {
+		FrameInput[] received = inputs.get(frame);
+		FrameInput[] ready = new FrameInput[playerCount];
+		if (frame < delay) return ready;
+		for (int slot = 0; slot < playerCount; slot++) {
+			if (frame >= leftFrom[slot]) continue;
+			if (received == null || received[slot] == null) return null;
+			ready[slot] = received[slot];
+		}
+		return ready;
+	}
+
+	/**
+	 * 入力に付いている他のプレイヤーのチェックサムを、同じフレームの自分のチェックサムと比べる。
+	 */
+	private void verify(FrameInput[] ready, int frame) {
+		Integer mine;
+		synchronized (this) {
+			mine = checksums.remove(frame - delay);
+		}
+		if (mine == null) return;
+		for (FrameInput input : ready) {
+			if (input == null || input.slot == mySlot || !input.hasChecksum || input.checksum == mine) continue;
+			synchronized (this) {
+				desyncs++;
+			}
+			System.err.println("ロックステップの状態が食い違いました: frame=" + (frame - delay) + " slot=" + input.slot);
+		}
+	}
+
+	/**
+	 * 席の順番に、入力を戦車に反映する。撃破されている戦車の入力は反映しない。
+	 */
+	private static void apply(GameStage stage, FrameInput[] ready) {
+		boolean hasFinished = stage.hasFinished();
+		for (FrameInput input : ready) {
+			if (input == null) continue;
+			GameObject object = stage.getGameObject(input.slot);
+			if (!(object instanceof Tank)) continue;
+			Tank tank = (Tank) object;
+			if (tank.isDead()) continue;
+
+			tank.aimAt(new Point2D.Double(input.aimX, input.aimY));
+			if (input.shoot && !hasFinished) {
+				Bullet bullet = tank.shootBullet();
+				if (bullet != null) stage.addGameObject(bullet);
+			}
+			if (input.moveX != 0 || input.moveY != 0) {
+				tank.move(new Point2D.Double(input.moveX, input.moveY));
+			}
+			if (input.block && !hasFinished) {
+				Block block = tank.createBlock();
+				if (block != null) stage.addGameObject(block);
+			}
+		}
+	}
+
+	/**
+	 * 次に進めるフレーム番号を取得する。
+	 */
+	synchronized int getFrame() {
+		return frame;
+	}
+
+	/**
+	 * 入力が揃わずに進められなかったフレームの数を取得する。
+	 */
+	synchronized long getStalls() {
+		return stalls;
+	}
+
+	/**
+	 * チェックサムが食い違った回数を取得する。
+	 */
+	synchronized long getDesyncs() {
+		return desyncs;
+	}
+}
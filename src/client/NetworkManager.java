@@ -1,24 +1,87 @@
 package client;
 
+import protocol.BinaryCodec;
+import protocol.ClockSync;
+import protocol.Command;
+import protocol.EntityState;
+import protocol.FrameInput;
+import protocol.Message;
+import protocol.Redirect;
+import protocol.Snapshot;
+import protocol.UdpChannel;
+import protocol.WireReader;
 import stage.*;
 
 import java.awt.geom.Point2D;
-import java.io.BufferedReader;
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ネットワーク通信を管理するクラス。
  * サーバーとの通信を行い、ゲーム状態を同期する。
+ * サーバーがバイナリ形式に対応している場合は、接続時に切り替えて以降の通信をバイナリ形式のフレームで行う。
+ * システムプロパティ<code>game.protocol=text</code>を指定するとテキスト形式のまま通信する。
+ * サーバーがゲームを進めている場合（<code>AUTHORITATIVE</code>）は、操作を入力として送り、ステージはサーバーから届くスナップショットに合わせる。
+ * 送信するメッセージはバッファに溜め、{@link #flush()}で1フレーム分をまとめて1回の書き込みで送る。
+ * システムプロパティ<code>game.batch=false</code>を指定すると、以前のようにメッセージごとに書き込み、照準も毎フレーム送る。
+ * <code>game.netstats=true</code>を指定すると、1秒ごとに送信の書き込み回数とバイト数を表示する。
+ * 回線の状態（往復時間、揺らぎ、損失率、コマンドごとの送受信量）は{@link #getStats()}とJMXで参照できる。
+ * サーバーがUDPに対応している場合は、位置・照準とイベントを{@link UdpChannel}でやりとりする。
+ * <code>game.transport=tcp</code>を指定するとTCPだけを使い、<code>game.udp.loss</code>で送信するデータグラムをわざと捨てる割合を指定できる。
+ * 接続先がコーディネーターで、最初の行で別のサーバーを指定された場合（{@link Redirect}）は、そのサーバーに接続し直す。
+ * 接続時と{@link #CLOCK_SYNC_INTERVAL}ごとに{@link ClockSync}でサーバーと時計を合わせ、操作のメッセージにはサーバーの時計でのティック番号を付けて送る。
+ * 受け取った操作はティック番号から送られた時刻を求め、位置と照準はその時刻の状態として補間し、弾丸は届くまでに飛んだ分だけ進めて置く。
+ * サーバーがロックステップを指定した場合（<code>LOCKSTEP</code>）は、操作の代わりにフレームごとの入力だけを送り合い、{@link Lockstep}でステージを進める。
  */
 public class NetworkManager extends Thread {
 
+	private static final int SNAPSHOT_HISTORY = 64;// サーバーが覚えている数より多く覚えておく
+	private static final int INPUT_HISTORY = GameEngine.FPS;// 1秒分。往復遅延がこれより大きいと古い入力から捨てる
+	private static final boolean BATCHING = !"false".equals(System.getProperty("game.batch"));
+	private static final boolean PRINT_STATS = Boolean.getBoolean("game.netstats");
+	private static final long PING_INTERVAL = 1000;// 往復時間を計測する間隔（ミリ秒）
+	private static final int CLOCK_SYNC_SAMPLES = 4;// 接続時に続けて時計合わせを行う回数
+	private static final long CLOCK_SYNC_INTERVAL = 10000;// 時計合わせをやり直す間隔（ミリ秒）
+	private static final int MAX_CATCH_UP = GameEngine.FPS / 4;// 受け取った弾丸を進める最大のフレーム数
+	private static final double AIM_THRESHOLD = Math.toRadians(1);// 前回送った照準からこれ以上角度が変わったときだけ送る
+	private static final Charset CHARSET = Charset.defaultCharset();// サーバー側のBufferedReaderと同じ文字コード
+
 	private GameEngine gameEngine;
 	private Socket socket;
-	private PrintWriter out;
-	private BufferedReader in;
+	private PrintWriter out;// 接続時のハンドシェイク用
+	private OutputStream outbox;// ハンドシェイク後の送信先。flush()を呼ぶまでソケットには書き込まない
+	private final CountingOutputStream traffic;// 実際にソケットに書き込んだ回数とバイト数
+	private final AtomicLong messagesSent = new AtomicLong();// 送信バッファに積んだメッセージ数
+	private final NetworkStats stats = new NetworkStats();// 回線の状態
+	private long nextPingTime = System.nanoTime();// 次にPINGを送る時刻（ナノ秒）
+	private final ClockSync clock = new ClockSync(GameEngine.FPS);// サーバーの時計とのずれ
+	private long nextClockSyncTime = System.nanoTime() + CLOCK_SYNC_INTERVAL * 1000000;// 次に時計合わせを行う時刻（ナノ秒）
+	private DatagramSocket datagramSocket;
+	private UdpChannel datagram;// 位置・照準とイベントの送受信先。UDPを使わない場合はnull
+	private final Object receiveLock = new Object();// TCPとUDPの受信スレッドが同時にステージを書き換えないようにする
+	private boolean binaryOut = false;// バイナリ形式に切り替えたか
+	private double lastAimAngle = Double.NaN;// 前回送った照準の角度
+	private Message lastView;// 前回送ったカメラの範囲
+	private WireReader in;
+	private boolean binaryIn = false;
+	private boolean authoritative = false;// サーバーがゲームを進めているか
+	private final Snapshot[] snapshots = new Snapshot[SNAPSHOT_HISTORY];// 差分の基準になる、最近受信したスナップショット
+	private final InputBuffer inputs = new InputBuffer(INPUT_HISTORY);// サーバーがまだ処理していない移動入力
+	private int lockstepDelay = -1;// ロックステップの入力遅延（フレーム数）。ロックステップでなければ-1
+	private volatile Lockstep lockstep;// 試合が始まるまではnull
 
 	private int networkClientID;
 	private int myTankID;
@@ -27,21 +90,28 @@ public class NetworkManager extends Thread {
 
 	/**
 	 * ネットワークマネージャーを初期化し、サーバーに接続する。
+	 * コーディネーターに別のサーバーを指定された場合は、そちらに接続し直す。
 	 * クライアントIDを受信し、プレイヤー名を送信する。
+	 * サーバーがバイナリ形式に対応していれば切り替えを要求する。
 	 *
 	 * @param onReady PLAYER_COUNTが揃ったときに呼ばれるコールバック関数
 	 */
 	public NetworkManager(Runnable onReady) {
 		this.onReady = onReady;
+		CountingOutputStream traffic = null;
 		try {
-			socket = new Socket("localhost", 10000);
-			out = new PrintWriter(socket.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
+			traffic = connect(10000);
 			System.out.println("サーバーに接続しました。");
 
 			// 最初の行は "ID is client number" 形式で来る想定
 			String initMsg = in.readLine();
+			int redirect = Redirect.parse(initMsg);
+			if (redirect > 0) {// コーディネーターが振り分けたサーバーに接続し直す
+				socket.close();
+				traffic = connect(redirect);
+				System.out.println("ポート" + redirect + "のサーバーに接続し直しました。");
+				initMsg = in.readLine();
+			}
 			if (initMsg != null) {
 				String[] tokens = initMsg.split(" ");
 
@@ -50,13 +120,68 @@ public class NetworkManager extends Thread {
 				this.myTankID = networkClientID % this.playerCount;
 
 
+				authoritative = Arrays.asList(tokens).contains(Snapshot.CAPABILITY);
+				stats.register(networkClientID);
+
 				// 名前送信（サーバーが期待しているので送る）
 				out.println("Player" + myTankID);
 
+				// サーバーがバイナリ形式に対応していれば切り替える
+				boolean binaryOffered = Arrays.asList(tokens).contains(BinaryCodec.CAPABILITY);
+				if (binaryOffered && !"text".equals(System.getProperty("game.protocol"))) {
+					out.println(BinaryCodec.UPGRADE);
+					binaryOut = true;
+				}
+				outbox = new BufferedOutputStream(traffic);
+
+				// サーバーがUDPに対応していれば、位置・照準とイベントはUDPで送る
+				// ロックステップの場合は、入力遅延を覚えておく
+				for (String token : tokens) {
+					if (token.startsWith(FrameInput.CAPABILITY + ":")) {
+						lockstepDelay = Integer.parseInt(token.substring(FrameInput.CAPABILITY.length() + 1));
+					}
+					if (token.startsWith(UdpChannel.CAPABILITY + ":") && !"tcp".equals(System.getProperty("game.transport"))) {
+						openDatagram(Integer.parseInt(token.substring(UdpChannel.CAPABILITY.length() + 1)));
+					}
+				}
+
+				// 時計合わせを始める。続きは応答が届くたびに送る
+				send(clock.request(ClockSync.now()));
+				flush();
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		this.traffic = traffic;
+		if (PRINT_STATS && traffic != null) startStatsTimer();
+	}
+
+	/**
+	 * 同じマシンの指定したポートのサーバーに接続し、送受信に使うストリームを用意する。
+	 *
+	 * @param port 接続先のポート
+	 * @return ソケットに書き込んだ回数とバイト数を数えるストリーム
+	 */
+	private CountingOutputStream connect(int port) throws IOException {
+		socket = new Socket("localhost", port);
+		socket.setTcpNoDelay(true);// 1フレーム分をまとめて書くので、Nagleで遅らせる必要はない
+		out = new PrintWriter(socket.getOutputStream(), true);
+		in = new WireReader(socket.getInputStream());
+		return new CountingOutputStream(socket.getOutputStream());
+	}
+
+	/**
+	 * サーバーとのUDPのチャンネルを開く。
+	 * サーバーは最初のデータグラムでこのクライアントのアドレスを知るので、{@link #flush()}が登録を送る。
+	 *
+	 * @param session サーバーが割り当てたセッション番号
+	 */
+	private void openDatagram(int session) throws IOException {
+		datagramSocket = new DatagramSocket();
+		datagramSocket.connect(new InetSocketAddress(socket.getInetAddress(), socket.getPort()));
+		double lossRate = Double.parseDouble(System.getProperty("game.udp.loss", "0"));
+		datagram = new UdpChannel(datagramSocket, datagramSocket.getRemoteSocketAddress(), session, lossRate);
+		System.out.println("UDPで位置・照準とイベントを送受信します。");
 	}
 
 	/**
@@ -86,6 +211,33 @@ public class NetworkManager extends Thread {
 		return this.myTankID;
 	}
 
+	/**
+	 * サーバーがゲームを進めているかを取得する。
+	 *
+	 * @return サーバーがゲームを進めている場合はtrue
+	 */
+	public boolean isAuthoritative() {
+		return authoritative;
+	}
+
+	/**
+	 * ロックステップでステージを進めるオブジェクトを取得する。
+	 *
+	 * @return ロックステップの場合はそのオブジェクト。ロックステップでないか、試合が始まっていなければnull
+	 */
+	Lockstep getLockstep() {
+		return lockstep;
+	}
+
+	/**
+	 * 回線の状態の統計を取得する。
+	 *
+	 * @return 往復時間、損失率、コマンドごとの送受信量などの統計
+	 */
+	public NetworkStatsMXBean getStats() {
+		return stats;
+	}
+
 	/**
 	 * ネットワーククライアントIDを取得する。
 	 *
@@ -98,18 +250,41 @@ public class NetworkManager extends Thread {
 	/**
 	 * {@inheritDoc}
 	 * サーバーからのメッセージを継続的に受信し、解釈する。
+	 * 切り替えの承認の行を受け取ってからは、バイナリ形式のフレームとして読む。
 	 * 接続が切断されるまでループを続ける。
+	 * UDPを使う場合は、データグラムを受信するスレッドも開始する。
 	 */
 	@Override
 	public void run() {
+		if (datagram != null) {
+			Thread receiver = new Thread(this::receiveDatagrams, "udp-receiver");
+			receiver.setDaemon(true);
+			receiver.start();
+		}
+		Message message = new Message();// 受信ループで使い回す
 		try {
 			while (true) {
 				try {
+					if (binaryIn) {
+						if (!in.readFrame(message)) break;
+						stats.onReceived(message.command, BinaryCodec.encodedSize(message));
+						handleMessage(message);
+						continue;
+					}
+
 					String msg = in.readLine();
 					if (msg == null) break;
+					if (binaryOut && msg.equals(BinaryCodec.UPGRADE)) {
+						binaryIn = true;// ここから先はバイナリ形式
+						continue;
+					}
 
-					parseMessage(msg);
+					handleMessage(message.parseText(msg));
+					stats.onReceived(message.command, msg.length() + System.lineSeparator().length());
 
+				} catch (IOException e) {
+					e.printStackTrace();
+					break;
 				} catch (Exception e) {
 					e.printStackTrace();
 				}
@@ -120,72 +295,223 @@ public class NetworkManager extends Thread {
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
+			if (datagramSocket != null) datagramSocket.close();
+			stats.unregister();// 同じクライアント番号を受け取った次の接続が登録できるように
+		}
+	}
+
+	/**
+	 * UDPで届いたメッセージを受信し続ける。
+	 * 信頼性のあるイベントは送られた順に、位置と照準は古くなっていないものだけが{@link #handleMessage}に渡る。
+	 */
+	private void receiveDatagrams() {
+		byte[] buffer = new byte[2048];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		while (!datagramSocket.isClosed()) {
+			try {
+				packet.setLength(buffer.length);
+				datagramSocket.receive(packet);
+				for (Message message : datagram.receive(buffer, packet.getLength())) {
+					stats.onReceived(message.command, BinaryCodec.encodedSize(message));
+					handleMessage(message);
+				}
+			} catch (IOException e) {
+				break;// ソケットが閉じられた
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
 		}
 	}
 
 	/**
 	 * サーバーから受信したメッセージを解釈し、対応する処理を実行する。
+	 * テキスト形式・バイナリ形式・UDPのどれで受信した場合もここで処理する。
+	 * PONGは他のメッセージの反映を待たずに、受け取った時刻で往復時間を計測する。
+	 * サーバーからの生存確認（PING）には、ゲームループが動いていない待機中でも届くように、すぐにPONGを返す。
+	 * 時計合わせの応答（TIME）は受け取った時刻で時計のずれを計測し、接続直後は規定の回数に達するまで次の要求をすぐに送る。
+	 * ロックステップの入力（INPUT）はステージには触らず、{@link Lockstep}に積むだけなので、ステージの更新と同期しない。
 	 *
-	 * @param msg 受信したメッセージ文字列
+	 * @param message 受信したメッセージ
 	 */
-	private void parseMessage(String msg) {
+	private void handleMessage(Message message) {
+		if (message.command == Command.PONG) {
+			stats.onPong(message.id, System.nanoTime());
+			return;
+		}
+		if (message.command == Command.PING) {
+			send(new Message(Command.PONG, message.id));
+			flush();
+			return;
+		}
+		if (message.command == Command.TIME) {
+			if (!clock.onReply(message, ClockSync.now())) return;
+			stats.onClockSync(clock.getOffset(), clock.getRoundTrip());
+			if (clock.getSamples() < CLOCK_SYNC_SAMPLES) {
+				send(clock.request(ClockSync.now()));
+				flush();
+			}
+			return;
+		}
+		if (message.command == Command.INPUT) {
+			Lockstep lockstep = this.lockstep;
+			if (lockstep != null) lockstep.receive(FrameInput.decode(message));
+			return;
+		}
+		synchronized (receiveLock) {
+			applyMessage(message);
+		}
+	}
 
-		String[] tokens = msg.split(" ");
-		String cmd = tokens[0];
+	/**
+	 * 受信したメッセージをステージに反映する。
+	 *
+	 * @param message 受信したメッセージ
+	 */
+	private void applyMessage(Message message) {
 
-		if (cmd.equals("PLAYER_COUNT")) {
-			playerCount = Integer.parseInt(tokens[1]);
+		if (message.command == Command.PLAYER_COUNT) {
+			playerCount = message.id;
+			if (lockstepDelay >= 0) lockstep = new Lockstep(playerCount, myTankID, lockstepDelay, this::sendInput);// 画面を作る前に用意する
 			if (onReady != null) {
 				onReady.run();
 			}
 			return;
 		}
+		if (message.command == Command.RAW) return;// 知らないメッセージは無視する
 
 		if (gameEngine == null) return;
 		GameStage stage = gameEngine.getStage();
-		int tankObjectID = Integer.parseInt(tokens[1]);
-		if (gameEngine.getMyTankID() == tankObjectID) return;
-		Tank tank = (Tank) gameEngine.getStage().getGameObject(tankObjectID);
 
+		// サーバーが進めたステージの状態に合わせる
+		// 差分は受信を確認したスナップショットを基準にしているので、受け取ったら確認を返す
+		if (message.command == Command.SNAPSHOT) {
+			Snapshot snapshot = Snapshot.decode(message.payload, tick -> snapshots[Math.floorMod(tick, SNAPSHOT_HISTORY)]);
+			snapshots[Math.floorMod(snapshot.tick, SNAPSHOT_HISTORY)] = snapshot;
+			send(new Message(Command.ACK, snapshot.tick));
+			StageSnapshot.apply(stage, snapshot, gameEngine.getMyTankID());
+			reconcile(stage, snapshot);
+			return;
+		}
+
+		// 他のプレイヤーの操作を再現する
+		if (gameEngine.getMyTankID() == message.id) return;
+		if (message.tick == Message.NO_TICK || !clock.isSynchronized()) {
+			CommandApplier.apply(stage, message);
+			return;
+		}
+
+		// ティック番号から送られた時刻を求め、位置と照準はその時刻の状態として補間する
+		long sent = clock.timeOf(message.tick);
+		long delay = clock.toServer(ClockSync.now()) - sent;
+		stats.onOneWayDelay(delay);
+		long sentTime = ClockSync.toNanoTime(clock.toLocal(sent)) / 1000000;
+		GameObject created = CommandApplier.apply(stage, message, sentTime);
+
+		// 弾丸は、撃った人のステージで届くまでに飛んだ分だけ進めて置く
+		if (created instanceof Bullet) {
+			int frames = (int) Math.min(MAX_CATCH_UP, Math.max(0, Math.round((double) delay / clock.getTickLength())));
+			((Bullet) created).fastForward(stage, frames);
+		}
+	}
+
+	/**
+	 * 自分の戦車の予測位置を、スナップショットのサーバーの位置に未処理の移動入力をやり直した位置に補正する。
+	 *
+	 * @param stage クライアントのステージ
+	 * @param snapshot 反映したスナップショット
+	 */
+	private void reconcile(GameStage stage, Snapshot snapshot) {
+		int myTankID = gameEngine.getMyTankID();
+		for (EntityState state : snapshot.entities) {
+			if (state.id != myTankID || state.kind != EntityState.Kind.TANK) continue;
+			GameObject object = stage.getGameObject(myTankID);
+			if (!(object instanceof Tank)) return;
+			inputs.acknowledge(state.input);
+			((Tank) object).reconcile(new Point2D.Double(state.x, state.y), inputs.pending(), stage);
+			return;
+		}
+	}
+
+	/**
+	 * メッセージを送信バッファに積む。
+	 * 操作のメッセージには、時計を合わせた後であれば、サーバーの時計での現在のティック番号を付ける。
+	 * バイナリ形式に切り替えている場合はフレームとして、そうでなければテキスト形式の1行として積む。
+	 * ソケットへの書き込みは{@link #flush()}でまとめて行う。
+	 * UDPを使う場合、位置・照準とイベントはUDPのチャンネルに積む。
+	 *
+	 * @param message 送信するメッセージ
+	 */
+	private synchronized void send(Message message) {
+		if (outbox == null) return;
+		if (message.command.isTimed() && clock.isSynchronized()) message.tick = clock.tickAt(clock.toServer(ClockSync.now()));
+		if (datagram != null && UdpChannel.carries(message.command)) {
+			byte[] frame = BinaryCodec.encode(message);
+			datagram.send(message.command, frame);
+			messagesSent.incrementAndGet();
+			stats.onSent(message.command, frame.length);
+			if (!BATCHING) datagram.flush();
+			return;
+		}
 		try {
-			switch (cmd) {
-				case "LOCATE": {
-					double x = Double.parseDouble(tokens[2]);
-					double y = Double.parseDouble(tokens[3]);
-					stage.getGameObject(tankObjectID).setPosition(new Point2D.Double(x, y));
-					break;
-				}
-				case "BULLET": {
-					Bullet bullet = tank.shootBullet();
-					stage.addGameObject(bullet);
-					break;
-				}
-				case "START_CHARGE": {
-					tank.startEnergyCharge();
-					break;
-				}
-				case "FINISH_CHARGE": {
-					tank.finishEnergyCharge();
-					break;
-				}
-				case "AIM": {
-					double x = Double.parseDouble(tokens[2]);
-					double y = Double.parseDouble(tokens[3]);
-					Point2D.Double targetCoordinate = new Point2D.Double(x, y);
-					tank.aimAt(targetCoordinate);
-					break;
-				}
-				case "BLOCK": {
-					Block block = tank.createBlock();
-					stage.addGameObject(block);
-					break;
-				}
-			}
-		} catch (NumberFormatException e) {
-			System.err.println("パースエラー: " + msg);
+			byte[] bytes = binaryOut ? BinaryCodec.encode(message) : (message.toText() + System.lineSeparator()).getBytes(CHARSET);
+			outbox.write(bytes);
+			messagesSent.incrementAndGet();
+			stats.onSent(message.command, bytes.length);
+			if (!BATCHING) outbox.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * 送信バッファに溜まったメッセージをまとめてサーバーに送る。
+	 * UDPを使う場合は、溜まった位置と照準を1つのデータグラムで送り、確認が返らないイベントを再送する。
+	 * {@link #PING_INTERVAL}ごとに往復時間を計測するPINGを、{@link #CLOCK_SYNC_INTERVAL}ごとに時計合わせの要求を一緒に送る。
+	 * ゲームループから1フレームに1回呼ばれる。
+	 */
+	public synchronized void flush() {
+		if (outbox == null) return;
+		long now = System.nanoTime();
+		if (now - nextPingTime >= 0) {
+			nextPingTime = now + PING_INTERVAL * 1000000;
+			send(new Message(Command.PING, stats.nextPing(now)));
+		}
+		if (now - nextClockSyncTime >= 0) {
+			nextClockSyncTime = now + CLOCK_SYNC_INTERVAL * 1000000;
+			send(clock.request(ClockSync.now()));
+		}
+		if (datagram != null) datagram.flush();
+		try {
+			outbox.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 1秒ごとに送信の統計を表示するタイマーを開始する。
+	 */
+	private void startStatsTimer() {
+		Timer timer = new Timer("netstats", true);
+		timer.scheduleAtFixedRate(new TimerTask() {
+			private long writes, bytes, messages, datagrams;
+
+			@Override
+			public void run() {
+				long w = traffic.writes.get(), b = traffic.bytes.get(), m = messagesSent.get(), d = datagram != null ? datagram.getSent() : 0;
+				System.out.println("send: writes=" + (w - writes) + "/s bytes=" + (b - bytes) + "/s messages=" + (m - messages) + "/s"
+						+ (datagram != null ? " datagrams=" + (d - datagrams) + "/s retransmitted=" + datagram.getRetransmitted() : "")
+						+ String.format(" rtt=%.1fms jitter=%.1fms loss=%.0f%%", stats.getSmoothedRoundTripTime(), stats.getJitter(), stats.getLossRate() * 100)
+						+ String.format(" clock=%+.2fms oneway=%.1fms", stats.getClockOffset(), stats.getOneWayDelay())
+						+ (BATCHING ? "" : " (batching off)"));
+				writes = w;
+				bytes = b;
+				messages = m;
+				datagrams = d;
+			}
+		}, 1000, 1000);
+	}
+
 	/**
 	 * タンクの位置をサーバーに送信する。
 	 *
@@ -193,8 +519,36 @@ public class NetworkManager extends Thread {
 	 * @param position タンクの位置座標
 	 */
 	public void locateTank(int id, Point2D.Double position) {
-		if (out == null) return;
-		out.println("LOCATE " + id + " " + position.x + " " + position.y);
+		send(new Message(Command.LOCATE, id, position.x, position.y));
+	}
+
+	/**
+	 * タンクの移動をサーバーに通知する。
+	 * サーバーがゲームを進めている場合だけ、移動方向に連番を付けて入力として送る。中継の場合はこれまで通り何も送らない。
+	 * 入力はサーバーが処理するまで、予測の補正に使うために覚えておく。
+	 *
+	 * @param tankID 移動したタンクのID
+	 * @param vector 移動方向
+	 */
+	public void move(int tankID, Point2D.Double vector) {
+		if (!authoritative) return;
+		send(new Message(Command.MOVE, inputs.add(vector), vector.x, vector.y));
+	}
+
+	/**
+	 * カメラに映っている範囲をサーバーに通知する。
+	 * サーバーはこの範囲の近くにいる戦車の位置と照準だけを送ってくる。
+	 * 毎フレーム呼んでよく、前回送った範囲から変わったときだけ送る。
+	 *
+	 * @param area 映っている範囲（ステージの座標系）
+	 */
+	public void reportView(Rectangle2D.Double area) {
+		if (!(area.width > 0 && area.height > 0)) return;// ウィンドウの大きさが決まる前
+		int radius = (int) Math.ceil(Math.max(area.width, area.height) / 2);
+		Message view = lastView;
+		if (view != null && view.id == radius && view.x == area.getCenterX() && view.y == area.getCenterY()) return;
+		lastView = view = new Message(Command.VIEW, radius, area.getCenterX(), area.getCenterY());
+		send(view);
 	}
 
 	/**
@@ -203,8 +557,7 @@ public class NetworkManager extends Thread {
 	 * @param tankID 発射するタンクのID
 	 */
 	public void shootGun(int tankID) {
-		if (out == null) return;
-		out.println("BULLET " + tankID);
+		send(new Message(Command.BULLET, tankID));
 	}
 
 	/**
@@ -213,8 +566,7 @@ public class NetworkManager extends Thread {
 	 * @param tankID チャージを開始するタンクのID
 	 */
 	public void startCharge(int tankID) {
-		if (out == null) return;
-		out.println("START_CHARGE " + tankID);
+		send(new Message(Command.START_CHARGE, tankID));
 	}
 
 	/**
@@ -223,19 +575,37 @@ public class NetworkManager extends Thread {
 	 * @param tankID チャージを完了するタンクのID
 	 */
 	public void finishCharge(int tankID) {
-		if (out == null) return;
-		out.println("FINISH_CHARGE " + tankID);
+		send(new Message(Command.FINISH_CHARGE, tankID));
 	}
 
 	/**
 	 * タンクの照準位置をサーバーに送信する。
+	 * 毎フレーム呼ばれるので、前回送ったときから照準の角度が{@link #AIM_THRESHOLD}以上変わっていなければ送らない。
+	 * 戦車が動けば同じ照準位置でも角度が変わるため、そのときは送られる。
 	 *
 	 * @param id タンクのID
 	 * @param aimPosition 照準の位置座標
 	 */
 	public void aimAt(int id, Point2D.Double aimPosition) {
-		if (out == null) return;
-		out.println("AIM " + id + " " + aimPosition.x + " " + aimPosition.y);
+		if (BATCHING && gameEngine != null) {
+			GameObject tank = gameEngine.getStage().getGameObject(id);
+			if (tank != null) {
+				Point2D.Double position = tank.getPosition();
+				double angle = Math.atan2(aimPosition.y - position.y, aimPosition.x - position.x);
+				if (Math.abs(Math.IEEEremainder(angle - lastAimAngle, 2 * Math.PI)) < AIM_THRESHOLD) return;
+				lastAimAngle = angle;
+			}
+		}
+		send(new Message(Command.AIM, id, aimPosition.x, aimPosition.y));
+	}
+
+	/**
+	 * ロックステップの1フレーム分の入力を送信する。
+	 *
+	 * @param input 送る入力
+	 */
+	void sendInput(FrameInput input) {
+		send(input.toMessage());
 	}
 
 	/**
@@ -244,7 +614,34 @@ public class NetworkManager extends Thread {
 	 * @param tankID ブロックを生成するタンクのID
 	 */
 	public void createBlock(int tankID) {
-		if (out == null) return;
-		out.println("BLOCK " + tankID);
+		send(new Message(Command.BLOCK, tankID));
+	}
+
+	/**
+	 * ソケットへの書き込み回数とバイト数を数える出力ストリーム。
+	 * {@link BufferedOutputStream}の下に置くので、書き込み回数はほぼシステムコールの回数になる。
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		final AtomicLong writes = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			writes.incrementAndGet();
+			bytes.incrementAndGet();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			writes.incrementAndGet();
+			bytes.addAndGet(len);
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,254 @@
+package client;
+
+import protocol.Command;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * サーバーとの回線の状態を集計するクラス。
+ * PINGとPONGの往復時間から平滑化した往復時間と揺らぎを、応答が返らなかったPINGから損失率を推定する。
+ * あわせてコマンドごとに送受信したメッセージ数とバイト数を数える。
+ * 数えるのはメッセージごとの加算だけなので、常に有効にしておける。
+ * 往復時間はサーバーでの処理とネットワークだけを含み、クライアントのフレームの処理は含まない。
+ * 時計合わせの結果と、ティック番号の付いた操作の片道の遅延も記録する。
+ */
+public class NetworkStats implements NetworkStatsMXBean {
+
+	private static final int PING_HISTORY = 64;// 応答を待っているPINGを覚えておく数
+	private static final long LOSS_TIMEOUT = 2000;// これより長く応答が返らないPINGは失われたとみなす（ミリ秒）
+	private static final double GAIN = 1.0 / 8;// 平滑化で新しい計測値を反映する割合
+	private static final double JITTER_GAIN = 1.0 / 16;// RFC 3550の揺らぎの計算と同じ割合
+
+	private static final Command[] COMMANDS = Command.values();
+
+	// コマンドごとの計測。送信はゲームのスレッド、受信は受信のスレッドから数える
+	private final AtomicLongArray sentMessages = new AtomicLongArray(COMMANDS.length);
+	private final AtomicLongArray sentBytes = new AtomicLongArray(COMMANDS.length);
+	private final AtomicLongArray receivedMessages = new AtomicLongArray(COMMANDS.length);
+	private final AtomicLongArray receivedBytes = new AtomicLongArray(COMMANDS.length);
+
+	// 往復時間の計測
+	private final int[] pingSequences = new int[PING_HISTORY];
+	private final long[] pingTimes = new long[PING_HISTORY];// 送った時刻（ナノ秒）。応答を待っていなければ0
+	private int nextPing = 1;
+	private long pingsSent = 0;
+	private long pongsReceived = 0;
+	private long pingsLost = 0;
+	private double roundTripTime = -1;
+	private double smoothedRoundTripTime = -1;
+	private double jitter = 0;
+	private double lossRate = 0;
+
+	// 時計合わせと片道の遅延
+	private double clockOffset = 0;
+	private double clockRoundTripTime = -1;
+	private double oneWayDelay = -1;
+
+	private ObjectName registeredName;// JMXに登録した名前。登録していなければnull
+
+	/**
+	 * JMXのMBeanとして登録する。
+	 * 同じプロセスで複数のクライアントを動かせるように、名前にクライアント番号を含める。
+	 * クライアント番号は切断後に別の接続へ使い回されるので、接続が終わったら{@link #unregister()}で登録を取り消す。
+	 *
+	 * @param clientID ネットワーククライアントID
+	 */
+	public synchronized void register(int clientID) {
+		unregister();
+		try {
+			ObjectName name = new ObjectName("game.client:type=NetworkStats,client=" + clientID);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			registeredName = name;
+		} catch (JMException e) {
+			System.err.println("回線の統計をJMXに登録できませんでした: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * JMXのMBeanの登録を取り消す。登録していなければ何もしない。
+	 */
+	public synchronized void unregister() {
+		if (registeredName == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+		} catch (JMException e) {
+			System.err.println("回線の統計のJMXの登録を取り消せませんでした: " + e.getMessage());
+		}
+		registeredName = null;
+	}
+
+	/**
+	 * メッセージを送ったことを記録する。
+	 *
+	 * @param command 送ったコマンド
+	 * @param bytes 送ったバイト数
+	 */
+	public void onSent(Command command, int bytes) {
+		sentMessages.incrementAndGet(command.ordinal());
+		sentBytes.addAndGet(command.ordinal(), bytes);
+	}
+
+	/**
+	 * メッセージを受け取ったことを記録する。
+	 *
+	 * @param command 受け取ったコマンド
+	 * @param bytes 受け取ったバイト数
+	 */
+	public void onReceived(Command command, int bytes) {
+		receivedMessages.incrementAndGet(command.ordinal());
+		receivedBytes.addAndGet(command.ordinal(), bytes);
+	}
+
+	/**
+	 * 次に送るPINGの連番を払い出し、送った時刻を覚える。
+	 * 応答を待ちきれなかったPINGはここで失われたものとして数える。
+	 *
+	 * @param now 現在時刻（ナノ秒）
+	 * @return PINGの連番
+	 */
+	public synchronized int nextPing(long now) {
+		for (int i = 0; i < PING_HISTORY; i++) {
+			if (pingTimes[i] == 0 || now - pingTimes[i] < LOSS_TIMEOUT * 1000000) continue;
+			pingTimes[i] = 0;
+			pingsLost++;
+			lossRate += (1 - lossRate) * GAIN;
+		}
+		int sequence = nextPing++;
+		int index = sequence % PING_HISTORY;
+		if (pingTimes[index] != 0) {
+			pingsLost++;// 履歴を一周しても応答が無かった
+			lossRate += (1 - lossRate) * GAIN;
+		}
+		pingSequences[index] = sequence;
+		pingTimes[index] = now;
+		pingsSent++;
+		return sequence;
+	}
+
+	/**
+	 * PONGを受け取ったときに往復時間を計測する。
+	 * 失われたとみなした後に届いたPONGや、重複したPONGは無視する。
+	 *
+	 * @param sequence PONGの連番
+	 * @param now 受け取った時刻（ナノ秒）
+	 */
+	public synchronized void onPong(int sequence, long now) {
+		int index = Math.floorMod(sequence, PING_HISTORY);
+		if (pingSequences[index] != sequence || pingTimes[index] == 0) return;
+		double sample = (now - pingTimes[index]) / 1e6;
+		pingTimes[index] = 0;
+		pongsReceived++;
+		lossRate -= lossRate * GAIN;
+
+		if (roundTripTime >= 0) jitter += (Math.abs(sample - roundTripTime) - jitter) * JITTER_GAIN;
+		roundTripTime = sample;
+		smoothedRoundTripTime = smoothedRoundTripTime < 0 ? sample : smoothedRoundTripTime + (sample - smoothedRoundTripTime) * GAIN;
+	}
+
+	/**
+	 * 時計合わせの結果を記録する。
+	 *
+	 * @param offset サーバーの時計 - このクライアントの時計（マイクロ秒）
+	 * @param roundTrip 推定に使った計測の往復時間（マイクロ秒）
+	 */
+	public synchronized void onClockSync(long offset, long roundTrip) {
+		clockOffset = offset / 1e3;
+		clockRoundTripTime = roundTrip / 1e3;
+	}
+
+	/**
+	 * ティック番号の付いた操作が届いたときに、片道の遅延を記録する。
+	 *
+	 * @param delay 送られた時刻から受け取った時刻までの時間（マイクロ秒）
+	 */
+	public synchronized void onOneWayDelay(long delay) {
+		double sample = delay / 1e3;
+		oneWayDelay = oneWayDelay < 0 ? sample : oneWayDelay + (sample - oneWayDelay) * GAIN;
+	}
+
+	@Override
+	public synchronized double getClockOffset() {
+		return clockOffset;
+	}
+
+	@Override
+	public synchronized double getClockRoundTripTime() {
+		return clockRoundTripTime;
+	}
+
+	@Override
+	public synchronized double getOneWayDelay() {
+		return oneWayDelay;
+	}
+
+	@Override
+	public synchronized double getRoundTripTime() {
+		return roundTripTime;
+	}
+
+	@Override
+	public synchronized double getSmoothedRoundTripTime() {
+		return smoothedRoundTripTime;
+	}
+
+	@Override
+	public synchronized double getJitter() {
+		return jitter;
+	}
+
+	@Override
+	public synchronized double getLossRate() {
+		return lossRate;
+	}
+
+	@Override
+	public synchronized long getPingsSent() {
+		return pingsSent;
+	}
+
+	@Override
+	public synchronized long getPongsReceived() {
+		return pongsReceived;
+	}
+
+	@Override
+	public synchronized long getPingsLost() {
+		return pingsLost;
+	}
+
+	@Override
+	public Map<String, Long> getSentMessages() {
+		return toMap(sentMessages);
+	}
+
+	@Override
+	public Map<String, Long> getSentBytes() {
+		return toMap(sentBytes);
+	}
+
+	@Override
+	public Map<String, Long> getReceivedMessages() {
+		return toMap(receivedMessages);
+	}
+
+	@Override
+	public Map<String, Long> getReceivedBytes() {
+		return toMap(receivedBytes);
+	}
+
+	/**
+	 * コマンドごとの計測値を、コマンド名をキーにしたMapにする。
+	 */
+	private static Map<String, Long> toMap(AtomicLongArray counters) {
+		Map<String, Long> map = new LinkedHashMap<>();
+		for (Command command : COMMANDS) {
+			map.put(command.name(), counters.get(command.ordinal()));
+		}
+		return map;
+	}
+}
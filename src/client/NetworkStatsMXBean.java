@@ -0,0 +1,82 @@
+package client;
+
+import java.util.Map;
+
+/**
+ * 回線の状態をJMXで公開するためのインターフェース。
+ * JConsoleなどから<code>game.client:type=NetworkStats,client=クライアントID</code>として参照できる。
+ * 時間はすべてミリ秒。
+ */
+public interface NetworkStatsMXBean {
+
+	/**
+	 * 最後に計測した往復時間を取得する。まだ計測していない場合は-1。
+	 */
+	double getRoundTripTime();
+
+	/**
+	 * 平滑化した往復時間を取得する。まだ計測していない場合は-1。
+	 */
+	double getSmoothedRoundTripTime();
+
+	/**
+	 * 往復時間の揺らぎ（連続する計測値の差の平滑値）を取得する。
+	 */
+	double getJitter();
+
+	/**
+	 * 応答が返らなかったPINGの割合の推定値（0〜1）を取得する。
+	 */
+	double getLossRate();
+
+	/**
+	 * これまでに送ったPINGの数を取得する。
+	 */
+	long getPingsSent();
+
+	/**
+	 * これまでに受け取ったPONGの数を取得する。
+	 */
+	long getPongsReceived();
+
+	/**
+	 * 応答が返らずに失われたとみなしたPINGの数を取得する。
+	 */
+	long getPingsLost();
+
+	/**
+	 * 時計合わせで推定した、サーバーの時計とこのクライアントの時計のずれ（サーバー - クライアント）を取得する。
+	 */
+	double getClockOffset();
+
+	/**
+	 * 時計のずれの推定に使った計測の往復時間を取得する。まだ計測していない場合は-1。
+	 */
+	double getClockRoundTripTime();
+
+	/**
+	 * ティック番号の付いた操作が、送られてから届くまでの片道の遅延を平滑化したものを取得する。まだ受け取っていない場合は-1。
+	 * ティック番号は1フレーム単位なので、1回ごとの遅延には1フレーム程度の誤差がある。
+	 */
+	double getOneWayDelay();
+
+	/**
+	 * コマンドごとの送信メッセージ数を取得する。
+	 */
+	Map<String, Long> getSentMessages();
+
+	/**
+	 * コマンドごとの送信バイト数を取得する。
+	 */
+	Map<String, Long> getSentBytes();
+
+	/**
+	 * コマンドごとの受信メッセージ数を取得する。
+	 */
+	Map<String, Long> getReceivedMessages();
+
+	/**
+	 * コマンドごとの受信バイト数を取得する。
+	 */
+	Map<String, Long> getReceivedBytes();
+}
@@ -1,6 +1,7 @@
 package client;
 
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 
 /**
  * ネットワーク通信の戦略を定義するインターフェース。
@@ -16,6 +17,25 @@ public interface NetworkStrategy {
      */
     void aimAt(int tankID, Point2D.Double coordinate);
 
+    /**
+     * 移動をサーバに送信します。
+     *
+     * @param tankID 戦車のID
+     * @param vector 移動方向
+     */
+    default void move(int tankID, Point2D.Double vector) {
+    }
+
+    /**
+     * サーバがゲームを進めているかを返します。
+     * trueの場合、弾丸やブロックはローカルでは生成せず、サーバからのスナップショットで反映されます。
+     *
+     * @return サーバがゲームを進めている場合はtrue
+     */
+    default boolean isAuthoritative() {
+        return false;
+    }
+
     /**
      * 銃の発射をサーバに送信します。
      *
@@ -43,4 +63,18 @@ public interface NetworkStrategy {
      * @param tankID 戦車のID
      */
     void createBlock(int tankID);
+
+    /**
+     * カメラに映っている範囲をサーバに送信します。範囲が変わったときだけ送ります。
+     *
+     * @param area 映っている範囲（ステージの座標系）
+     */
+    default void reportView(Rectangle2D.Double area) {
+    }
+
+    /**
+     * 1フレームの間に送信したメッセージをまとめてサーバに送ります。
+     */
+    default void flush() {
+    }
 }
@@ -12,6 +12,7 @@ import javax.sound.midi.MidiChannel;
 import javax.sound.midi.MidiSystem;
 import javax.sound.midi.Synthesizer;
 
+import java.awt.GraphicsEnvironment;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -20,9 +21,13 @@ import java.util.List;
 /**
  * ゲームの効果音とMIDI音楽を管理するクラス。
  * 複数の効果音を同時に再生するためのClipプールを管理する。
+ * ヘッドレス環境（サーバーのシミュレーションなど）では音声デバイスを開かず、何も再生しない。
  */
 public class SoundManager {
 
+	// ヘッドレス環境では鳴らさない
+	private static final boolean MUTED = GraphicsEnvironment.isHeadless();
+
 	// Clipプール
 	private static final int POOL_SIZE = 10;
 	private static List<Clip> bulletExplosionPool;
@@ -37,6 +42,17 @@ public class SoundManager {
 	private static MidiChannel whistle;
 
 	static {
+		if (MUTED) {
+			bulletExplosionPool = createBlockPool = objectBreakPool = objectExplosionPool = shotPool = new ArrayList<>();
+		} else {
+			initialize();
+		}
+	}
+
+	/**
+	 * 効果音のClipプールとMIDIシンセサイザーを準備する。
+	 */
+	private static void initialize() {
 		bulletExplosionPool = loadPool("assets/sounds/bullet_explosion.wav");
 		createBlockPool     = loadPool("assets/sounds/create_block.wav");
 		objectBreakPool     = loadPool("assets/sounds/object_break.wav");
@@ -168,6 +184,7 @@ public class SoundManager {
 	 * 別スレッドで非同期に再生される。
 	 */
 	public void playBell() {
+		if (MUTED) return;
 		new Thread(() -> {
 			try {
 				int velocity = 90;
@@ -194,6 +211,7 @@ public class SoundManager {
 	 * 別スレッドで非同期に再生される。
 	 */
 	public void playWhistle() {
+		if (MUTED) return;
 		new Thread(() -> {
 			try {
 				int velocity = 90;
@@ -226,6 +244,7 @@ public class SoundManager {
 	 * 別スレッドで非同期に再生される。
 	 */
 	public void playVictorySound() {
+		if (MUTED) return;
 		new Thread(() -> {
 			try {
 				int velocity = 90;
@@ -260,6 +279,7 @@ public class SoundManager {
 	 * 別スレッドで非同期に再生される。
 	 */
 	public void playGameOverSound() {
+		if (MUTED) return;
 		new Thread(() -> {
 			try {
 				int velocity = 85;
@@ -0,0 +1,330 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * コンパクトなバイナリ形式のエンコーダ・デコーダ。
+ * 1フレームは「本体の長さ(varint)」「オペコード(1バイト)」「引数」からなる。
+ * <ul>
+ *     <li>戦車IDやプレイヤー数はvarint（7ビットずつ、上位ビットが継続フラグ）</li>
+ *     <li>座標は1/{@value #COORDINATE_SCALE}単位に量子化し、zigzag符号化したvarint</li>
+ *     <li>RAWはUTF-8のテキストをそのまま本体に入れる</li>
+ *     <li>SNAPSHOTはティック番号(varint)、INPUTはフレーム番号(varint)、TIMEは連番(varint)の後にバイト列をそのまま入れる</li>
+ *     <li>操作のコマンドにティック番号が付いている場合は、引数の後にvarintで加える。本体の残りの長さで有無がわかる</li>
+ * </ul>
+ * ステージ内の座標（±数千）は3バイトに収まるため、LOCATEは9バイト程度（ティック番号を付けると12バイト程度）になる。
+ */
+public final class BinaryCodec {
+
+	/**
+	 * サーバーが接続時の1行目でバイナリ形式に対応していることを示すトークン。
+	 */
+	public static final String CAPABILITY = "BINARY";
+
+	/**
+	 * バイナリ形式への切り替えを要求・承認する行。
+	 * この行より後は、送信側はバイナリ形式で送る。
+	 */
+	public static final String UPGRADE = "PROTOCOL BINARY";
+
+	/**
+	 * 1フレームの本体の最大長。これを超える長さは不正なフレームとして扱う。
+	 */
+	public static final int MAX_BODY_LENGTH = 64 * 1024;
+
+	/**
+	 * 座標の量子化の細かさ（1単位あたりの段階数）。
+	 */
+	public static final double COORDINATE_SCALE = 16.0;
+
+	private BinaryCodec() {
+	}
+
+	/**
+	 * メッセージをフレームにエンコードする。
+	 *
+	 * @param message エンコードするメッセージ
+	 * @return 長さの前置きを含むフレーム
+	 */
+	public static byte[] encode(Message message) {
+		byte[] raw = rawBytes(message);
+		int bodyLength = bodyLength(message, raw);
+
+		byte[] frame = new byte[varintSize(bodyLength) + bodyLength];
+		int offset = writeVarint(bodyLength, frame, 0);
+		frame[offset++] = (byte) message.command.getOpcode();
+		if (message.command == Command.RAW) {
+			System.arraycopy(raw, 0, frame, offset, raw.length);
+			return frame;
+		}
+		offset = writeVarint(message.id, frame, offset);
+		if (raw != null) {
+			System.arraycopy(raw, 0, frame, offset, raw.length);
+			return frame;
+		}
+		if (message.command.hasCoordinate()) {
+			offset = writeVarint(zigzag(quantize(message.x)), frame, offset);
+			offset = writeVarint(zigzag(quantize(message.y)), frame, offset);
+		}
+		if (hasTick(message)) writeVarint(message.tick, frame, offset);
+		return frame;
+	}
+
+	/**
+	 * メッセージをエンコードしたときのフレームの長さを、エンコードせずに求める。
+	 * 受信したメッセージのバイト数を数えるために使う。
+	 *
+	 * @param message メッセージ
+	 * @return 長さの前置きを含むフレームのバイト数
+	 */
+	public static int encodedSize(Message message) {
+		int bodyLength = bodyLength(message, rawBytes(message));
+		return varintSize(bodyLength) + bodyLength;
+	}
+
+	/**
+	 * 本体にそのまま入れるバイト列を取得する。
+	 *
+	 * @return RAWのテキストかSNAPSHOTのバイト列。それ以外はnull
+	 */
+	private static byte[] rawBytes(Message message) {
+		if (message.command == Command.RAW) return message.text.getBytes(StandardCharsets.UTF_8);
+		if (message.command.hasPayload()) return message.payload;
+		return null;
+	}
+
+	/**
+	 * フレームの本体の長さを求める。
+	 */
+	private static int bodyLength(Message message, byte[] raw) {
+		if (message.command == Command.RAW) return 1 + raw.length;
+		int bodyLength = 1 + varintSize(message.id);
+		if (raw != null) return bodyLength + raw.length;
+		if (message.command.hasCoordinate()) {
+			bodyLength += varintSize(zigzag(quantize(message.x)));
+			bodyLength += varintSize(zigzag(quantize(message.y)));
+		}
+		if (hasTick(message)) bodyLength += varintSize(message.tick);
+		return bodyLength;
+	}
+
+	/**
+	 * ティック番号を加えるメッセージかどうかを判定する。
+	 */
+	private static boolean hasTick(Message message) {
+		return message.command.isTimed() && message.tick >= 0;
+	}
+
+	/**
+	 * バッファの先頭から1フレームをデコードする。
+	 * フレームがまだ全部届いていない場合は0を返すので、続きを受信してから再度呼ぶこと。
+	 *
+	 * @param buffer 受信したバイト列
+	 * @param offset 読み始める位置
+	 * @param length 読める長さ
+	 * @param out デコード結果を書き込むメッセージ
+	 * @return 消費したバイト数。フレームが不完全な場合は0
+	 * @throws IllegalArgumentException 不正なフレームの場合
+	 */
+	public static int decode(byte[] buffer, int offset, int length, Message out) {
+		int end = offset + length;
+		int bodyLength = 0;
+		int shift = 0;
+		int position = offset;
+		while (true) {
+			if (position >= end) return 0;
+			byte b = buffer[position++];
+			bodyLength |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) break;
+			shift += 7;
+			if (shift > 28) throw new IllegalArgumentException("varint too long");
+		}
+		if (bodyLength <= 0 || bodyLength > MAX_BODY_LENGTH) throw new IllegalArgumentException("bad frame length: " + bodyLength);
+		if (end - position < bodyLength) return 0;
+		decodeBody(buffer, position, bodyLength, out);
+		return position + bodyLength - offset;
+	}
+
+	/**
+	 * 長さの前置きを除いたフレームの本体をデコードする。
+	 *
+	 * @param body 本体を含むバイト列
+	 * @param offset 本体の開始位置
+	 * @param length 本体の長さ
+	 * @param out デコード結果を書き込むメッセージ
+	 * @throws IllegalArgumentException 不正なフレームの場合
+	 */
+	public static void decodeBody(byte[] body, int offset, int length, Message out) {
+		Command command = Command.fromOpcode(body[offset]);
+		if (command == null) throw new IllegalArgumentException("unknown opcode: " + body[offset]);
+		out.command = command;
+		if (command == Command.RAW) {
+			out.text = new String(body, offset + 1, length - 1, StandardCharsets.UTF_8);
+			return;
+		}
+		out.text = null;
+		out.tick = Message.NO_TICK;
+		int end = offset + length;
+		long read = readVarint(body, offset + 1, end);
+		out.id = (int) read;
+		if (command.hasPayload()) {
+			int position = (int) (read >>> 32);
+			out.payload = Arrays.copyOfRange(body, position, end);
+			return;
+		}
+		if (command.hasCoordinate()) {
+			read = readVarint(body, (int) (read >>> 32), end);
+			out.x = unzigzag((int) read) / COORDINATE_SCALE;
+			read = readVarint(body, (int) (read >>> 32), end);
+			out.y = unzigzag((int) read) / COORDINATE_SCALE;
+		}
+		int position = (int) (read >>> 32);
+		if (command.isTimed() && position < end) out.tick = (int) readVarint(body, position, end);
+	}
+
+	/**
+	 * バッファの指定した位置から1フレームをデコードする。
+	 * メモリマップしたファイルなどから、バイト列にコピーせずに読むために使う。バッファの位置は変えない。
+	 *
+	 * @param buffer フレームを含むバッファ
+	 * @param offset 読み始める位置（バッファの先頭からの絶対位置）
+	 * @param length 読める長さ
+	 * @param out デコード結果を書き込むメッセージ
+	 * @return 消費したバイト数。フレームが不完全な場合は0
+	 * @throws IllegalArgumentException 不正なフレームの場合
+	 */
+	public static int decode(ByteBuffer buffer, int offset, int length, Message out) {
+		int end = offset + length;
+		int bodyLength = 0;
+		int shift = 0;
+		int position = offset;
+		while (true) {
+			if (position >= end) return 0;
+			byte b = buffer.get(position++);
+			bodyLength |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) break;
+			shift += 7;
+			if (shift > 28) throw new IllegalArgumentException("varint too long");
+		}
+		if (bodyLength <= 0 || bodyLength > MAX_BODY_LENGTH) throw new IllegalArgumentException("bad frame length: " + bodyLength);
+		if (end - position < bodyLength) return 0;
+		decodeBody(buffer, position, bodyLength, out);
+		return position + bodyLength - offset;
+	}
+
+	/**
+	 * バッファの指定した位置にある、長さの前置きを除いたフレームの本体をデコードする。バッファの位置は変えない。
+	 *
+	 * @param buffer 本体を含むバッファ
+	 * @param offset 本体の開始位置（バッファの先頭からの絶対位置）
+	 * @param length 本体の長さ
+	 * @param out デコード結果を書き込むメッセージ
+	 * @throws IllegalArgumentException 不正なフレームの場合
+	 */
+	public static void decodeBody(ByteBuffer buffer, int offset, int length, Message out) {
+		Command command = Command.fromOpcode(buffer.get(offset));
+		if (command == null) throw new IllegalArgumentException("unknown opcode: " + buffer.get(offset));
+		out.command = command;
+		if (command == Command.RAW) {
+			byte[] text = new byte[length - 1];
+			buffer.get(offset + 1, text);
+			out.text = new String(text, StandardCharsets.UTF_8);
+			return;
+		}
+		out.text = null;
+		out.tick = Message.NO_TICK;
+		int end = offset + length;
+		long read = readVarint(buffer, offset + 1, end);
+		out.id = (int) read;
+		if (command.hasPayload()) {
+			int position = (int) (read >>> 32);
+			out.payload = new byte[end - position];
+			buffer.get(position, out.payload);
+			return;
+		}
+		if (command.hasCoordinate()) {
+			read = readVarint(buffer, (int) (read >>> 32), end);
+			out.x = unzigzag((int) read) / COORDINATE_SCALE;
+			read = readVarint(buffer, (int) (read >>> 32), end);
+			out.y = unzigzag((int) read) / COORDINATE_SCALE;
+		}
+		int position = (int) (read >>> 32);
+		if (command.isTimed() && position < end) out.tick = (int) readVarint(buffer, position, end);
+	}
+
+	/**
+	 * varintを書き込む。
+	 *
+	 * @return 書き込んだ後の位置
+	 */
+	static int writeVarint(int value, byte[] buffer, int offset) {
+		while ((value & ~0x7F) != 0) {
+			buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * varintで書いたときのバイト数を取得する。
+	 */
+	static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			size++;
+			value >>>= 7;
+		}
+		return size;
+	}
+
+	static int quantize(double coordinate) {
+		return (int) Math.round(coordinate * COORDINATE_SCALE);
+	}
+
+	static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * varintを読む。オブジェクトを生成しないよう、値と読み終えた位置を1つのlongに詰めて返す。
+	 *
+	 * @return 下位32ビットが値、上位32ビットが読み終えた位置
+	 */
+	static long readVarint(byte[] buffer, int position, int end) {
+		int value = 0;
+		int shift = 0;
+		while (true) {
+			if (position >= end) throw new IllegalArgumentException("truncated frame");
+			byte b = buffer[position++];
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return ((long) position << 32) | (value & 0xFFFFFFFFL);
+			shift += 7;
+			if (shift > 28) throw new IllegalArgumentException("varint too long");
+		}
+	}
+
+	/**
+	 * {@link #readVarint(byte[], int, int)}と同じく、バッファの指定した位置からvarintを読む。バッファの位置は変えない。
+	 *
+	 * @return 下位32ビットが値、上位32ビットが読み終えた位置
+	 */
+	static long readVarint(ByteBuffer buffer, int position, int end) {
+		int value = 0;
+		int shift = 0;
+		while (true) {
+			if (position >= end) throw new IllegalArgumentException("truncated frame");
+			byte b = buffer.get(position++);
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return ((long) position << 32) | (value & 0xFFFFFFFFL);
+			shift += 7;
+			if (shift > 28) throw new IllegalArgumentException("varint too long");
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * NTPと同じ方法で、クライアントの時計とサーバーの時計のずれを推定するクラス。
+ * クライアントはTIMEで送信時刻t0を送り、サーバーは同じ連番で受信時刻t1と送信時刻t2を添えて返す。
+ * クライアントは受信時刻t3から、時計のずれ((t1 - t0) + (t2 - t3)) / 2と、往復の遅延(t3 - t0) - (t2 - t1)を求める。
+ * 遅延の小さい計測ほどずれを正確に求められるので、直近{@value #SAMPLES}回のうち遅延が最も小さい計測のずれを使う（NTPのクロックフィルタと同じ考え方）。
+ * 時刻はどちらもプロセスごとの{@link #now()}（マイクロ秒）で表す。
+ * <p>
+ * サーバーの時計は全員に共通のティック番号にも使う。ティックtは、サーバーの時刻がt / ティックレート秒になったときに始まる。
+ * 操作のコマンドにはこのティック番号を付けて送り（{@link Message#tick}）、受信者は送られてからの時間を求める。
+ * 送信側は{@link #request}、サーバーは{@link #reply}、受信側は{@link #onReply}を使う。
+ */
+public final class ClockSync {
+
+	/**
+	 * ずれを求めるのに使う、直近の計測の数。
+	 */
+	public static final int SAMPLES = 8;
+
+	private static final long EPOCH = System.nanoTime();
+
+	private final int ticksPerSecond;
+	private final long[] offsets = new long[SAMPLES];// サーバーの時刻 - クライアントの時刻（マイクロ秒）
+	private final long[] delays = new long[SAMPLES];// 往復の遅延（マイクロ秒）
+	private int samples = 0;// これまでの計測の数
+	private int nextRequest = 1;
+	private long offset = 0;// 採用した計測のずれ
+	private long delay = -1;// 採用した計測の往復の遅延。計測前は-1
+
+	/**
+	 * ClockSyncのコンストラクタ。
+	 *
+	 * @param ticksPerSecond 1秒あたりのティック数
+	 */
+	public ClockSync(int ticksPerSecond) {
+		this.ticksPerSecond = ticksPerSecond;
+	}
+
+	/**
+	 * このプロセスの時計の現在時刻を取得する。
+	 *
+	 * @return プロセスごとに決まった時点からの経過時間（マイクロ秒）
+	 */
+	public static long now() {
+		return (System.nanoTime() - EPOCH) / 1000;
+	}
+
+	/**
+	 * {@link #now()}の時刻を、System.nanoTimeの値に変換する。
+	 *
+	 * @param micros {@link #now()}の時刻
+	 * @return System.nanoTimeの値
+	 */
+	public static long toNanoTime(long micros) {
+		return EPOCH + micros * 1000;
+	}
+
+	/**
+	 * 時計合わせの要求を作る。
+	 *
+	 * @param now 送信時刻（{@link #now()}）
+	 * @return サーバーに送るTIME
+	 */
+	public synchronized Message request(long now) {
+		return new Message(Command.TIME, nextRequest++, times(now));
+	}
+
+	/**
+	 * サーバーが、時計合わせの要求への応答を作る。
+	 *
+	 * @param request 受信したTIME
+	 * @param received 要求を受信した時刻（{@link #now()}）
+	 * @param transmitted 応答を送る時刻（{@link #now()}）
+	 * @return 要求の送信者に返すTIME。要求が不正な場合はnull
+	 */
+	public static Message reply(Message request, long received, long transmitted) {
+		if (request.payload == null || request.payload.length < Long.BYTES) return null;
+		long sent = ByteBuffer.wrap(request.payload).getLong();
+		return new Message(Command.TIME, request.id, times(sent, received, transmitted));
+	}
+
+	/**
+	 * サーバーからの応答で、時計のずれを計測し直す。
+	 *
+	 * @param reply 受信したTIME
+	 * @param received 応答を受信した時刻（{@link #now()}）
+	 * @return 計測できた場合はtrue
+	 */
+	public synchronized boolean onReply(Message reply, long received) {
+		if (reply.payload == null || reply.payload.length < 3 * Long.BYTES) return false;
+		ByteBuffer buffer = ByteBuffer.wrap(reply.payload);
+		long t0 = buffer.getLong(), t1 = buffer.getLong(), t2 = buffer.getLong(), t3 = received;
+		int index = samples++ % SAMPLES;
+		offsets[index] = ((t1 - t0) + (t2 - t3)) / 2;
+		delays[index] = Math.max(0, (t3 - t0) - (t2 - t1));
+
+		// 遅延が最も小さい計測を採用する
+		int best = 0;
+		for (int i = 1; i < Math.min(samples, SAMPLES); i++) {
+			if (delays[i] < delays[best]) best = i;
+		}
+		offset = offsets[best];
+		delay = delays[best];
+		return true;
+	}
+
+	/**
+	 * 1度でも時計のずれを計測したかを判定する。
+	 */
+	public synchronized boolean isSynchronized() {
+		return samples > 0;
+	}
+
+	/**
+	 * これまでの計測の数を取得する。
+	 */
+	public synchronized int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * 推定した時計のずれを取得する。
+	 *
+	 * @return サーバーの時刻 - このプロセスの時刻（マイクロ秒）
+	 */
+	public synchronized long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * ずれの推定に使った計測の往復の遅延を取得する。
+	 *
+	 * @return 往復の遅延（マイクロ秒）。計測前は-1
+	 */
+	public synchronized long getRoundTrip() {
+		return delay;
+	}
+
+	/**
+	 * このプロセスの時刻をサーバーの時刻に変換する。
+	 *
+	 * @param local このプロセスの時刻（{@link #now()}）
+	 * @return サーバーの時刻（マイクロ秒）
+	 */
+	public synchronized long toServer(long local) {
+		return local + offset;
+	}
+
+	/**
+	 * サーバーの時刻をこのプロセスの時刻に変換する。
+	 *
+	 * @param server サーバーの時刻（マイクロ秒）
+	 * @return このプロセスの時刻（{@link #now()}と同じ時計）
+	 */
+	public synchronized long toLocal(long server) {
+		return server - offset;
+	}
+
+	/**
+	 * サーバーの時刻のティック番号を求める。
+	 *
+	 * @param server サーバーの時刻（マイクロ秒）
+	 * @return ティック番号
+	 */
+	public int tickAt(long server) {
+		return (int) Math.floorDiv(server * ticksPerSecond, 1000000L);
+	}
+
+	/**
+	 * ティックの中ほどのサーバーの時刻を求める。
+	 * ティック番号を付けたメッセージは、ティックの間のどこかで送られているので、送られた時刻はこれで見積もる。
+	 *
+	 * @param tick ティック番号
+	 * @return サーバーの時刻（マイクロ秒）
+	 */
+	public long timeOf(int tick) {
+		return (tick * 1000000L + 500000L) / ticksPerSecond;
+	}
+
+	/**
+	 * 1ティックの長さを取得する。
+	 *
+	 * @return マイクロ秒
+	 */
+	public long getTickLength() {
+		return 1000000L / ticksPerSecond;
+	}
+
+	/**
+	 * 時刻を並べたバイト列を作る。
+	 */
+	private static byte[] times(long... times) {
+		ByteBuffer buffer = ByteBuffer.allocate(times.length * Long.BYTES);
+		for (long time : times) buffer.putLong(time);
+		return buffer.array();
+	}
+}
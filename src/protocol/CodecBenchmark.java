@@ -0,0 +1,103 @@
+package protocol;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * テキスト形式とバイナリ形式のメッセージのサイズとエンコード・デコードの速度を比較するベンチマーク。
+ * 各戦車が1ティックごとにLOCATEとAIMを1つずつ送る状況を想定し、
+ * 1ティックあたりのバイト数と、1メッセージあたりのエンコード・デコード時間を表形式で出力する。
+ *
+ * <pre>
+ * java -cp out protocol.CodecBenchmark [--tanks 4] [--ticks 200000]
+ * </pre>
+ */
+public class CodecBenchmark {
+
+	// PrintWriter/BufferedReaderで読み書きしていた頃と同じ文字コード
+	private static final Charset CHARSET = Charset.defaultCharset();
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	private static long sink;// JITに計算を消されないようにする
+
+	public static void main(String[] args) {
+		int tanks = 4;
+		int ticks = 200000;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--tanks":
+					tanks = Integer.parseInt(args[++i]);
+					break;
+				case "--ticks":
+					ticks = Integer.parseInt(args[++i]);
+					break;
+			}
+		}
+
+		// 実際の移動と同じく、端数を含む座標を用意する
+		Random random = new Random(1);
+		Message[] messages = new Message[tanks * 2];
+		for (int i = 0; i < tanks; i++) {
+			messages[i * 2] = new Message(Command.LOCATE, i, random.nextDouble() * 2000, random.nextDouble() * 2000);
+			messages[i * 2 + 1] = new Message(Command.AIM, i, random.nextDouble() * 2000, random.nextDouble() * 2000);
+		}
+		int iterations = ticks;
+
+		// ウォームアップ
+		runText(messages, iterations / 10 + 1);
+		runBinary(messages, iterations / 10 + 1);
+
+		int textBytes = 0, binaryBytes = 0;
+		for (Message message : messages) {
+			textBytes += (message.toText() + LINE_SEPARATOR).getBytes(CHARSET).length;
+			binaryBytes += BinaryCodec.encode(message).length;
+		}
+		long count = (long) iterations * messages.length;
+		double textNanos = (double) runText(messages, iterations) / count;
+		double binaryNanos = (double) runBinary(messages, iterations) / count;
+
+		System.out.println("tanks=" + tanks + " messages=" + count);
+		System.out.println(String.format("%-8s %14s %16s", "format", "bytes/tick", "ns/message"));
+		System.out.println(String.format("%-8s %14d %16.1f", "text", textBytes, textNanos));
+		System.out.println(String.format("%-8s %14d %16.1f", "binary", binaryBytes, binaryNanos));
+		System.out.println(String.format("ratio    %13.1fx %15.1fx", (double) textBytes / binaryBytes, textNanos / binaryNanos));
+		if (sink == 42) System.out.println();
+	}
+
+	/**
+	 * テキスト形式でエンコードしてデコードする。受信側と同じく1行ずつ文字列にしてから解釈する。
+	 *
+	 * @return かかった時間（ナノ秒）
+	 */
+	private static long runText(Message[] messages, int iterations) {
+		Message decoded = new Message();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			for (Message message : messages) {
+				byte[] bytes = (message.toText() + LINE_SEPARATOR).getBytes(CHARSET);
+				String line = new String(bytes, 0, bytes.length - LINE_SEPARATOR.length(), CHARSET);
+				decoded.parseText(line);
+				sink += decoded.id + (long) decoded.x;
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * バイナリ形式でエンコードしてデコードする。
+	 *
+	 * @return かかった時間（ナノ秒）
+	 */
+	private static long runBinary(Message[] messages, int iterations) {
+		Message decoded = new Message();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			for (Message message : messages) {
+				byte[] frame = BinaryCodec.encode(message);
+				BinaryCodec.decode(frame, 0, frame.length, decoded);
+				sink += decoded.id + (long) decoded.x;
+			}
+		}
+		return System.nanoTime() - start;
+	}
+}
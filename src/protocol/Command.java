@@ -0,0 +1,190 @@
+package protocol;
+
+/**
+ * クライアントとサーバーの間でやり取りするコマンドの種類。
+ * テキスト形式ではキーワード（"LOCATE"など）、バイナリ形式では1バイトのオペコードで表される。
+ */
+public enum Command {
+
+	/**
+	 * 解釈できないテキストをそのまま運ぶためのコマンド。
+	 */
+	RAW(0, null),
+
+	/**
+	 * 戦車の位置。引数は戦車IDと座標。
+	 */
+	LOCATE(1, "LOCATE"),
+
+	/**
+	 * 戦車の照準。引数は戦車IDと照準の座標。
+	 */
+	AIM(2, "AIM"),
+
+	/**
+	 * 弾丸の発射。引数は戦車ID。
+	 */
+	BULLET(3, "BULLET"),
+
+	/**
+	 * エネルギーチャージの開始。引数は戦車ID。
+	 */
+	START_CHARGE(4, "START_CHARGE"),
+
+	/**
+	 * エネルギーチャージの終了。引数は戦車ID。
+	 */
+	FINISH_CHARGE(5, "FINISH_CHARGE"),
+
+	/**
+	 * ブロックの生成。引数は戦車ID。
+	 */
+	BLOCK(6, "BLOCK"),
+
+	/**
+	 * プレイヤーが揃ったことの通知。引数はプレイヤー数。
+	 */
+	PLAYER_COUNT(7, "PLAYER_COUNT"),
+
+	/**
+	 * 戦車の移動入力。引数は入力の連番と移動方向のベクトル。
+	 * サーバーがシミュレーションを行う場合に、位置の代わりに送る。戦車は送信者の席で決まる。
+	 * サーバーは処理した最後の連番をスナップショットで返し、クライアントはそれより後の入力を予測に使い直す。
+	 */
+	MOVE(8, "MOVE"),
+
+	/**
+	 * サーバーのシミュレーション結果のスナップショット。引数はティック番号と{@link Snapshot}をエンコードしたバイト列。
+	 */
+	SNAPSHOT(9, "SNAPSHOT"),
+
+	/**
+	 * スナップショットの受信確認。引数は受信したスナップショットのティック番号。
+	 * サーバーは確認されたスナップショットを基準に差分を送る。
+	 */
+	ACK(10, "ACK"),
+
+	/**
+	 * クライアントのカメラに映る範囲。引数は映る範囲の縦横の大きい方の半分（切り上げ）と、カメラの中心の座標。
+	 * サーバーはこの範囲の近くにいる戦車の位置と照準だけを送る。
+	 */
+	VIEW(11, "VIEW"),
+
+	/**
+	 * 往復時間の計測の要求。引数は計測の連番。
+	 * サーバーは同じ連番のPONGをすぐに返す。
+	 * サーバーも、しばらく受信が無いクライアントに生存確認として送る。クライアントは同じ連番のPONGを返す。
+	 */
+	PING(12, "PING"),
+
+	/**
+	 * PINGへの応答。引数は受け取ったPINGの連番。
+	 */
+	PONG(13, "PONG"),
+
+	/**
+	 * ロックステップでの1フレーム分の入力。引数はフレーム番号と{@link FrameInput}をエンコードしたバイト列。
+	 * サーバーは送信者以外の同じ部屋のクライアントに中継するだけで、中身は解釈しない。
+	 */
+	INPUT(14, "INPUT"),
+
+	/**
+	 * 時計合わせ。引数は要求の連番と、時刻（マイクロ秒）を並べたバイト列。
+	 * クライアントは送信時刻を送り、サーバーは同じ連番で、その時刻に受信時刻と送信時刻を加えて返す（{@link ClockSync}）。
+	 */
+	TIME(15, "TIME");
+
+	private static final Command[] BY_OPCODE = new Command[values().length];
+
+	static {
+		for (Command command : values()) BY_OPCODE[command.opcode] = command;
+	}
+
+	private final int opcode;
+	private final String keyword;
+
+	Command(int opcode, String keyword) {
+		this.opcode = opcode;
+		this.keyword = keyword;
+	}
+
+	/**
+	 * バイナリ形式でのオペコードを取得する。
+	 *
+	 * @return オペコード
+	 */
+	public int getOpcode() {
+		return opcode;
+	}
+
+	/**
+	 * テキスト形式でのキーワードを取得する。
+	 *
+	 * @return キーワード。RAWの場合はnull
+	 */
+	public String getKeyword() {
+		return keyword;
+	}
+
+	/**
+	 * 引数に座標を持つコマンドかどうかを判定する。
+	 *
+	 * @return LOCATE、AIM、MOVE、VIEWの場合はtrue
+	 */
+	public boolean hasCoordinate() {
+		return this == LOCATE || this == AIM || this == MOVE || this == VIEW;
+	}
+
+	/**
+	 * 引数にバイト列を持つコマンドかどうかを判定する。
+	 *
+	 * @return SNAPSHOT、INPUT、TIMEの場合はtrue
+	 */
+	public boolean hasPayload() {
+		return this == SNAPSHOT || this == INPUT || this == TIME;
+	}
+
+	/**
+	 * 送信者のティック番号（{@link Message#tick}）を付けて送るゲームの操作のコマンドかどうかを判定する。
+	 * 受信者はティック番号から、メッセージがどれだけ前に送られたかを知ることができる。
+	 *
+	 * @return LOCATE、AIM、BULLET、START_CHARGE、FINISH_CHARGE、BLOCK、MOVEの場合はtrue
+	 */
+	public boolean isTimed() {
+		return this == LOCATE || this == AIM || this == BULLET || this == START_CHARGE || this == FINISH_CHARGE || this == BLOCK || this == MOVE;
+	}
+
+	/**
+	 * 新しいもので上書きできる状態更新のコマンドかどうかを判定する。
+	 * 状態更新は古いものを捨てても同期が崩れない。
+	 *
+	 * @return LOCATE、AIM、SNAPSHOTの場合はtrue
+	 */
+	public boolean isStateUpdate() {
+		return this == LOCATE || this == AIM || this == SNAPSHOT;
+	}
+
+	/**
+	 * オペコードに対応するコマンドを取得する。
+	 *
+	 * @param opcode オペコード
+	 * @return 対応するコマンド。存在しない場合はnull
+	 */
+	public static Command fromOpcode(int opcode) {
+		if (opcode < 0 || opcode >= BY_OPCODE.length) return null;
+		return BY_OPCODE[opcode];
+	}
+
+	/**
+	 * キーワードに対応するコマンドを取得する。
+	 *
+	 * @param keyword キーワード
+	 * @return 対応するコマンド。存在しない場合はRAW
+	 */
+	public static Command fromKeyword(String keyword) {
+		for (Command command : values()) {
+			if (keyword.equals(command.keyword)) return command;
+		}
+		return RAW;
+	}
+}
@@ -0,0 +1,64 @@
+package protocol;
+
+/**
+ * スナップショットに含まれる1つのゲームオブジェクトの状態。
+ * どのフィールドを使うかは種類によって異なる。
+ */
+public class EntityState {
+
+	/**
+	 * ゲームオブジェクトの種類。
+	 * 壁は動かず壊れないので、スナップショットには含めない。
+	 */
+	public enum Kind {
+		TANK, BULLET, MISSILE, BLOCK, BASE;
+
+		private static final Kind[] VALUES = values();
+
+		/**
+		 * 番号に対応する種類を取得する。
+		 *
+		 * @param ordinal 番号
+		 * @return 対応する種類
+		 * @throws IllegalArgumentException 存在しない番号の場合
+		 */
+		public static Kind fromOrdinal(int ordinal) {
+			if (ordinal < 0 || ordinal >= VALUES.length) throw new IllegalArgumentException("unknown kind: " + ordinal);
+			return VALUES[ordinal];
+		}
+	}
+
+	public Kind kind;
+	public int id; // ステージ上のオブジェクトID
+	public int owner = -1; // 弾丸・ミサイルを撃った戦車のオブジェクトID。それ以外は-1
+	public int state; // 種類ごとの状態の番号（弾丸なら通常/残骸など）
+	public double x;
+	public double y;
+	public double angle; // 砲塔や進行方向の角度（ラジアン）
+	public int hp; // ミサイルの場合はチャージ量
+	public int input; // 戦車の場合、サーバーが処理した最後の移動入力の連番。それ以外は0
+
+	/**
+	 * 他の状態の内容をこの状態にコピーする。
+	 *
+	 * @param other コピー元
+	 * @return この状態
+	 */
+	public EntityState set(EntityState other) {
+		this.kind = other.kind;
+		this.id = other.id;
+		this.owner = other.owner;
+		this.state = other.state;
+		this.x = other.x;
+		this.y = other.y;
+		this.angle = other.angle;
+		this.hp = other.hp;
+		this.input = other.input;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return kind + "#" + id + "(" + x + ", " + y + ") hp=" + hp + " state=" + state;
+	}
+}
@@ -0,0 +1,136 @@
+package protocol;
+
+import java.util.Arrays;
+
+/**
+ * ロックステップで送る、1人のプレイヤーの1フレーム分の入力。
+ * 照準の座標、移動方向（各軸-1/0/1）、弾丸の発射とブロックの設置のボタンからなる。
+ * {@link Command#INPUT}のメッセージとして、フレーム番号を引数に、残りをバイト列にして送る。
+ * <ul>
+ *     <li>席番号(varint)</li>
+ *     <li>フラグ(1バイト)：移動方向のx+1(2ビット)、y+1(2ビット)、発射、設置、退出、チェックサムあり</li>
+ *     <li>照準の座標。{@link BinaryCodec}と同じく量子化してzigzag符号化したvarint</li>
+ *     <li>チェックサム(varint)。フラグが立っている場合だけ</li>
+ * </ul>
+ * 照準は量子化した値を保持するので、送信者が自分で反映する値と、受信者が反映する値は一致する。
+ * 1フレーム分は10バイト程度で、ステージ上のオブジェクトの数には依存しない。
+ */
+public final class FrameInput {
+
+	/**
+	 * サーバーが接続時の1行目でロックステップで進めることを示すトークン。「LOCKSTEP:入力遅延のフレーム数」の形で送る。
+	 */
+	public static final String CAPABILITY = "LOCKSTEP";
+
+	private static final int SHOOT = 1 << 4;
+	private static final int BLOCK = 1 << 5;
+	private static final int LEFT = 1 << 6;
+	private static final int CHECKSUM = 1 << 7;
+
+	public final int frame;
+	public final int slot;
+	public final int moveX;
+	public final int moveY;
+	public final boolean shoot;
+	public final boolean block;
+	public final boolean left;// このフレーム以降、このプレイヤーの入力は無い（退出した）
+	public final double aimX;
+	public final double aimY;
+	public final boolean hasChecksum;
+	public final int checksum;// hasChecksumの場合、frameから入力遅延の分だけ前のフレームを進める前のステージのチェックサム
+
+	private FrameInput(int frame, int slot, int moveX, int moveY, boolean shoot, boolean block, boolean left,
+					   int aimX, int aimY, boolean hasChecksum, int checksum) {
+		this.frame = frame;
+		this.slot = slot;
+		this.moveX = moveX;
+		this.moveY = moveY;
+		this.shoot = shoot;
+		this.block = block;
+		this.left = left;
+		this.aimX = aimX / BinaryCodec.COORDINATE_SCALE;
+		this.aimY = aimY / BinaryCodec.COORDINATE_SCALE;
+		this.hasChecksum = hasChecksum;
+		this.checksum = checksum;
+	}
+
+	/**
+	 * プレイヤーの操作から入力を作る。照準は送るときと同じ細かさに量子化する。
+	 *
+	 * @param frame 入力を反映するフレーム番号
+	 * @param slot 席番号（戦車ID）
+	 * @param moveX 移動方向のx成分。符号だけを使う
+	 * @param moveY 移動方向のy成分。符号だけを使う
+	 * @param shoot 弾丸を発射するか
+	 * @param block ブロックを設置するか
+	 * @param aimX 照準のx座標
+	 * @param aimY 照準のy座標
+	 * @return 作った入力
+	 */
+	public static FrameInput of(int frame, int slot, double moveX, double moveY, boolean shoot, boolean block, double aimX, double aimY) {
+		return new FrameInput(frame, slot, (int) Math.signum(moveX), (int) Math.signum(moveY), shoot, block, false,
+				BinaryCodec.quantize(aimX), BinaryCodec.quantize(aimY), false, 0);
+	}
+
+	/**
+	 * プレイヤーが退出したことを示す入力を作る。サーバーが、退出したプレイヤーの最後の入力の次のフレーム番号で送る。
+	 *
+	 * @param frame このフレーム以降、プレイヤーの入力は無い
+	 * @param slot 席番号
+	 * @return 作った入力
+	 */
+	public static FrameInput left(int frame, int slot) {
+		return new FrameInput(frame, slot, 0, 0, false, false, true, 0, 0, false, 0);
+	}
+
+	/**
+	 * 同じ入力にチェックサムを付けたものを作る。
+	 *
+	 * @param checksum ステージのチェックサム
+	 * @return チェックサムを付けた入力
+	 */
+	public FrameInput withChecksum(int checksum) {
+		return new FrameInput(frame, slot, moveX, moveY, shoot, block, left,
+				BinaryCodec.quantize(aimX), BinaryCodec.quantize(aimY), true, checksum);
+	}
+
+	/**
+	 * INPUTのメッセージにする。
+	 *
+	 * @return フレーム番号を引数に持つメッセージ
+	 */
+	public Message toMessage() {
+		byte[] buffer = new byte[5 + 1 + 5 + 5 + 5];
+		int offset = BinaryCodec.writeVarint(slot, buffer, 0);
+		int flags = (moveX + 1) | (moveY + 1) << 2 | (shoot ? SHOOT : 0) | (block ? BLOCK : 0) | (left ? LEFT : 0) | (hasChecksum ? CHECKSUM : 0);
+		buffer[offset++] = (byte) flags;
+		offset = BinaryCodec.writeVarint(BinaryCodec.zigzag(BinaryCodec.quantize(aimX)), buffer, offset);
+		offset = BinaryCodec.writeVarint(BinaryCodec.zigzag(BinaryCodec.quantize(aimY)), buffer, offset);
+		if (hasChecksum) offset = BinaryCodec.writeVarint(checksum, buffer, offset);
+		return new Message(Command.INPUT, frame, Arrays.copyOf(buffer, offset));
+	}
+
+	/**
+	 * INPUTのメッセージから入力を取り出す。
+	 *
+	 * @param message INPUTのメッセージ
+	 * @return 取り出した入力
+	 * @throws IllegalArgumentException 不正なバイト列の場合
+	 */
+	public static FrameInput decode(Message message) {
+		byte[] payload = message.payload;
+		long read = BinaryCodec.readVarint(payload, 0, payload.length);
+		int slot = (int) read;
+		int position = (int) (read >>> 32);
+		if (position >= payload.length) throw new IllegalArgumentException("truncated input");
+		int flags = payload[position++] & 0xFF;
+		read = BinaryCodec.readVarint(payload, position, payload.length);
+		int aimX = BinaryCodec.unzigzag((int) read);
+		read = BinaryCodec.readVarint(payload, (int) (read >>> 32), payload.length);
+		int aimY = BinaryCodec.unzigzag((int) read);
+		int checksum = 0;
+		if ((flags & CHECKSUM) != 0) checksum = (int) BinaryCodec.readVarint(payload, (int) (read >>> 32), payload.length);
+		return new FrameInput(message.id, slot, (flags & 3) - 1, (flags >> 2 & 3) - 1, (flags & SHOOT) != 0, (flags & BLOCK) != 0,
+				(flags & LEFT) != 0, aimX, aimY, (flags & CHECKSUM) != 0, checksum);
+	}
+}
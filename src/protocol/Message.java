@@ -0,0 +1,141 @@
+package protocol;
+
+import java.util.Base64;
+
+/**
+ * 1つのコマンドとその引数。
+ * テキスト形式（{@link #parseText(String)}、{@link #toText()}）とバイナリ形式（{@link BinaryCodec}）の間の共通の表現。
+ * 受信ループで使い回せるように、フィールドは書き換え可能にしてある。
+ */
+public class Message {
+
+	/**
+	 * ティック番号が付いていないことを表す値。
+	 */
+	public static final int NO_TICK = -1;
+
+	public Command command = Command.RAW;
+	public int id; // 戦車ID。PLAYER_COUNTの場合はプレイヤー数
+	public double x;
+	public double y;
+	public String text; // RAWの場合の元のテキスト
+	public byte[] payload; // SNAPSHOT、INPUT、TIMEの場合のバイト列
+	public int tick = NO_TICK; // 操作のコマンドを送ったときの、サーバーの時計でのティック番号（{@link ClockSync}）
+
+	/**
+	 * 空のメッセージを生成する。
+	 */
+	public Message() {
+	}
+
+	/**
+	 * 座標を持たないコマンドのメッセージを生成する。
+	 *
+	 * @param command コマンド
+	 * @param id 戦車ID（PLAYER_COUNTの場合はプレイヤー数）
+	 */
+	public Message(Command command, int id) {
+		this.command = command;
+		this.id = id;
+	}
+
+	/**
+	 * 座標を持つコマンドのメッセージを生成する。
+	 *
+	 * @param command コマンド
+	 * @param id 戦車ID
+	 * @param x x座標
+	 * @param y y座標
+	 */
+	public Message(Command command, int id, double x, double y) {
+		this.command = command;
+		this.id = id;
+		this.x = x;
+		this.y = y;
+	}
+
+	/**
+	 * バイト列を持つコマンドのメッセージを生成する。
+	 *
+	 * @param command コマンド
+	 * @param id ティック番号など
+	 * @param payload バイト列
+	 */
+	public Message(Command command, int id, byte[] payload) {
+		this.command = command;
+		this.id = id;
+		this.payload = payload;
+	}
+
+	/**
+	 * テキスト形式の1行を解釈してこのメッセージに設定する。
+	 * 知らないコマンドや引数が解釈できない行は、RAWとして元のテキストをそのまま保持する。
+	 * 操作のコマンドは、引数の後にティック番号があれば読む。
+	 *
+	 * @param line 受信した1行
+	 * @return このメッセージ
+	 */
+	public Message parseText(String line) {
+		String[] tokens = line.split(" ");
+		Command parsed = Command.fromKeyword(tokens[0]);
+		this.text = line;
+		this.command = Command.RAW;
+		this.tick = NO_TICK;
+		if (parsed == Command.RAW || tokens.length < 2) return this;
+		try {
+			this.id = Integer.parseInt(tokens[1]);
+			int next = 2;
+			if (parsed.hasCoordinate()) {
+				if (tokens.length < 4) return this;
+				this.x = Double.parseDouble(tokens[2]);
+				this.y = Double.parseDouble(tokens[3]);
+				next = 4;
+			}
+			if (parsed.isTimed() && tokens.length > next) this.tick = Integer.parseInt(tokens[next]);
+			if (parsed.hasPayload()) {
+				if (tokens.length < 3) return this;
+				this.payload = Base64.getDecoder().decode(tokens[2]);
+			}
+		} catch (IllegalArgumentException e) {// NumberFormatExceptionもここで捕まえる
+			return this;
+		}
+		this.command = parsed;
+		return this;
+	}
+
+	/**
+	 * テキスト形式の1行に変換する。
+	 * 操作のコマンドにティック番号が付いていれば、引数の後に加える。
+	 *
+	 * @return 改行を含まない1行
+	 */
+	public String toText() {
+		if (command == Command.RAW) return text;
+		if (command.hasPayload()) return command.getKeyword() + " " + id + " " + Base64.getEncoder().encodeToString(payload);
+		String tickText = command.isTimed() && tick != NO_TICK ? " " + tick : "";
+		if (command.hasCoordinate()) return command.getKeyword() + " " + id + " " + x + " " + y + tickText;
+		return command.getKeyword() + " " + id + tickText;
+	}
+
+	/**
+	 * 他のメッセージの内容をこのメッセージにコピーする。
+	 *
+	 * @param other コピー元
+	 * @return このメッセージ
+	 */
+	public Message set(Message other) {
+		this.command = other.command;
+		this.id = other.id;
+		this.x = other.x;
+		this.y = other.y;
+		this.text = other.text;
+		this.payload = other.payload;
+		this.tick = other.tick;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return toText();
+	}
+}
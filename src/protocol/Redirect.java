@@ -0,0 +1,42 @@
+package protocol;
+
+/**
+ * 接続してきたクライアントに、同じマシンの別のポートのサーバーへ接続し直すよう伝える行。
+ * コーディネーター（<code>server.Coordinator</code>）はクライアント番号の行の代わりにこの行を送って切断する。
+ * クライアントは指定されたポートに接続し直し、そこから通常のハンドシェイクを行う。
+ */
+public final class Redirect {
+
+	/**
+	 * 接続し直す先を示す行の先頭のトークン。「REDIRECT ポート番号」の形で送る。
+	 */
+	public static final String PREFIX = "REDIRECT";
+
+	private Redirect() {
+	}
+
+	/**
+	 * 接続し直す先を示す行を作る。
+	 *
+	 * @param port 接続し直す先のポート番号
+	 * @return 送る行（改行なし）
+	 */
+	public static String line(int port) {
+		return PREFIX + " " + port;
+	}
+
+	/**
+	 * 受信した行が接続し直す先を示す行であれば、そのポート番号を取り出す。
+	 *
+	 * @param line 受信した行
+	 * @return ポート番号。接続し直す先を示す行でなければ-1
+	 */
+	public static int parse(String line) {
+		if (line == null || !line.startsWith(PREFIX + " ")) return -1;
+		try {
+			return Integer.parseInt(line.substring(PREFIX.length() + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
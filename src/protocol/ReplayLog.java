@@ -0,0 +1,360 @@
+package protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Supplier;
+
+/**
+ * 試合の記録（リプレイ）のファイル形式。
+ * サーバーが部屋で中継したメッセージを、試合開始からの経過時間とともに追記していく。
+ * 書き込みも読み込みもメモリマップしたファイルを通して行うので、1メッセージの記録はメモリへのコピーだけで済む。
+ * <p>
+ * ファイルの先頭はヘッダ（マジックナンバー、版、定員、試合開始時刻）で、その後にレコードが並ぶ。
+ * 1レコードは「本体の長さ(int)」「経過時間ナノ秒(long)」「種類(1バイト)」「送信者の席番号(1バイト)」「{@link BinaryCodec}のフレーム」からなる。
+ * キーフレームのレコードは、フレームの代わりにステージ全体の状態（基準無しの{@link Snapshot}）を持つ。
+ * 長さは本体を書き終えてから書くので、長さが0のところが記録の終わりになる。サーバーが途中で落ちても、そこまでのレコードは読める。
+ * 経過時間は単調増加で、前のレコードより小さくなることはない。
+ * <p>
+ * {@value #KEYFRAME_INTERVAL}ミリ秒ごとにキーフレームとして、その時点のステージ全体の状態（戦車、基地、ブロック、弾丸、ミサイル）を書き、
+ * キーフレームの時刻と位置を索引ファイル（記録ファイルの名前に{@value #INDEX_SUFFIX}を付けたもの）に追記する。
+ * 途中から再生するときは索引から直前のキーフレームを探し、その状態をステージに反映してから続きのメッセージを読めば、最初から読み直さずに済む。
+ */
+public final class ReplayLog {
+
+	/**
+	 * 記録ファイルの拡張子。
+	 */
+	public static final String SUFFIX = ".replay";
+
+	/**
+	 * 索引ファイルの、記録ファイルの名前に続ける拡張子。
+	 */
+	public static final String INDEX_SUFFIX = ".idx";
+
+	/**
+	 * キーフレームを書く間隔（ミリ秒）。
+	 */
+	public static final long KEYFRAME_INTERVAL = 1000;
+
+	private static final int MAGIC = 0x54524550;// "TREP"
+	private static final int VERSION = 2;// 1はキーフレームに位置と照準しか書いていなかった
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+	private static final int RECORD_HEADER_SIZE = 4 + 8 + 1 + 1;
+	private static final int INDEX_ENTRY_SIZE = 8 + 8;
+	private static final long REGION_SIZE = 4 * 1024 * 1024;// 一度にマップする大きさ。使い切ったら続きをマップする
+
+	private static final byte MESSAGE = 0;// 中継したメッセージ
+	private static final byte KEYFRAME = 1;// キーフレーム。本体はステージ全体の状態
+
+	private ReplayLog() {
+	}
+
+	/**
+	 * 索引ファイルのパスを取得する。
+	 *
+	 * @param log 記録ファイルのパス
+	 * @return 索引ファイルのパス
+	 */
+	public static Path indexOf(Path log) {
+		return log.resolveSibling(log.getFileName() + INDEX_SUFFIX);
+	}
+
+	/**
+	 * 読み出した1レコード。
+	 */
+	public static final class Entry {
+
+		/**
+		 * 試合開始からの経過時間（ナノ秒）。
+		 */
+		public long time;
+
+		/**
+		 * 送信者の席番号。サーバーから送ったメッセージは-1。
+		 */
+		public int slot;
+
+		/**
+		 * キーフレームのステージ全体の状態。{@link Reader#seek(long)}の直後に読んだキーフレームだけで設定し、それ以外はnull。
+		 * 設定されている場合、{@link #message}は書き換わらない。
+		 */
+		public Snapshot state;
+
+		/**
+		 * デコードしたメッセージ。次のレコードを読むと書き換わる。
+		 */
+		public final Message message = new Message();
+	}
+
+	/**
+	 * 記録ファイルにレコードを追記するクラス。
+	 * 1つのスレッドから使うこと。
+	 */
+	public static final class Writer implements Closeable {
+
+		private final FileChannel channel;
+		private final FileChannel indexChannel;
+		private MappedByteBuffer region;// 記録ファイルの、現在書き込んでいる範囲
+		private long regionStart;
+		private long position;// 記録ファイルの次に書き込む位置
+		private MappedByteBuffer indexRegion;
+		private long indexRegionStart;
+		private long indexPosition;
+		private long lastTime = 0;
+		private long nextKeyframe = 0;
+		private final Supplier<byte[]> keyframeState;
+
+		/**
+		 * 記録ファイルと索引ファイルを作成し、ヘッダを書き込む。
+		 * 同じ名前のファイルがある場合は上書きする。
+		 *
+		 * @param path 記録ファイルのパス
+		 * @param playerCount 試合のプレイヤー数
+		 * @param startMillis 試合開始時刻（エポックミリ秒）
+		 * @param keyframeState キーフレームに書く、その時点のステージ全体の状態（基準無しでエンコードした{@link Snapshot}）を作る関数
+		 * @throws IOException ファイルを作成できない場合
+		 */
+		public Writer(Path path, int playerCount, long startMillis, Supplier<byte[]> keyframeState) throws IOException {
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			indexChannel = FileChannel.open(indexOf(path), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.keyframeState = keyframeState;
+
+			ensure(HEADER_SIZE);
+			region.putInt(0, MAGIC);
+			region.putInt(4, VERSION);
+			region.putInt(8, playerCount);
+			region.putLong(12, startMillis);
+			position = HEADER_SIZE;
+		}
+
+		/**
+		 * メッセージを1つ追記する。
+		 * 前回のキーフレームから{@value #KEYFRAME_INTERVAL}ミリ秒以上経っていれば、先にキーフレームを書く。
+		 * キーフレームの状態はこのメッセージを反映する前のものなので、呼び出し側はステージに反映する前に呼ぶこと。
+		 *
+		 * @param time 試合開始からの経過時間（ナノ秒）。前回より小さい場合は前回と同じ時刻として記録する
+		 * @param slot 送信者の席番号。サーバーから送ったメッセージは-1
+		 * @param frame {@link BinaryCodec}でエンコードしたフレーム
+		 * @throws IOException 書き込めない場合
+		 */
+		public void append(long time, int slot, byte[] frame) throws IOException {
+			time = Math.max(time, lastTime);
+			lastTime = time;
+			if (time >= nextKeyframe) {
+				writeKeyframe(time);
+				nextKeyframe = time + KEYFRAME_INTERVAL * 1000000;
+			}
+			write(MESSAGE, time, slot, frame);
+		}
+
+		/**
+		 * キーフレームを書き、索引に追記する。
+		 */
+		private void writeKeyframe(long time) throws IOException {
+			long offset = position;
+			write(KEYFRAME, time, -1, keyframeState.get());
+
+			if (indexRegion == null || indexPosition + INDEX_ENTRY_SIZE > indexRegionStart + indexRegion.capacity()) {
+				indexRegionStart = indexPosition;
+				indexRegion = indexChannel.map(FileChannel.MapMode.READ_WRITE, indexPosition, REGION_SIZE / 64);
+			}
+			int at = (int) (indexPosition - indexRegionStart);
+			indexRegion.putLong(at, time);
+			indexRegion.putLong(at + 8, offset);// 位置は0にならないので、0が索引の終わりになる
+			indexPosition += INDEX_ENTRY_SIZE;
+		}
+
+		/**
+		 * レコードを1つ書く。長さは本体を書き終えてから書く。
+		 */
+		private void write(byte type, long time, int slot, byte[] frame) throws IOException {
+			int size = RECORD_HEADER_SIZE + frame.length;
+			ensure(size + 4);// 終わりの印になる長さ0の分も確保しておく
+			int at = (int) (position - regionStart);
+			region.putLong(at + 4, time);
+			region.put(at + 12, type);
+			region.put(at + 13, (byte) slot);
+			region.put(at + RECORD_HEADER_SIZE, frame);
+			region.putInt(at, size - 4);
+			position += size;
+		}
+
+		/**
+		 * 現在の位置から指定したバイト数を書き込めるように、必要なら続きの範囲をマップする。
+		 */
+		private void ensure(int size) throws IOException {
+			if (region != null && position + size <= regionStart + region.capacity()) return;
+			regionStart = position;
+			region = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(REGION_SIZE, size));
+		}
+
+		/**
+		 * 書き込んだ内容をディスクに書き出し、ファイルを実際に書き込んだ長さに切り詰めて閉じる。
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				if (region != null) region.force();
+				if (indexRegion != null) indexRegion.force();
+				region = null;
+				indexRegion = null;
+				channel.truncate(position);
+				indexChannel.truncate(indexPosition);
+			} finally {
+				channel.close();
+				indexChannel.close();
+			}
+		}
+	}
+
+	/**
+	 * 記録ファイルを読むクラス。
+	 * 記録ファイル全体をマップして先頭から順に読む。索引ファイルがあれば{@link #seek(long)}で途中から読める。
+	 * メッセージはマップした範囲から直接デコードするので、1レコードを読むたびにバイト列を作ることはない。
+	 */
+	public static final class Reader implements Closeable {
+
+		private final FileChannel channel;
+		private final MappedByteBuffer buffer;
+		private final int playerCount;
+		private final long startMillis;
+		private final long[] keyframeTimes;
+		private final int[] keyframeOffsets;
+		private int position = HEADER_SIZE;
+		private boolean seeking = false;// 直前にseekしたので、次のキーフレームの状態を返す
+
+		/**
+		 * 記録ファイルと、あれば索引ファイルを開く。
+		 *
+		 * @param path 記録ファイルのパス
+		 * @throws IOException ファイルを読めない場合、または記録ファイルでない場合
+		 */
+		public Reader(Path path) throws IOException {
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) throw new IOException("記録ファイルが大きすぎます: " + size);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC) throw new IOException("記録ファイルではありません: " + path);
+			if (buffer.getInt(4) != VERSION) throw new IOException("対応していない版です: " + buffer.getInt(4));
+			playerCount = buffer.getInt(8);
+			startMillis = buffer.getLong(12);
+
+			long[] times = new long[0];
+			int[] offsets = new int[0];
+			Path index = indexOf(path);
+			if (index.toFile().isFile()) {
+				try (FileChannel indexChannel = FileChannel.open(index, StandardOpenOption.READ)) {
+					MappedByteBuffer entries = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+					int count = 0;
+					while ((count + 1) * INDEX_ENTRY_SIZE <= entries.capacity() && entries.getLong(count * INDEX_ENTRY_SIZE + 8) != 0) count++;
+					times = new long[count];
+					offsets = new int[count];
+					for (int i = 0; i < count; i++) {
+						times[i] = entries.getLong(i * INDEX_ENTRY_SIZE);
+						offsets[i] = (int) entries.getLong(i * INDEX_ENTRY_SIZE + 8);
+					}
+				}
+			}
+			keyframeTimes = times;
+			keyframeOffsets = offsets;
+		}
+
+		/**
+		 * 試合のプレイヤー数を取得する。
+		 */
+		public int getPlayerCount() {
+			return playerCount;
+		}
+
+		/**
+		 * 試合開始時刻（エポックミリ秒）を取得する。
+		 */
+		public long getStartMillis() {
+			return startMillis;
+		}
+
+		/**
+		 * 索引にあるキーフレームの数を取得する。
+		 */
+		public int getKeyframeCount() {
+			return keyframeTimes.length;
+		}
+
+		/**
+		 * 指定した時刻以前の最後のキーフレームから読むように移動する。
+		 * 以降の{@link #next(Entry)}は、まずキーフレームのステージ全体の状態（{@link Entry#state}）を返す。
+		 * 該当するキーフレームが無い場合は先頭に戻る。
+		 *
+		 * @param time 試合開始からの経過時間（ナノ秒）
+		 * @return 読み始めるキーフレームの時刻。先頭に戻った場合は0
+		 */
+		public long seek(long time) {
+			int low = 0, high = keyframeTimes.length - 1, found = -1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (keyframeTimes[middle] <= time) {
+					found = middle;
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			if (found < 0) {
+				position = HEADER_SIZE;
+				seeking = false;
+				return 0;
+			}
+			position = keyframeOffsets[found];
+			seeking = true;
+			return keyframeTimes[found];
+		}
+
+		/**
+		 * 次のレコードを読む。
+		 * 先頭から順に読んでいる間は、キーフレームの状態はそれまでのメッセージを反映した結果と同じなので飛ばす。
+		 *
+		 * @param entry 読んだ内容を書き込むレコード
+		 * @return 読めた場合はtrue、記録の終わりに達した場合はfalse
+		 * @throws IOException レコードが壊れている場合
+		 */
+		public boolean next(Entry entry) throws IOException {
+			while (true) {
+				if (position + 4 > buffer.capacity()) return false;
+				int size = buffer.getInt(position);
+				if (size == 0) return false;
+				if (size < RECORD_HEADER_SIZE - 4 || position + 4 + size > buffer.capacity()) throw new IOException("壊れたレコードです: 位置 " + position);
+				int at = position;
+				position += 4 + size;
+
+				byte type = buffer.get(at + 12);
+				int length = size - (RECORD_HEADER_SIZE - 4);
+				if (type == KEYFRAME && !seeking) continue;
+				try {
+					if (type == KEYFRAME) {
+						byte[] state = new byte[length];// 途中から読み始めるときの1回だけ
+						buffer.get(at + RECORD_HEADER_SIZE, state);
+						entry.state = Snapshot.decode(state);
+						seeking = false;
+					} else {
+						BinaryCodec.decode(buffer, at + RECORD_HEADER_SIZE, length, entry.message);
+						entry.state = null;
+					}
+				} catch (IllegalArgumentException e) {
+					throw new IOException("壊れたフレームです: 位置 " + at, e);
+				}
+				entry.time = buffer.getLong(at + 4);
+				entry.slot = buffer.get(at + 13);
+				return true;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * サーバーがシミュレーションしたある時点のステージの状態。
+ * {@link Command#SNAPSHOT}のバイト列としてクライアントに送られる。
+ * クライアントが受信を確認（{@link Command#ACK}）したスナップショットを基準にして、変化したオブジェクトと項目だけを送る。
+ * 基準が無い場合は、空の状態を基準にした差分（全オブジェクトが新規）になる。
+ * <ul>
+ *     <li>ティック番号、基準のティック番号（基準無しは0）、変化したオブジェクト数はvarint</li>
+ *     <li>変化した各オブジェクトはオブジェクトID(varint)と変化した項目のビットマスク(1バイト)。
+ *     新規のオブジェクトは続けて種類(1バイト)を持つ</li>
+ *     <li>項目は撃った戦車のID+1(varint)、状態(varint)、座標（{@link BinaryCodec}と同じ量子化）、角度(2バイト)、HP(zigzag varint)、
+ *     処理済みの移動入力の連番(varint)のうち、ビットが立っているものだけ。新規のオブジェクトでも入力の連番は0なら省く</li>
+ *     <li>最後に消えたオブジェクトの数とID(varint)</li>
+ * </ul>
+ * 項目の比較は量子化した値で行うので、クライアントがデコードした状態とサーバーが基準にする状態は一致する。
+ */
+public class Snapshot {
+
+	/**
+	 * サーバーが接続時の1行目で、シミュレーションをサーバーで行うことを示すトークン。
+	 */
+	public static final String CAPABILITY = "AUTHORITATIVE";
+
+	private static final double ANGLE_SCALE = 65536 / (2 * Math.PI);
+
+	// 変化した項目のビット
+	private static final int OWNER = 0x01;
+	private static final int STATE = 0x02;
+	private static final int X = 0x04;
+	private static final int Y = 0x08;
+	private static final int ANGLE = 0x10;
+	private static final int HP = 0x20;
+	private static final int INPUT = 0x40;
+	private static final int ALL = OWNER | STATE | X | Y | ANGLE | HP;
+	private static final int SPAWN = 0x80;// 基準に無い新規のオブジェクト
+
+	private static final int MAX_ENTITY_SIZE = 5 + 1 + 1 + 5 * 6 + 2;// ID、マスク、種類、varint6つ、角度
+
+	public int tick;
+	public final List<EntityState> entities = new ArrayList<>();
+	private Map<Integer, EntityState> byId;// 基準として使うときに作る
+
+	/**
+	 * 基準無しでバイト列にエンコードする。
+	 *
+	 * @return エンコードしたバイト列
+	 */
+	public byte[] encode() {
+		return encode(null);
+	}
+
+	/**
+	 * 基準のスナップショットとの差分をバイト列にエンコードする。
+	 *
+	 * @param baseline クライアントが受信を確認したスナップショット。nullの場合は全オブジェクトを送る
+	 * @return エンコードしたバイト列
+	 */
+	public byte[] encode(Snapshot baseline) {
+		Map<Integer, EntityState> base = baseline != null ? baseline.index() : Map.of();
+		byte[] buffer = new byte[15 + entities.size() * MAX_ENTITY_SIZE + base.size() * 5];
+		int offset = BinaryCodec.writeVarint(tick, buffer, 0);
+		offset = BinaryCodec.writeVarint(baseline != null ? baseline.tick : 0, buffer, offset);
+
+		// 変化したオブジェクト数は後で分かるので、先にオブジェクトを書いてから前に詰める
+		int countOffset = offset;
+		offset += 5;
+		int changed = 0;
+		int present = 0;
+		for (EntityState entity : entities) {
+			EntityState previous = base.get(entity.id);
+			if (previous != null) present++;
+			int mask = previous == null || previous.kind != entity.kind ? SPAWN | ALL | (entity.input != 0 ? INPUT : 0) : diff(previous, entity);
+			if (mask == 0) continue;
+			changed++;
+			offset = BinaryCodec.writeVarint(entity.id, buffer, offset);
+			buffer[offset++] = (byte) mask;
+			if ((mask & SPAWN) != 0) buffer[offset++] = (byte) entity.kind.ordinal();
+			if ((mask & OWNER) != 0) offset = BinaryCodec.writeVarint(entity.owner + 1, buffer, offset);
+			if ((mask & STATE) != 0) offset = BinaryCodec.writeVarint(entity.state, buffer, offset);
+			if ((mask & X) != 0) offset = BinaryCodec.writeVarint(BinaryCodec.zigzag(BinaryCodec.quantize(entity.x)), buffer, offset);
+			if ((mask & Y) != 0) offset = BinaryCodec.writeVarint(BinaryCodec.zigzag(BinaryCodec.quantize(entity.y)), buffer, offset);
+			if ((mask & ANGLE) != 0) {
+				int angle = quantizeAngle(entity.angle);
+				buffer[offset++] = (byte) (angle >>> 8);
+				buffer[offset++] = (byte) angle;
+			}
+			if ((mask & HP) != 0) offset = BinaryCodec.writeVarint(BinaryCodec.zigzag(entity.hp), buffer, offset);
+			if ((mask & INPUT) != 0) offset = BinaryCodec.writeVarint(entity.input, buffer, offset);
+		}
+		int countSize = BinaryCodec.writeVarint(changed, buffer, countOffset) - countOffset;
+		System.arraycopy(buffer, countOffset + 5, buffer, countOffset + countSize, offset - countOffset - 5);
+		offset -= 5 - countSize;
+
+		// 基準にあって今回無いものは消えたオブジェクト
+		offset = BinaryCodec.writeVarint(base.size() - present, buffer, offset);
+		if (base.size() > present) {
+			Map<Integer, EntityState> current = index();
+			for (EntityState previous : base.values()) {
+				if (!current.containsKey(previous.id)) offset = BinaryCodec.writeVarint(previous.id, buffer, offset);
+			}
+		}
+		return Arrays.copyOf(buffer, offset);
+	}
+
+	/**
+	 * 基準無しでエンコードしたバイト列からデコードする。
+	 *
+	 * @param bytes {@link #encode()}で作ったバイト列
+	 * @return デコードしたスナップショット
+	 * @throws IllegalArgumentException 不正なバイト列の場合や、基準が必要なバイト列の場合
+	 */
+	public static Snapshot decode(byte[] bytes) {
+		return decode(bytes, tick -> null);
+	}
+
+	/**
+	 * バイト列からデコードし、基準のスナップショットに差分を適用した全体の状態を返す。
+	 *
+	 * @param bytes {@link #encode(Snapshot)}で作ったバイト列
+	 * @param baselines ティック番号から、以前にデコードしたスナップショットを探す関数。見つからない場合はnullを返す
+	 * @return デコードしたスナップショット
+	 * @throws IllegalArgumentException 不正なバイト列の場合や、基準のスナップショットが見つからない場合
+	 */
+	public static Snapshot decode(byte[] bytes, IntFunction<Snapshot> baselines) {
+		int end = bytes.length;
+		long read = BinaryCodec.readVarint(bytes, 0, end);
+		int tick = (int) read;
+		read = BinaryCodec.readVarint(bytes, (int) (read >>> 32), end);
+		int baseTick = (int) read;
+		Snapshot baseline = null;
+		if (baseTick != 0) {
+			baseline = baselines.apply(baseTick);
+			if (baseline == null || baseline.tick != baseTick) throw new IllegalArgumentException("missing baseline: " + baseTick);
+		}
+
+		// 基準の状態をコピーしてから差分を当てる
+		LinkedHashMap<Integer, EntityState> states = new LinkedHashMap<>();
+		if (baseline != null) {
+			for (EntityState entity : baseline.entities) states.put(entity.id, new EntityState().set(entity));
+		}
+
+		read = BinaryCodec.readVarint(bytes, (int) (read >>> 32), end);
+		int changed = (int) read;
+		int position = (int) (read >>> 32);
+		for (int i = 0; i < changed; i++) {
+			read = BinaryCodec.readVarint(bytes, position, end);
+			int id = (int) read;
+			position = (int) (read >>> 32);
+			if (position >= end) throw new IllegalArgumentException("truncated snapshot");
+			int mask = bytes[position++] & 0xFF;
+
+			EntityState entity;
+			if ((mask & SPAWN) != 0) {
+				if (position >= end) throw new IllegalArgumentException("truncated snapshot");
+				entity = new EntityState();
+				entity.id = id;
+				entity.kind = EntityState.Kind.fromOrdinal(bytes[position++]);
+				states.remove(id);// 同じIDで別のオブジェクトになった場合は後ろに並べ直す
+				states.put(id, entity);
+			} else {
+				entity = states.get(id);
+				if (entity == null) throw new IllegalArgumentException("unknown entity: " + id);
+			}
+
+			if ((mask & OWNER) != 0) {
+				read = BinaryCodec.readVarint(bytes, position, end);
+				entity.owner = (int) read - 1;
+				position = (int) (read >>> 32);
+			}
+			if ((mask & STATE) != 0) {
+				read = BinaryCodec.readVarint(bytes, position, end);
+				entity.state = (int) read;
+				position = (int) (read >>> 32);
+			}
+			if ((mask & X) != 0) {
+				read = BinaryCodec.readVarint(bytes, position, end);
+				entity.x = BinaryCodec.unzigzag((int) read) / BinaryCodec.COORDINATE_SCALE;
+				position = (int) (read >>> 32);
+			}
+			if ((mask & Y) != 0) {
+				read = BinaryCodec.readVarint(bytes, position, end);
+				entity.y = BinaryCodec.unzigzag((int) read) / BinaryCodec.COORDINATE_SCALE;
+				position = (int) (read >>> 32);
+			}
+			if ((mask & ANGLE) != 0) {
+				if (position + 2 > end) throw new IllegalArgumentException("truncated snapshot");
+				int angle = ((bytes[position] & 0xFF) << 8) | (bytes[position + 1] & 0xFF);
+				entity.angle = (short) angle / ANGLE_SCALE;
+				position += 2;
+			}
+			if ((mask & HP) != 0) {
+				read = BinaryCodec.readVarint(bytes, position, end);
+				entity.hp = BinaryCodec.unzigzag((int) read);
+				position = (int) (read >>> 32);
+			}
+			if ((mask & INPUT) != 0) {
+				read = BinaryCodec.readVarint(bytes, position, end);
+				entity.input = (int) read;
+				position = (int) (read >>> 32);
+			}
+		}
+
+		read = BinaryCodec.readVarint(bytes, position, end);
+		int removed = (int) read;
+		position = (int) (read >>> 32);
+		for (int i = 0; i < removed; i++) {
+			read = BinaryCodec.readVarint(bytes, position, end);
+			states.remove((int) read);
+			position = (int) (read >>> 32);
+		}
+
+		Snapshot snapshot = new Snapshot();
+		snapshot.tick = tick;
+		snapshot.entities.addAll(states.values());
+		return snapshot;
+	}
+
+	/**
+	 * 2つの状態で、量子化した値が異なる項目のビットマスクを求める。
+	 */
+	private static int diff(EntityState previous, EntityState current) {
+		int mask = 0;
+		if (previous.owner != current.owner) mask |= OWNER;
+		if (previous.state != current.state) mask |= STATE;
+		if (BinaryCodec.quantize(previous.x) != BinaryCodec.quantize(current.x)) mask |= X;
+		if (BinaryCodec.quantize(previous.y) != BinaryCodec.quantize(current.y)) mask |= Y;
+		if (quantizeAngle(previous.angle) != quantizeAngle(current.angle)) mask |= ANGLE;
+		if (previous.hp != current.hp) mask |= HP;
+		if (previous.input != current.input) mask |= INPUT;
+		return mask;
+	}
+
+	private static int quantizeAngle(double angle) {
+		return (int) Math.round(angle * ANGLE_SCALE) & 0xFFFF;
+	}
+
+	/**
+	 * オブジェクトIDから状態を引く表を取得する。
+	 * 基準として何度も使われるので、1度だけ作る。
+	 */
+	private synchronized Map<Integer, EntityState> index() {
+		if (byId == null) {
+			byId = new HashMap<>();
+			for (EntityState entity : entities) byId.put(entity.id, entity);
+		}
+		return byId;
+	}
+}
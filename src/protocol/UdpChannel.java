@@ -0,0 +1,328 @@
+package protocol;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * UDPで1つの相手とメッセージをやりとりするチャンネル。
+ * TCPでは1つのセグメントが失われると後続の位置更新まで止まってしまうため、次の2種類の送り方をUDPの上に用意する。
+ * <ul>
+ *     <li>信頼性のないチャンネル（LOCATE、AIM、PING、PONG）。再送せず、同じ戦車の同じコマンドは新しいものだけを受け取る</li>
+ *     <li>信頼性のある順序付きチャンネル（BULLET、BLOCK、チャージの開始・完了）。確認が返るまで再送し、受信側は送った順に渡す</li>
+ * </ul>
+ * データグラムは「種類(1バイト)」「セッション番号(4)」「受信済みの信頼性のあるメッセージの番号(4)」のヘッダの後に、
+ * データの場合は「チャンネルごとの番号(4)」と{@link BinaryCodec}のフレームが続く。
+ * 信頼性のないメッセージは{@link #flush()}までまとめて、1つのデータグラムで送る。
+ * 送信・受信・再送は複数のスレッドから呼ばれるので同期している。
+ */
+public class UdpChannel {
+
+	/**
+	 * サーバーが接続時の1行目でUDPに対応していることを示すトークン。
+	 * 後ろに「:セッション番号」を付けて送る。
+	 */
+	public static final String CAPABILITY = "UDP";
+
+	private static final byte ACK = 0;// ヘッダだけのデータグラム。確認と、最初の登録に使う
+	private static final byte UNRELIABLE = 1;
+	private static final byte RELIABLE = 2;
+	private static final int HEADER_SIZE = 1 + 4 + 4;
+	private static final int MAX_DATAGRAM_SIZE = 1200;// 経路上で分割されない大きさに抑える
+	private static final int RECEIVE_WINDOW = 256;// 順番を待って溜めておける信頼性のあるメッセージ数
+	private static final long RETRANSMIT_INTERVAL = 100;// 確認が返らないときに再送するまでの時間（ミリ秒）
+	private static final long HELLO_INTERVAL = 100;// 相手から何も届いていない間、登録を送り直す間隔（ミリ秒）
+
+	private final DatagramSocket socket;
+	private final int session;
+	private final double lossRate;
+	private volatile SocketAddress remote;
+
+	// 送信側
+	private final ArrayDeque<Outgoing> unacked = new ArrayDeque<>();// 確認待ちの信頼性のあるメッセージ
+	private final ByteBuffer batch = ByteBuffer.allocate(MAX_DATAGRAM_SIZE - HEADER_SIZE - 4);// まだ送っていない信頼性のないメッセージ
+	private int nextUnreliable = 1;
+	private int nextReliable = 1;
+	private long lastSendTime = 0;
+
+	// 受信側
+	private int delivered = 0;// 順番どおりに渡し終えた信頼性のあるメッセージの番号
+	private final Map<Integer, Message> waiting = new HashMap<>();// 先に届いた信頼性のあるメッセージ
+	private final Map<Long, Integer> latest = new HashMap<>();// 戦車とコマンドごとに、受け取った最新の番号
+	private boolean heard = false;
+
+	// 計測用
+	private long sent = 0;
+	private long retransmitted = 0;
+	private long lost = 0;
+
+	/**
+	 * UdpChannelのコンストラクタ。
+	 *
+	 * @param socket 送受信に使うソケット。複数のチャンネルで共有してもよい
+	 * @param remote 相手のアドレス。まだ分からない場合はnull
+	 * @param session サーバーが割り当てたセッション番号
+	 * @param lossRate 送信するデータグラムをわざと捨てる割合（0〜1）。損失のある回線を再現するために使う
+	 */
+	public UdpChannel(DatagramSocket socket, SocketAddress remote, int session, double lossRate) {
+		this.socket = socket;
+		this.remote = remote;
+		this.session = session;
+		this.lossRate = lossRate;
+	}
+
+	/**
+	 * コマンドをUDPで送るかを判定する。
+	 * それ以外のコマンド（スナップショットや入力など）はTCPで送る。
+	 *
+	 * @param command コマンド
+	 * @return UDPで送る場合はtrue
+	 */
+	public static boolean carries(Command command) {
+		switch (command) {
+			case LOCATE:
+			case AIM:
+			case PING:
+			case PONG:
+				return true;
+			default:
+				return isReliable(command);
+		}
+	}
+
+	/**
+	 * コマンドを信頼性のある順序付きチャンネルで送るかを判定する。
+	 *
+	 * @param command コマンド
+	 * @return 失われると同期が崩れるイベントの場合はtrue
+	 */
+	private static boolean isReliable(Command command) {
+		switch (command) {
+			case BULLET:
+			case BLOCK:
+			case START_CHARGE:
+			case FINISH_CHARGE:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * 受信したデータグラムのセッション番号を読む。
+	 *
+	 * @param data 受信したバイト列
+	 * @param length 受信した長さ
+	 * @return セッション番号。ヘッダが足りない場合は-1
+	 */
+	public static int readSession(byte[] data, int length) {
+		if (length < HEADER_SIZE) return -1;
+		return ByteBuffer.wrap(data, 1, 4).getInt();
+	}
+
+	/**
+	 * メッセージを送る。
+	 *
+	 * @param message 送るメッセージ
+	 */
+	public void send(Message message) {
+		send(message.command, BinaryCodec.encode(message));
+	}
+
+	/**
+	 * エンコード済みのメッセージを送る。
+	 * 信頼性のあるメッセージはすぐに送り、信頼性のないメッセージは{@link #flush()}まで溜めておく。
+	 *
+	 * @param command メッセージのコマンド
+	 * @param frame {@link BinaryCodec#encode(Message)}でエンコードしたフレーム
+	 */
+	public synchronized void send(Command command, byte[] frame) {
+		if (!isReliable(command)) {
+			if (batch.remaining() < frame.length) sendBatch();
+			batch.put(frame);
+			return;
+		}
+		Outgoing outgoing = new Outgoing(nextReliable++, frame);
+		unacked.addLast(outgoing);
+		outgoing.sentAt = now();
+		transmit(RELIABLE, outgoing.sequence, frame, 0, frame.length);
+	}
+
+	/**
+	 * 溜めておいた信頼性のないメッセージを送り、確認が返らない信頼性のあるメッセージを再送する。
+	 * 相手から何も届いていない間は、相手に自分のアドレスを知らせるためにヘッダだけを送る。
+	 * 送る側の都合のよい間隔（クライアントは毎フレーム）で呼ぶこと。
+	 */
+	public synchronized void flush() {
+		if (batch.position() > 0) sendBatch();
+		long now = now();
+		for (Outgoing outgoing : unacked) {
+			if (now - outgoing.sentAt < RETRANSMIT_INTERVAL) continue;
+			outgoing.sentAt = now;
+			retransmitted++;
+			transmit(RELIABLE, outgoing.sequence, outgoing.frame, 0, outgoing.frame.length);
+		}
+		if (!heard && now - lastSendTime >= HELLO_INTERVAL) transmit(ACK, 0, null, 0, 0);
+	}
+
+	/**
+	 * 受信したデータグラムを処理する。
+	 * 信頼性のあるメッセージは送られた順に、信頼性のないメッセージは古くなっていないものだけを返す。
+	 * 呼び出し元はロックを持たずに返されたメッセージを処理できる。
+	 *
+	 * @param data 受信したバイト列
+	 * @param length 受信した長さ
+	 * @return 受け取ったメッセージ
+	 * @throws IllegalArgumentException 不正なデータグラムの場合
+	 */
+	public synchronized List<Message> receive(byte[] data, int length) {
+		List<Message> messages = new ArrayList<>();
+		if (readSession(data, length) != session) return messages;
+		if (!heard) {
+			heard = true;
+			transmit(ACK, 0, null, 0, 0);// 相手が登録を送り直さなくて済むように、最初に届いたら確認を返す
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+		byte type = buffer.get();
+		buffer.getInt();// セッション番号
+		int acknowledged = buffer.getInt();
+		while (!unacked.isEmpty() && unacked.peekFirst().sequence <= acknowledged) {
+			unacked.pollFirst();
+		}
+		if (type == ACK) return messages;
+		if (buffer.remaining() < 4) throw new IllegalArgumentException("truncated datagram");
+		int sequence = buffer.getInt();
+
+		if (type == UNRELIABLE) {
+			int position = buffer.position();
+			while (position < length) {
+				Message message = new Message();
+				int used = BinaryCodec.decode(data, position, length - position, message);
+				if (used == 0) throw new IllegalArgumentException("truncated frame");
+				position += used;
+				long key = ((long) message.command.getOpcode() << 32) | (message.id & 0xFFFFFFFFL);
+				Integer newest = latest.get(key);
+				if (newest != null && newest >= sequence) continue;// 後から届いた古い更新
+				latest.put(key, sequence);
+				messages.add(message);
+			}
+			return messages;
+		}
+
+		if (type == RELIABLE) {
+			if (sequence > delivered && sequence - delivered <= RECEIVE_WINDOW && !waiting.containsKey(sequence)) {
+				Message message = new Message();
+				BinaryCodec.decode(data, buffer.position(), length - buffer.position(), message);
+				waiting.put(sequence, message);
+				Message next;
+				while ((next = waiting.remove(delivered + 1)) != null) {
+					messages.add(next);
+					delivered++;
+				}
+			}
+			transmit(ACK, 0, null, 0, 0);// 重複して届いた場合も、確認が失われた可能性があるので返す
+		}
+		return messages;
+	}
+
+	/**
+	 * 相手のアドレスを更新する。
+	 * サーバーは最初のデータグラムが届くまでクライアントのアドレスを知らない。
+	 *
+	 * @param remote 相手のアドレス
+	 */
+	public void setRemote(SocketAddress remote) {
+		this.remote = remote;
+	}
+
+	/**
+	 * 相手のアドレスを取得する。
+	 */
+	public SocketAddress getRemote() {
+		return remote;
+	}
+
+	/**
+	 * これまでに送ったデータグラム数（わざと捨てたものを含む）を取得する。
+	 */
+	public synchronized long getSent() {
+		return sent;
+	}
+
+	/**
+	 * これまでに再送した信頼性のあるメッセージ数を取得する。
+	 */
+	public synchronized long getRetransmitted() {
+		return retransmitted;
+	}
+
+	/**
+	 * 損失の再現のためにわざと捨てたデータグラム数を取得する。
+	 */
+	public synchronized long getLost() {
+		return lost;
+	}
+
+	/**
+	 * 溜めておいた信頼性のないメッセージを1つのデータグラムで送る。
+	 */
+	private void sendBatch() {
+		transmit(UNRELIABLE, nextUnreliable++, batch.array(), 0, batch.position());
+		batch.clear();
+	}
+
+	/**
+	 * ヘッダを付けてデータグラムを送る。
+	 * 確認の番号は送るたびに最新のものを入れるので、データのデータグラムが確認も兼ねる。
+	 *
+	 * @param type データグラムの種類
+	 * @param sequence チャンネルごとの番号（ACKでは使わない）
+	 * @param body フレームを含むバイト列
+	 * @param offset フレームの開始位置
+	 * @param length フレームの長さ
+	 */
+	private void transmit(byte type, int sequence, byte[] body, int offset, int length) {
+		SocketAddress target = remote;
+		if (target == null) return;
+		ByteBuffer datagram = ByteBuffer.allocate(HEADER_SIZE + (type == ACK ? 0 : 4 + length));
+		datagram.put(type).putInt(session).putInt(delivered);
+		if (type != ACK) datagram.putInt(sequence).put(body, offset, length);
+		lastSendTime = now();
+		sent++;
+		if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+			lost++;
+			return;
+		}
+		try {
+			socket.send(new DatagramPacket(datagram.array(), datagram.position(), target));
+		} catch (IOException e) {
+			// UDPなので送れなかったものは失われたものとして扱う
+		}
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * 確認待ちの信頼性のあるメッセージ。
+	 */
+	private static class Outgoing {
+		final int sequence;
+		final byte[] frame;
+		long sentAt;
+
+		Outgoing(int sequence, byte[] frame) {
+			this.sequence = sequence;
+			this.frame = frame;
+		}
+	}
+}
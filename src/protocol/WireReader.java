@@ -0,0 +1,90 @@
+package protocol;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * ブロッキングのストリームから、テキスト形式の行とバイナリ形式のフレームを読むクラス。
+ * <code>BufferedReader</code>は先読みした分を文字に変換してしまうため、途中でバイナリ形式に切り替えられない。
+ * このクラスはバイト単位でバッファリングするので、同じストリームで行とフレームを混在させられる。
+ */
+public class WireReader {
+
+	// PrintWriter/BufferedReaderで読み書きしていた頃と同じ文字コード
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private final InputStream in;
+	private byte[] buffer = new byte[256];
+
+	/**
+	 * WireReaderのコンストラクタ。
+	 *
+	 * @param in 読み込むストリーム
+	 */
+	public WireReader(InputStream in) {
+		this.in = new BufferedInputStream(in);
+	}
+
+	/**
+	 * テキスト形式の1行を読む。
+	 *
+	 * @return 改行を除いた1行。ストリームが終わった場合はnull
+	 */
+	public String readLine() throws IOException {
+		int length = 0;
+		while (true) {
+			int b = in.read();
+			if (b < 0) {
+				if (length == 0) return null;
+				break;
+			}
+			if (b == '\n') break;
+			if (length == buffer.length) buffer = Arrays.copyOf(buffer, length * 2);
+			buffer[length++] = (byte) b;
+		}
+		if (length > 0 && buffer[length - 1] == '\r') length--;
+		return new String(buffer, 0, length, CHARSET);
+	}
+
+	/**
+	 * バイナリ形式の1フレームを読む。
+	 *
+	 * @param out デコード結果を書き込むメッセージ
+	 * @return 読めた場合はtrue。ストリームが終わった場合はfalse
+	 * @throws IOException 読み込みに失敗した場合、またはフレームが不正な場合
+	 */
+	public boolean readFrame(Message out) throws IOException {
+		int bodyLength = 0;
+		int shift = 0;
+		while (true) {
+			int b = in.read();
+			if (b < 0) {
+				if (shift == 0) return false;
+				throw new EOFException();
+			}
+			bodyLength |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) break;
+			shift += 7;
+			if (shift > 28) throw new IOException("varint too long");
+		}
+		if (bodyLength <= 0 || bodyLength > BinaryCodec.MAX_BODY_LENGTH) throw new IOException("bad frame length: " + bodyLength);
+		if (buffer.length < bodyLength) buffer = new byte[Math.max(bodyLength, buffer.length * 2)];
+
+		int read = 0;
+		while (read < bodyLength) {
+			int n = in.read(buffer, read, bodyLength - read);
+			if (n < 0) throw new EOFException();
+			read += n;
+		}
+		try {
+			BinaryCodec.decodeBody(buffer, 0, bodyLength, out);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,58 @@
+package server;
+
+import protocol.UdpChannel;
+
+/**
+ * サーバーから見た1クライアントとの接続を表すインターフェース。
+ * スレッド方式（{@link StreamConnection}）とNIO方式（{@link NioConnection}）の違いを隠蔽し、
+ * {@link MyServer#SendAll(Packet)}などのブロードキャスト処理から同じように扱えるようにする。
+ */
+interface Connection {
+
+	/**
+	 * クライアント番号が決まった後に呼ばれ、送受信を開始する。
+	 *
+	 * @param number 割り当てられたクライアント番号
+	 */
+	void start(int number);
+
+	/**
+	 * クライアントにメッセージを送信する。
+	 * メッセージは送信キューに積まれるだけで、呼び出し元はソケットへの書き込みを待たない。
+	 * テキスト形式・バイナリ形式のどちらで送るかは接続ごとに決まる。
+	 *
+	 * @param packet 送信するメッセージ
+	 */
+	void send(Packet packet);
+
+	/**
+	 * 以降このクライアントへの送信をバイナリ形式に切り替える。
+	 * 切り替えの承認の行を送信キューに積み、それより後に積まれたメッセージからバイナリ形式になる。
+	 */
+	default void upgradeToBinary() {
+		send(Packet.UPGRADE);
+	}
+
+	/**
+	 * クライアントからUDPのデータグラムが届いたときに呼ばれる。
+	 * 以降、{@link UdpChannel#carries}が対象とするメッセージは送信キューを通さずUDPで送る。
+	 *
+	 * UDPで送れない接続（計測用の接続など）では何もしない。
+	 *
+	 * @param channel このクライアントとのUDPのチャンネル
+	 */
+	default void attachDatagram(UdpChannel channel) {
+	}
+
+	/**
+	 * この接続の送信キューを取得する。
+	 *
+	 * @return 送信キュー
+	 */
+	OutboundQueue getQueue();
+
+	/**
+	 * 接続を閉じる。
+	 */
+	void close();
+}
@@ -0,0 +1,236 @@
+package server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 接続数に対するサーバーのメモリ・CPU使用量を計測するベンチマーク。
+ * 同じプロセス内でMyServerを起動し、段階的に接続数を増やしながら、
+ * スレッド数・ヒープ使用量・RSS・ブロードキャスト時のCPU時間を表形式で出力する。
+ * スレッド方式とNIO方式を比較するには、<code>--nio</code>の有無を変えて2回実行する。
+ * 既定では全接続を1つの部屋に入れて最大の配信数を計測する。<code>--room-size 4</code>のように定員を指定すると、
+ * 部屋ごとに配信が閉じるため、接続数を増やしてもブロードキャストの負荷が増えないことを確認できる。
+ *
+ * <pre>
+ * java -cp out server.ConnectionBenchmark [--nio] [--port 10100] [--steps 100,500,1000,2000] [--messages 200] [--room-size N]
+ * </pre>
+ */
+class ConnectionBenchmark {
+
+	private static final AtomicLong receivedLines = new AtomicLong();
+	private static final Queue<SocketChannel> toRegister = new ConcurrentLinkedQueue<>();
+
+	public static void main(String[] args) throws Exception {
+		boolean useNio = false;
+		int port = 10100;
+		int messages = 200;
+		int[] steps = {100, 500, 1000, 2000};
+		int roomSize = 0;// 0なら全接続を1部屋に入れる
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--nio":
+					useNio = true;
+					break;
+				case "--port":
+					port = Integer.parseInt(args[++i]);
+					break;
+				case "--messages":
+					messages = Integer.parseInt(args[++i]);
+					break;
+				case "--room-size":
+					roomSize = Integer.parseInt(args[++i]);
+					break;
+				case "--steps": {
+					String[] tokens = args[++i].split(",");
+					steps = new int[tokens.length];
+					for (int j = 0; j < tokens.length; j++) steps[j] = Integer.parseInt(tokens[j]);
+					break;
+				}
+			}
+		}
+
+		// サーバーを同じプロセス内で起動する
+		int maxSteps = steps[steps.length - 1];
+		if (roomSize <= 0) roomSize = maxSteps + 1;
+		List<String> serverArgs = new ArrayList<>();
+		serverArgs.add("--port");
+		serverArgs.add(String.valueOf(port));
+		serverArgs.add("--max-connections");
+		serverArgs.add(String.valueOf(maxSteps + 1));
+		serverArgs.add("--room-size");
+		serverArgs.add(String.valueOf(roomSize));
+		serverArgs.add("--session-timeout");
+		serverArgs.add("0");// 計測用の接続は受信を読み捨てるだけで、PINGに応答しない
+		if (useNio) serverArgs.add("--nio");
+		Thread serverThread = new Thread(() -> MyServer.main(serverArgs.toArray(new String[0])), "server-main");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		waitForServer(port);
+
+		// 受信データはベンチマーク側の1スレッドで読み捨てる
+		Selector drainSelector = Selector.open();
+		Thread drainThread = new Thread(() -> drain(drainSelector), "benchmark-drain");
+		drainThread.setDaemon(true);
+		drainThread.start();
+
+		System.out.println("mode=" + (useNio ? "nio" : "thread"));
+		System.out.println("connections\tthreads\theapMB\trssMB\tbroadcastCpuMs\tbroadcastWallMs");
+
+		List<SocketChannel> clients = new ArrayList<>();
+		for (int step : steps) {
+			while (clients.size() < step) {
+				SocketChannel client = connect(port, clients.size());
+				clients.add(client);
+				toRegister.add(client);
+				drainSelector.wakeup();
+			}
+			Thread.sleep(500);
+			System.gc();
+			Thread.sleep(200);
+
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+			long heapMB = memory.getHeapMemoryUsage().getUsed() / (1024 * 1024);
+
+			// 1クライアントからmessages回送り、同じ部屋の送信者以外の全員に配り終わるまでのCPU時間と経過時間
+			long expected = receivedLines.get() + (long) messages * (Math.min(roomSize, clients.size()) - 1);
+			long cpuStart = processCpuNanos();
+			long wallStart = System.nanoTime();
+			SocketChannel sender = clients.get(0);
+			for (int i = 0; i < messages; i++) {
+				writeFully(sender, "AIM 0 " + i + ".5 " + i + ".25\n");
+			}
+			long deadline = System.currentTimeMillis() + 60_000;
+			while (receivedLines.get() < expected && System.currentTimeMillis() < deadline) {
+				Thread.sleep(1);
+			}
+			long wallMs = (System.nanoTime() - wallStart) / 1_000_000;
+			long cpuMs = (processCpuNanos() - cpuStart) / 1_000_000;
+
+			System.out.println(clients.size() + "\t" + threads.getThreadCount() + "\t" + heapMB + "\t" + rssMB() + "\t" + cpuMs + "\t" + wallMs);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * サーバーが接続を受け付けるようになるまで待つ。
+	 */
+	private static void waitForServer(int port) throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			try (Socket probe = new Socket()) {
+				probe.connect(new InetSocketAddress("localhost", port), 100);
+				return;
+			} catch (IOException e) {
+				Thread.sleep(50);
+			}
+		}
+		throw new IllegalStateException("server did not start on port " + port);
+	}
+
+	/**
+	 * ゲームクライアントと同じハンドシェイク（クライアント番号の受信、名前の送信）を行った接続を作る。
+	 */
+	private static SocketChannel connect(int port, int index) throws IOException {
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+		ByteBuffer one = ByteBuffer.allocate(1);
+		while (true) {// "N is client number" を読み飛ばす
+			one.clear();
+			if (channel.read(one) < 0) throw new IOException("closed during handshake");
+			if (one.get(0) == '\n') break;
+		}
+		writeFully(channel, "Bench" + index + "\n");
+		channel.configureBlocking(false);
+		return channel;
+	}
+
+	private static void writeFully(SocketChannel channel, String line) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining()) {
+			if (channel.write(buffer) == 0) Thread.yield();
+		}
+	}
+
+	/**
+	 * 全クライアントの受信データを読み捨て、受信した行数を数える。
+	 */
+	private static void drain(Selector selector) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		while (true) {
+			try {
+				selector.select();
+				SocketChannel added;
+				while ((added = toRegister.poll()) != null) {
+					added.register(selector, SelectionKey.OP_READ);
+				}
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					SocketChannel channel = (SocketChannel) key.channel();
+					buffer.clear();
+					int read = channel.read(buffer);
+					if (read < 0) {
+						key.cancel();
+						continue;
+					}
+					long lines = 0;
+					for (int i = 0; i < read; i++) {
+						if (buffer.get(i) == '\n') lines++;
+					}
+					receivedLines.addAndGet(lines);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * プロセス全体のCPU時間（ナノ秒）を取得する。取得できない環境では0。
+	 */
+	private static long processCpuNanos() {
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return 0;
+	}
+
+	/**
+	 * プロセスの常駐メモリ（MB）を取得する。スレッドスタックなどヒープ外の使用量も含む。
+	 * /proc が無い環境では-1。
+	 */
+	private static long rssMB() {
+		Path status = Paths.get("/proc/self/status");
+		if (!Files.exists(status)) return -1;
+		try {
+			for (String line : Files.readAllLines(status)) {
+				if (line.startsWith("VmRSS:")) {
+					String kb = line.substring(6).trim().split("\\s+")[0];
+					return Long.parseLong(kb) / 1024;
+				}
+			}
+		} catch (IOException e) {
+			// 取得できなければ-1
+		}
+		return -1;
+	}
+}
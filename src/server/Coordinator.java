@@ -0,0 +1,260 @@
+package server;
+
+import protocol.Redirect;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * 同じマシンで動く複数のMyServerに、新しいクライアントを振り分けるコーディネーター。
+ * MyServerは<code>--coordinator</code>で指定した制御用のポートに接続し、接続数と部屋の状態を定期的に報告する。
+ * クライアントはゲームのポートでコーディネーターに接続し、最初の行で{@link Redirect}を受け取って、選ばれたサーバーに接続し直す。
+ * <p>
+ * 振り分け先は次の順で選ぶ。
+ * <ol>
+ *     <li>席が埋まりかけの部屋があるサーバー（待機中の人数と、振り分けたがまだ報告に現れていない人数から求める）。
+ *     部屋を早く揃えるため、続けて来たクライアントは同じ部屋に入れる</li>
+ *     <li>そうでなければ、最大接続数に対する接続数の割合が最も小さいサーバー</li>
+ * </ol>
+ * 報告が途絶えたサーバーと、満員のサーバーには振り分けない。振り分け先が無い場合は何も送らずに切断する（MyServerの拒否と同じ）。
+ * 通信はすべてループバックで行い、外部の仕組みを使わずに1台で複数プロセスへのスケールアウトを試せる。
+ *
+ * <pre>
+ * java -cp out server.Coordinator [--port 10000] [--control-port 9999] [--spawn N] [--base-port 10001] [--server-args "--nio"] [--stats-interval 秒]
+ * </pre>
+ * <code>--spawn N</code>を指定すると、ポート<code>base-port</code>から順にN個のMyServerを子プロセスとして起動する。
+ */
+class Coordinator {
+
+	/**
+	 * MyServerが制御用の接続の最初に送る行の先頭のトークン。「SERVER ポート 最大接続数 部屋の定員」
+	 */
+	static final String SERVER = "SERVER";
+
+	/**
+	 * MyServerが定期的に送る負荷の報告の先頭のトークン。「LOAD 接続数 部屋数 試合中の部屋数 待機中の人数 これまでに受け付けた数」
+	 */
+	static final String LOAD = "LOAD";
+
+	/**
+	 * MyServerが負荷を報告する間隔（ミリ秒）。
+	 */
+	static final long REPORT_INTERVAL = 200;
+
+	private static final long STALE_TIME = 3000;// これだけ報告が無いサーバーには振り分けない（ミリ秒）
+	private static final long PENDING_TIMEOUT = 2000;// 振り分けたクライアントがこれだけ現れなければ、来なかったものとする（ミリ秒）
+
+	private final Map<Integer, Instance> instances = new LinkedHashMap<>();// ポート→サーバー。thisで同期する
+	private long redirected = 0;
+	private long refused = 0;
+
+	/**
+	 * 振り分け先のサーバー1つ分の状態。
+	 */
+	private static final class Instance {
+		final int port;
+		final int capacity;
+		final int roomSize;
+		int clients, rooms, playing, waiting;
+		long accepted = -1;// 最後に報告された、これまでに受け付けた数。報告前は-1
+		int pending = 0;// 振り分けたが、まだ報告に現れていないクライアントの数
+		long lastPlaced;// 最後に振り分けた時刻（ミリ秒）
+		long lastReport;// 最後に報告を受けた時刻（ミリ秒）
+
+		Instance(int port, int capacity, int roomSize) {
+			this.port = port;
+			this.capacity = capacity;
+			this.roomSize = Math.max(1, roomSize);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = 10000;
+		int controlPort = 9999;
+		int spawn = 0;
+		int basePort = -1;
+		int statsInterval = 0;
+		List<String> serverArgs = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--port":
+					port = Integer.parseInt(args[++i]);
+					break;
+				case "--control-port":
+					controlPort = Integer.parseInt(args[++i]);
+					break;
+				case "--spawn":
+					spawn = Integer.parseInt(args[++i]);
+					break;
+				case "--base-port":
+					basePort = Integer.parseInt(args[++i]);
+					break;
+				case "--server-args":
+					serverArgs.addAll(Arrays.asList(args[++i].trim().split("\\s+")));
+					break;
+				case "--stats-interval":
+					statsInterval = Integer.parseInt(args[++i]);
+					break;
+				default:
+					System.err.println("不明な引数: " + args[i]);
+			}
+		}
+		if (basePort < 0) basePort = port + 1;
+
+		Coordinator coordinator = new Coordinator();
+		ServerSocket control = new ServerSocket(controlPort, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(() -> coordinator.acceptServers(control), "coordinator-control");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		for (int i = 0; i < spawn; i++) {
+			List<String> command = new ArrayList<>(Arrays.asList(
+					ProcessHandle.current().info().command().orElse("java"), "-cp", System.getProperty("java.class.path"), "server.MyServer",
+					"--port", String.valueOf(basePort + i), "--coordinator", String.valueOf(controlPort)));
+			if (!serverArgs.isEmpty() && !serverArgs.get(0).isEmpty()) command.addAll(serverArgs);
+			Process process = new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+			Runtime.getRuntime().addShutdownHook(new Thread(process::destroy));
+		}
+
+		if (statsInterval > 0) {
+			Timer statsTimer = new Timer("coordinator-stats", true);
+			statsTimer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					coordinator.printStats();
+				}
+			}, statsInterval * 1000L, statsInterval * 1000L);
+		}
+
+		System.out.println("Coordinator on port " + port + " (control " + controlPort + ")");
+		ServerSocket server = new ServerSocket(port);
+		while (true) {
+			try (Socket socket = server.accept()) {
+				Instance target = coordinator.place(System.currentTimeMillis());
+				if (target == null) continue;// 振り分け先が無い。何も送らずに切断する
+				socket.getOutputStream().write((Redirect.line(target.port) + "\n").getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				// クライアントが先に切断した
+			}
+		}
+	}
+
+	/**
+	 * 新しいクライアントの振り分け先を選び、振り分けたことを記録する。
+	 *
+	 * @param now 現在時刻（ミリ秒）
+	 * @return 振り分け先。振り分けられるサーバーが無い場合はnull
+	 */
+	synchronized Instance place(long now) {
+		Instance filling = null, least = null;
+		int fillingSeated = 0;
+		for (Instance instance : instances.values()) {
+			if (instance.accepted < 0 || now - instance.lastReport > STALE_TIME) continue;
+			if (instance.pending > 0 && now - instance.lastPlaced > PENDING_TIMEOUT) instance.pending = 0;// 来なかったクライアントの分
+			int load = instance.clients + instance.pending;
+			if (load >= instance.capacity) continue;
+			int seated = (instance.waiting + instance.pending) % instance.roomSize;
+			if (seated > fillingSeated) {
+				filling = instance;
+				fillingSeated = seated;
+			}
+			if (least == null || (long) load * least.capacity < (long) (least.clients + least.pending) * instance.capacity) least = instance;
+		}
+		Instance target = filling != null ? filling : least;
+		if (target == null) {
+			refused++;
+			return null;
+		}
+		target.pending++;
+		target.lastPlaced = now;
+		redirected++;
+		return target;
+	}
+
+	/**
+	 * MyServerからの制御用の接続を受け付け続ける。接続ごとに報告を読むスレッドを作る。
+	 */
+	private void acceptServers(ServerSocket control) {
+		while (true) {
+			try {
+				Socket socket = control.accept();
+				Thread reader = new Thread(() -> readReports(socket), "coordinator-server");
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				System.err.println("制御用の接続を受け付けられませんでした: " + e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 1つのMyServerの報告を読み続ける。切断されたら振り分け先から外す。
+	 */
+	private void readReports(Socket socket) {
+		Instance instance = null;
+		try (Socket closing = socket) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(closing.getInputStream(), StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] tokens = line.trim().split(" ");
+				if (tokens[0].equals(SERVER) && tokens.length >= 4) {
+					instance = new Instance(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]));
+					synchronized (this) {
+						instances.put(instance.port, instance);
+					}
+					System.out.println("Server on port " + instance.port + " joined (capacity " + instance.capacity + ", room size " + instance.roomSize + ")");
+				} else if (tokens[0].equals(LOAD) && tokens.length >= 6 && instance != null) {
+					update(instance, Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]),
+							Integer.parseInt(tokens[4]), Long.parseLong(tokens[5]));
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			// 切断されたか、不正な報告
+		}
+		if (instance != null) {
+			synchronized (this) {
+				if (instances.get(instance.port) == instance) instances.remove(instance.port);
+			}
+			System.out.println("Server on port " + instance.port + " left");
+		}
+	}
+
+	/**
+	 * 負荷の報告を反映する。新しく受け付けた数だけ、振り分けたがまだ現れていない数を減らす。
+	 */
+	private synchronized void update(Instance instance, int clients, int rooms, int playing, int waiting, long accepted) {
+		if (instance.accepted >= 0) instance.pending = (int) Math.max(0, instance.pending - (accepted - instance.accepted));
+		instance.accepted = accepted;
+		instance.clients = clients;
+		instance.rooms = rooms;
+		instance.playing = playing;
+		instance.waiting = waiting;
+		instance.lastReport = System.currentTimeMillis();
+	}
+
+	/**
+	 * サーバーごとの状態と、振り分けた数を標準出力に出力する。
+	 */
+	private synchronized void printStats() {
+		StringBuilder line = new StringBuilder("coordinator: redirected=" + redirected + " refused=" + refused);
+		for (Instance instance : instances.values()) {
+			line.append(" [").append(instance.port).append(" clients=").append(instance.clients).append('/').append(instance.capacity)
+					.append(" rooms=").append(instance.rooms).append(" playing=").append(instance.playing)
+					.append(" waiting=").append(instance.waiting).append(" pending=").append(instance.pending).append(']');
+		}
+		System.out.println(line);
+	}
+}
@@ -0,0 +1,115 @@
+package server;
+
+import client.GameEngine;
+import protocol.Command;
+import protocol.Message;
+
+import java.util.Random;
+
+/**
+ * 関心領域による絞り込みで、1ティックあたりに配るメッセージ数がどう変わるかを計測するベンチマーク。
+ * ネットワークは使わず、1つの部屋に送信数を数えるだけの接続を入れて{@link Room#sendOthers}を呼ぶ。
+ * 各戦車は6000x6000のステージをランダムに動き回り、毎ティックLOCATEとAIMを、1秒に1回BULLETを送る。
+ * 各クライアントは自分の戦車を中心としたカメラの範囲（VIEW）を送る。
+ * 全員に配る場合は人数の2乗で増えるが、絞り込んだ場合は周りの戦車の密度だけで決まることを確認できる。
+ *
+ * <pre>
+ * java -cp out server.InterestBenchmark [--players 4,16,64,256] [--view-radius 800] [--ticks 600]
+ * </pre>
+ */
+class InterestBenchmark {
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		int[] playerSteps = {4, 16, 64, 256};
+		double viewRadius = 800;
+		int ticks = 600;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--players": {
+					String[] tokens = args[++i].split(",");
+					playerSteps = new int[tokens.length];
+					for (int j = 0; j < tokens.length; j++) playerSteps[j] = Integer.parseInt(tokens[j]);
+					break;
+				}
+				case "--view-radius":
+					viewRadius = Double.parseDouble(args[++i]);
+					break;
+				case "--ticks":
+					ticks = Integer.parseInt(args[++i]);
+					break;
+			}
+		}
+
+		System.out.println("viewRadius=" + viewRadius + " ticks=" + ticks);
+		System.out.println(String.format("%8s %16s %16s %10s", "players", "broadcast/tick", "filtered/tick", "ratio"));
+		for (int players : playerSteps) {
+			long filtered = run(players, viewRadius, ticks);
+			long broadcast = (long) players * (players - 1) * 2 + (long) players * (players - 1) / GameEngine.FPS;
+			System.out.println(String.format("%8d %16d %16d %9.1fx", players, broadcast, filtered / ticks, (double) broadcast * ticks / filtered));
+		}
+	}
+
+	/**
+	 * 1段階分を計測する。
+	 *
+	 * @return 配ったメッセージの総数
+	 */
+	private static long run(int players, double viewRadius, int ticks) {
+		Room room = new Room(0, players, 0);
+		CountingConnection[] connections = new CountingConnection[players];
+		for (int i = 0; i < players; i++) {
+			connections[i] = new CountingConnection();
+			room.join(connections[i]);
+		}
+
+		Random random = new Random(1);
+		double[] x = new double[players], y = new double[players], heading = new double[players];
+		for (int i = 0; i < players; i++) {
+			x[i] = random.nextDouble() * 6000 - 3000;
+			y[i] = random.nextDouble() * 6000 - 3000;
+			heading[i] = random.nextDouble() * 2 * Math.PI;
+		}
+
+		for (int tick = 0; tick < ticks; tick++) {
+			for (int i = 0; i < players; i++) {
+				heading[i] += random.nextGaussian() * 0.1;
+				x[i] = Math.max(-3000, Math.min(3000, x[i] + Math.cos(heading[i]) * 20));
+				y[i] = Math.max(-3000, Math.min(3000, y[i] + Math.sin(heading[i]) * 20));
+				if (tick % 30 == i % 30) room.setView(i, new Message(Command.VIEW, (int) viewRadius, x[i], y[i]));// カメラは自分の戦車を追う
+				room.sendOthers(Packet.of(new Message(Command.LOCATE, i, x[i], y[i])), i);
+				room.sendOthers(Packet.of(new Message(Command.AIM, i, x[i] + 100, y[i])), i);
+				if (tick % GameEngine.FPS == i % GameEngine.FPS) room.sendOthers(Packet.of(new Message(Command.BULLET, i)), i);
+			}
+		}
+
+		long total = 0;
+		for (CountingConnection connection : connections) total += connection.sent;
+		return total;
+	}
+
+	/**
+	 * 送信数を数えるだけの接続。
+	 */
+	private static class CountingConnection implements Connection {
+		private long sent = 0;
+
+		@Override
+		public void start(int number) {
+		}
+
+		@Override
+		public void send(Packet packet) {
+			sent++;
+		}
+
+		@Override
+		public OutboundQueue getQueue() {
+			return null;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
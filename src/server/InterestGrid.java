@@ -0,0 +1,188 @@
+package server;
+
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * 部屋の中で、どのクライアントがどの戦車の近くを見ているかを管理する空間グリッド。
+ * ステージを一定の大きさのセルに区切り、セルごとに「そのセルを見ているクライアント（席番号）」を覚えておく。
+ * 戦車の位置の更新（LOCATE/AIM）は、その戦車がいるセルを見ているクライアントにだけ配ればよいので、
+ * 1メッセージあたりの送信数は部屋の人数ではなく、その周りを見ている人数で決まる。
+ * <p>
+ * クライアントが見ている範囲（関心領域）は、クライアントが送る{@link protocol.Command#VIEW}のカメラの範囲に余白を足したもの。
+ * VIEWを送ってこないクライアントは、既定の半径が設定されていれば自分の戦車の周り、そうでなければステージ全体を見ているものとして扱う。
+ * 受信のスレッドが複数あるので、メソッドは同期する。
+ */
+class InterestGrid {
+
+	private static final double CELL_SIZE = 500;
+	private static final double MARGIN = 200;// 画面の端に半分映っている戦車や、境界を行き来する戦車のための余白
+
+	private final double defaultRadius;
+	private final double originX, originY;// グリッドの左上の座標
+	private final int columns, rows;
+	private final BitSet[] cells;// セルごとの、そのセルを見ているクライアント
+	private final BitSet everywhere = new BitSet();// ステージ全体を見ているクライアント
+
+	// 席番号ごとの状態
+	private final double[] tankX, tankY;
+	private final boolean[] located;// 戦車の位置を一度でも受信したか
+	private final double[] minX, minY, maxX, maxY;// 関心領域
+	private final boolean[] hasView;// VIEWを受信したか
+	private final boolean[] subscribed;// セルに登録しているか
+
+	/**
+	 * InterestGridのコンストラクタ。
+	 *
+	 * @param capacity 部屋の定員
+	 * @param stageWidth ステージの幅
+	 * @param stageHeight ステージの高さ
+	 * @param defaultRadius VIEWを送ってこないクライアントの関心領域の半径。0以下ならステージ全体
+	 */
+	InterestGrid(int capacity, double stageWidth, double stageHeight, double defaultRadius) {
+		this.defaultRadius = defaultRadius;
+		this.originX = -stageWidth / 2 - CELL_SIZE;
+		this.originY = -stageHeight / 2 - CELL_SIZE;
+		this.columns = (int) Math.ceil(stageWidth / CELL_SIZE) + 2;
+		this.rows = (int) Math.ceil(stageHeight / CELL_SIZE) + 2;
+		this.cells = new BitSet[columns * rows];
+		for (int i = 0; i < cells.length; i++) cells[i] = new BitSet();
+		this.tankX = new double[capacity];
+		this.tankY = new double[capacity];
+		this.located = new boolean[capacity];
+		this.minX = new double[capacity];
+		this.minY = new double[capacity];
+		this.maxX = new double[capacity];
+		this.maxY = new double[capacity];
+		this.hasView = new boolean[capacity];
+		this.subscribed = new boolean[capacity];
+		for (int slot = 0; slot < capacity; slot++) reset(slot);
+	}
+
+	/**
+	 * クライアントのカメラの範囲を設定する。
+	 *
+	 * @param slot クライアントの席番号
+	 * @param centerX カメラの中心のx座標
+	 * @param centerY カメラの中心のy座標
+	 * @param radius カメラに映る範囲の縦横の大きい方の半分
+	 */
+	synchronized void setView(int slot, double centerX, double centerY, double radius) {
+		hasView[slot] = true;
+		subscribe(slot, centerX - radius - MARGIN, centerY - radius - MARGIN, centerX + radius + MARGIN, centerY + radius + MARGIN);
+	}
+
+	/**
+	 * クライアントの戦車の位置を更新する。
+	 * VIEWを送ってこないクライアントで既定の半径が設定されている場合は、関心領域も戦車に合わせて動かす。
+	 *
+	 * @param slot 戦車の席番号
+	 * @param x x座標
+	 * @param y y座標
+	 */
+	synchronized void locate(int slot, double x, double y) {
+		tankX[slot] = x;
+		tankY[slot] = y;
+		located[slot] = true;
+		if (!hasView[slot] && defaultRadius > 0) {
+			subscribe(slot, x - defaultRadius, y - defaultRadius, x + defaultRadius, y + defaultRadius);
+		}
+	}
+
+	/**
+	 * 指定した戦車の位置の更新を受け取るべきクライアントを求める。
+	 * 戦車の位置がまだ分からない場合は全員。
+	 * 中継のたびに呼ばれるので、集合を作らずに呼び出し側の配列に書き込み、ロックは判定の間だけ持つ。
+	 * ステージ全体を見ているクライアントはセルに登録しないので、同じ席番号を2度書くことはない。
+	 *
+	 * @param sender 戦車の席番号
+	 * @param receivers 受け取るべきクライアントの席番号を書き込む配列。部屋の定員以上の長さが必要
+	 * @return 書き込んだ数（送信者自身を含むことがある）
+	 */
+	synchronized int interestedIn(int sender, int[] receivers) {
+		int count = 0;
+		if (!located[sender]) {
+			for (int slot = 0; slot < tankX.length; slot++) receivers[count++] = slot;
+			return count;
+		}
+		for (int slot = everywhere.nextSetBit(0); slot >= 0; slot = everywhere.nextSetBit(slot + 1)) receivers[count++] = slot;
+		double x = tankX[sender], y = tankY[sender];
+		BitSet candidates = cells[cellOf(x, y)];
+		for (int slot = candidates.nextSetBit(0); slot >= 0; slot = candidates.nextSetBit(slot + 1)) {
+			if (minX[slot] <= x && x <= maxX[slot] && minY[slot] <= y && y <= maxY[slot]) receivers[count++] = slot;
+		}
+		return count;
+	}
+
+	/**
+	 * クライアントが指定した戦車の周りを見ているかを判定する。
+	 *
+	 * @param receiver クライアントの席番号
+	 * @param sender 戦車の席番号
+	 * @return 見ている場合、または戦車の位置がまだ分からない場合はtrue
+	 */
+	synchronized boolean isInterested(int receiver, int sender) {
+		if (everywhere.get(receiver) || !located[sender]) return true;
+		double x = tankX[sender], y = tankY[sender];
+		return minX[receiver] <= x && x <= maxX[receiver] && minY[receiver] <= y && y <= maxY[receiver];
+	}
+
+	/**
+	 * 抜けたクライアントの状態を消す。席は次のクライアントが使う。
+	 *
+	 * @param slot 抜けたクライアントの席番号
+	 */
+	synchronized void reset(int slot) {
+		unsubscribe(slot);
+		located[slot] = false;
+		hasView[slot] = false;
+		everywhere.set(slot, defaultRadius <= 0);// 既定の半径が無ければ、VIEWが届くまではステージ全体を見ている
+	}
+
+	/**
+	 * 関心領域を設定し、重なるセルに登録し直す。
+	 */
+	private void subscribe(int slot, double left, double top, double right, double bottom) {
+		unsubscribe(slot);
+		everywhere.clear(slot);
+		minX[slot] = left;
+		minY[slot] = top;
+		maxX[slot] = right;
+		maxY[slot] = bottom;
+		forEachCell(slot, cell -> cells[cell].set(slot));
+		subscribed[slot] = true;
+	}
+
+	/**
+	 * 登録しているセルから外す。
+	 */
+	private void unsubscribe(int slot) {
+		if (!subscribed[slot]) return;
+		forEachCell(slot, cell -> cells[cell].clear(slot));
+		subscribed[slot] = false;
+	}
+
+	/**
+	 * 関心領域と重なる全てのセルに対して処理を行う。
+	 */
+	private void forEachCell(int slot, IntConsumer action) {
+		int left = column(minX[slot]), right = column(maxX[slot]);
+		int top = row(minY[slot]), bottom = row(maxY[slot]);
+		for (int row = top; row <= bottom; row++) {
+			for (int column = left; column <= right; column++) action.accept(row * columns + column);
+		}
+	}
+
+	private int cellOf(double x, double y) {
+		return row(y) * columns + column(x);
+	}
+
+	// ステージの外の座標は端のセルに含める
+	private int column(double x) {
+		return Math.max(0, Math.min(columns - 1, (int) Math.floor((x - originX) / CELL_SIZE)));
+	}
+
+	private int row(double y) {
+		return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - originY) / CELL_SIZE)));
+	}
+}
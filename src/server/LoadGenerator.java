@@ -0,0 +1,606 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.Command;
+import protocol.Message;
+import protocol.Redirect;
+import stage.AutoPilot;
+import stage.StandardStageGenerator;
+import stage.Tank;
+
+import java.awt.geom.Point2D;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 画面を持たないボットでMyServerに負荷をかける負荷試験ツール。
+ * ゲームクライアントと同じハンドシェイク（クライアント番号の受信、名前の送信、バイナリ形式への切り替え）を行い、
+ * {@link AutoPilot}の行動パターン（方向転換、連射、ブロックの連続設置）で毎フレームLOCATE・AIM・BULLET・BLOCKを送る。
+ * クライアントと同じく、1フレーム分のメッセージは1回の書き込みで送る。
+ * 段階的にボット数を増やし、各段階で次の値を表形式で出力する。性能が急に悪化するボット数を探すのに使う。
+ * <ul>
+ *     <li>送信・受信メッセージ数（毎秒）</li>
+ *     <li>配信遅延：ボットがLOCATEを書き込んでから、同じ部屋の他のボットが受け取るまでの時間の分位点</li>
+ *     <li>サーバーのCPU使用率（1コア=100%）</li>
+ *     <li>ボットが実際に回せたフレームレート（60を下回る場合は負荷試験ツール側が追いついていない）</li>
+ * </ul>
+ * 既定ではサーバーを別プロセスで起動する。<code>--server-args</code>でサーバーの引数（<code>--nio</code>など）を追加できる。
+ * 起動済みのサーバーを使う場合は<code>--server-pid</code>でプロセスIDを指定すると、そのCPU使用率を計測する。
+ * CPU使用率には子プロセスの分も含めるので、{@link Coordinator}（<code>--spawn</code>で起動したもの）のプロセスIDを指定すると全サーバーの合計になる。
+ * コーディネーターに接続した場合は、振り分けられたサーバーに接続し直す。
+ * ボットは中継モード（<code>--authoritative</code>なし）のサーバーを前提にしている。
+ * <p>
+ * <code>--spectators N</code>を指定すると、試合中の最も古い部屋にN人の観戦者（{@link SpectatorHub}）を接続し、
+ * 観戦者1人あたりの受信メッセージ数と、ボットがLOCATEを書き込んでから観戦者が受け取るまでの時間（観戦の遅延を含む）も出力する。
+ * 観戦者のポートは<code>--spectator-port</code>（既定値は待ち受けポート+1）。サーバーを起動する場合はこのポートで観戦者を受け付けさせる。
+ * 観戦者のポートは<code>--port</code>のサーバーのものとみなし、観る部屋のボットはそのサーバーのポートと部屋番号で引く。
+ *
+ * <pre>
+ * java -cp out server.LoadGenerator [--port 10400] [--steps 50,100,200,400] [--room-size 4] [--duration 10] [--server-args "--nio"] [--server-pid PID] [--spectators 0] [--spectator-port 10401]
+ * </pre>
+ */
+class LoadGenerator {
+
+	private static final int FPS = 60;
+	private static final int SENT_HISTORY = 128;// 配信遅延を計るために覚えておく、送ったLOCATEの数（2秒分）
+	private static final long LATENCY_BUCKET = 10_000;// 配信遅延のヒストグラムの刻み（ナノ秒）
+	private static final int LATENCY_BUCKETS = 100_000;// 1秒まで。それ以上は最後の区間に入れる
+	private static final double AIM_THRESHOLD = Math.toRadians(1);// クライアントと同じく、照準はこれ以上変わったときだけ送る
+
+	private static final Queue<Receiver> toRegister = new ConcurrentLinkedQueue<>();
+	private static final List<Bot> bots = new ArrayList<>();// フレームのスレッドとメインスレッドが共有する。追加はbotsで同期する
+	private static final Map<Long, Bot[]> rooms = new ConcurrentHashMap<>();// サーバーのポートと部屋番号の組ごとの、席番号で引けるボット
+	private static final AtomicLong sentMessages = new AtomicLong();
+	private static final AtomicLong receivedMessages = new AtomicLong();
+	private static final AtomicLong frames = new AtomicLong();
+	private static volatile AtomicLongArray latencies = new AtomicLongArray(LATENCY_BUCKETS);
+	private static final AtomicLong spectatorMessages = new AtomicLong();
+	private static volatile AtomicLongArray spectatorLatencies = new AtomicLongArray(LATENCY_BUCKETS);
+
+	private static double stageWidth;
+	private static double stageHeight;
+	private static int spectatorCount = 0;
+
+	public static void main(String[] args) throws Exception {
+		int port = 10400;
+		int[] steps = {50, 100, 200, 400};
+		int roomSize = 4;// MyServerの既定の定員
+		int duration = 10;
+		long serverPid = -1;
+		int spectators = 0;
+		int spectatorPort = -1;
+		List<String> extraServerArgs = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--port":
+					port = Integer.parseInt(args[++i]);
+					break;
+				case "--room-size":
+					roomSize = Integer.parseInt(args[++i]);
+					break;
+				case "--duration":
+					duration = Integer.parseInt(args[++i]);
+					break;
+				case "--server-pid":
+					serverPid = Long.parseLong(args[++i]);
+					break;
+				case "--server-args":
+					extraServerArgs.addAll(Arrays.asList(args[++i].trim().split("\\s+")));
+					break;
+				case "--spectators":
+					spectators = Integer.parseInt(args[++i]);
+					break;
+				case "--spectator-port":
+					spectatorPort = Integer.parseInt(args[++i]);
+					break;
+				case "--steps": {
+					String[] tokens = args[++i].split(",");
+					steps = new int[tokens.length];
+					for (int j = 0; j < tokens.length; j++) steps[j] = Integer.parseInt(tokens[j]);
+					break;
+				}
+			}
+		}
+
+		if (spectatorPort < 0) spectatorPort = port + 1;
+
+		// サーバーを別プロセスで起動する（負荷試験ツールのCPU使用量と混ざらないように）
+		ProcessHandle server;
+		if (serverPid >= 0) {
+			server = ProcessHandle.of(serverPid).orElseThrow(() -> new IllegalArgumentException("no such process"));
+		} else {
+			List<String> command = new ArrayList<>(Arrays.asList(
+					ProcessHandle.current().info().command().orElse("java"), "-cp", System.getProperty("java.class.path"), "server.MyServer",
+					"--port", String.valueOf(port), "--max-connections", String.valueOf(steps[steps.length - 1] + 1), "--room-size", String.valueOf(roomSize)));
+			if (spectators > 0) command.addAll(Arrays.asList("--spectator-port", String.valueOf(spectatorPort)));
+			command.addAll(extraServerArgs);
+			Process process = new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+			Runtime.getRuntime().addShutdownHook(new Thread(process::destroy));
+			server = process.toHandle();
+		}
+		System.setProperty("java.awt.headless", "true");
+		StandardStageGenerator generator = new StandardStageGenerator(roomSize);
+		stageWidth = generator.getStageWidth();
+		stageHeight = generator.getStageHeight();
+
+		Selector selector = Selector.open();
+		Thread reader = new Thread(() -> read(selector), "loadgen-reader");
+		reader.setDaemon(true);
+		reader.start();
+		Thread framer = new Thread(LoadGenerator::runFrames, "loadgen-frames");
+		framer.setDaemon(true);
+		framer.start();
+
+		System.out.println("roomSize=" + roomSize + " server=" + (serverPid >= 0 ? "pid " + serverPid : "spawned " + extraServerArgs));
+		System.out.println("bots\tsent/s\treceived/s\tp50ms\tp90ms\tp99ms\tmaxMs\tserverCpu%\tbotFps"
+				+ (spectators > 0 ? "\tspectators\tspec/s\tspecP50ms\tspecP99ms" : ""));
+
+		Random random = new Random(1);
+		for (int step : steps) {
+			while (bots.size() < step) {
+				int index = bots.size();
+				Bot bot = connect(port, index, roomSize, random);
+				synchronized (bots) {
+					bots.add(bot);
+				}
+				toRegister.add(bot);
+				selector.wakeup();
+			}
+			if (spectators > 0 && spectatorCount == 0 && bots.size() >= roomSize) {
+				for (int i = 0; i < spectators; i++) {
+					Spectator spectator = watch(spectatorPort, port);
+					toRegister.add(spectator);
+					spectatorCount++;
+				}
+				selector.wakeup();
+			}
+			Thread.sleep(2000);// 部屋が揃って配信が安定するまで待つ
+
+			latencies = new AtomicLongArray(LATENCY_BUCKETS);
+			spectatorLatencies = new AtomicLongArray(LATENCY_BUCKETS);
+			long spectatorStart = spectatorMessages.get();
+			long sentStart = sentMessages.get();
+			long receivedStart = receivedMessages.get();
+			long framesStart = frames.get();
+			long cpuStart = cpuNanos(server);
+			long wallStart = System.nanoTime();
+			Thread.sleep(duration * 1000L);
+			double seconds = (System.nanoTime() - wallStart) / 1e9;
+			long cpu = cpuNanos(server) - cpuStart;
+			AtomicLongArray histogram = latencies;
+			AtomicLongArray spectatorHistogram = spectatorLatencies;
+
+			System.out.printf("%d\t%.0f\t%.0f\t%.2f\t%.2f\t%.2f\t%.2f\t%.0f\t%.1f", step,
+					(sentMessages.get() - sentStart) / seconds, (receivedMessages.get() - receivedStart) / seconds,
+					percentile(histogram, 0.50), percentile(histogram, 0.90), percentile(histogram, 0.99), percentile(histogram, 1.0),
+					cpuStart < 0 ? -1 : cpu / 1e7 / seconds, (frames.get() - framesStart) / seconds);
+			if (spectatorCount > 0) {
+				System.out.printf("\t%d\t%.0f\t%.2f\t%.2f", spectatorCount, (spectatorMessages.get() - spectatorStart) / seconds / spectatorCount,
+						percentile(spectatorHistogram, 0.50), percentile(spectatorHistogram, 0.99));
+			}
+			System.out.println();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * サーバーに接続する。起動直後でまだ受け付けていない場合は待ってやり直す。
+	 * 確認のためだけの接続を作ると部屋の席が埋まってしまうので、ボットの接続そのものでやり直す。
+	 */
+	private static SocketChannel open(int port) throws IOException, InterruptedException {
+		for (int i = 0; ; i++) {
+			try {
+				return SocketChannel.open(new InetSocketAddress("localhost", port));
+			} catch (IOException e) {
+				if (i >= 200) throw e;
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * ゲームクライアントと同じハンドシェイクを行ったボットを作る。
+	 * 部屋は、最初の行でサーバーが知らせる部屋番号と、接続したサーバーのポートの組で決める。
+	 * コーディネーターが複数のサーバーに振り分けたり、抜けた席に後から入ったりしても、接続した順番からは部屋が決まらないため。
+	 */
+	private static Bot connect(int port, int index, int roomSize, Random random) throws IOException, InterruptedException {
+		SocketChannel channel = open(port);
+		String greeting = readLine(channel);
+		int redirect = Redirect.parse(greeting);
+		if (redirect > 0) {// コーディネーターが振り分けたサーバーに接続し直す
+			channel.close();
+			channel = open(redirect);
+			greeting = readLine(channel);
+		}
+		channel.socket().setTcpNoDelay(true);
+		int serverPort = redirect > 0 ? redirect : port;
+		String[] tokens = greeting.split(" ");
+		boolean binary = Arrays.asList(tokens).contains(BinaryCodec.CAPABILITY);
+		int roomId = -1;
+		for (String token : tokens) {
+			if (token.startsWith(Room.CAPABILITY + ":")) roomId = Integer.parseInt(token.substring(Room.CAPABILITY.length() + 1));
+		}
+		if (roomId < 0) throw new IOException("no room number in greeting: " + greeting);
+		String hello = "Bot" + index + "\n" + (binary ? BinaryCodec.UPGRADE + "\n" : "");
+		writeFully(channel, ByteBuffer.wrap(hello.getBytes(StandardCharsets.UTF_8)));
+		channel.configureBlocking(false);
+
+		int slot = Integer.parseInt(tokens[0]);
+		Bot[] room = rooms.computeIfAbsent(roomKey(serverPort, roomId), key -> new Bot[roomSize]);
+		Bot bot = new Bot(channel, slot, room, binary, new AutoPilot(new Random(random.nextLong())),
+				(random.nextDouble() - 0.5) * stageWidth, (random.nextDouble() - 0.5) * stageHeight);// ステージの中心が原点
+		room[slot] = bot;
+		return bot;
+	}
+
+	/**
+	 * サーバーのポートと部屋番号を、{@link #rooms}のキーにまとめる。
+	 */
+	private static long roomKey(int serverPort, int roomId) {
+		return ((long) serverPort << 32) | (roomId & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * ハンドシェイクの1行（"N is client number ..." など）を読む。
+	 */
+	private static String readLine(SocketChannel channel) throws IOException {
+		StringBuilder line = new StringBuilder();
+		ByteBuffer one = ByteBuffer.allocate(1);
+		while (true) {
+			one.clear();
+			if (channel.read(one) < 0) throw new IOException("closed during handshake");
+			if (one.get(0) == '\n') break;
+			line.append((char) one.get(0));
+		}
+		return line.toString().trim();
+	}
+
+	/**
+	 * 試合中の最も古い部屋を観る観戦者を接続する。
+	 *
+	 * @param spectatorPort 観戦者のポート
+	 * @param serverPort 同じサーバーのプレイヤーのポート。観る部屋のボットをこのポートと部屋番号で引く
+	 */
+	private static Spectator watch(int spectatorPort, int serverPort) throws IOException, InterruptedException {
+		SocketChannel channel = open(spectatorPort);
+		writeFully(channel, ByteBuffer.wrap("WATCH\n".getBytes(StandardCharsets.UTF_8)));
+		channel.configureBlocking(false);
+		return new Spectator(channel, serverPort);
+	}
+
+	private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.write(buffer) == 0) Thread.yield();
+		}
+	}
+
+	/**
+	 * 全ボットを60FPSで動かすループ。
+	 */
+	private static void runFrames() {
+		long interval = 1_000_000_000L / FPS;
+		long next = System.nanoTime();
+		while (true) {
+			Bot[] snapshot;
+			synchronized (bots) {
+				snapshot = bots.toArray(new Bot[0]);
+			}
+			for (Bot bot : snapshot) {
+				try {
+					bot.frame();
+				} catch (IOException e) {
+					// 切断されたボットは以降何も送らない
+				}
+			}
+			frames.incrementAndGet();
+			next += interval;
+			long sleep = next - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+				} catch (InterruptedException e) {
+					return;
+				}
+			} else {
+				next = System.nanoTime();// 追いつけない場合は遅れを取り戻そうとしない
+			}
+		}
+	}
+
+	/**
+	 * 全ボットの受信データを読み、メッセージを数える。
+	 * 他のボットのLOCATEを受け取ったら、送った時刻と照らし合わせて配信遅延を記録する。
+	 */
+	private static void read(Selector selector) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		Message message = new Message();// 受信ループで使い回す
+		while (true) {
+			try {
+				selector.select();
+				Receiver added;
+				while ((added = toRegister.poll()) != null) {
+					added.channel.register(selector, SelectionKey.OP_READ, added);
+				}
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					Receiver receiver = (Receiver) key.attachment();
+					buffer.clear();
+					int read = receiver.channel.read(buffer);
+					if (read < 0) {
+						key.cancel();
+						continue;
+					}
+					buffer.flip();
+					receiver.onReceived(buffer, message, System.nanoTime());
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * ヒストグラムから配信遅延の分位点を求める。
+	 *
+	 * @param histogram 配信遅延のヒストグラム
+	 * @param quantile 求める分位（0〜1）
+	 * @return 配信遅延（ミリ秒）。記録が無い場合は-1
+	 */
+	private static double percentile(AtomicLongArray histogram, double quantile) {
+		long total = 0;
+		for (int i = 0; i < histogram.length(); i++) total += histogram.get(i);
+		if (total == 0) return -1;
+		long rank = Math.max(1, (long) Math.ceil(total * quantile));
+		long seen = 0;
+		for (int i = 0; i < histogram.length(); i++) {
+			seen += histogram.get(i);
+			if (seen >= rank) return (i + 1) * LATENCY_BUCKET / 1e6;// 区間の上端
+		}
+		return histogram.length() * LATENCY_BUCKET / 1e6;
+	}
+
+	/**
+	 * プロセスと、その子孫のプロセスのCPU時間の合計（ナノ秒）を取得する。取得できない環境では-1。
+	 */
+	private static long cpuNanos(ProcessHandle process) {
+		if (process.pid() == ManagementFactory.getRuntimeMXBean().getPid()) return -1;
+		long total = process.info().totalCpuDuration().map(Duration::toNanos).orElse(-1L);
+		if (total < 0) return -1;
+		for (ProcessHandle child : (Iterable<ProcessHandle>) process.descendants()::iterator) {
+			total += child.info().totalCpuDuration().map(Duration::toNanos).orElse(0L);
+		}
+		return total;
+	}
+
+	/**
+	 * 受信のスレッドが読む接続。
+	 * 受信したバイト列を行（バイナリ形式に切り替えた後はフレーム）に区切って渡す。
+	 */
+	private abstract static class Receiver {
+
+		final SocketChannel channel;
+
+		// 受信用。受信のスレッドだけが使う
+		private byte[] inbox = new byte[64 * 1024];
+		private int inboxLength = 0;
+		private boolean readingBinary = false;
+
+		Receiver(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * テキスト形式の1行を受け取ったときに呼ばれる。
+		 *
+		 * @return 以降をバイナリ形式のフレームとして読む場合はtrue
+		 */
+		abstract boolean onLine(String line, Message message, long now);
+
+		/**
+		 * バイナリ形式のフレームを1つデコードしたときに呼ばれる。
+		 */
+		abstract void onMessage(Message message, long now);
+
+		/**
+		 * 受信したバイト列を行（バイナリ形式に切り替えた後はフレーム）に区切って渡す。
+		 *
+		 * @param buffer 受信したバイト列
+		 * @param message デコードに使い回すメッセージ
+		 * @param now 受信した時刻（ナノ秒）
+		 */
+		void onReceived(ByteBuffer buffer, Message message, long now) {
+			int length = buffer.remaining();
+			if (inbox.length < inboxLength + length) inbox = Arrays.copyOf(inbox, Math.max(inbox.length * 2, inboxLength + length));
+			buffer.get(inbox, inboxLength, length);
+			inboxLength += length;
+
+			int consumed = 0;
+			while (consumed < inboxLength) {
+				int used;
+				if (readingBinary) {
+					used = BinaryCodec.decode(inbox, consumed, inboxLength - consumed, message);
+					if (used == 0) break;
+					onMessage(message, now);
+				} else {
+					int newline = -1;
+					for (int i = consumed; i < inboxLength; i++) {
+						if (inbox[i] == '\n') {
+							newline = i;
+							break;
+						}
+					}
+					if (newline < 0) break;
+					String line = new String(inbox, consumed, newline - consumed, StandardCharsets.UTF_8).trim();
+					if (onLine(line, message, now)) readingBinary = true;// ここから先はバイナリ形式
+					used = newline + 1 - consumed;
+				}
+				consumed += used;
+			}
+			System.arraycopy(inbox, consumed, inbox, 0, inboxLength - consumed);
+			inboxLength -= consumed;
+		}
+	}
+
+	/**
+	 * 受け取ったLOCATEを送ったボットの記録と照らし合わせ、配信遅延をヒストグラムに記録する。
+	 */
+	private static void recordLatency(AtomicLongArray histogram, Bot[] members, Message message, long now) {
+		if (members == null || message.id < 0 || message.id >= members.length || members[message.id] == null) return;
+		Bot sender = members[message.id];
+		long key = Bot.key(message.x, message.y);
+		int count = sender.sentCount;
+		for (int i = 1; i <= Math.min(count, SENT_HISTORY); i++) {// 新しいものから探す
+			int index = (count - i) % SENT_HISTORY;
+			if (sender.sentKeys.get(index) != key) continue;
+			long bucket = Math.min((now - sender.sentTimes.get(index)) / LATENCY_BUCKET, LATENCY_BUCKETS - 1);
+			histogram.incrementAndGet((int) Math.max(0, bucket));
+			return;
+		}
+	}
+
+	/**
+	 * 試合中の最も古い部屋を観る観戦者。受け取ったメッセージを数え、LOCATEの配信遅延を記録する。
+	 * 観る部屋は、サーバーが返すSPECTATEの行の部屋番号で決める。
+	 */
+	private static class Spectator extends Receiver {
+
+		private final int serverPort;
+		private Bot[] room;// 観ている部屋のボット。受信のスレッドだけが使う
+
+		Spectator(SocketChannel channel, int serverPort) {
+			super(channel);
+			this.serverPort = serverPort;
+		}
+
+		@Override
+		boolean onLine(String line, Message message, long now) {
+			String[] tokens = line.split(" ");// SPECTATE 部屋番号 定員 遅延ミリ秒
+			if (tokens.length > 1 && tokens[0].equals("SPECTATE")) room = rooms.get(roomKey(serverPort, Integer.parseInt(tokens[1])));
+			return true;// SPECTATEの行の後はバイナリ形式
+		}
+
+		@Override
+		void onMessage(Message message, long now) {
+			spectatorMessages.incrementAndGet();
+			if (message.command == Command.LOCATE) recordLatency(spectatorLatencies, room, message, now);
+		}
+	}
+
+	/**
+	 * 1つの接続を持つボット。
+	 * フレームのスレッドが{@link #frame()}で送信し、受信のスレッドが{@link #onReceived}で受信する。
+	 */
+	private static class Bot extends Receiver {
+
+		final int slot;// 席番号。送るメッセージの戦車IDになる
+		final Bot[] room;// 同じ部屋のボット。受け取ったLOCATEを送ったボットをこの中から引く
+		final boolean binary;
+		final AutoPilot pilot;
+		double x;
+		double y;
+		double lastAimAngle = Double.NaN;
+
+		// 送信用。フレームのスレッドだけが使う
+		private final ByteBuffer outbox = ByteBuffer.allocate(1024);
+
+		// 送ったLOCATEの量子化した座標と時刻。受信のスレッドが照らし合わせる
+		private final AtomicLongArray sentKeys = new AtomicLongArray(SENT_HISTORY);
+		private final AtomicLongArray sentTimes = new AtomicLongArray(SENT_HISTORY);
+		private volatile int sentCount = 0;
+
+		Bot(SocketChannel channel, int slot, Bot[] room, boolean binary, AutoPilot pilot, double x, double y) {
+			super(channel);
+			this.slot = slot;
+			this.room = room;
+			this.binary = binary;
+			this.pilot = pilot;
+			this.x = x;
+			this.y = y;
+		}
+
+		/**
+		 * 1フレーム分の行動を決め、ゲームクライアントと同じメッセージを1回の書き込みで送る。
+		 * ステージの端に着いたら、壁にぶつかったときと同じく向きを変える。
+		 */
+		void frame() throws IOException {
+			pilot.update();
+			Point2D.Double direction = pilot.getDirection();
+			double nextX = x + direction.x * Tank.VELOCITY;
+			double nextY = y + direction.y * Tank.VELOCITY;
+			if (Math.abs(nextX) > stageWidth / 2 || Math.abs(nextY) > stageHeight / 2) {// ステージの中心が原点
+				pilot.onBlocked();
+			} else {
+				x = nextX;
+				y = nextY;
+			}
+
+			outbox.clear();
+			double angle = Math.atan2(direction.y, direction.x);
+			if (!(Math.abs(Math.IEEEremainder(angle - lastAimAngle, 2 * Math.PI)) < AIM_THRESHOLD)) {
+				lastAimAngle = angle;
+				put(new Message(Command.AIM, slot, x + direction.x * 100, y + direction.y * 100));
+			}
+			Message locate = new Message(Command.LOCATE, slot, x, y);
+			put(locate);
+			if (pilot.shouldShoot()) put(new Message(Command.BULLET, slot));
+			if (pilot.shouldPlaceBlock()) put(new Message(Command.BLOCK, slot));
+			outbox.flip();
+
+			int index = sentCount % SENT_HISTORY;
+			sentKeys.set(index, key(locate.x, locate.y));
+			sentTimes.set(index, System.nanoTime());
+			sentCount++;
+			writeFully(channel, outbox);
+		}
+
+		@Override
+		boolean onLine(String line, Message message, long now) {
+			if (binary && line.equals(BinaryCodec.UPGRADE)) return true;
+			receivedMessages.incrementAndGet();
+			message.parseText(line);
+			if (message.command == Command.LOCATE) recordLatency(latencies, room, message, now);
+			return false;
+		}
+
+		@Override
+		void onMessage(Message message, long now) {
+			receivedMessages.incrementAndGet();
+			if (message.command == Command.LOCATE) recordLatency(latencies, room, message, now);
+		}
+
+		private void put(Message message) {
+			outbox.put(binary ? BinaryCodec.encode(message) : (message.toText() + "\n").getBytes(StandardCharsets.UTF_8));
+			sentMessages.incrementAndGet();
+		}
+
+		/**
+		 * 座標をバイナリ形式と同じ細かさで量子化し、1つのlongにまとめる。
+		 */
+		static long key(double x, double y) {
+			long qx = Math.round(x * BinaryCodec.COORDINATE_SCALE);
+			long qy = Math.round(y * BinaryCodec.COORDINATE_SCALE);
+			return (qx << 32) ^ (qy & 0xFFFFFFFFL);
+		}
+	}
+
+}
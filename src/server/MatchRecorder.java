@@ -0,0 +1,173 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.Message;
+import protocol.ReplayLog;
+import stage.CommandApplier;
+import stage.GameStage;
+import stage.StageSnapshot;
+import stage.StandardStageGenerator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 部屋ごとの試合を{@link ReplayLog}の形式で記録するクラス。
+ * 中継するスレッドはメッセージと時刻をロックの無いキューに積むだけで、ファイルへの書き込みは記録用のスレッドがまとめて行う。
+ * そのため記録を有効にしても、中継の処理に加わるのはキューへの追加だけになる。
+ * エンコードしたフレームは{@link Packet}が送信用に作ったものを共有する。
+ * <p>
+ * 中継モードではサーバーにステージが無いので、記録用のスレッドが試合ごとにステージを持ち、
+ * {@link ReplayPlayer}と同じく記録した時刻に合わせて60FPSで進めながら、記録したフレームを反映していく。
+ * キーフレームにはこのステージ全体の状態を書くので、途中から再生してもブロックや基地のHP、弾丸、倒れた戦車が失われない。
+ */
+class MatchRecorder implements Runnable {
+
+	private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+	private static final long IDLE_WAIT = 1000000;// キューが空のときに待つ時間（ナノ秒）
+
+	private final Path directory;
+	private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+	private final Thread thread = new Thread(this, "match-recorder");
+
+	/**
+	 * 1つの試合の記録。部屋が持ち、中継したメッセージを渡す。
+	 */
+	class Recording {
+
+		// 記録用のスレッドだけが触る
+		private final ReplayLog.Writer writer;
+		private final GameStage stage;// 記録したフレームを反映したステージ。キーフレームの状態を作る
+		private final Message message = new Message();// フレームのデコードに使い回す
+		private long nextFrame = ReplayPlayer.FRAME_TIME;// 次にステージを進める時刻（試合開始からのナノ秒）
+		private int frames = 0;
+		private final long start;
+		private final Path path;
+		private boolean stopped = false;// 閉じたか、書き込みに失敗した
+
+		private Recording(Path path, int playerCount) throws IOException {
+			this.stage = new GameStage(new StandardStageGenerator(playerCount));
+			this.writer = new ReplayLog.Writer(path, playerCount, System.currentTimeMillis(), () -> StageSnapshot.capture(stage, frames).encode());
+			this.start = System.nanoTime();
+			this.path = path;
+		}
+
+		/**
+		 * フレームを記録し、ステージに反映する。
+		 * 再生と同じ結果になるよう、先に記録した時刻までステージを進め、反映するのはデコードしたフレーム（量子化した座標）にする。
+		 */
+		private void append(long time, int slot, byte[] frame) throws IOException {
+			while (time >= nextFrame) {
+				stage.update();
+				frames++;
+				nextFrame += ReplayPlayer.FRAME_TIME;
+			}
+			writer.append(time, slot, frame);
+			BinaryCodec.decode(frame, 0, frame.length, message);
+			CommandApplier.apply(stage, message);
+		}
+
+		/**
+		 * メッセージを記録する。時刻だけを取ってキューに積む。
+		 *
+		 * @param packet 中継したメッセージ
+		 * @param slot 送信者の席番号。サーバーから送ったメッセージは-1
+		 */
+		void record(Packet packet, int slot) {
+			queue.add(new Entry(this, packet, slot, System.nanoTime()));
+		}
+
+		/**
+		 * 記録を終える。それまでに積んだメッセージを書き終えてからファイルを閉じる。
+		 */
+		void close() {
+			queue.add(new Entry(this, null, -1, System.nanoTime()));
+		}
+	}
+
+	/**
+	 * キューに積む1件。packetがnullなら記録の終わり。
+	 */
+	private static final class Entry {
+		final Recording recording;
+		final Packet packet;
+		final int slot;
+		final long time;
+
+		Entry(Recording recording, Packet packet, int slot, long time) {
+			this.recording = recording;
+			this.packet = packet;
+			this.slot = slot;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * MatchRecorderのコンストラクタ。
+	 *
+	 * @param directory 記録ファイルを置くディレクトリ。無ければ作る
+	 * @throws IOException ディレクトリを作れない場合
+	 */
+	MatchRecorder(Path directory) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * 記録用のスレッドを開始する。
+	 */
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * 部屋の試合の記録を始める。
+	 * ファイル名は「room-部屋番号-開始日時.replay」。
+	 *
+	 * @param room 試合を始める部屋
+	 * @return 記録。ファイルを作れなかった場合はnull
+	 */
+	Recording open(Room room) {
+		Path path = directory.resolve("room-" + room.getId() + "-" + LocalDateTime.now().format(FILE_TIME) + ReplayLog.SUFFIX);
+		try {
+			Recording recording = new Recording(path, room.getCapacity());
+			System.out.println("Recording room " + room.getId() + " to " + path);
+			return recording;
+		} catch (IOException e) {
+			System.err.println("試合の記録を開始できませんでした: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * キューに積まれたメッセージをファイルに書き込み続ける。
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			Entry entry = queue.poll();
+			if (entry == null) {
+				LockSupport.parkNanos(IDLE_WAIT);
+				continue;
+			}
+			Recording recording = entry.recording;
+			if (recording.stopped) continue;
+			try {
+				if (entry.packet == null) {
+					recording.stopped = true;
+					recording.writer.close();
+					continue;
+				}
+				recording.append(entry.time - recording.start, entry.slot, entry.packet.encode(true));
+			} catch (IOException e) {
+				recording.stopped = true;// 以降のメッセージは捨てる
+				System.err.println("試合の記録に失敗しました: " + recording.path + ": " + e);
+			}
+		}
+	}
+}
@@ -1,10 +1,25 @@
 package server;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import client.GameEngine;
+import protocol.BinaryCodec;
+import protocol.ClockSync;
+import protocol.Command;
+import protocol.FrameInput;
+import protocol.Message;
+import protocol.Snapshot;
+import protocol.UdpChannel;
+import protocol.WireReader;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * 各クライアント接続を処理するスレッドクラス。
@@ -13,9 +28,8 @@ import java.net.Socket;
 class ClientProcThread extends Thread {
 	private int number;//自分の番号
 	private Socket incoming;
-	private InputStreamReader myIsr;
-	private BufferedReader myIn;
-	private PrintWriter myOut;
+	private WireReader myIn;
+	private Connection myConnection;
 	private String myName;//接続者の名前
 	private String myColor;
 
@@ -24,46 +38,59 @@ class ClientProcThread extends Thread {
 	 *
 	 * @param n クライアント番号
 	 * @param i クライアントとの接続ソケット
-	 * @param isr 入力ストリームリーダー
-	 * @param in バッファ付きリーダー
-	 * @param out 出力ライター
+	 * @param in 行とフレームを読むリーダー
+	 * @param connection 送信用の接続
 	 */
-	public ClientProcThread(int n, Socket i, InputStreamReader isr, BufferedReader in, PrintWriter out) {
+	public ClientProcThread(int n, Socket i, WireReader in, Connection connection) {
 		number = n;
 		incoming = i;
-		myIsr = isr;
 		myIn = in;
-		myOut = out;
+		myConnection = connection;
 	}
 
 	/**
 	 * クライアントとの通信を処理するメインループ。
 	 * クライアント番号を送信し、名前を受信し、色を割り当てる。
 	 * その後、クライアントからのメッセージを継続的に受信し、全クライアントにブロードキャストする。
+	 * クライアントが<code>PROTOCOL BINARY</code>を送ってきた場合は、以降をバイナリ形式のフレームとして読む。
 	 */
 	public void run() {
 		try {
 
 			myName = myIn.readLine();//初めて接続したときの一行目は名前
 
+			boolean binary = false;
 			while (true) {//無限ループで，ソケットへの入力を監視する
+				if (binary) {
+					Message message = new Message();// 送信キューに積むので使い回さない
+					if (!myIn.readFrame(message)) break;
+					MyServer.Receive(Packet.of(message), number);
+					continue;
+				}
+
 				String str = myIn.readLine();
 
 //				System.out.println("Received from client No."+number+"("+myName+"), Messages: "+str);
 				if (str != null) {//このソケット（バッファ）に入力があるかをチェック
+					if (str.equals(BinaryCodec.UPGRADE)) {
+						binary = true;
+						myConnection.upgradeToBinary();
+						continue;
+					}
 					if (str.toUpperCase().equals("BYE")) {
-						myOut.println("Good bye!");
+						myConnection.send(Packet.of("Good bye!"));
 						break;
 					}
-					MyServer.SendAll(str, myName);//サーバに来たメッセージは接続しているクライアント全員に配る
+					MyServer.Receive(Packet.of(str), number);//サーバに来たメッセージは部屋のシミュレーションか、送信者以外の同じ部屋のクライアント全員に渡す
 				} else {
 					break;
 				}
 			}
+			MyServer.Unregister(number, myConnection);//抜けたので部屋から外し、番号を空ける
 		} catch (Exception e) {
 			//ここにプログラムが到達するときは，接続が切れたとき
 //			System.out.println("Disconnect from client No."+number+"("+myName+")");
-			MyServer.SetFlag(number, false);//接続が切れたのでフラグを下げる
+			MyServer.Unregister(number, myConnection);//接続が切れたので部屋から外し、番号を空ける
 		}
 	}
 }
@@ -72,90 +99,551 @@ class ClientProcThread extends Thread {
  * マルチクライアント対応のTCPサーバークラス。
  * 複数のクライアントからの接続を受け付け、メッセージをブロードキャストする。
  * ポート10000でクライアント接続を待ち受け、各接続に対して個別のスレッドを作成する。
+ * 接続したクライアントは{@link RoomManager}が部屋に振り分け、メッセージは同じ部屋のクライアントにだけ配る。
+ * 接続中のクライアントは{@link SessionRegistry}が管理し、切断したクライアントの番号は次の接続に再利用する。
+ * 一定時間何も届かないクライアントにはPINGを送り、それでも応答が無ければ切断する。
+ * <code>--coordinator</code>を与えると、{@link Coordinator}に負荷を報告し、複数のサーバーの1つとしてクライアントを振り分けてもらう。
+ * 起動引数に<code>--nio</code>を与えると、Selectorベースの少数のI/Oスレッドで全接続を処理する{@link NioServer}で起動する。
+ * クライアント番号の通知にはバイナリ形式に対応していることを添え、クライアントが望めば接続ごとにバイナリ形式に切り替える。
+ * <code>--authoritative</code>を与えると、部屋ごとにサーバーがゲームを進め（{@link ServerSimulation}）、クライアントの入力を中継する代わりにスナップショットを配る。
+ * <code>--lockstep</code>を与えると、クライアントはフレームごとの入力（INPUT）だけを送り合ってそれぞれがゲームを進める。サーバーは入力を中継し、試合中に抜けたプレイヤーの退出を知らせる。
  */
 class MyServer {
 
 	private static final int PLAYER_COUNT = 4;//必要なプレイヤー数
+	private static int roomSize = PLAYER_COUNT;//1部屋の定員
+	private static int port = 10000;//待ち受けポート
 	private static int maxConnection=100;//最大接続数
-	private static Socket[] incoming;//受付用のソケット
-	private static boolean[] flag;//接続中かどうかのフラグ
-	private static InputStreamReader[] isr;//入力ストリーム用の配列
-	private static BufferedReader[] in;//バッファリングをによりテキスト読み込み用の配列
-	private static PrintWriter[] out;//出力ストリーム用の配列
-	private static ClientProcThread[] myClientProcThread;//スレッド用の配列
-	public static int member;//接続しているメンバーの数
+	private static int queueCapacity = 256;//クライアントごとの送信キューの上限
+	private static OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST_STATE;//送信キューが溢れたときの振る舞い
+	private static boolean textOnly = false;//バイナリ形式を提案しない
+	private static boolean authoritative = false;//サーバーでゲームを進める
+	private static int snapshotInterval = 3;//何ティックごとにスナップショットを送るか
+	private static double interestRadius = 0;//カメラの範囲を送ってこないクライアントの関心領域の半径
+	private static int rewindWindow = 250;//当たり判定で巻き戻す最大の時間（ミリ秒）
+	private static int interpolationDelay = 100;//クライアントが他の戦車を遅らせて描く時間（ミリ秒）
+	private static boolean lockstep = false;//クライアントがロックステップでゲームを進める
+	private static int lockstepDelay = 6;//ロックステップの入力遅延（フレーム数）
+	private static UdpServer udpServer;//位置・照準とイベントをUDPでやりとりする場合の受け口。TCPだけの場合はnull
+	private static int heartbeatInterval = 2000;//これだけ受信が無いクライアントにPINGを送る（ミリ秒）
+	private static int sessionTimeout = 10000;//これだけ受信が無いクライアントは切断する（ミリ秒）。0なら切断しない
+	private static SessionRegistry sessions;//接続中のクライアント
+	private static RoomManager roomManager;
+	private static MatchRecorder recorder;//試合を記録する場合のみ
+	private static SpectatorHub spectatorHub;//観戦者を受け付ける場合のみ
+	private static long lastSnapshotBytes;//前回の統計出力までにスナップショットとして送ったバイト数
+	private static long lastStatsTime;//前回の統計出力の時刻
 
 	/**
 	 * 接続中の全クライアントにメッセージを送信する。
-	 * 接続フラグが立っているクライアントのみに送信する。
+	 * 席が決まっているクライアントのみに送信する。
 	 *
 	 * @param str 送信するメッセージ
 	 * @param myName メッセージ送信者の名前
 	 */
 	public static void SendAll(String str, String myName){
+		SendAll(Packet.of(str));
+	}
+
+	/**
+	 * 接続中の全クライアントにメッセージを送信する。
+	 * バイト列はPacketの中で形式ごとに1度だけ作られ、全クライアントで共有される。
+	 *
+	 * @param packet 送信するメッセージ
+	 */
+	public static void SendAll(Packet packet){
 		//送られた来たメッセージを接続している全員に配る
-		for(int i=0;i<=member;i++){
-			if(flag[i] == true){
-				out[i].println(str);
-				out[i].flush();//バッファをはき出す＝＞バッファにある全てのデータをすぐに送信する
-//				System.out.println("Send messages to client No."+i);
+		for(SessionRegistry.Session session : sessions.live()){
+			if(session.room != null){//最初の行（席番号）より先には送らない
+				session.connection.send(packet);
+//				System.out.println("Send messages to client No."+session.number);
+			}
+		}
+	}
+
+	/**
+	 * 送信者と同じ部屋にいる、送信者以外の全クライアントにメッセージを送信する。
+	 * クライアントは自分の操作を既にローカルで反映しているため、送信者本人には送り返さない。
+	 * 他の部屋の試合には届かないので、送信数は部屋の人数だけで決まる。
+	 *
+	 * @param packet 送信するメッセージ
+	 * @param sender 送信者のクライアント番号
+	 */
+	public static void SendOthers(Packet packet, int sender){
+		SessionRegistry.Session session = sessions.get(sender);
+		Room room = session == null ? null : session.room;
+		if(room != null){
+			room.sendOthers(packet, room.getSlot(session.connection));
+		}
+	}
+
+	/**
+	 * クライアントから受信したメッセージを処理する。
+	 * 部屋でサーバーがゲームを進めている場合は入力としてシミュレーションに渡し、そうでなければ同じ部屋の他のクライアントに中継する。
+	 * カメラの範囲（VIEW）は中継せず、部屋の関心領域の管理に使う。
+	 * 往復時間の計測（PING）には、同じ連番のPONGを送信者だけにすぐ返す。
+	 * 時計合わせ（TIME）には、受信時刻と送信時刻を添えて送信者だけにすぐ返す。サーバーの時計は全員に共通のティック番号の基準になる。
+	 * どのメッセージも受信した時刻を記録し、生存確認に使う。サーバーが送ったPINGへの応答（PONG）はそのためだけに届く。
+	 * ロックステップの入力（INPUT）は中身を見ずに中継し、退出を知らせるためにフレーム番号だけを覚えておく。
+	 *
+	 * @param packet 受信したメッセージ
+	 * @param sender 送信者のクライアント番号
+	 */
+	public static void Receive(Packet packet, int sender){
+		SessionRegistry.Session session = sessions.get(sender);
+		if(session == null) return;
+		session.touch();
+		Room room = session.room;
+		if(room == null) return;
+		if(packet.getMessage().command == Command.PING){
+			SendTo(sender, Packet.of(new Message(Command.PONG, packet.getMessage().id)));
+			return;
+		}
+		if(packet.getMessage().command == Command.TIME){
+			long received = ClockSync.now();
+			Message reply = ClockSync.reply(packet.getMessage(), received, ClockSync.now());
+			if(reply != null) SendTo(sender, Packet.of(reply));
+			return;
+		}
+		if(packet.getMessage().command == Command.PONG) return;
+		if(packet.getMessage().command == Command.VIEW){
+			room.setView(room.getSlot(session.connection), packet.getMessage());
+			return;
+		}
+		if(packet.getMessage().command == Command.INPUT){
+			synchronized(session){//中継した入力のフレーム番号と、退出の知らせが前後しないようにする
+				int slot = room.getSlot(session.connection);
+				if(session.left || slot < 0) return;//既に部屋から外した
+				room.sendOthers(packet, slot);
+				session.lastInputFrame = packet.getMessage().id;
 			}
+			return;
+		}
+		ServerSimulation simulation = room.getSimulation();
+		if(simulation != null){
+			int slot = room.getSlot(session.connection);
+			room.publish(packet, slot);//中継しないので、サーバーに届いた入力を記録・配信する
+			simulation.submit(slot, packet.getMessage());
+		}else{
+			SendOthers(packet, sender);
+		}
+	}
+
+	/**
+	 * 指定したクライアントだけにメッセージを送信する。
+	 *
+	 * @param n 送信先のクライアント番号
+	 * @param packet 送信するメッセージ
+	 */
+	public static void SendTo(int n, Packet packet){
+		SessionRegistry.Session session = sessions.get(n);
+		if(session != null){
+			session.connection.send(packet);
 		}
 	}
 
 	/**
-	 * 指定されたクライアント番号の接続フラグを設定する。
-	 * クライアントの接続状態を管理するために使用される。
+	 * 接続中のクライアント数を取得する。
+	 *
+	 * @return 接続中のクライアント数
+	 */
+	static int GetClientCount(){
+		return sessions.live().length;
+	}
+
+	/**
+	 * 設定された容量と溢れたときの振る舞いで、新しい接続用の送信キューを作成する。
+	 *
+	 * @return 送信キュー
+	 */
+	static OutboundQueue CreateOutboundQueue(){
+		return new OutboundQueue(queueCapacity, overflowPolicy);
+	}
+
+	/**
+	 * 接続中のクライアントの送信キューの状態を標準出力に出力する。
+	 * 合計の滞留数、最も溜まっているキューの滞留数、これまでの最大滞留数、捨てたメッセージ数を出す。
+	 * 最大滞留数と捨てたメッセージ数には、切断したクライアントの分も含める。
+	 * これまでに受け付けた数、無応答で切断した数、サーバーのスレッド数も出す（長時間の運用で増え続けないかの確認用）。
+	 * サーバーでゲームを進めている場合は、前回からのスナップショットの帯域をクライアント1人あたりで出す。
+	 */
+	static void PrintQueueStats(){
+		int live = 0, totalDepth = 0, deepest = 0, maxDepth = sessions.getReleasedMaxDepth(), simulated = 0;
+		long dropped = sessions.getReleasedDropped();
+		for(SessionRegistry.Session session : sessions.live()){
+			OutboundQueue queue = session.connection.getQueue();
+			dropped += queue.getDropped();
+			maxDepth = Math.max(maxDepth, queue.getMaxDepth());
+			live++;
+			if (session.room != null && session.room.getSimulation() != null) simulated++;
+			int depth = queue.getDepth();
+			totalDepth += depth;
+			deepest = Math.max(deepest, depth);
+		}
+		System.out.println("queue: clients=" + live + " depth=" + totalDepth + " deepest=" + deepest + " maxDepth=" + maxDepth + " dropped=" + dropped
+				+ " rooms=" + roomManager.getRoomCount() + " playing=" + roomManager.getPlayingCount() + " closed=" + roomManager.getClosed()
+				+ " accepted=" + sessions.getRegistered() + " evicted=" + sessions.getEvicted() + " threads=" + Thread.activeCount()
+				+ (authoritative ? " snapshot=" + SnapshotBandwidth(simulated) + "B/s/client" : ""));
+		if (spectatorHub != null) System.out.println("spectator: " + spectatorHub.getStats());
+	}
+
+	/**
+	 * 前回呼ばれたときから今までの、クライアント1人あたりのスナップショットの帯域を求める。
+	 *
+	 * @param clients スナップショットを受け取っているクライアント数
+	 * @return 1秒あたりのバイト数
+	 */
+	private static long SnapshotBandwidth(int clients){
+		long now = System.nanoTime();
+		long bytes = ServerSimulation.getSnapshotBytes();
+		double seconds = (now - lastStatsTime) / 1e9;
+		long bandwidth = clients == 0 || lastStatsTime == 0 ? 0 : Math.round((bytes - lastSnapshotBytes) / seconds / clients);
+		lastSnapshotBytes = bytes;
+		lastStatsTime = now;
+		return bandwidth;
+	}
+
+	/**
+	 * 切断したクライアントを外し、クライアント番号を次の接続のために空ける。
+	 * クライアントは部屋から外し、誰もいなくなった部屋は破棄される。接続は閉じる。
+	 * 読み込みの終了、送信キューの溢れ、無応答のどれで切断を検知しても呼ばれるので、2回目以降の呼び出しは何もしない。
+	 * 番号は再利用されるため、番号と接続の組が一致するときだけ外す。
+	 * ロックステップの試合中に抜けた場合は、最後に中継した入力の次のフレームから入力が無いことを部屋の残りの全員に知らせる。
 	 *
 	 * @param n クライアント番号
-	 * @param value 設定するフラグの値（true: 接続中, false: 切断）
+	 * @param connection 切断した接続
+	 */
+	public static void Unregister(int n, Connection connection){
+		SessionRegistry.Session session = sessions.remove(n, connection);
+		if (session == null) return;//既に外している
+		Room room = session.room;
+		if (room != null) {
+			int slot = room.getSlot(connection);
+			boolean playing = room.getState() == Room.State.PLAYING;
+			roomManager.leave(room, connection);
+			if (lockstep && playing && slot >= 0) {
+				int last;
+				synchronized (session) {
+					session.left = true;
+					last = session.lastInputFrame;
+				}
+				room.sendAll(Packet.of(FrameInput.left(last + 1, slot).toMessage()));
+			}
+		}
+		if (udpServer != null) {
+			udpServer.close(connection);
+		}
+		connection.close();
+	}
+
+	/**
+	 * 受信が途絶えているクライアントを調べる。
+	 * {@link #heartbeatInterval}以上受信が無いクライアントにはPINGを送り、応答（PONG）を促す。
+	 * {@link #sessionTimeout}以上受信が無いクライアントは、ソケットが切断を検知していなくても切断する。
 	 */
-	public static void SetFlag(int n, boolean value){
-		flag[n] = value;
+	static void CheckHeartbeats(){
+		long now = System.nanoTime();
+		for(SessionRegistry.Session session : sessions.live()){
+			long idle = (now - session.getLastHeard()) / 1000000;
+			if (idle >= sessionTimeout) {
+				System.out.println("Evict client No." + session.number + " (no message for " + idle + " ms)");
+				sessions.countEviction();
+				Unregister(session.number, session.connection);
+			} else if (idle >= heartbeatInterval && session.room != null) {
+				session.connection.send(Packet.of(new Message(Command.PING, session.number)));
+			}
+		}
+	}
+
+	/**
+	 * 新しく接続したクライアントにクライアント番号を割り当て、待機中の部屋に入れる。
+	 * クライアントには部屋の中の席番号を通知し、部屋の定員が揃ったら部屋の全員にPLAYER_COUNTを通知する。
+	 * 席番号はそのままクライアントの戦車IDになる。
+	 * 接続方式（スレッド/NIO）によらず、受付処理はすべてこのメソッドを通る。
+	 *
+	 * @param connection 新しい接続
+	 * クライアント番号は空いているうち最も小さいものを使うので、切断したクライアントの番号は再利用される。
+	 *
+	 * @return 割り当てたクライアント番号。同時に接続している数が最大接続数に達している場合は-1
+	 */
+	static synchronized int Register(Connection connection){
+		SessionRegistry.Session session = sessions.add(connection);
+		if (session == null) {
+			System.err.println("最大接続数に達したため接続を拒否しました");
+			return -1;
+		}
+		int n = session.number;
+		Room room = roomManager.join(connection, (joined, slot) -> Greeting(joined, slot, connection, n));//同じ部屋の中継より先に届くよう、席が決まったらすぐに送る
+		session.room = room;
+		int slot = room.getSlot(connection);
+		System.out.println("Accept client No." + n + " (room " + room.getId() + ", slot " + slot + ")");
+		connection.start(n);
+
+		//部屋の定員が揃ったら通知
+		if (room.getMemberCount() == room.getCapacity()) {
+//			System.out.println("Room " + room.getId() + ": all " + roomSize + " players connected!");
+			room.sendAll(Packet.of("PLAYER_COUNT " + roomSize));
+			if (recorder != null) room.setRecording(recorder.open(room));
+			if (spectatorHub != null) room.setFeed(spectatorHub.open(room));
+			if (authoritative) {
+				ServerSimulation simulation = new ServerSimulation(room, snapshotInterval, rewindWindow * GameEngine.FPS / 1000, interpolationDelay * GameEngine.FPS / 1000);
+				room.setSimulation(simulation);
+				simulation.start();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * {@link #ReportLoad}を行うスレッドを開始する。
+	 *
+	 * @param coordinatorPort コーディネーターの制御用のポート。0以下なら何もしない
+	 */
+	private static void StartLoadReport(int coordinatorPort){
+		if (coordinatorPort <= 0) return;
+		Thread reporter = new Thread(() -> ReportLoad(coordinatorPort), "coordinator-report");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/**
+	 * {@link Coordinator}に接続し、接続数と部屋の状態を{@link Coordinator#REPORT_INTERVAL}ごとに報告し続ける。
+	 * コーディネーターにはループバックで接続する。接続できない場合や切断された場合は、少し待って接続し直す。
+	 *
+	 * @param coordinatorPort コーディネーターの制御用のポート
+	 */
+	static void ReportLoad(int coordinatorPort){
+		while (true) {
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), coordinatorPort)) {
+				PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+				out.println(Coordinator.SERVER + " " + port + " " + maxConnection + " " + roomSize);
+				while (!out.checkError()) {
+					out.println(Coordinator.LOAD + " " + GetClientCount() + " " + roomManager.getRoomCount() + " " + roomManager.getPlayingCount()
+							+ " " + roomManager.getWaitingCount() + " " + sessions.getRegistered());
+					Thread.sleep(Coordinator.REPORT_INTERVAL);
+				}
+			} catch (IOException e) {
+				// コーディネーターがまだ起動していないか、終了した
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 接続したクライアントに最初に送る行を作る。
+	 * 席番号と部屋番号、サーバーが対応している機能を知らせる。
+	 *
+	 * @param room 入った部屋
+	 * @param slot 部屋の中の席番号
+	 * @param connection クライアントとの接続
+	 * @param n クライアント番号
+	 * @return 最初に送る行
+	 */
+	private static Packet Greeting(Room room, int slot, Connection connection, int n){
+		String greeting = slot + " is client number";
+		greeting += " " + Room.CAPABILITY + ":" + room.getId();//負荷試験ツールが同じ部屋のボットを知るため
+		if (!textOnly) greeting += " " + BinaryCodec.CAPABILITY;//バイナリ形式に対応していることを知らせる
+		if (authoritative) greeting += " " + Snapshot.CAPABILITY;//サーバーがゲームを進めることを知らせる
+		else if (lockstep) greeting += " " + FrameInput.CAPABILITY + ":" + lockstepDelay;//ロックステップで進めることと入力遅延を知らせる
+		if (udpServer != null) greeting += " " + UdpChannel.CAPABILITY + ":" + udpServer.open(connection, n);//UDPのセッション番号を知らせる
+		return Packet.of(greeting);//初回だけ呼ばれる
 	}
 
 	/**
 	 * サーバーのメインエントリーポイント。
 	 * ポート10000でサーバーソケットを作成し、クライアント接続を待ち受ける。
 	 * 各クライアント接続に対して個別のスレッドを作成して処理を行う。
+	 * <ul>
+	 *     <li><code>--port N</code> 待ち受けポート（既定値10000）</li>
+	 *     <li><code>--max-connections N</code> 同時に接続できる数（既定値100）。切断したクライアントの番号は再利用する</li>
+	 *     <li><code>--nio</code> NIOのイベントループで起動する</li>
+	 *     <li><code>--io-threads N</code> NIOモードのI/Oスレッド数</li>
+	 *     <li><code>--queue-capacity N</code> クライアントごとの送信キューの上限（既定値256）</li>
+	 *     <li><code>--overflow drop-state|disconnect</code> 送信キューが溢れたときの振る舞い</li>
+	 *     <li><code>--stats-interval 秒</code> 送信キューの状態を定期的に出力する</li>
+	 *     <li><code>--text-only</code> バイナリ形式を提案せず、テキスト形式だけで通信する</li>
+	 *     <li><code>--room-size N</code> 1部屋の定員（既定値4）</li>
+	 *     <li><code>--authoritative</code> サーバーでゲームを進め、クライアントにはスナップショットを配る</li>
+	 *     <li><code>--snapshot-interval N</code> 何ティックごとにスナップショットを送るか（既定値3）</li>
+	 *     <li><code>--interest-radius N</code> カメラの範囲を送ってこないクライアントに、自分の戦車からこの距離までの位置更新だけを送る（既定値0: 全て送る）</li>
+	 *     <li><code>--udp</code> 同じ番号のUDPポートも開き、対応するクライアントとは位置・照準とイベントをUDPでやりとりする</li>
+	 *     <li><code>--udp-loss P</code> UDPで送るデータグラムを割合Pでわざと捨てる（損失のある回線の再現用）</li>
+	 *     <li><code>--rewind-window ミリ秒</code> 弾丸とミサイルの当たり判定で、撃った人が見ていた時点まで巻き戻す最大の時間（既定値250、0で巻き戻さない）</li>
+	 *     <li><code>--interpolation-delay ミリ秒</code> クライアントが他の戦車を遅らせて描く時間。巻き戻す時点の計算に使う（既定値100）</li>
+	 *     <li><code>--record DIR</code> 部屋ごとの試合をディレクトリDIRに記録する（{@link ReplayPlayer}で再生できる）</li>
+	 *     <li><code>--spectator-port N</code> 観戦者をポートNで受け付ける（{@link SpectatorHub}）</li>
+	 *     <li><code>--spectator-delay ミリ秒</code> 中継してから観戦者に配るまでの遅延（既定値3000）</li>
+	 *     <li><code>--heartbeat-interval ミリ秒</code> これだけ受信が無いクライアントにPINGを送る（既定値2000）</li>
+	 *     <li><code>--session-timeout ミリ秒</code> これだけ受信が無いクライアントを切断する（既定値10000、0で切断しない）</li>
+	 *     <li><code>--coordinator N</code> 制御用のポートNの{@link Coordinator}に負荷を報告する</li>
+	 *     <li><code>--lockstep</code> クライアントにロックステップでゲームを進めさせ、サーバーは入力を中継する（<code>--authoritative</code>と同時には使えない）</li>
+	 *     <li><code>--lockstep-delay N</code> ロックステップの入力遅延のフレーム数（既定値6）</li>
+	 * </ul>
 	 *
-	 * @param args コマンドライン引数（未使用）
+	 * @param args コマンドライン引数
 	 */
 	public static void main(String[] args) {
-		//必要な配列を確保する
-		incoming = new Socket[maxConnection];
-		flag = new boolean[maxConnection];
-		isr = new InputStreamReader[maxConnection];
-		in = new BufferedReader[maxConnection];
-		out = new PrintWriter[maxConnection];
-		myClientProcThread = new ClientProcThread[maxConnection];
+		boolean useNio = false;
+		int ioThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+		int statsInterval = 0;
+		boolean useUdp = false;
+		double udpLoss = 0;
+		String recordDirectory = null;
+		int spectatorPort = 0;
+		long spectatorDelay = 3000;
+		int coordinatorPort = 0;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--port":
+					port = Integer.parseInt(args[++i]);
+					break;
+				case "--max-connections":
+					maxConnection = Integer.parseInt(args[++i]);
+					break;
+				case "--nio":
+					useNio = true;
+					break;
+				case "--io-threads":
+					ioThreads = Integer.parseInt(args[++i]);
+					break;
+				case "--queue-capacity":
+					queueCapacity = Integer.parseInt(args[++i]);
+					break;
+				case "--overflow":
+					overflowPolicy = args[++i].equals("disconnect") ? OutboundQueue.OverflowPolicy.DISCONNECT : OutboundQueue.OverflowPolicy.DROP_OLDEST_STATE;
+					break;
+				case "--stats-interval":
+					statsInterval = Integer.parseInt(args[++i]);
+					break;
+				case "--text-only":
+					textOnly = true;
+					break;
+				case "--room-size":
+					roomSize = Integer.parseInt(args[++i]);
+					break;
+				case "--authoritative":
+					authoritative = true;
+					break;
+				case "--snapshot-interval":
+					snapshotInterval = Integer.parseInt(args[++i]);
+					break;
+				case "--interest-radius":
+					interestRadius = Double.parseDouble(args[++i]);
+					break;
+				case "--udp":
+					useUdp = true;
+					break;
+				case "--udp-loss":
+					udpLoss = Double.parseDouble(args[++i]);
+					break;
+				case "--rewind-window":
+					rewindWindow = Integer.parseInt(args[++i]);
+					break;
+				case "--interpolation-delay":
+					interpolationDelay = Integer.parseInt(args[++i]);
+					break;
+				case "--record":
+					recordDirectory = args[++i];
+					break;
+				case "--spectator-port":
+					spectatorPort = Integer.parseInt(args[++i]);
+					break;
+				case "--spectator-delay":
+					spectatorDelay = Long.parseLong(args[++i]);
+					break;
+				case "--heartbeat-interval":
+					heartbeatInterval = Integer.parseInt(args[++i]);
+					break;
+				case "--session-timeout":
+					sessionTimeout = Integer.parseInt(args[++i]);
+					break;
+				case "--coordinator":
+					coordinatorPort = Integer.parseInt(args[++i]);
+					break;
+				case "--lockstep":
+					lockstep = true;
+					break;
+				case "--lockstep-delay":
+					lockstepDelay = Integer.parseInt(args[++i]);
+					break;
+				default:
+					System.err.println("不明な引数: " + args[i]);
+			}
+		}
+
+		if (lockstep && authoritative) {
+			//ロックステップではクライアントがゲームを進めるので、サーバーのシミュレーションとは両立しない
+			System.err.println("使い方: --lockstep と --authoritative は同時に指定できません");
+			System.exit(2);
+		}
+
+		if (authoritative) System.setProperty("java.awt.headless", "true");//サーバーでは画面を持たずにステージを動かす
+
+		sessions = new SessionRegistry(maxConnection);
+		roomManager = new RoomManager(roomSize, interestRadius);
+
+		if (sessionTimeout > 0) {
+			long period = Math.max(100, Math.min(heartbeatInterval, sessionTimeout) / 2);//待ち時間の半分ごとに調べる
+			Timer heartbeatTimer = new Timer("heartbeat", true);
+			heartbeatTimer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					CheckHeartbeats();
+				}
+			}, period, period);
+		}
 
-		int n = 0;
-		member = 0;//誰も接続していないのでメンバー数は０
+		if (statsInterval > 0) {
+			Timer statsTimer = new Timer("queue-stats", true);
+			statsTimer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					PrintQueueStats();
+				}
+			}, statsInterval * 1000L, statsInterval * 1000L);
+		}
 
 		try {
 //			System.out.println("The server has launched!");
-			ServerSocket server = new ServerSocket(10000);//10000番ポートを利用する
+			if (recordDirectory != null) {
+				recorder = new MatchRecorder(Paths.get(recordDirectory));
+				recorder.start();
+			}
+			if (spectatorPort > 0) {
+				spectatorHub = new SpectatorHub(spectatorPort, spectatorDelay);
+				spectatorHub.start();
+			}
+			if (useUdp) {
+				udpServer = new UdpServer(port, udpLoss);
+				udpServer.start();
+			}
+			if (useNio) {
+				StartLoadReport(coordinatorPort);
+				new NioServer(port, ioThreads).run();
+				return;
+			}
+			ServerSocket server = new ServerSocket(port);//10000番ポートを利用する
+			StartLoadReport(coordinatorPort);//待ち受けを始めてから振り分けてもらう
 			while (true) {
-				incoming[n] = server.accept();
-				flag[n] = true;
-				System.out.println("Accept client No." + n);
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);//送信キューが空になるまでまとめて書くので、Nagleで遅らせる必要はない
 				//必要な入出力ストリームを作成する
-				isr[n] = new InputStreamReader(incoming[n].getInputStream());
-				in[n] = new BufferedReader(isr[n]);
-				out[n] = new PrintWriter(incoming[n].getOutputStream(), true);
-				out[n].println(n + " is client number");//初回だけ呼ばれる
-
-				myClientProcThread[n] = new ClientProcThread(n, incoming[n], isr[n], in[n], out[n]);//必要なパラメータを渡しスレッドを作成
-				myClientProcThread[n] .start();//スレッドを開始する
-				member = n;//メンバーの数を更新する
-				n++;
-
-				//PLAYER_COUNT分の接続が集まったら通知
-				if (n % PLAYER_COUNT == 0) {
-//					System.out.println("All " + PLAYER_COUNT + " players connected!");
-					SendAll("PLAYER_COUNT " + PLAYER_COUNT, "SERVER");
+				WireReader socketIn = new WireReader(socket.getInputStream());
+				StreamConnection connection = new StreamConnection(socket, CreateOutboundQueue());
+
+				int n = Register(connection);
+				if (n < 0) {
+					socket.close();
+					continue;
 				}
+				ClientProcThread thread = new ClientProcThread(n, socket, socketIn, connection);//必要なパラメータを渡しスレッドを作成
+				thread.start();//スレッドを開始する
 			}
 		} catch (Exception e) {
 			System.err.println("ソケット作成時にエラーが発生しました: " + e);
@@ -0,0 +1,273 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.Message;
+import protocol.UdpChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NIO方式の接続。
+ * 読み込みは担当の{@link NioServer.IoWorker}上で行い、受信したバイト列を行（バイナリ形式に切り替えた後はフレーム）に区切って{@link ClientProcThread}と同じように処理する。
+ * 書き込みは送信キュー（{@link OutboundQueue}）に積み、I/Oスレッドがソケットに書き込めるときにまとめて送る。
+ */
+class NioConnection implements Connection {
+
+	// クライアント側のPrintWriter/BufferedReaderと同じ文字コード
+	private static final Charset CHARSET = Charset.defaultCharset();
+	private static final int READ_BUFFER_SIZE = 4096;
+
+	private final SocketChannel channel;
+	private final NioServer.IoWorker worker;
+	private SelectionKey key;
+	private int number;//自分の番号
+	private String myName;//接続者の名前
+
+	// 受信用
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private byte[] inbox = new byte[READ_BUFFER_SIZE];// 区切りがまだ来ていない受信済みのバイト列
+	private int inboxLength = 0;
+	private boolean readingBinary = false;
+
+	// 送信用
+	private final OutboundQueue queue;
+	private ByteBuffer writing;// 書き込み途中のメッセージ
+	private boolean writingBinary = false;
+	private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+	private volatile boolean closeAfterFlush = false;
+	private volatile boolean closed = false;
+	private volatile UdpChannel datagram;// UDPで送るメッセージの送り先。クライアントがUDPを使わない場合はnull
+
+	/**
+	 * NioConnectionのコンストラクタ。
+	 *
+	 * @param channel ノンブロッキングに設定済みのソケットチャンネル
+	 * @param worker この接続を担当するI/Oスレッド
+	 * @param queue この接続の送信キュー
+	 */
+	NioConnection(SocketChannel channel, NioServer.IoWorker worker, OutboundQueue queue) {
+		this.channel = channel;
+		this.worker = worker;
+		this.queue = queue;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 担当のI/Oスレッドで読み込みを開始する。
+	 */
+	@Override
+	public void start(int number) {
+		this.number = number;
+		worker.execute(() -> {
+			try {
+				int ops = SelectionKey.OP_READ;
+				if (queue.getDepth() > 0) ops |= SelectionKey.OP_WRITE;
+				key = worker.register(channel, ops, this);
+			} catch (IOException e) {
+				disconnect();
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * メッセージを送信キューに積み、I/Oスレッドに書き込みを依頼する。
+	 * UDPで送るメッセージも送信キューに積み、I/OスレッドがUDPのチャンネルに渡す。
+	 * キューが溢れて追いつけないと判断した場合は切断する。
+	 */
+	@Override
+	public void send(Packet packet) {
+		if (closed) return;
+		if (!queue.offer(packet)) {
+			System.err.println("送信キューが溢れたため切断します: client No." + number);
+			disconnect();
+			return;
+		}
+		if (writeRequested.compareAndSet(false, true)) {
+			worker.execute(this::enableWrite);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void attachDatagram(UdpChannel channel) {
+		this.datagram = channel;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public OutboundQueue getQueue() {
+		return queue;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if (key != null) key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// 既に切断されている
+		}
+	}
+
+	/**
+	 * ソケットが読み込み可能になったときにI/Oスレッドから呼ばれる。
+	 * 受信したバイト列を改行（バイナリ形式ではフレーム）で区切り、1つずつ処理する。
+	 */
+	void onReadable() {
+		int read;
+		try {
+			read = channel.read(readBuffer);
+		} catch (IOException e) {
+			disconnect();
+			return;
+		}
+		if (read < 0) {
+			disconnect();
+			return;
+		}
+
+		readBuffer.flip();
+		int length = readBuffer.remaining();
+		if (inbox.length < inboxLength + length) inbox = Arrays.copyOf(inbox, Math.max(inbox.length * 2, inboxLength + length));
+		readBuffer.get(inbox, inboxLength, length);
+		inboxLength += length;
+		readBuffer.clear();
+
+		int consumed = 0;
+		try {
+			while (consumed < inboxLength && !closed && !closeAfterFlush) {
+				int used = readingBinary ? onFrame(consumed) : onLine(consumed);
+				if (used == 0) break;// 続きがまだ届いていない
+				consumed += used;
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println("不正なフレームを受信したため切断します: client No." + number);
+			disconnect();
+			return;
+		}
+		System.arraycopy(inbox, consumed, inbox, 0, inboxLength - consumed);
+		inboxLength -= consumed;
+	}
+
+	/**
+	 * ソケットが書き込み可能になったときにI/Oスレッドから呼ばれる。
+	 * 送信キューを書き込めるだけ書き込み、空になったら書き込み待ちを解除する。
+	 * UDPで送るメッセージはチャンネルに溜め、キューが空になったときにまとめて送る。
+	 */
+	void onWritable() {
+		UdpChannel datagram = this.datagram;
+		try {
+			while (true) {
+				if (writing == null) {
+					Packet packet = queue.poll();
+					if (packet == null) break;
+					if (packet == Packet.UPGRADE) {
+						writing = ByteBuffer.wrap(packet.encode(false));// 承認の行まではテキスト形式
+						writingBinary = true;
+					} else if (datagram != null && UdpChannel.carries(packet.getMessage().command)) {
+						datagram.send(packet.getMessage().command, packet.encode(true));
+						continue;
+					} else {
+						writing = ByteBuffer.wrap(packet.encode(writingBinary));
+					}
+				}
+				channel.write(writing);
+				if (writing.hasRemaining()) return; // カーネルの送信バッファが一杯なので、次に書き込み可能になるまで待つ
+				writing = null;
+			}
+		} catch (IOException e) {
+			disconnect();
+			return;
+		}
+		if (datagram != null) datagram.flush();
+
+		writeRequested.set(false);
+		if (queue.getDepth() > 0 && writeRequested.compareAndSet(false, true)) return; // 直前に積まれた分がある
+		if (closeAfterFlush) {
+			disconnect();
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * 受信済みのバイト列から1行を取り出して処理する。
+	 * 1行目は名前、それ以降はブロードキャストするメッセージとして扱う。
+	 *
+	 * @param offset 行の開始位置
+	 * @return 消費したバイト数。改行がまだ届いていない場合は0
+	 */
+	private int onLine(int offset) {
+		int newline = -1;
+		for (int i = offset; i < inboxLength; i++) {
+			if (inbox[i] == '\n') {
+				newline = i;
+				break;
+			}
+		}
+		if (newline < 0) return 0;
+		int end = newline;
+		if (end > offset && inbox[end - 1] == '\r') end--;
+		String str = new String(inbox, offset, end - offset, CHARSET);
+
+		if (myName == null) {
+			myName = str;//初めて接続したときの一行目は名前
+		} else if (str.equals(BinaryCodec.UPGRADE)) {
+			readingBinary = true;// 以降はバイナリ形式のフレームが届く
+			upgradeToBinary();
+		} else if (str.toUpperCase().equals("BYE")) {
+			send(Packet.of("Good bye!"));
+			closeAfterFlush = true;
+		} else {
+			MyServer.Receive(Packet.of(str), number);//サーバに来たメッセージは部屋のシミュレーションか、送信者以外の同じ部屋のクライアント全員に渡す
+		}
+		return newline + 1 - offset;
+	}
+
+	/**
+	 * 受信済みのバイト列から1フレームを取り出して処理する。
+	 *
+	 * @param offset フレームの開始位置
+	 * @return 消費したバイト数。フレームがまだ全部届いていない場合は0
+	 */
+	private int onFrame(int offset) {
+		Message message = new Message();// 送信キューに積むので使い回さない
+		int used = BinaryCodec.decode(inbox, offset, inboxLength - offset, message);
+		if (used == 0) return 0;
+		MyServer.Receive(Packet.of(message), number);
+		return used;
+	}
+
+	/**
+	 * 書き込み要求を受けて、I/Oスレッド上で書き込み待ちを有効にする。
+	 */
+	private void enableWrite() {
+		if (key == null || !key.isValid()) return; // 登録前ならstart()で有効にする
+		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * 接続が切れたときの処理。部屋から外してチャンネルを閉じる。
+	 */
+	private void disconnect() {
+		if (closed) return;
+		MyServer.Unregister(number, this);//接続が切れたので部屋から外し、番号を空ける
+		close();
+	}
+}
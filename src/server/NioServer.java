@@ -0,0 +1,138 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <code>java.nio.channels.Selector</code>を使ったノンブロッキングのサーバー。
+ * 受付用のスレッド1本と、固定数のI/Oスレッドで全てのクライアント接続を処理する。
+ * 接続ごとにスレッドを作らないため、数千接続を保持してもスレッドスタックが増えない。
+ * 行単位のプロトコルと接続時のハンドシェイクは{@link ClientProcThread}と同じ。
+ */
+class NioServer {
+
+	private final int port;
+	private final IoWorker[] workers;
+	private int nextWorker = 0;
+
+	/**
+	 * NioServerのコンストラクタ。
+	 *
+	 * @param port 待ち受けポート
+	 * @param ioThreads I/Oスレッドの数
+	 */
+	NioServer(int port, int ioThreads) throws IOException {
+		this.port = port;
+		this.workers = new IoWorker[Math.max(1, ioThreads)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new IoWorker();
+		}
+	}
+
+	/**
+	 * I/Oスレッドを起動し、受付ループを実行する。
+	 * このメソッドは戻らない。
+	 */
+	void run() throws IOException {
+		for (int i = 0; i < workers.length; i++) {
+			Thread thread = new Thread(workers[i], "nio-io-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		Selector acceptSelector = Selector.open();
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port), 1024);
+		server.configureBlocking(false);
+		server.register(acceptSelector, SelectionKey.OP_ACCEPT);
+		System.out.println("NIO mode: " + workers.length + " I/O threads");
+
+		while (true) {
+			acceptSelector.select();
+			acceptSelector.selectedKeys().clear();
+
+			// 溜まっている接続要求をまとめて受け付ける
+			SocketChannel channel;
+			while ((channel = server.accept()) != null) {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+
+				// I/Oスレッドにはラウンドロビンで割り振る
+				IoWorker worker = workers[nextWorker];
+				nextWorker = (nextWorker + 1) % workers.length;
+
+				NioConnection connection = new NioConnection(channel, worker, MyServer.CreateOutboundQueue());
+				if (MyServer.Register(connection) < 0) connection.close();
+			}
+		}
+	}
+
+	/**
+	 * 1本のI/Oスレッドが回すイベントループ。
+	 * 担当する接続の読み書きと、他スレッドから依頼された処理（登録、書き込み要求）を実行する。
+	 */
+	static class IoWorker implements Runnable {
+
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+		IoWorker() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * このI/Oスレッド上で処理を実行するよう依頼する。
+		 * Selectorへの登録やinterestOpsの変更はI/Oスレッド上で行う必要があるため、このメソッドを通す。
+		 *
+		 * @param task 実行する処理
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * チャンネルをこのI/OスレッドのSelectorに登録する。
+		 * I/Oスレッド上から呼ぶこと。
+		 */
+		SelectionKey register(SocketChannel channel, int ops, NioConnection connection) throws IOException {
+			return channel.register(selector, ops, connection);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * 依頼された処理を実行し、準備のできた接続の読み書きを行うループ。
+		 */
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					selector.select();
+
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+
+					Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+					while (iterator.hasNext()) {
+						SelectionKey key = iterator.next();
+						iterator.remove();
+						NioConnection connection = (NioConnection) key.attachment();
+						if (key.isValid() && key.isReadable()) connection.onReadable();
+						if (key.isValid() && key.isWritable()) connection.onWritable();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
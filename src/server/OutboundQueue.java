@@ -0,0 +1,162 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * 1クライアント分の送信キュー。
+ * ブロードキャストする側はキューに積むだけで戻り、実際のソケットへの書き込みは接続ごとの書き込み役が行う。
+ * これにより、TCPウィンドウが詰まった遅いクライアントが他のプレイヤーの中継を止めることがなくなる。
+ * 容量を超えた場合の振る舞いは{@link OverflowPolicy}で指定する。
+ */
+class OutboundQueue {
+
+	/**
+	 * キューが一杯になったときの振る舞い。
+	 */
+	enum OverflowPolicy {
+		/**
+		 * 状態更新（LOCATE/AIM/SNAPSHOT）を、同じ戦車・同じコマンドのより新しいものがキューにある場合に捨てて、新しいメッセージを入れる。
+		 * 新しいものが後から届くので、捨てても同期は崩れない。
+		 * まとめられる状態更新が無い場合に限り、最も古い状態更新を捨てる。
+		 * キューが捨てられないイベントだけで埋まっている場合は切断する。
+		 */
+		DROP_OLDEST_STATE,
+
+		/**
+		 * 追いつけないクライアントとして切断する。
+		 */
+		DISCONNECT
+	}
+
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final ArrayDeque<Packet> messages = new ArrayDeque<>();
+
+	// 計測用
+	private int maxDepth = 0;
+	private long enqueued = 0;
+	private long dropped = 0;
+
+	/**
+	 * OutboundQueueのコンストラクタ。
+	 *
+	 * @param capacity キューに溜められるメッセージ数の上限
+	 * @param policy 上限を超えたときの振る舞い
+	 */
+	OutboundQueue(int capacity, OverflowPolicy policy) {
+		this.capacity = capacity;
+		this.policy = policy;
+	}
+
+	/**
+	 * メッセージをキューに積む。呼び出し元はブロックしない。
+	 *
+	 * @param message 送信するメッセージ
+	 * @return 積めた場合はtrue。キューが溢れて接続を切るべき場合はfalse
+	 */
+	synchronized boolean offer(Packet message) {
+		if (messages.size() >= capacity) {
+			if (policy == OverflowPolicy.DISCONNECT) return false;
+			if (!coalesce(message) && !dropOldestState()) return false;
+			dropped++;
+		}
+		messages.addLast(message);
+		enqueued++;
+		if (messages.size() > maxDepth) maxDepth = messages.size();
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * 先頭のメッセージを取り出す。キューが空ならnullを返す。
+	 *
+	 * @return 先頭のメッセージ、または空の場合はnull
+	 */
+	synchronized Packet poll() {
+		return messages.pollFirst();
+	}
+
+	/**
+	 * 先頭のメッセージを取り出す。キューが空ならメッセージが積まれるまで待つ。
+	 *
+	 * @return 先頭のメッセージ
+	 */
+	synchronized Packet take() throws InterruptedException {
+		while (messages.isEmpty()) wait();
+		return messages.pollFirst();
+	}
+
+	/**
+	 * 現在キューに溜まっているメッセージ数を取得する。
+	 */
+	synchronized int getDepth() {
+		return messages.size();
+	}
+
+	/**
+	 * これまでで最も多くメッセージが溜まったときの数を取得する。
+	 */
+	synchronized int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * これまでにキューに積まれたメッセージ数を取得する。
+	 */
+	synchronized long getEnqueued() {
+		return enqueued;
+	}
+
+	/**
+	 * 溢れたために捨てられたメッセージ数を取得する。
+	 */
+	synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * より新しいもので不要になった状態更新を1つ捨てる。
+	 * まず、これから積むメッセージで不要になるものを探し、無ければキューの後ろにあるもので不要になるものを探す。
+	 *
+	 * @param incoming これから積むメッセージ
+	 * @return 捨てられた場合はtrue
+	 */
+	private boolean coalesce(Packet incoming) {
+		for (Iterator<Packet> iterator = messages.iterator(); iterator.hasNext(); ) {
+			if (iterator.next().isSupersededBy(incoming)) {
+				iterator.remove();
+				return true;
+			}
+		}
+		for (Iterator<Packet> newer = messages.descendingIterator(); newer.hasNext(); ) {
+			Packet packet = newer.next();
+			if (!packet.isStateUpdate()) continue;
+			for (Iterator<Packet> older = messages.iterator(); older.hasNext(); ) {
+				Packet candidate = older.next();
+				if (candidate == packet) break;
+				if (candidate.isSupersededBy(packet)) {
+					older.remove();
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 最も古い状態更新メッセージを1つ捨てる。まとめられる状態更新が無いときに使う。
+	 *
+	 * @return 捨てられた場合はtrue、状態更新が1つも無かった場合はfalse
+	 */
+	private boolean dropOldestState() {
+		Iterator<Packet> iterator = messages.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().isStateUpdate()) {
+				iterator.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+}
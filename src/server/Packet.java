@@ -0,0 +1,101 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.Command;
+import protocol.Message;
+
+import java.nio.charset.Charset;
+
+/**
+ * 送信キューに積む1つのメッセージ。
+ * 同じメッセージを多数のクライアントに配るので、テキスト形式・バイナリ形式のバイト列はそれぞれ初めて必要になったときに1度だけ作り、以後は使い回す。
+ * 作成後は中身を書き換えない。
+ */
+class Packet {
+
+	// クライアント側のPrintWriter/BufferedReaderと同じ文字コード
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	/**
+	 * 送信キューの中でバイナリ形式への切り替え位置を表す特別なPacket。
+	 * 書き込み役はこれを取り出したら承認の行をテキスト形式で書き、以降をバイナリ形式で書く。
+	 */
+	static final Packet UPGRADE = new Packet(new Message().parseText(BinaryCodec.UPGRADE), BinaryCodec.UPGRADE);
+
+	private final Message message;
+	private final String line;// テキスト形式の行。テキストで受信した場合は受信した行そのもの
+	private volatile byte[] textBytes;
+	private volatile byte[] binaryBytes;
+
+	private Packet(Message message, String line) {
+		this.message = message;
+		this.line = line;
+	}
+
+	/**
+	 * テキスト形式の1行からPacketを作成する。
+	 *
+	 * @param line 1行分のメッセージ
+	 * @return 作成したPacket
+	 */
+	static Packet of(String line) {
+		return new Packet(new Message().parseText(line), line);
+	}
+
+	/**
+	 * メッセージからPacketを作成する。
+	 * メッセージは以後書き換えないこと。
+	 *
+	 * @param message メッセージ
+	 * @return 作成したPacket
+	 */
+	static Packet of(Message message) {
+		return new Packet(message, null);
+	}
+
+	/**
+	 * 中身のメッセージを取得する。書き換えないこと。
+	 */
+	Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * 新しいもので上書きできる状態更新かどうかを判定する。
+	 */
+	boolean isStateUpdate() {
+		return message.command.isStateUpdate();
+	}
+
+	/**
+	 * このメッセージが、後に積まれたメッセージで不要になるかを判定する。
+	 * LOCATEとAIMは同じ戦車の同じコマンドで、SNAPSHOTは次のSNAPSHOTで不要になる。
+	 *
+	 * @param newer このメッセージより後に積まれたメッセージ
+	 * @return 捨ててよければtrue
+	 */
+	boolean isSupersededBy(Packet newer) {
+		if (!isStateUpdate() || newer.message.command != message.command) return false;
+		return message.command == Command.SNAPSHOT || newer.message.id == message.id;
+	}
+
+	/**
+	 * 指定された形式のバイト列を取得する。
+	 *
+	 * @param binary バイナリ形式ならtrue、テキスト形式ならfalse
+	 * @return 送信するバイト列（テキスト形式の場合は改行を含む）。共有しているので書き換えないこと
+	 */
+	byte[] encode(boolean binary) {
+		if (binary) {
+			byte[] bytes = binaryBytes;
+			if (bytes == null) binaryBytes = bytes = BinaryCodec.encode(message);
+			return bytes;
+		}
+		byte[] bytes = textBytes;
+		if (bytes == null) {
+			String text = line != null ? line : message.toText();
+			textBytes = bytes = (text + System.lineSeparator()).getBytes(CHARSET);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,109 @@
+package server;
+
+import protocol.ReplayLog;
+import stage.CommandApplier;
+import stage.GameObject;
+import stage.GameStage;
+import stage.StageSnapshot;
+import stage.StandardStageGenerator;
+import stage.Tank;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * {@link MatchRecorder}が記録した試合を、画面無しのステージに再生するツール。
+ * 記録した時刻に合わせて60FPSでステージを進めながら、記録したメッセージを{@link CommandApplier}で反映する。
+ * 既定では待たずに最速で再生するので、実時間よりずっと速く試合の結果を確かめられる。
+ * 判定の確認や、ステージの変更で試合の流れが変わらないかの回帰試験に使う。
+ * <code>--from</code>を指定すると、索引から直前のキーフレームを探し、そこに記録したステージ全体の状態を反映してから続きを再生する。
+ * キーフレームに無い演出用の状態（弾丸の残りの寿命、リスポーンまでの時間など）と座標の量子化の分だけ、最初から再生した場合とずれることがある。
+ *
+ * <pre>
+ * java -cp out server.ReplayPlayer 記録ファイル [--from 秒] [--speed 倍率]
+ * </pre>
+ * 倍率に0を指定すると待たずに再生する（既定値）。
+ */
+class ReplayPlayer {
+
+	static final long FRAME_TIME = 1000000000L / 60;// 1フレームの時間（ナノ秒）。記録するときも同じ刻みでステージを進める
+
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+		String file = null;
+		double from = 0;
+		double speed = 0;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--from":
+					from = Double.parseDouble(args[++i]);
+					break;
+				case "--speed":
+					speed = Double.parseDouble(args[++i]);
+					break;
+				default:
+					file = args[i];
+			}
+		}
+		if (file == null) {
+			System.err.println("使い方: java server.ReplayPlayer 記録ファイル [--from 秒] [--speed 倍率]");
+			return;
+		}
+
+		try (ReplayLog.Reader reader = new ReplayLog.Reader(Paths.get(file))) {
+			int players = reader.getPlayerCount();
+			GameStage stage = new GameStage(new StandardStageGenerator(players));
+			long begin = reader.seek((long) (from * 1e9));
+			System.out.printf("players=%d keyframes=%d start=%.1fs%n", players, reader.getKeyframeCount(), begin / 1e9);
+
+			ReplayLog.Entry entry = new ReplayLog.Entry();
+			long nextFrame = (begin / FRAME_TIME + 1) * FRAME_TIME;// 記録したときと同じ刻みで進める
+			long frames = 0, messages = 0;
+			boolean restored = false;
+			long wallStart = System.nanoTime();
+			long end = begin;
+			while (reader.next(entry)) {
+				while (entry.time >= nextFrame) {
+					stage.update();
+					frames++;
+					nextFrame += FRAME_TIME;
+					if (speed > 0) waitUntil(wallStart + (long) ((nextFrame - begin) / speed));
+				}
+				if (entry.state != null) {// 途中から読み始めたキーフレーム
+					StageSnapshot.apply(stage, entry.state, -1);
+					restored = true;
+					continue;
+				}
+				CommandApplier.apply(stage, entry.message);
+				messages++;
+				end = entry.time;
+			}
+			long wall = System.nanoTime() - wallStart;
+
+			double recorded = (end - begin) / 1e9;
+			System.out.printf("recorded=%.1fs replayed=%.3fs (x%.0f) frames=%d messages=%d keyframe=%s%n",
+					recorded, wall / 1e9, recorded / Math.max(wall / 1e9, 1e-9), frames, messages, restored ? "restored" : "none");
+			System.out.printf("redBase=%d blueBase=%d redTanks=%d blueTanks=%d finished=%b winner=%s%n",
+					stage.getRedBaseHP(), stage.getBlueBaseHP(), stage.getRedTank(), stage.getBlueTank(), stage.hasFinished(), stage.getWinner());
+			for (int id = 0; id < players; id++) {
+				GameObject object = stage.getGameObject(id);
+				if (!(object instanceof Tank)) continue;
+				Tank tank = (Tank) object;
+				System.out.printf("tank %d: %s (%.0f, %.0f)%s%n", id, tank.getTeam(), tank.getPosition().x, tank.getPosition().y, tank.isDead() ? " dead" : "");
+			}
+		}
+	}
+
+	/**
+	 * 指定した時刻（System.nanoTime）まで待つ。
+	 */
+	private static void waitUntil(long time) {
+		long remaining = time - System.nanoTime();
+		if (remaining <= 0) return;
+		try {
+			Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,305 @@
+package server;
+
+import protocol.Message;
+import stage.StandardStageGenerator;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+
+/**
+ * 1試合分のプレイヤーの集まり。
+ * 部屋ごとにメンバーの一覧を持ち、メッセージは同じ部屋のメンバーにだけ配る。
+ * そのため1メッセージあたりの送信数は、サーバー全体の接続数ではなく部屋の人数で決まる。
+ * メンバーは部屋の中の席番号（0から部屋の定員-1）で識別し、これがクライアントから見た戦車IDになる。
+ * 戦車の位置と照準（LOCATE/AIM）は{@link InterestGrid}でその戦車の周りを見ているメンバーにだけ配り、
+ * 弾丸の発射などのイベントは全員に配る。
+ */
+class Room {
+
+	/**
+	 * プレイヤーに最初に送る行で、部屋番号を知らせる印。<code>ROOM:部屋番号</code>の形で送る。
+	 * 部屋番号はサーバーの中で使い回さないので、サーバーと部屋番号の組で部屋が1つに決まる。
+	 */
+	static final String CAPABILITY = "ROOM";
+
+	/**
+	 * 部屋の状態。
+	 */
+	enum State {
+		/**
+		 * プレイヤーが揃うのを待っている。新しい接続はこの状態の部屋に入る。
+		 */
+		WAITING,
+
+		/**
+		 * 定員が揃って試合中。新しいプレイヤーは入れない。
+		 */
+		PLAYING,
+
+		/**
+		 * 全員が抜けて破棄された。
+		 */
+		CLOSED
+	}
+
+	private final int id;
+	private final AtomicReferenceArray<Connection> members;//席番号ごとの接続。空席はnull。入退室の変更を、中継する他の接続の受信スレッドからも見えるようにする
+	private int memberCount = 0;
+	private State state = State.WAITING;
+	private ServerSimulation simulation;//サーバーでシミュレーションする場合のみ
+	private final InterestGrid interest;
+	private final Packet[] lastLocates;//席ごとの、最後に受信したLOCATE
+	private final Packet[] lastAims;//席ごとの、最後に受信したAIM
+	private final ThreadLocal<int[]> receivers;//中継するスレッドごとの、LOCATE/AIMを受け取る席番号の作業用配列
+	private volatile MatchRecorder.Recording recording;//試合を記録する場合のみ
+	private volatile SpectatorHub.Feed feed;//観戦者に配信する場合のみ
+
+	/**
+	 * Roomのコンストラクタ。
+	 *
+	 * @param id 部屋番号
+	 * @param capacity 定員（試合に必要なプレイヤー数）
+	 * @param interestRadius カメラの範囲を送ってこないクライアントの関心領域の半径。0以下ならステージ全体
+	 */
+	Room(int id, int capacity, double interestRadius) {
+		this.id = id;
+		this.members = new AtomicReferenceArray<>(capacity);
+		this.interest = new InterestGrid(capacity, StandardStageGenerator.STAGE_WIDTH, StandardStageGenerator.STAGE_HEIGHT, interestRadius);
+		this.lastLocates = new Packet[capacity];
+		this.lastAims = new Packet[capacity];
+		this.receivers = ThreadLocal.withInitial(() -> new int[capacity]);
+	}
+
+	/**
+	 * 空いている最も小さい席にプレイヤーを入れる。
+	 * 定員が揃ったら試合中に移る。
+	 * {@link RoomManager}のロックを取った状態で呼ぶこと。
+	 *
+	 * @param connection 入室するプレイヤーの接続
+	 * @return 割り当てた席番号。入れない場合は-1
+	 */
+	int join(Connection connection) {
+		return join(connection, null);
+	}
+
+	/**
+	 * 空いている最も小さい席にプレイヤーを入れる。
+	 * 席が決まったら、他のプレイヤーの中継が届くようになる前に最初のメッセージを送る。
+	 * クライアントは1行目を席番号の通知として読むので、中継が先に届くと接続に失敗する。
+	 * {@link RoomManager}のロックを取った状態で呼ぶこと。
+	 *
+	 * @param connection 入室するプレイヤーの接続
+	 * @param welcome 席番号から最初に送るメッセージを作る関数。nullなら何も送らない
+	 * @return 割り当てた席番号。入れない場合は-1
+	 */
+	int join(Connection connection, IntFunction<Packet> welcome) {
+		if (state != State.WAITING) return -1;
+		for (int slot = 0; slot < members.length(); slot++) {
+			if (members.get(slot) == null) {
+				if (welcome != null) connection.send(welcome.apply(slot));
+				members.set(slot, connection);
+				memberCount++;
+				if (memberCount == members.length()) state = State.PLAYING;
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * プレイヤーを部屋から外す。
+	 * 待機中に抜けた席は次に来たプレイヤーが使う。全員が抜けたら部屋を閉じる。
+	 * {@link RoomManager}のロックを取った状態で呼ぶこと。
+	 *
+	 * @param connection 抜けるプレイヤーの接続
+	 */
+	void leave(Connection connection) {
+		int slot = getSlot(connection);
+		if (slot < 0) return;// 既に抜けている
+		members.set(slot, null);
+		interest.reset(slot);
+		lastLocates[slot] = null;
+		lastAims[slot] = null;
+		memberCount--;
+		if (memberCount == 0) {
+			state = State.CLOSED;
+			if (simulation != null) simulation.stop();
+			if (recording != null) recording.close();
+			if (feed != null) feed.close();
+		}
+	}
+
+	/**
+	 * 部屋の全員にメッセージを送信する。
+	 *
+	 * @param packet 送信するメッセージ
+	 */
+	void sendAll(Packet packet) {
+		publish(packet, -1);
+		for (int slot = 0; slot < members.length(); slot++) {
+			Connection member = members.get(slot);
+			if (member != null) member.send(packet);
+		}
+	}
+
+	/**
+	 * 送信者以外の部屋のメンバーにメッセージを送信する。
+	 * 戦車の位置と照準は、送信者の戦車の周りを見ているメンバーにだけ送る。
+	 * それ以外のイベントは全員に送り、送信者の戦車を見ていなかったメンバーには先に最新の位置と照準を送って、
+	 * 弾丸などが古い位置から出ないようにする。
+	 *
+	 * @param packet 送信するメッセージ
+	 * @param senderSlot 送信者の席番号
+	 */
+	void sendOthers(Packet packet, int senderSlot) {
+		publish(packet, senderSlot);
+		Message message = packet.getMessage();
+		switch (message.command) {
+			case LOCATE:
+				interest.locate(senderSlot, message.x, message.y);
+				lastLocates[senderSlot] = packet;
+				sendNearby(packet, senderSlot);
+				return;
+			case AIM:
+				lastAims[senderSlot] = packet;
+				sendNearby(packet, senderSlot);
+				return;
+		}
+
+		for (int slot = 0; slot < members.length(); slot++) {
+			Connection member = members.get(slot);
+			if (slot == senderSlot || member == null) continue;
+			if (!interest.isInterested(slot, senderSlot)) {
+				Packet locate = lastLocates[senderSlot], aim = lastAims[senderSlot];
+				if (locate != null) member.send(locate);
+				if (aim != null) member.send(aim);
+			}
+			member.send(packet);
+		}
+	}
+
+	/**
+	 * 送信者の戦車の周りを見ている、送信者以外のメンバーにメッセージを送信する。
+	 */
+	private void sendNearby(Packet packet, int senderSlot) {
+		int[] receivers = this.receivers.get();
+		int count = interest.interestedIn(senderSlot, receivers);
+		for (int i = 0; i < count; i++) {
+			int slot = receivers[i];
+			Connection member = members.get(slot);
+			if (slot != senderSlot && member != null) member.send(packet);
+		}
+	}
+
+	/**
+	 * 試合を記録している場合は記録に、観戦者に配信している場合は配信にメッセージを加える。
+	 * どちらもキューに積むだけなので、中継の途中で呼んでよい。
+	 *
+	 * @param packet 中継するメッセージ
+	 * @param senderSlot 送信者の席番号。サーバーから送ったメッセージは-1
+	 */
+	void publish(Packet packet, int senderSlot) {
+		MatchRecorder.Recording recording = this.recording;
+		if (recording != null) recording.record(packet, senderSlot);
+		SpectatorHub.Feed feed = this.feed;
+		if (feed != null) feed.publish(packet, senderSlot);
+	}
+
+	/**
+	 * この部屋の試合の記録を設定する。以降に中継したメッセージが記録される。
+	 *
+	 * @param recording 試合の記録
+	 */
+	void setRecording(MatchRecorder.Recording recording) {
+		this.recording = recording;
+	}
+
+	/**
+	 * この部屋の観戦者への配信を設定する。以降に中継したメッセージが観戦者に配られる。
+	 *
+	 * @param feed 観戦者への配信
+	 */
+	void setFeed(SpectatorHub.Feed feed) {
+		this.feed = feed;
+	}
+
+	/**
+	 * メンバーのカメラの範囲を設定する。
+	 *
+	 * @param slot メンバーの席番号
+	 * @param view 受信したVIEW。座標はカメラの中心、IDは映る範囲の縦横の大きい方の半分
+	 */
+	void setView(int slot, Message view) {
+		interest.setView(slot, view.x, view.y, view.id);
+	}
+
+	/**
+	 * 指定した席のプレイヤーにメッセージを送信する。空席の場合は何もしない。
+	 *
+	 * @param slot 送信先の席番号
+	 * @param packet 送信するメッセージ
+	 */
+	void sendTo(int slot, Packet packet) {
+		Connection member = members.get(slot);
+		if (member != null) member.send(packet);
+	}
+
+	/**
+	 * プレイヤーの席番号を取得する。
+	 *
+	 * @param connection プレイヤーの接続
+	 * @return 席番号。部屋にいない場合は-1
+	 */
+	int getSlot(Connection connection) {
+		for (int slot = 0; slot < members.length(); slot++) {
+			if (members.get(slot) == connection) return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * この部屋のシミュレーションを取得する。
+	 *
+	 * @return シミュレーション。サーバーでシミュレーションしない場合はnull
+	 */
+	ServerSimulation getSimulation() {
+		return simulation;
+	}
+
+	/**
+	 * この部屋のシミュレーションを設定する。
+	 *
+	 * @param simulation シミュレーション
+	 */
+	void setSimulation(ServerSimulation simulation) {
+		this.simulation = simulation;
+	}
+
+	/**
+	 * 部屋番号を取得する。
+	 */
+	int getId() {
+		return id;
+	}
+
+	/**
+	 * 定員を取得する。
+	 */
+	int getCapacity() {
+		return members.length();
+	}
+
+	/**
+	 * 現在の人数を取得する。
+	 */
+	int getMemberCount() {
+		return memberCount;
+	}
+
+	/**
+	 * 部屋の状態を取得する。
+	 */
+	State getState() {
+		return state;
+	}
+}
@@ -0,0 +1,104 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * 部屋の作成・割り当て・破棄を管理するクラス。
+ * 新しいプレイヤーは待機中の部屋に入り、待機中の部屋が無ければ新しい部屋を作る。
+ * 全員が抜けた部屋は破棄するので、サーバーを再起動せずに何試合でも続けて行える。
+ */
+class RoomManager {
+
+	private final int roomSize;
+	private final double interestRadius;
+	private final Map<Integer, Room> rooms = new LinkedHashMap<>();//部屋番号→部屋。作成順
+	private Room waiting;//プレイヤーを受け付けている部屋
+	private int nextRoomId = 0;
+	private long created = 0;
+	private long closed = 0;
+
+	/**
+	 * RoomManagerのコンストラクタ。
+	 *
+	 * @param roomSize 1部屋の定員
+	 * @param interestRadius カメラの範囲を送ってこないクライアントの関心領域の半径。0以下ならステージ全体
+	 */
+	RoomManager(int roomSize, double interestRadius) {
+		this.roomSize = roomSize;
+		this.interestRadius = interestRadius;
+	}
+
+	/**
+	 * プレイヤーを待機中の部屋に入れる。待機中の部屋が無ければ作る。
+	 * 割り当てられた席番号は{@link Room#getSlot(Connection)}で取得する。
+	 *
+	 * @param connection 入室するプレイヤーの接続
+	 * @param welcome 入る部屋と席番号から、部屋の他のプレイヤーの中継より先に送るメッセージを作る関数
+	 * @return 入った部屋
+	 */
+	synchronized Room join(Connection connection, BiFunction<Room, Integer, Packet> welcome) {
+		if (waiting == null || waiting.getState() != Room.State.WAITING) {
+			waiting = new Room(nextRoomId++, roomSize, interestRadius);
+			rooms.put(waiting.getId(), waiting);
+			created++;
+		}
+		Room room = waiting;
+		room.join(connection, slot -> welcome.apply(room, slot));
+		return room;
+	}
+
+	/**
+	 * プレイヤーを部屋から外し、誰もいなくなった部屋は破棄する。
+	 *
+	 * @param room プレイヤーがいる部屋
+	 * @param connection 抜けるプレイヤーの接続
+	 */
+	synchronized void leave(Room room, Connection connection) {
+		room.leave(connection);
+		if (room.getState() == Room.State.CLOSED && rooms.remove(room.getId()) != null) {
+			if (room == waiting) waiting = null;
+			closed++;
+		}
+	}
+
+	/**
+	 * 現在の部屋の数を取得する。
+	 */
+	synchronized int getRoomCount() {
+		return rooms.size();
+	}
+
+	/**
+	 * 試合中の部屋の数を取得する。
+	 */
+	synchronized int getPlayingCount() {
+		int count = 0;
+		for (Room room : rooms.values()) {
+			if (room.getState() == Room.State.PLAYING) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * 待機中の部屋に入っているプレイヤーの数を取得する。
+	 */
+	synchronized int getWaitingCount() {
+		return waiting == null || waiting.getState() != Room.State.WAITING ? 0 : waiting.getMemberCount();
+	}
+
+	/**
+	 * これまでに作られた部屋の数を取得する。
+	 */
+	synchronized long getCreated() {
+		return created;
+	}
+
+	/**
+	 * これまでに破棄された部屋の数を取得する。
+	 */
+	synchronized long getClosed() {
+		return closed;
+	}
+}
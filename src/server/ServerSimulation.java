@@ -0,0 +1,274 @@
+package server;
+
+import client.GameEngine;
+import protocol.Command;
+import protocol.Message;
+import protocol.Snapshot;
+import stage.CommandApplier;
+import stage.GameObject;
+import stage.GameStage;
+import stage.LagCompensation;
+import stage.StageSnapshot;
+import stage.StandardStageGenerator;
+import stage.Tank;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 1部屋分のゲームをサーバー上でシミュレーションするクラス（<code>--authoritative</code>モード）。
+ * ウィンドウを持たずに<code>GameStage</code>をクライアントと同じ{@link GameEngine#FPS}で更新し、
+ * プレイヤーの入力を反映した結果をスナップショットとして部屋の全員に配る。
+ * 衝突判定や弾丸の生成はサーバーだけが行うので、クライアント間で状態がずれなくなる。
+ * スナップショットはクライアントごとに、そのクライアントが最後に受信を確認したものとの差分で送る。
+ * 巻き戻しの幅を指定した場合は、弾丸とミサイルの当たり判定を撃った人が見ていた時点の戦車とブロックの位置で行う（{@link LagCompensation}）。
+ * 撃った人が見ていた時点は、受信を確認した最新のスナップショットからクライアントの補間の遅延を引いたティックとみなす。
+ */
+class ServerSimulation implements Runnable {
+
+	private static final int HISTORY_SIZE = 32;//差分の基準として覚えておくスナップショットの数
+	private static final LongAdder snapshotBytes = new LongAdder();//全部屋でスナップショットとして送ったバイト数
+
+	private final Room room;
+	private final GameStage stage;
+	private final int snapshotInterval;//何ティックごとにスナップショットを送るか
+	private final Queue<Input> inputs = new ConcurrentLinkedQueue<>();//受信したがまだ反映していない入力
+	private final List<Input> deferred = new ArrayList<>();//次のティックに回した移動入力
+	private final boolean[] moved;//このティックで移動入力を反映済みの戦車
+	private final int[] lastInputs;//席ごとの、処理した最後の移動入力の連番
+	private final Snapshot[] history = new Snapshot[HISTORY_SIZE];//最近送ったスナップショット（ティック番号で引く）
+	private final AtomicIntegerArray acked;//席ごとの、受信を確認した最新のティック番号。0は未確認
+	private final LagCompensation lagCompensation;//巻き戻さない場合はnull
+	private final int interpolationTicks;//クライアントが他の戦車を遅らせて描くティック数
+	private final GameObject[] charging;//席ごとの、チャージ中のミサイル
+	private int tick = 0;
+	private volatile boolean running = true;
+
+	/**
+	 * ServerSimulationのコンストラクタ。
+	 *
+	 * @param room シミュレーションする部屋
+	 * @param snapshotInterval 何ティックごとにスナップショットを送るか
+	 * @param rewindWindow 当たり判定で巻き戻す最大のティック数。0なら巻き戻さない
+	 * @param interpolationTicks クライアントが他の戦車を遅らせて描くティック数
+	 */
+	ServerSimulation(Room room, int snapshotInterval, int rewindWindow, int interpolationTicks) {
+		this.room = room;
+		this.stage = new GameStage(new StandardStageGenerator(room.getCapacity()));
+		this.snapshotInterval = Math.max(1, snapshotInterval);
+		this.moved = new boolean[room.getCapacity()];
+		this.lastInputs = new int[room.getCapacity()];
+		this.acked = new AtomicIntegerArray(room.getCapacity());
+		this.lagCompensation = rewindWindow > 0 ? stage.enableLagCompensation(rewindWindow) : null;
+		this.interpolationTicks = interpolationTicks;
+		this.charging = new GameObject[room.getCapacity()];
+	}
+
+	/**
+	 * シミュレーションのスレッドを開始する。
+	 */
+	void start() {
+		Thread thread = new Thread(this, "room-" + room.getId() + "-sim");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * シミュレーションを止める。
+	 */
+	void stop() {
+		running = false;
+	}
+
+	/**
+	 * プレイヤーからの入力を受け付ける。入力は次のティックの始めに反映される。
+	 * プレイヤーは自分の戦車しか操作できないので、戦車IDは席番号で上書きする。
+	 * 移動入力（MOVE）のIDは入力の連番として覚えておく。
+	 * 攻撃の入力には、受信を確認した最新のスナップショットから、撃った人が見ていたティックを求めて添える。
+	 *
+	 * @param slot 送信者の席番号（戦車ID）
+	 * @param message 受信したメッセージ
+	 */
+	void submit(int slot, Message message) {
+		switch (message.command) {
+			case MOVE:
+			case AIM:
+			case BULLET:
+			case START_CHARGE:
+			case FINISH_CHARGE:
+			case BLOCK:
+				Message input = new Message().set(message);
+				input.id = slot;
+				int ackedTick = acked.get(slot);
+				int viewTick = ackedTick > 0 ? ackedTick - interpolationTicks : 0;
+				inputs.add(new Input(slot, message.command == Command.MOVE ? message.id : 0, viewTick, input));
+				break;
+			case ACK:
+				acked.accumulateAndGet(slot, message.id, Math::max);// 基準は次に送るときに使うだけなので、すぐに反映する
+				break;
+			default:
+				// 位置の上書き（LOCATE）などはサーバーが決めるので受け付けない
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 一定の間隔でティックを進めるループ。部屋が閉じられたら終了する。
+	 */
+	@Override
+	public void run() {
+		long tickInterval = 1000000000L / GameEngine.FPS;
+		long nextTickTime = System.nanoTime() + tickInterval;
+
+		while (running && room.getState() != Room.State.CLOSED) {
+			step();
+
+			long remainingTime = nextTickTime - System.nanoTime();
+			try {
+				if (remainingTime > 0) {
+					Thread.sleep(remainingTime / 1000000);
+				}
+				nextTickTime += tickInterval;
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * 1ティック進める。
+	 * 入力を反映してステージを更新し、必要ならスナップショットを配る。
+	 */
+	void step() {
+		applyInputs();
+		stage.update();
+		tick++;
+
+		if (tick % snapshotInterval == 0) sendSnapshot();
+	}
+
+	/**
+	 * 現在の状態のスナップショットを、クライアントごとに受信を確認した基準との差分にして送る。
+	 * 同じ基準のクライアントには同じバイト列を送る。
+	 * 基準がまだ無いか、古すぎて覚えていない場合は全体を送る。
+	 */
+	private void sendSnapshot() {
+		Snapshot snapshot = StageSnapshot.capture(stage, tick, lastInputs);
+		history[tick % HISTORY_SIZE] = snapshot;
+
+		Map<Integer, Packet> packets = new HashMap<>();// 基準のティック番号ごとのメッセージ
+		for (int slot = 0; slot < acked.length(); slot++) {
+			int ackedTick = acked.get(slot);
+			Snapshot baseline = history[Math.floorMod(ackedTick, HISTORY_SIZE)];
+			int baseTick = baseline != null && baseline.tick == ackedTick ? ackedTick : 0;// 覚えていないティックは基準にしない
+			Packet packet = packets.get(baseTick);
+			if (packet == null) {
+				byte[] payload = snapshot.encode(baseTick != 0 ? baseline : null);
+				packet = Packet.of(new Message(Command.SNAPSHOT, tick, payload));
+				packets.put(baseTick, packet);
+			}
+			room.sendTo(slot, packet);
+			snapshotBytes.add(packet.getMessage().payload.length);
+		}
+	}
+
+	/**
+	 * これまでに全部屋でスナップショットとして送ったバイト数を取得する。
+	 *
+	 * @return 合計のバイト数
+	 */
+	static long getSnapshotBytes() {
+		return snapshotBytes.sum();
+	}
+
+	/**
+	 * 溜まっている入力を反映する。
+	 * クライアントは1フレームに1回移動入力を送るので、1ティックに反映する移動入力は戦車ごとに1つまでにする。
+	 * 遅れてまとめて届いた移動入力は次のティックに回す。
+	 * 移動入力は反映できなかった（破壊されている）場合も処理済みとして連番を進めるので、クライアントは予測をやり直さない。
+	 */
+	private void applyInputs() {
+		Arrays.fill(moved, false);
+		List<Input> pending = new ArrayList<>(deferred);
+		deferred.clear();
+		Input polled;
+		while ((polled = inputs.poll()) != null) pending.add(polled);
+
+		for (Input input : pending) {
+			if (input.message.command == Command.MOVE) {
+				if (moved[input.slot]) {
+					if (deferred.size() < moved.length * GameEngine.FPS) deferred.add(input);// 溜まりすぎた分は捨てる
+					continue;
+				}
+				moved[input.slot] = true;
+				lastInputs[input.slot] = Math.max(lastInputs[input.slot], input.sequence);
+			}
+			if (isAllowed(input.message)) compensate(input, CommandApplier.apply(stage, input.message));
+		}
+	}
+
+	/**
+	 * 弾丸と、発射したミサイルに撃った人の遅延を登録する。
+	 * ミサイルはチャージ中は戦車と一緒にいるので、発射したときの遅延を使う。
+	 *
+	 * @param input 反映した入力
+	 * @param created 入力によってステージに追加したオブジェクト
+	 */
+	private void compensate(Input input, GameObject created) {
+		if (lagCompensation == null) return;
+		int lag = input.viewTick > 0 ? tick + 1 - input.viewTick : 0;// 次の更新のティックから見た遅延
+		switch (input.message.command) {
+			case BULLET:
+				if (created != null) lagCompensation.track(created, lag);
+				break;
+			case START_CHARGE:
+				charging[input.slot] = created;
+				break;
+			case FINISH_CHARGE:
+				if (charging[input.slot] != null) lagCompensation.track(charging[input.slot], lag);
+				charging[input.slot] = null;
+				break;
+		}
+	}
+
+	/**
+	 * 入力を反映してよいかを判定する。
+	 * 破壊されている戦車は操作できず、試合が終わった後は攻撃やブロックの生成はできない。
+	 */
+	private boolean isAllowed(Message input) {
+		GameObject object = stage.getGameObject(input.id);
+		if (!(object instanceof Tank) || ((Tank) object).isDead()) return false;
+		switch (input.command) {
+			case BULLET:
+			case START_CHARGE:
+			case BLOCK:
+				return !stage.hasFinished();
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * 受信した1つの入力。
+	 */
+	private static class Input {
+		final int slot;//送信者の席番号
+		final int sequence;//移動入力の連番。それ以外の入力では0
+		final int viewTick;//送信者が見ていたティック。分からない場合は0
+		final Message message;//戦車IDを席番号で上書きしたメッセージ
+
+		Input(int slot, int sequence, int viewTick, Message message) {
+			this.slot = slot;
+			this.sequence = sequence;
+			this.viewTick = viewTick;
+			this.message = message;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package server;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 接続中のクライアント（セッション）とクライアント番号を管理するクラス。
+ * 番号は空いているうち最も小さいものを割り当て、切断したら再利用する。
+ * そのため最大接続数は同時に接続している数の上限になり、累計の接続数には制限が無い。
+ * 接続中のセッションの一覧を別に持つので、全員への送信や統計の集計はこれまでの接続数によらず、接続中の数だけで済む。
+ * <p>
+ * 一覧は追加と削除のたびに作り直し、読む側はロック無しで走査する。
+ * 番号は接続ごとに使い回されるので、削除は番号と接続の組が一致したときだけ行い、古い接続の後始末が新しい接続を外すことは無い。
+ */
+class SessionRegistry {
+
+	/**
+	 * 1つの接続。クライアント番号、送信用の接続、入っている部屋、最後に受信した時刻を持つ。
+	 */
+	static final class Session {
+		final int number;
+		final Connection connection;
+		volatile Room room;// 席が決まるまではnull
+		private volatile long lastHeard;// 最後にメッセージを受信した時刻（System.nanoTime）
+		int lastInputFrame = -1;// ロックステップで最後に中継した入力のフレーム番号。thisで同期する
+		boolean left = false;// ロックステップで退出を知らせた後か。thisで同期する
+
+		private Session(int number, Connection connection) {
+			this.number = number;
+			this.connection = connection;
+			this.lastHeard = System.nanoTime();
+		}
+
+		/**
+		 * メッセージを受信したことを記録する。
+		 */
+		void touch() {
+			lastHeard = System.nanoTime();
+		}
+
+		/**
+		 * 最後にメッセージを受信した時刻を取得する。
+		 *
+		 * @return System.nanoTimeの値。受信が無ければ接続した時刻
+		 */
+		long getLastHeard() {
+			return lastHeard;
+		}
+	}
+
+	private final AtomicReferenceArray<Session> sessions;// 番号→セッション。空いている番号はnull
+	private final BitSet used = new BitSet();// 使用中の番号。thisで同期する
+	private volatile Session[] live = new Session[0];// 接続中のセッション。追加と削除のたびに作り直す
+	private final AtomicLong registered = new AtomicLong();// これまでに割り当てた数
+	private final AtomicLong evicted = new AtomicLong();// 無応答で切断した数
+	private long releasedDropped;// 切断した接続の送信キューが捨てたメッセージ数の合計
+	private int releasedMaxDepth;// 切断した接続の送信キューの最大滞留数
+
+	/**
+	 * SessionRegistryのコンストラクタ。
+	 *
+	 * @param capacity 同時に接続できる数
+	 */
+	SessionRegistry(int capacity) {
+		this.sessions = new AtomicReferenceArray<>(capacity);
+	}
+
+	/**
+	 * 新しい接続に、空いている最も小さい番号を割り当てる。
+	 *
+	 * @param connection 新しい接続
+	 * @return 作ったセッション。同時に接続できる数に達している場合はnull
+	 */
+	synchronized Session add(Connection connection) {
+		int number = used.nextClearBit(0);
+		if (number >= sessions.length()) return null;
+		Session session = new Session(number, connection);
+		used.set(number);
+		sessions.set(number, session);
+		Session[] next = Arrays.copyOf(live, live.length + 1);
+		next[live.length] = session;
+		live = next;
+		registered.incrementAndGet();
+		return session;
+	}
+
+	/**
+	 * 接続のセッションを外し、番号を空ける。
+	 * 既に外している場合や、番号が別の接続に再利用されている場合は何もしない。
+	 *
+	 * @param number クライアント番号
+	 * @param connection 切断した接続
+	 * @return 外したセッション。このメソッドで外さなかった場合はnull
+	 */
+	synchronized Session remove(int number, Connection connection) {
+		if (number < 0 || number >= sessions.length()) return null;
+		Session session = sessions.get(number);
+		if (session == null || session.connection != connection) return null;
+		sessions.set(number, null);
+		used.clear(number);
+		Session[] next = new Session[live.length - 1];
+		int i = 0;
+		for (Session other : live) {
+			if (other != session) next[i++] = other;
+		}
+		live = next;
+		OutboundQueue queue = connection.getQueue();
+		releasedDropped += queue.getDropped();
+		releasedMaxDepth = Math.max(releasedMaxDepth, queue.getMaxDepth());
+		return session;
+	}
+
+	/**
+	 * 番号のセッションを取得する。
+	 *
+	 * @param number クライアント番号
+	 * @return セッション。接続していない番号はnull
+	 */
+	Session get(int number) {
+		if (number < 0 || number >= sessions.length()) return null;
+		return sessions.get(number);
+	}
+
+	/**
+	 * 接続中のセッションの一覧を取得する。
+	 * 返した配列は変更されないので、ロック無しで走査できる。
+	 *
+	 * @return 接続中のセッション
+	 */
+	Session[] live() {
+		return live;
+	}
+
+	/**
+	 * 無応答で切断したことを数える。
+	 */
+	void countEviction() {
+		evicted.incrementAndGet();
+	}
+
+	/**
+	 * これまでに割り当てた数を取得する。
+	 */
+	long getRegistered() {
+		return registered.get();
+	}
+
+	/**
+	 * 無応答で切断した数を取得する。
+	 */
+	long getEvicted() {
+		return evicted.get();
+	}
+
+	/**
+	 * 切断した接続の送信キューが捨てたメッセージ数の合計を取得する。
+	 */
+	synchronized long getReleasedDropped() {
+		return releasedDropped;
+	}
+
+	/**
+	 * 切断した接続の送信キューの最大滞留数を取得する。
+	 */
+	synchronized int getReleasedMaxDepth() {
+		return releasedMaxDepth;
+	}
+}
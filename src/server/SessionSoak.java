@@ -0,0 +1,291 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 接続と切断を繰り返して、サーバーがクライアント番号と接続の後始末を漏らさないかを確かめる耐久試験ツール。
+ * 同じプロセス内でMyServerを起動し、最大接続数よりずっと多い回数の接続・切断を並列に行う。
+ * 切断の仕方は次の3通りを混ぜる。
+ * <ul>
+ *     <li>BYEを送ってから閉じる</li>
+ *     <li>RSTで突然切る</li>
+ *     <li>何も送らず、受信も読まずに放置する（{@link MyServer}が無応答として切断するのを待つ）</li>
+ * </ul>
+ * 一定回数ごとに、拒否された接続数、GC後のスレッド数とヒープ使用量を出力する。
+ * 最後に全接続が外れるのを待ち、接続中のクライアント数が0に戻り、スレッド数とヒープが始めと同じ程度に戻ったかを判定する。
+ *
+ * <pre>
+ * java -cp out server.SessionSoak [--nio] [--port 10500] [--cycles 5000] [--max-connections 32] [--parallel 8] [--silent-every 100] [--timeout 1000]
+ * </pre>
+ */
+class SessionSoak {
+
+	private static final AtomicInteger nextCycle = new AtomicInteger();
+	private static final AtomicInteger completed = new AtomicInteger();
+	private static final AtomicLong rejected = new AtomicLong();
+	private static final AtomicLong failed = new AtomicLong();
+	private static final AtomicLong evicted = new AtomicLong();// 放置した接続のうち、サーバーに切断されたもの
+	private static final AtomicLong notEvicted = new AtomicLong();
+	private static final AtomicLong heartbeats = new AtomicLong();// 放置した接続に届いたPING
+	private static final AtomicLong evictionMillis = new AtomicLong();// 放置してから切断されるまでの時間の合計
+	private static final LinkedBlockingQueue<Silent> silents = new LinkedBlockingQueue<>();
+
+	/**
+	 * 放置した接続と、放置し始めた時刻。
+	 */
+	private static final class Silent {
+		final Socket socket;
+		final long since;
+
+		Silent(Socket socket, long since) {
+			this.socket = socket;
+			this.since = since;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean useNio = false;
+		int port = 10500;
+		int cycles = 5000;
+		int maxConnections = 32;
+		int parallel = 8;
+		int silentEvery = 100;
+		int timeout = 1000;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--nio":
+					useNio = true;
+					break;
+				case "--port":
+					port = Integer.parseInt(args[++i]);
+					break;
+				case "--cycles":
+					cycles = Integer.parseInt(args[++i]);
+					break;
+				case "--max-connections":
+					maxConnections = Integer.parseInt(args[++i]);
+					break;
+				case "--parallel":
+					parallel = Integer.parseInt(args[++i]);
+					break;
+				case "--silent-every":
+					silentEvery = Integer.parseInt(args[++i]);
+					break;
+				case "--timeout":
+					timeout = Integer.parseInt(args[++i]);
+					break;
+			}
+		}
+
+		// サーバーを同じプロセス内で起動する
+		List<String> serverArgs = new ArrayList<>();
+		serverArgs.add("--port");
+		serverArgs.add(String.valueOf(port));
+		serverArgs.add("--max-connections");
+		serverArgs.add(String.valueOf(maxConnections));
+		serverArgs.add("--session-timeout");
+		serverArgs.add(String.valueOf(timeout));
+		serverArgs.add("--heartbeat-interval");
+		serverArgs.add(String.valueOf(timeout / 3));
+		if (useNio) serverArgs.add("--nio");
+		Thread serverThread = new Thread(() -> MyServer.main(serverArgs.toArray(new String[0])), "server-main");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		waitForServer(port);
+
+		long evictionLimit = 3L * timeout;
+		Thread checker = new Thread(() -> checkSilents(evictionLimit), "soak-silent");
+		checker.setDaemon(true);
+		checker.start();
+
+		System.out.println("mode=" + (useNio ? "nio" : "thread") + " cycles=" + cycles + " maxConnections=" + maxConnections + " timeout=" + timeout + "ms");
+		int baselineThreads = settledThreads();
+		long baselineHeap = heapMB();
+		System.out.println("cycles\trejected\tfailed\tevicted\tclients\tthreads\theapMB");
+		System.out.println("0\t0\t0\t0\t" + MyServer.GetClientCount() + "\t" + baselineThreads + "\t" + baselineHeap);
+
+		final int total = cycles;
+		final int every = silentEvery;
+		List<Thread> workers = new ArrayList<>();
+		for (int i = 0; i < parallel; i++) {
+			final int portNumber = port;
+			Thread worker = new Thread(() -> runCycles(portNumber, total, every), "soak-" + i);
+			worker.start();
+			workers.add(worker);
+		}
+		int report = Math.max(1, cycles / 10);
+		int nextReport = report;
+		while (completed.get() < cycles) {
+			Thread.sleep(50);
+			if (completed.get() >= nextReport) {
+				System.out.println(completed.get() + "\t" + rejected.get() + "\t" + failed.get() + "\t" + evicted.get() + "\t"
+						+ MyServer.GetClientCount() + "\t" + Thread.activeCount() + "\t" + heapMB());
+				nextReport += report;
+			}
+		}
+		for (Thread worker : workers) worker.join();
+
+		// 放置した接続がすべて切断されるのを待つ
+		long deadline = System.currentTimeMillis() + 5L * timeout;
+		while ((MyServer.GetClientCount() > 0 || !silents.isEmpty()) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		Thread.sleep(timeout);
+		int finalThreads = settledThreads();
+		long finalHeap = heapMB();
+		int clients = MyServer.GetClientCount();
+		System.out.println("final\t" + rejected.get() + "\t" + failed.get() + "\t" + evicted.get() + "\t" + clients + "\t" + finalThreads + "\t" + finalHeap);
+		MyServer.PrintQueueStats();
+		long silentCount = evicted.get() + notEvicted.get();
+		System.out.printf("silent=%d evicted=%d notEvicted=%d heartbeats=%d meanEviction=%dms%n",
+				silentCount, evicted.get(), notEvicted.get(), heartbeats.get(), evicted.get() == 0 ? 0 : evictionMillis.get() / evicted.get());
+		boolean leaked = clients != 0 || notEvicted.get() > 0 || finalThreads > baselineThreads + 2 || finalHeap > baselineHeap + 16;
+		System.out.println(leaked ? "RESULT: LEAK (clients, threads or heap did not return to baseline)" : "RESULT: OK (no leak)");
+		System.exit(leaked ? 1 : 0);
+	}
+
+	/**
+	 * 接続と切断を繰り返す。拒否された場合は少し待ってやり直す。
+	 */
+	private static void runCycles(int port, int cycles, int silentEvery) {
+		int cycle;
+		while ((cycle = nextCycle.getAndIncrement()) < cycles) {
+			while (true) {
+				try {
+					if (runCycle(port, cycle, silentEvery)) break;
+					rejected.incrementAndGet();
+					Thread.sleep(20);
+				} catch (IOException e) {
+					failed.incrementAndGet();
+					break;
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			completed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 1回の接続と切断。ゲームクライアントと同じく番号を受け取って名前を送り、いくつかメッセージを送ってから切断する。
+	 *
+	 * @return 接続できた場合はtrue。最大接続数に達していて拒否された場合はfalse
+	 */
+	private static boolean runCycle(int port, int cycle, int silentEvery) throws IOException {
+		Socket socket = new Socket();
+		socket.connect(new InetSocketAddress("localhost", port), 1000);
+		socket.setSoTimeout(5000);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		String greeting;
+		try {
+			greeting = reader.readLine();
+		} catch (IOException e) {
+			greeting = null;// 拒否された接続はすぐに閉じられる
+		}
+		if (greeting == null) {
+			socket.close();
+			return false;
+		}
+		int slot = Integer.parseInt(greeting.split(" ")[0]);
+		OutputStream out = socket.getOutputStream();
+		StringBuilder lines = new StringBuilder("Soak" + cycle + "\n");
+		if (silentEvery > 0 && cycle % silentEvery == 0) {
+			out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			silents.add(new Silent(socket, System.nanoTime()));// 以降は何も送らず、読みもしない
+			return true;
+		}
+		for (int i = 0; i < 5; i++) lines.append("LOCATE ").append(slot).append(' ').append(100 + i).append(".0 100.0\n");
+		lines.append("PING ").append(cycle).append('\n');
+		if (cycle % 2 == 0) lines.append("BYE\n");
+		out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+		out.flush();
+		if (cycle % 2 != 0) socket.setSoLinger(true, 0);// RSTで突然切る
+		socket.close();
+		return true;
+	}
+
+	/**
+	 * 放置した接続が、サーバーに切断されるまで読み続ける。
+	 * 届いたPINGを数え、切断されるまでの時間を記録する。
+	 *
+	 * @param limit 放置してから切断されるまで待つ時間（ミリ秒）
+	 */
+	private static void checkSilents(long limit) {
+		byte[] buffer = new byte[4096];
+		while (true) {
+			Silent silent;
+			try {
+				silent = silents.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try (Socket socket = silent.socket) {
+				InputStream in = socket.getInputStream();
+				while (true) {
+					long remaining = limit - (System.nanoTime() - silent.since) / 1000000;
+					if (remaining <= 0) throw new SocketTimeoutException();
+					socket.setSoTimeout((int) remaining);
+					int read = in.read(buffer);
+					if (read < 0) break;
+					for (int i = 0; i + 4 <= read; i++) {
+						if (buffer[i] == 'P' && buffer[i + 1] == 'I' && buffer[i + 2] == 'N' && buffer[i + 3] == 'G') heartbeats.incrementAndGet();
+					}
+				}
+				evicted.incrementAndGet();
+				evictionMillis.addAndGet((System.nanoTime() - silent.since) / 1000000);
+			} catch (SocketTimeoutException e) {
+				notEvicted.incrementAndGet();
+			} catch (IOException e) {
+				evicted.incrementAndGet();// サーバーが閉じた（RST）
+				evictionMillis.addAndGet((System.nanoTime() - silent.since) / 1000000);
+			}
+		}
+	}
+
+	/**
+	 * サーバーが接続を受け付けるようになるまで待つ。
+	 */
+	private static void waitForServer(int port) throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			try (Socket probe = new Socket()) {
+				probe.connect(new InetSocketAddress("localhost", port), 100);
+				return;
+			} catch (IOException e) {
+				Thread.sleep(50);
+			}
+		}
+		throw new IllegalStateException("server did not start on port " + port);
+	}
+
+	/**
+	 * 終了したスレッドが片付くのを少し待ってから、生きているスレッド数を数える。
+	 */
+	private static int settledThreads() throws InterruptedException {
+		Thread.sleep(500);
+		return Thread.activeCount();
+	}
+
+	/**
+	 * GC後のヒープ使用量（MB）を取得する。
+	 */
+	private static long heapMB() throws InterruptedException {
+		System.gc();
+		Thread.sleep(100);
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024);
+	}
+}
@@ -0,0 +1,137 @@
+package server;
+
+import client.GameEngine;
+import protocol.EntityState;
+import protocol.Snapshot;
+import stage.Block;
+import stage.GameStage;
+import stage.StageSnapshot;
+import stage.StandardStageGenerator;
+import stage.Tank;
+
+import java.awt.geom.Point2D;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 全体のスナップショットと、受信確認した基準との差分のサイズを比較するベンチマーク。
+ * {@link ServerSimulation}と同じくステージを画面無しで動かし、一部の戦車だけを動かして弾を撃たせる。
+ * 動かないブロックの数を段階的に増やしながら、1スナップショットあたりのバイト数と、
+ * 1クライアントあたりの帯域を表形式で出力する。
+ * 全体のサイズはオブジェクト数に比例して増えるが、差分のサイズは変化したものの数だけで決まることを確認できる。
+ * 差分をデコードした結果が全体をデコードした結果と一致することも検証する。
+ *
+ * <pre>
+ * java -cp out server.SnapshotBenchmark [--players 4] [--moving 2] [--blocks 0,100,400,1600] [--ticks 600] [--snapshot-interval 3] [--ack-delay 2]
+ * </pre>
+ */
+class SnapshotBenchmark {
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		int players = 4;
+		int moving = 2;
+		int[] blockSteps = {0, 100, 400, 1600};
+		int ticks = 600;
+		int snapshotInterval = 3;
+		int ackDelay = 2;// 送ってから受信確認が届くまでのスナップショット数（往復遅延）
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--players":
+					players = Integer.parseInt(args[++i]);
+					break;
+				case "--moving":
+					moving = Integer.parseInt(args[++i]);
+					break;
+				case "--blocks": {
+					String[] tokens = args[++i].split(",");
+					blockSteps = new int[tokens.length];
+					for (int j = 0; j < tokens.length; j++) blockSteps[j] = Integer.parseInt(tokens[j]);
+					break;
+				}
+				case "--ticks":
+					ticks = Integer.parseInt(args[++i]);
+					break;
+				case "--snapshot-interval":
+					snapshotInterval = Integer.parseInt(args[++i]);
+					break;
+				case "--ack-delay":
+					ackDelay = Integer.parseInt(args[++i]);
+					break;
+			}
+		}
+
+		System.out.println("players=" + players + " moving=" + moving + " ticks=" + ticks + " interval=" + snapshotInterval + " ackDelay=" + ackDelay);
+		System.out.println(String.format("%8s %9s %12s %12s %14s %14s", "blocks", "entities", "full B/snap", "delta B/snap", "full B/s/cl", "delta B/s/cl"));
+		for (int blocks : blockSteps) {
+			run(players, moving, blocks, ticks, snapshotInterval, ackDelay);
+		}
+	}
+
+	/**
+	 * 1段階分を計測して1行出力する。
+	 */
+	private static void run(int players, int moving, int blocks, int ticks, int snapshotInterval, int ackDelay) {
+		GameStage stage = new GameStage(new StandardStageGenerator(players));
+
+		// 基地から離れた場所に動かないブロックを並べる
+		int columns = (int) Math.ceil(Math.sqrt(blocks));
+		for (int i = 0; i < blocks; i++) {
+			stage.addGameObject(new Block(-2500 + (i % columns) * 60, 500 + (i / columns) * 60, false));
+		}
+
+		Snapshot[] sent = new Snapshot[ackDelay + 1];// 直近に送ったスナップショット。先頭が受信確認済みの基準
+		long fullBytes = 0, deltaBytes = 0;
+		int snapshots = 0, entities = 0;
+		for (int tick = 1; tick <= ticks; tick++) {
+			for (int i = 0; i < moving; i++) {
+				Tank tank = (Tank) stage.getGameObject(i);
+				double angle = tick * 0.02 + i;
+				tank.move(new Point2D.Double(Math.cos(angle), Math.sin(angle)));
+				tank.aimAt(new Point2D.Double(Math.cos(angle) * 1000, Math.sin(angle) * 1000));
+				if (tick % 20 == i) stage.addGameObject(tank.shootBullet());
+			}
+			stage.update();
+			if (tick % snapshotInterval != 0) continue;
+
+			Snapshot snapshot = StageSnapshot.capture(stage, tick);
+			Snapshot baseline = sent[0];
+			byte[] full = snapshot.encode();
+			byte[] delta = snapshot.encode(baseline);
+			fullBytes += full.length;
+			deltaBytes += delta.length;
+			entities += snapshot.entities.size();
+			snapshots++;
+
+			// クライアントと同じく、デコード済みの基準に差分を当てて全体と一致するか確かめる
+			Snapshot decodedBaseline = baseline != null ? Snapshot.decode(baseline.encode()) : null;
+			verify(Snapshot.decode(full), Snapshot.decode(delta, t -> decodedBaseline));
+
+			// 受信確認が届いたものを基準にずらす
+			System.arraycopy(sent, 1, sent, 0, sent.length - 1);
+			sent[sent.length - 1] = snapshot;
+		}
+
+		double snapshotsPerSecond = (double) GameEngine.FPS / snapshotInterval;
+		System.out.println(String.format("%8d %9d %12d %12d %14d %14d", blocks, entities / snapshots,
+				fullBytes / snapshots, deltaBytes / snapshots,
+				Math.round(fullBytes / (double) snapshots * snapshotsPerSecond), Math.round(deltaBytes / (double) snapshots * snapshotsPerSecond)));
+	}
+
+	/**
+	 * 2つのスナップショットの内容が一致することを確かめる。
+	 */
+	private static void verify(Snapshot expected, Snapshot actual) {
+		if (expected.entities.size() != actual.entities.size()) {
+			throw new IllegalStateException("entity count mismatch at tick " + expected.tick + ": " + expected.entities.size() + " != " + actual.entities.size());
+		}
+		Map<Integer, EntityState> byId = new HashMap<>();
+		for (EntityState entity : actual.entities) byId.put(entity.id, entity);
+		for (EntityState entity : expected.entities) {
+			EntityState other = byId.get(entity.id);
+			if (other == null || !entity.toString().equals(other.toString()) || entity.angle != other.angle || entity.owner != other.owner) {
+				throw new IllegalStateException("mismatch at tick " + expected.tick + ": " + entity + " != " + other);
+			}
+		}
+	}
+}
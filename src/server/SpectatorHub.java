@@ -0,0 +1,500 @@
+package server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 観戦者に試合の中継を配るクラス。
+ * 観戦者はプレイヤーとは別のポートに接続し、最初の1行<code>WATCH 部屋番号</code>で観る部屋を選ぶ（番号を省くと試合中の最も古い部屋）。
+ * サーバーは<code>SPECTATE 部屋番号 定員 遅延ミリ秒</code>の1行を返し、以降は{@link protocol.BinaryCodec}のフレームを送り続ける。
+ * 最初に定員（PLAYER_COUNT）と各戦車の最新の位置・照準を送るので、試合の途中からでも観られる。
+ * 観戦者から届いたデータは読み捨てる。
+ * <p>
+ * 部屋で中継したメッセージは遅延の分だけ溜めてから配る。観戦画面を見て味方に敵の位置を教える「ゴースティング」を防ぐため。
+ * 1本のスレッドがSelectorで全ての観戦者を扱い、ティックごとに、配る時刻になったメッセージを部屋ごとに1つの共有バッファへ1度だけ書き込む。
+ * 共有バッファは部屋の全観戦者の送信待ちに位置だけを別に持たせて積み、gathering writeで溜まった分をまとめて書く。
+ * 観戦者ごとのエンコードやコピーは行わない。共有バッファは参照カウントを持ち、全員が書き終えたらプールに戻して使い回す。
+ * 送信待ちが溜まりすぎた観戦者は切断するので、遅い観戦者がいてもプレイヤーの中継やメモリには影響しない。
+ */
+class SpectatorHub implements Runnable {
+
+	private static final long TICK = 1000000000L / 60;// 配信の間隔（ナノ秒）
+	private static final int CHUNK_SIZE = 16 * 1024;// 共有バッファの大きさ
+	private static final int MAX_PENDING = 512;// 観戦者ごとに溜めておける送信待ちの共有バッファ数。超えたら切断する
+	private static final int MAX_GATHER = 64;// 1回のgathering writeで書く共有バッファ数
+	private static final int MAX_REQUEST_LENGTH = 64;// 最初の1行の最大長
+
+	private final int port;
+	private final long delay;// ナノ秒
+	private final Selector selector;
+	private final Map<Integer, Feed> feeds = new ConcurrentHashMap<>();// 部屋番号→配信
+	private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();// 使い終わった共有バッファ
+	private final ByteBuffer discard = ByteBuffer.allocate(1024);// 観戦者から届いたデータの読み捨て用
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private final Thread thread = new Thread(this, "spectator-hub");
+
+	// 統計。配信のスレッドが書き、統計の出力で読む
+	private volatile int spectatorCount = 0;
+	private volatile long bytesWritten = 0;
+	private volatile long writeCalls = 0;
+	private volatile long chunksEncoded = 0;
+	private volatile long kicked = 0;
+	private long lastStatsTime;
+	private long lastBytesWritten;
+	private long lastWriteCalls;
+	private long lastChunksEncoded;
+	private long lastCpuTime;
+
+	/**
+	 * 1つの部屋の配信。部屋が持ち、中継したメッセージを渡す。
+	 */
+	class Feed {
+
+		private final int roomId;
+		private final int capacity;
+		private ArrayDeque<Pending> incoming = new ArrayDeque<>();// 中継のスレッドが積む。thisで同期する
+		private ArrayDeque<Pending> delayed = new ArrayDeque<>();// 配る時刻を待っているメッセージ。以降は配信のスレッドだけが触る
+		private final Packet[] lastLocates;// 席ごとの、最後に配ったLOCATE
+		private final Packet[] lastAims;// 席ごとの、最後に配ったAIM
+		private final List<Spectator> spectators = new ArrayList<>();
+		private volatile boolean closed = false;
+
+		private Feed(int roomId, int capacity) {
+			this.roomId = roomId;
+			this.capacity = capacity;
+			this.lastLocates = new Packet[capacity];
+			this.lastAims = new Packet[capacity];
+		}
+
+		/**
+		 * 中継したメッセージを配信に加える。時刻を付けて積むだけなので、中継の途中で呼んでよい。
+		 *
+		 * @param packet 中継したメッセージ
+		 * @param senderSlot 送信者の席番号。サーバーから送ったメッセージは-1
+		 */
+		void publish(Packet packet, int senderSlot) {
+			Pending pending = new Pending(System.nanoTime(), packet, senderSlot);
+			synchronized (this) {
+				incoming.add(pending);
+			}
+		}
+
+		/**
+		 * 試合が終わったことを知らせる。溜まっているメッセージを配り終えたら観戦者を切断する。
+		 */
+		void close() {
+			closed = true;
+		}
+	}
+
+	/**
+	 * 配る時刻を待っている1件。
+	 */
+	private static final class Pending {
+		final long time;
+		final Packet packet;
+		final int slot;
+
+		Pending(long time, Packet packet, int slot) {
+			this.time = time;
+			this.packet = packet;
+			this.slot = slot;
+		}
+	}
+
+	/**
+	 * 参照カウント付きの共有バッファ。配信のスレッドだけが触る。
+	 */
+	private final class Chunk {
+		final ByteBuffer data;
+		int references;
+
+		Chunk(ByteBuffer data) {
+			this.data = data;
+		}
+
+		/**
+		 * 1人分の参照を外す。誰も参照しなくなったらプールに戻す。
+		 */
+		void release() {
+			if (--references == 0 && data.capacity() == CHUNK_SIZE) {
+				data.clear();
+				pool.push(data);
+			}
+		}
+	}
+
+	/**
+	 * 観戦者ごとの送信待ち。共有バッファの中身はそのままで、書き込んだ位置だけを観戦者ごとに持つ。
+	 */
+	private static final class Slice {
+		final Chunk chunk;
+		final ByteBuffer view;
+
+		Slice(Chunk chunk) {
+			this.chunk = chunk;
+			this.view = chunk.data.duplicate();
+		}
+	}
+
+	/**
+	 * 1人の観戦者の接続。配信のスレッドだけが触る。
+	 */
+	private final class Spectator {
+		final SocketChannel channel;
+		final SelectionKey key;
+		final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_LENGTH);
+		final ArrayDeque<Slice> pending = new ArrayDeque<>();
+		Feed feed;// 部屋を選ぶまではnull
+		boolean closing = false;// 送信待ちを書き終えたら切断する
+
+		Spectator(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * SpectatorHubのコンストラクタ。
+	 *
+	 * @param port 観戦者を待ち受けるポート
+	 * @param delayMillis 中継してから観戦者に配るまでの遅延（ミリ秒）
+	 * @throws IOException Selectorを開けない場合
+	 */
+	SpectatorHub(int port, long delayMillis) throws IOException {
+		this.port = port;
+		this.delay = delayMillis * 1000000;
+		this.selector = Selector.open();
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * 待ち受けを始め、配信のスレッドを開始する。
+	 *
+	 * @throws IOException ポートを開けない場合
+	 */
+	void start() throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port), 1024);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		System.out.println("Spectators: port " + port + ", delay " + delay / 1000000 + "ms");
+		lastStatsTime = System.nanoTime();
+		thread.start();
+	}
+
+	/**
+	 * 部屋の配信を始める。
+	 *
+	 * @param room 試合を始める部屋
+	 * @return 部屋の配信
+	 */
+	Feed open(Room room) {
+		Feed feed = new Feed(room.getId(), room.getCapacity());
+		feeds.put(room.getId(), feed);
+		return feed;
+	}
+
+	/**
+	 * 接続の受付、観戦者の読み書き、ティックごとの配信を行うループ。
+	 */
+	@Override
+	public void run() {
+		long nextTick = System.nanoTime();
+		while (true) {
+			try {
+				long wait = nextTick - System.nanoTime();
+				if (wait > 1000000) selector.select(wait / 1000000);
+				else selector.selectNow();
+
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						accept((ServerSocketChannel) key.channel());
+						continue;
+					}
+					Spectator spectator = (Spectator) key.attachment();
+					if (key.isReadable()) onReadable(spectator);
+					if (key.isValid() && key.isWritable()) flush(spectator);
+				}
+
+				long now = System.nanoTime();
+				if (now - nextTick >= 0) {
+					for (Feed feed : feeds.values()) tick(feed, now);
+					nextTick += TICK;
+					if (now - nextTick >= 0) nextTick = now + TICK;// 追いつけない場合は遅れを取り戻そうとしない
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * 溜まっている接続要求をまとめて受け付ける。
+	 */
+	private void accept(ServerSocketChannel server) throws IOException {
+		SocketChannel channel;
+		while ((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			key.attach(new Spectator(channel, key));
+			spectatorCount++;
+		}
+	}
+
+	/**
+	 * 観戦者から届いたデータを読む。部屋を選ぶ前は最初の1行を読み、選んだ後は読み捨てる。
+	 */
+	private void onReadable(Spectator spectator) {
+		try {
+			ByteBuffer buffer = spectator.feed == null ? spectator.request : discard;
+			if (buffer == discard) discard.clear();
+			if (spectator.channel.read(buffer) < 0) {
+				disconnect(spectator);
+				return;
+			}
+			if (spectator.feed != null) return;
+
+			ByteBuffer request = spectator.request;
+			int newline = -1;
+			for (int i = 0; i < request.position(); i++) {
+				if (request.get(i) == '\n') {
+					newline = i;
+					break;
+				}
+			}
+			if (newline < 0) {
+				if (!request.hasRemaining()) disconnect(spectator);// 長すぎる
+				return;
+			}
+			String line = new String(request.array(), 0, newline, StandardCharsets.UTF_8).trim();
+			watch(spectator, line);
+		} catch (IOException e) {
+			disconnect(spectator);
+		}
+	}
+
+	/**
+	 * 最初の1行で選ばれた部屋の観戦者に加え、途中から観るための状態を送る。
+	 */
+	private void watch(Spectator spectator, String line) {
+		String[] tokens = line.split("\\s+");
+		if (!tokens[0].equals("WATCH")) {
+			disconnect(spectator);
+			return;
+		}
+		Feed feed = null;
+		if (tokens.length > 1) {
+			try {
+				feed = feeds.get(Integer.parseInt(tokens[1]));
+			} catch (NumberFormatException e) {
+				// 見つからなかったものとして扱う
+			}
+		} else {
+			for (Feed candidate : feeds.values()) {
+				if (!candidate.closed && (feed == null || candidate.roomId < feed.roomId)) feed = candidate;
+			}
+		}
+		if (feed == null || feed.closed) {
+			disconnect(spectator);
+			return;
+		}
+
+		// 途中から観るための状態は、その観戦者だけが参照するバッファで送る
+		List<byte[]> frames = new ArrayList<>();
+		frames.add(("SPECTATE " + feed.roomId + " " + feed.capacity + " " + delay / 1000000 + "\n").getBytes(StandardCharsets.UTF_8));
+		frames.add(Packet.of("PLAYER_COUNT " + feed.capacity).encode(true));
+		for (int slot = 0; slot < feed.capacity; slot++) {
+			if (feed.lastLocates[slot] != null) frames.add(feed.lastLocates[slot].encode(true));
+			if (feed.lastAims[slot] != null) frames.add(feed.lastAims[slot].encode(true));
+		}
+		int size = 0;
+		for (byte[] frame : frames) size += frame.length;
+		Chunk chunk = new Chunk(ByteBuffer.allocate(size));
+		for (byte[] frame : frames) chunk.data.put(frame);
+		chunk.data.flip();
+		chunk.references = 1;
+
+		spectator.feed = feed;
+		feed.spectators.add(spectator);
+		spectator.pending.add(new Slice(chunk));
+		flush(spectator);
+	}
+
+	/**
+	 * 配る時刻になったメッセージを共有バッファにまとめ、部屋の全観戦者に書く。
+	 */
+	private void tick(Feed feed, long now) {
+		ArrayDeque<Pending> arrived;
+		synchronized (feed) {
+			arrived = feed.incoming;
+			feed.incoming = new ArrayDeque<>();
+		}
+		if (feed.delayed.isEmpty()) {
+			feed.delayed = arrived;
+		} else {
+			feed.delayed.addAll(arrived);
+		}
+
+		Chunk chunk = null;
+		boolean watched = !feed.spectators.isEmpty();
+		while (!feed.delayed.isEmpty() && now - feed.delayed.peek().time >= delay) {
+			Pending pending = feed.delayed.poll();
+			Packet packet = pending.packet;
+			if (pending.slot >= 0 && pending.slot < feed.capacity) {
+				switch (packet.getMessage().command) {
+					case LOCATE:
+						feed.lastLocates[pending.slot] = packet;
+						break;
+					case AIM:
+						feed.lastAims[pending.slot] = packet;
+						break;
+				}
+			}
+			if (!watched) continue;// 誰も観ていなければ状態だけ覚えておく
+
+			byte[] frame = packet.encode(true);// プレイヤーへの送信と同じバイト列を使う
+			if (chunk == null || chunk.data.remaining() < frame.length) {
+				if (chunk != null) deliver(feed, chunk);
+				chunk = newChunk(frame.length);
+			}
+			chunk.data.put(frame);
+		}
+		if (chunk != null) deliver(feed, chunk);
+
+		if (feed.closed && feed.delayed.isEmpty()) {
+			synchronized (feed) {
+				if (!feed.incoming.isEmpty()) return;
+			}
+			for (Spectator spectator : new ArrayList<>(feed.spectators)) {
+				spectator.closing = true;
+				if (spectator.pending.isEmpty()) disconnect(spectator);
+			}
+			if (feed.spectators.isEmpty()) feeds.remove(feed.roomId);
+		}
+	}
+
+	/**
+	 * 共有バッファを用意する。プールにあれば使い回す。
+	 */
+	private Chunk newChunk(int minimum) {
+		ByteBuffer data = minimum <= CHUNK_SIZE ? pool.poll() : null;
+		if (data == null) data = minimum <= CHUNK_SIZE ? ByteBuffer.allocateDirect(CHUNK_SIZE) : ByteBuffer.allocate(minimum);
+		chunksEncoded++;
+		return new Chunk(data);
+	}
+
+	/**
+	 * 書き終えた共有バッファを部屋の全観戦者の送信待ちに積み、書けるだけ書く。
+	 */
+	private void deliver(Feed feed, Chunk chunk) {
+		chunk.data.flip();
+		chunk.references = feed.spectators.size();
+		for (Spectator spectator : new ArrayList<>(feed.spectators)) {
+			if (spectator.pending.size() >= MAX_PENDING) {
+				chunk.release();
+				kicked++;
+				disconnect(spectator);// 追いつけない観戦者は切る
+				continue;
+			}
+			spectator.pending.add(new Slice(chunk));
+			if (spectator.pending.size() == 1) flush(spectator);// 既に待っているものがあれば書けるようになったときにまとめて書く
+		}
+	}
+
+	/**
+	 * 送信待ちをgathering writeでまとめて書く。書ききれなかった分は、書けるようになったら続きを書く。
+	 */
+	private void flush(Spectator spectator) {
+		try {
+			while (!spectator.pending.isEmpty()) {
+				int count = 0;
+				for (Slice slice : spectator.pending) {
+					if (count == MAX_GATHER) break;
+					gather[count++] = slice.view;
+				}
+				long written = spectator.channel.write(gather, 0, count);
+				writeCalls++;
+				bytesWritten += written;
+				while (!spectator.pending.isEmpty() && !spectator.pending.peek().view.hasRemaining()) {
+					spectator.pending.poll().chunk.release();
+				}
+				if (!spectator.pending.isEmpty() && spectator.pending.peek().view.position() > 0 || written == 0) {
+					break;// 送信バッファがいっぱい
+				}
+			}
+		} catch (IOException e) {
+			disconnect(spectator);
+			return;
+		}
+		if (!spectator.key.isValid()) return;
+		if (spectator.pending.isEmpty()) {
+			if (spectator.closing) {
+				disconnect(spectator);
+				return;
+			}
+			spectator.key.interestOps(SelectionKey.OP_READ);
+		} else {
+			spectator.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * 観戦者を切断し、参照していた共有バッファを返す。
+	 */
+	private void disconnect(Spectator spectator) {
+		if (!spectator.key.isValid()) return;
+		spectator.key.cancel();
+		try {
+			spectator.channel.close();
+		} catch (IOException e) {
+			// 既に閉じている
+		}
+		Slice slice;
+		while ((slice = spectator.pending.poll()) != null) slice.chunk.release();
+		if (spectator.feed != null) spectator.feed.spectators.remove(spectator);
+		spectatorCount--;
+	}
+
+	/**
+	 * 前回呼ばれたときから今までの配信の統計を1行にまとめる。
+	 * CPU使用率は配信のスレッドだけのもの（1コア=100%）。
+	 *
+	 * @return 統計の文字列
+	 */
+	synchronized String getStats() {
+		long now = System.nanoTime();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long cpu = threads.isThreadCpuTimeSupported() ? threads.getThreadCpuTime(thread.getId()) : -1;
+		double seconds = Math.max((now - lastStatsTime) / 1e9, 1e-9);
+		long bytes = bytesWritten, writes = writeCalls, chunks = chunksEncoded;
+		String stats = String.format("spectators=%d matches=%d out=%.0fKB/s writes=%.0f/s chunks=%.0f/s cpu=%s kicked=%d",
+				spectatorCount, feeds.size(), (bytes - lastBytesWritten) / 1024.0 / seconds, (writes - lastWriteCalls) / seconds,
+				(chunks - lastChunksEncoded) / seconds, cpu < 0 ? "n/a" : String.format("%.1f%%", (cpu - lastCpuTime) / 1e7 / seconds), kicked);
+		lastStatsTime = now;
+		lastBytesWritten = bytes;
+		lastWriteCalls = writes;
+		lastChunksEncoded = chunks;
+		lastCpuTime = cpu;
+		return stats;
+	}
+}
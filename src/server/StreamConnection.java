@@ -0,0 +1,125 @@
+package server;
+
+import protocol.UdpChannel;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * スレッド方式（1クライアント1スレッド）の接続。
+ * 送信キューに積まれたメッセージを、接続ごとの書き込みスレッドがブロッキングソケットに書き込む。
+ */
+class StreamConnection implements Connection {
+
+	private final Socket socket;
+	private final OutputStream out;
+	private final OutboundQueue queue;
+	private int number;//自分の番号
+	private boolean binary = false;// 書き込みスレッドだけが参照する
+	private volatile UdpChannel datagram;// UDPで送るメッセージの送り先。クライアントがUDPを使わない場合はnull
+	private volatile Thread writer;
+	private volatile boolean closed = false;
+
+	/**
+	 * StreamConnectionのコンストラクタ。
+	 *
+	 * @param socket クライアントとの接続ソケット
+	 * @param queue この接続の送信キュー
+	 */
+	StreamConnection(Socket socket, OutboundQueue queue) throws IOException {
+		this.socket = socket;
+		this.out = new BufferedOutputStream(socket.getOutputStream());
+		this.queue = queue;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 送信キューを書き出す書き込みスレッドを開始する。
+	 */
+	@Override
+	public void start(int number) {
+		this.number = number;
+		Thread writer = new Thread(this::writeLoop, "writer-" + number);
+		writer.setDaemon(true);
+		this.writer = writer;
+		writer.start();
+		if (closed) writer.interrupt();// 開始する前に閉じられた
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * UDPで送るメッセージも送信キューに積み、書き込みスレッドがUDPのチャンネルに渡す。
+	 * キューが溢れて追いつけないと判断した場合は切断する。
+	 */
+	@Override
+	public void send(Packet packet) {
+		if (closed) return;
+		if (!queue.offer(packet)) {
+			System.err.println("送信キューが溢れたため切断します: client No." + number);
+			MyServer.Unregister(number, this);
+			close();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void attachDatagram(UdpChannel channel) {
+		this.datagram = channel;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public OutboundQueue getQueue() {
+		return queue;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 送信キューを待っている書き込みスレッドも終わらせる。
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		Thread writer = this.writer;
+		if (writer != null) writer.interrupt();
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// 既に切断されている
+		}
+	}
+
+	/**
+	 * 送信キューからメッセージを取り出して書き込むループ。
+	 * UDPのチャンネルがあれば、UDPで送るメッセージはチャンネルに溜める。
+	 * キューが空になったときだけソケットとチャンネルをフラッシュするので、溜まっている分はまとめて送られる。
+	 */
+	private void writeLoop() {
+		try {
+			while (!closed) {
+				Packet packet = queue.take();
+				UdpChannel datagram = this.datagram;
+				if (packet == Packet.UPGRADE) {
+					out.write(packet.encode(false));// 承認の行まではテキスト形式
+					binary = true;
+				} else if (datagram != null && UdpChannel.carries(packet.getMessage().command)) {
+					datagram.send(packet.getMessage().command, packet.encode(true));
+				} else {
+					out.write(packet.encode(binary));
+				}
+				if (queue.getDepth() == 0) {
+					out.flush();//バッファをはき出す＝＞バッファにある全てのデータをすぐに送信する
+					if (datagram != null) datagram.flush();
+				}
+			}
+		} catch (InterruptedException | IOException e) {
+			// 切断された
+		}
+	}
+}
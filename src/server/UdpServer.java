@@ -0,0 +1,144 @@
+package server;
+
+import protocol.Message;
+import protocol.UdpChannel;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TCPと並べて使うUDPの受け口。
+ * TCPで接続したクライアントに{@link #open}でセッション番号を割り当て、接続時の1行目で知らせる。
+ * クライアントから最初のデータグラムが届いたらアドレスを覚え、その接続に{@link UdpChannel}を渡す。
+ * 以降、位置・照準とイベントはUDPで、それ以外はこれまでどおりTCPでやりとりする。
+ * 受信と再送は1本のスレッドで行う。
+ */
+class UdpServer implements Runnable {
+
+	private static final int RECEIVE_BUFFER_SIZE = 2048;
+	private static final int FLUSH_INTERVAL = 20;// 再送を確認する間隔（ミリ秒）
+
+	private final DatagramSocket socket;
+	private final double lossRate;
+	private final SecureRandom random = new SecureRandom();
+	private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();// セッション番号ごとの接続
+
+	/**
+	 * UdpServerのコンストラクタ。
+	 *
+	 * @param port 待ち受けポート（TCPと同じ番号を使う）
+	 * @param lossRate 送信するデータグラムをわざと捨てる割合（0〜1）
+	 */
+	UdpServer(int port, double lossRate) throws IOException {
+		this.socket = new DatagramSocket(port);
+		this.socket.setSoTimeout(FLUSH_INTERVAL);
+		this.lossRate = lossRate;
+	}
+
+	/**
+	 * 受信スレッドを開始する。
+	 */
+	void start() {
+		Thread thread = new Thread(this, "udp");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * TCPで接続したクライアントのセッションを作り、セッション番号を割り当てる。
+	 *
+	 * @param connection クライアントとのTCPの接続
+	 * @param number クライアント番号
+	 * @return クライアントに知らせるセッション番号
+	 */
+	int open(Connection connection, int number) {
+		int id;
+		do {
+			id = random.nextInt(Integer.MAX_VALUE);// 推測されにくい番号にする
+		} while (sessions.containsKey(id));
+		sessions.put(id, new Session(connection, number, new UdpChannel(socket, null, id, lossRate)));
+		return id;
+	}
+
+	/**
+	 * 切断したクライアントのセッションを破棄する。
+	 * クライアント番号は再利用されるので、TCPの接続で探す。
+	 *
+	 * @param connection クライアントとのTCPの接続
+	 */
+	void close(Connection connection) {
+		sessions.values().removeIf(session -> session.connection == connection);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * データグラムを受信してセッションに振り分け、受け取ったメッセージをTCPで受信したものと同じように処理する。
+	 * 一定間隔で全セッションの再送を確認する。
+	 */
+	@Override
+	public void run() {
+		byte[] buffer = new byte[RECEIVE_BUFFER_SIZE];
+		DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+		long nextFlush = System.nanoTime() / 1000000 + FLUSH_INTERVAL;
+		while (!socket.isClosed()) {
+			try {
+				datagram.setLength(buffer.length);
+				socket.receive(datagram);
+				onDatagram(datagram);
+			} catch (SocketTimeoutException e) {
+				// 再送の確認に進む
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			long now = System.nanoTime() / 1000000;
+			if (now < nextFlush) continue;
+			nextFlush = now + FLUSH_INTERVAL;
+			for (Session session : sessions.values()) {
+				session.channel.flush();
+			}
+		}
+	}
+
+	/**
+	 * 1つのデータグラムを処理する。
+	 * 知らないセッション番号のものは捨てる。
+	 *
+	 * @param datagram 受信したデータグラム
+	 */
+	private void onDatagram(DatagramPacket datagram) {
+		Session session = sessions.get(UdpChannel.readSession(datagram.getData(), datagram.getLength()));
+		if (session == null) return;
+		if (!datagram.getSocketAddress().equals(session.channel.getRemote())) {
+			session.channel.setRemote(datagram.getSocketAddress());// 最初のデータグラム、またはクライアントのアドレスが変わった
+			session.connection.attachDatagram(session.channel);
+		}
+		try {
+			for (Message message : session.channel.receive(datagram.getData(), datagram.getLength())) {
+				MyServer.Receive(Packet.of(message), session.number);
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println("不正なデータグラムを受信しました: client No." + session.number);
+		}
+	}
+
+	/**
+	 * 1クライアント分のUDPのセッション。
+	 */
+	private static class Session {
+		final Connection connection;
+		final int number;
+		final UdpChannel channel;
+
+		Session(Connection connection, int number, UdpChannel channel) {
+			this.connection = connection;
+			this.number = number;
+			this.channel = channel;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package stage;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+
+/**
+ * 自動操縦の行動パターン。
+ * 2秒ごとの方向転換、3秒ごとの5連射、10秒ごとの8個連続のブロック設置を、フレームごとに判断する。
+ * 判断だけを行い戦車には触れないので、{@link AutoTank}のほか、サーバーの負荷試験のボットからも使える。
+ */
+public class AutoPilot {
+
+	private static final int FPS = 60; // フレームレート
+
+	private final Random random;
+
+	// 移動関連
+	private static final int DIRECTION_CHANGE_FRAME = FPS * 2; // 2秒ごとに方向転換
+	private int directionChangeFrame = 0;
+	private final Point2D.Double currentDirection = new Point2D.Double(0, 0);
+
+	// 射撃関連
+	private static final int SHOOT_COOLDOWN = FPS * 3; // 3秒ごとに連射開始
+	private static final int BURST_COUNT = 5; // 5発連射
+	private static final int BURST_INTERVAL = FPS / 5; // 0.2秒間隔
+	private int shootCooldown = SHOOT_COOLDOWN;
+	private int burstCount = 0;
+	private int burstInterval = 0;
+
+	// ブロック設置関連
+	private static final int BLOCK_COOLDOWN = FPS * 10; // 10秒ごとに設置開始
+	private static final int PLACING_BLOCK_COUNT = 8; // 8個連続設置
+	private static final int BLOCK_PLACEMENT_INTERVAL = FPS / 4; // ブロック生成間隔 (0.25秒)
+	private int blockCooldown = BLOCK_COOLDOWN;
+	private int placingBlockCount = 0;
+	private int blockPlacementInterval = 0; // 次のブロックを置くまでのタイマー
+
+	// このフレームの判断
+	private boolean shoot = false;
+	private boolean placeBlock = false;
+
+	/**
+	 * AutoPilotのコンストラクタ。
+	 *
+	 * @param random 方向転換に使う乱数
+	 */
+	public AutoPilot(Random random) {
+		this.random = random;
+		changeDirection();
+	}
+
+	/**
+	 * 1フレーム分の行動を決める。
+	 * 結果は{@link #shouldPlaceBlock()}、{@link #shouldShoot()}、{@link #getDirection()}で取得する。
+	 */
+	public void update() {
+		handleBlockPlacement();
+		handleShooting();
+		handleMovement();
+	}
+
+	/**
+	 * このフレームで弾丸を撃つかを取得する。
+	 */
+	public boolean shouldShoot() {
+		return shoot;
+	}
+
+	/**
+	 * このフレームでブロックを置くかを取得する。
+	 */
+	public boolean shouldPlaceBlock() {
+		return placeBlock;
+	}
+
+	/**
+	 * 現在の移動方向（単位ベクトル）を取得する。
+	 */
+	public Point2D.Double getDirection() {
+		return currentDirection;
+	}
+
+	/**
+	 * 壁にぶつかったときに呼ぶ。別の方向に向きを変える。
+	 */
+	public void onBlocked() {
+		changeDirection();
+	}
+
+	private void handleMovement() {
+		// ブロック設置中は方向転換しない
+		if (placingBlockCount > 0) {
+			return;
+		}
+
+		directionChangeFrame--;
+		if (directionChangeFrame <= 0) {
+			changeDirection();
+		}
+	}
+
+	private void handleShooting() {
+		shoot = false;
+
+		// ブロック設置中は射撃しない
+		if (placingBlockCount > 0) {
+			return;
+		}
+
+		// 連射中
+		if (burstCount > 0) {
+			burstInterval--;
+			if (burstInterval <= 0) {
+				shoot = true;
+				burstCount--;
+				burstInterval = BURST_INTERVAL;
+			}
+		}
+		// 連射開始判定
+		else {
+			shootCooldown--;
+			if (shootCooldown <= 0) {
+				burstCount = BURST_COUNT;
+				burstInterval = 0; // すぐに1発目を撃つ
+				shootCooldown = SHOOT_COOLDOWN;
+			}
+		}
+	}
+
+	private void handleBlockPlacement() {
+		placeBlock = false;
+
+		// ブロック設置中
+		if (placingBlockCount > 0) {
+			blockPlacementInterval--;
+			if (blockPlacementInterval <= 0) {
+				placeBlock = true;
+				placingBlockCount--;
+				blockPlacementInterval = BLOCK_PLACEMENT_INTERVAL;
+			}
+		}
+		// ブロック設置開始判定
+		else {
+			blockCooldown--;
+			if (blockCooldown <= 0) {
+				placingBlockCount = PLACING_BLOCK_COUNT;
+				blockPlacementInterval = 0; // 最初のブロックはすぐに置く
+				// 設置中は直進を続けるように方向転換タイマーをリセット
+				directionChangeFrame = PLACING_BLOCK_COUNT * BLOCK_PLACEMENT_INTERVAL + FPS; // 設置時間+α
+				blockCooldown = BLOCK_COOLDOWN;
+			}
+		}
+	}
+
+	private void changeDirection() {
+		directionChangeFrame = DIRECTION_CHANGE_FRAME;
+		int angleDeg = random.nextInt(8) * 45; // 0, 45, 90, ..., 315
+		double angleRad = Math.toRadians(angleDeg);
+		currentDirection.x = Math.cos(angleRad);
+		currentDirection.y = Math.sin(angleRad);
+	}
+}
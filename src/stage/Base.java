@@ -2,6 +2,7 @@ package stage;
 
 import client.GameEngine;
 import client.SoundManager;
+import protocol.EntityState;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
@@ -23,6 +24,9 @@ public class Base implements GameObject {
     private final Point2D.Double position;
     private final Team team;
 
+    // 衝突判定用
+    private final Circle shape;
+
     // 定数(演出用)
     private static final int DAMAGE_FLUSH_FRAME = (int) (GameEngine.FPS * 1.5);
     private static final int DEBRIS_LIFE_FRAME = GameEngine.FPS / 4;
@@ -75,6 +79,7 @@ public class Base implements GameObject {
      */
     public Base(double x, double y, Team team, int hp) {
         this.position = new Point2D.Double(x, y);
+        this.shape = new Circle(this.position, 0);
         this.team = team;
         this.hp = INIT_HP = hp;
     }
@@ -100,6 +105,24 @@ public class Base implements GameObject {
         sound.objectExplosion();
     }
 
+    /**
+     * サーバーのシミュレーション結果として送る状態を書き出します。
+     */
+    void writeState(EntityState state) {
+        state.kind = EntityState.Kind.BASE;
+        state.x = position.x;
+        state.y = position.y;
+        state.hp = hp;
+    }
+
+    /**
+     * サーバーのシミュレーション結果を反映します。
+     * HPが減った場合はダメージとして扱うので、点滅や爆発の演出はクライアントでも再生されます。
+     */
+    void applyState(EntityState state) {
+        if (state.hp < hp) damage(hp - state.hp);
+    }
+
     /**
      * この基地が所属するチームを取得します。
      *
@@ -275,8 +298,8 @@ public class Base implements GameObject {
      */
     @Override
     public Shape getShape() {
-        double width = getBaseImage().getWidth() * debrisScale;
-        return new Circle(this.position, width / 2.0);
+        shape.radius = getBaseImage().getWidth() * debrisScale / 2.0;
+        return shape;
     }
 
     /**
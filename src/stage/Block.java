@@ -2,6 +2,7 @@ package stage;
 
 import client.GameEngine;
 import client.SoundManager;
+import protocol.EntityState;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
@@ -13,14 +14,16 @@ import java.util.Objects;
 
 import static stage.Team.*;
 
-public class Block implements GameObject {
+public class Block extends Entity implements StaticObject {
 
 	// 特徴
 	private static final int INITIAL_HP = 50;
 
 	// 状態（クライアント間の同期に必要)
-	private final Point2D.Double position;
-	private int hp = INITIAL_HP;
+	// 位置とHPは、Entityの列に持つ
+
+	// 衝突判定用
+	private final Rectangle shape;// getShapeのたびに列から書き込む
 
 	// 演出用定数
 	private static final int DAMAGE_FLUSH_FRAME = (int)(GameEngine.FPS * 1.5);
@@ -45,6 +48,8 @@ public class Block implements GameObject {
 		BABY, NORMAL, BROKEN, DEBRIS, SHOULD_REMOVE
 	}
 
+	private static final State[] STATES = State.values();
+
 	static {
 		try {
 			normalBlockImage = ImageIO.read(Objects.requireNonNull(Block.class.getResource("/client/assets/block_normal.png")));
@@ -62,8 +67,12 @@ public class Block implements GameObject {
 	 * 生成されたばかりの「ベビー」ブロックの場合、一定期間半透明で表示されます。
 	 */
 	public Block(double x, double y, boolean isBaby) {
-		this.position = new Point2D.Double(x, y);
+		this.shape = new Rectangle(new Point2D.Double(), 0, 0);
 		if (isBaby) babyBlockLifeFrame = BABY_BLOCK_LIFE_FRAME;
+		moveTo(x, y);
+		setTeam(OBSTACLE);
+		setHp(INITIAL_HP);
+		refreshState();
 	}
 
 	// ============================= Blockクラス独自のメソッド =============================
@@ -74,8 +83,9 @@ public class Block implements GameObject {
 	 */
 	public void OnDie() {
 		sound.objectExplosion();
-		this.hp = 0;
+		setHp(0);
 		this.debrisLifeFrame = DEBRIS_LIFE_FRAME;
+		refreshState();
 	}
 
 	/**
@@ -84,8 +94,9 @@ public class Block implements GameObject {
 	 */
 	public void damage(int damage) {
 		damageFlushFrame = DAMAGE_FLUSH_FRAME;
-		hp -= damage;
-		if (hp <= 0) this.OnDie();
+		setHp(hp() - damage);
+		if (hp() <= 0) this.OnDie();
+		refreshState();
 	}
 
 	/**
@@ -93,8 +104,15 @@ public class Block implements GameObject {
 	 * ダメージを受けた直後は点滅演出のため透明な画像が返されることがあります。
 	 */
 	private BufferedImage getImage() {
+		return getImage(getState());
+	}
+
+	/**
+	 * 指定された状態での、ブロックの画像を取得します。
+	 */
+	private BufferedImage getImage(State state) {
 		boolean isFlushing = (damageFlushFrame > 0) && damageFlushFrame % 20 == 0;
-		switch (getState()) {
+		switch (state) {
 			case NORMAL:
 				if (isFlushing) return noneImage;
 				return normalBlockImage;
@@ -107,21 +125,80 @@ public class Block implements GameObject {
 			case SHOULD_REMOVE:
 				return blockDebrisImage;
 			default:
-				throw new IllegalStateException("Unexpected value: " + getState());
+				throw new IllegalStateException("Unexpected value: " + state);
 		}
 	}
 
 	/**
 	 * ブロックの現在の状態を取得します。
+	 * 状態は列に書き込んだものを読みます（{@link #refreshState()}）。
 	 */
 	private State getState() {
-		if (debrisLifeFrame <= 0 && hp <= 0) return State.SHOULD_REMOVE;
+		return STATES[state()];
+	}
+
+	/**
+	 * タイマーとHPから、ブロックの現在の状態を求めます。
+	 */
+	private State computeState() {
+		if (debrisLifeFrame <= 0 && hp() <= 0) return State.SHOULD_REMOVE;
 		if (babyBlockLifeFrame > 0) return State.BABY;
-		if (hp <= 0) return State.DEBRIS;
-		if (this.hp < INITIAL_HP / 2.0) return State.BROKEN;
+		if (hp() <= 0) return State.DEBRIS;
+		if (hp() < INITIAL_HP / 2.0) return State.BROKEN;
 		return State.NORMAL;
 	}
 
+	/**
+	 * タイマーとHPから決まる状態と、当たり判定の有無、形状の大きさ（今の状態の画像）を列に書き込み直します。
+	 * タイマーやHP、スケールを変えたメソッドの最後に呼びます。
+	 */
+	private void refreshState() {
+		State state = computeState();
+		BufferedImage image = getImage(state);
+		setState(state.ordinal(), state == State.NORMAL || state == State.BROKEN);
+		setExtents(image.getWidth() * objectScale / 2.0, image.getHeight() * objectScale / 2.0, false);
+	}
+
+	// ============================= スナップショット =============================
+
+	/**
+	 * サーバーのシミュレーション結果として送る状態を書き出します。
+	 * 状態は生成直後（半透明）なら半透明でなくなるティック、それ以外は0です。
+	 *
+	 * @param tick 書き出すスナップショットのティック番号
+	 */
+	void writeState(EntityState state, int tick) {
+		state.kind = EntityState.Kind.BLOCK;
+		state.x = x();
+		state.y = y();
+		state.state = babyBlockLifeFrame > 0 ? tick + babyBlockLifeFrame : 0;
+		state.hp = hp();
+	}
+
+	/**
+	 * サーバーのシミュレーション結果を反映します。
+	 * HPが減った場合はダメージとして扱うので、点滅や爆発の演出はクライアントでも再生されます。
+	 */
+	void applyState(EntityState state) {
+		if (state.hp < hp()) damage(hp() - state.hp);
+	}
+
+	/**
+	 * サーバーのシミュレーション結果から、クライアントにまだ無いブロックを生成します。
+	 *
+	 * @param tick スナップショットのティック番号
+	 * @return 生成したブロック。既に壊れている場合はnull
+	 */
+	static Block fromState(EntityState state, int tick) {
+		if (state.hp <= 0) return null;
+		sound.createBlock();
+		Block block = new Block(state.x, state.y, false);
+		block.babyBlockLifeFrame = Math.max(0, state.state - tick);
+		block.setHp(state.hp);
+		block.refreshState();
+		return block;
+	}
+
 	// ============================= GameObjectインタフェースのメソッド =============================
 
 	/**
@@ -130,7 +207,7 @@ public class Block implements GameObject {
 	 */
 	@Override
 	public void update() {
-		if (hp < INITIAL_HP / 2 && !isBroken) {
+		if (hp() < INITIAL_HP / 2 && !isBroken) {
 			sound.objectBreak();
 			isBroken = true;
 		}
@@ -139,9 +216,10 @@ public class Block implements GameObject {
 
 		if (damageFlushFrame > 0) damageFlushFrame--;
 
-		if (getState() == State.DEBRIS) {
+		if (computeState() == State.DEBRIS) {
 			objectScale += (GameEngine.FPS / 60.0) * debrisLifeFrame / 100.0;
 		}
+		refreshState();
 	}
 
 	/**
@@ -152,7 +230,7 @@ public class Block implements GameObject {
 	public void draw(Graphics2D graphics) {
 		BufferedImage image = getImage();
 		AffineTransform trans = new AffineTransform();
-		trans.translate(this.position.x, this.position.y);
+		trans.translate(x(), y());
 		trans.scale(objectScale, objectScale);
 		trans.translate(-image.getWidth() / 2.0, -image.getHeight() / 2.0);
 		graphics.drawImage(getImage(), trans, null);
@@ -190,8 +268,7 @@ public class Block implements GameObject {
 	 */
 	@Override
 	public boolean hasRigidBody() {
-		State s = getState();
-		return s == State.NORMAL || s == State.BROKEN;
+		return rigid();
 	}
 
 	/**
@@ -214,11 +291,35 @@ public class Block implements GameObject {
 
 	/**
 	 * {@inheritDoc}
-	 * ブロックは長方形の形状を持ちます。
+	 * ブロックは長方形の形状を持ちます。大きさは今の状態の画像に合わせます。
+	 * 返す形状は使い回しで、呼ぶたびに列の位置と大きさを書き込みます。
 	 */
 	@Override
 	public Shape getShape() {
-		return new Rectangle(this.position, this.getWidth(), this.getHeight());
+		shape.center.setLocation(x(), y());
+		shape.width = halfWidth() * 2;
+		shape.height = halfHeight() * 2;
+		return shape;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 剛体である間（NORMAL状態とBROKEN状態）に使う画像のうち、最も大きいものの大きさを返します。
+	 */
+	@Override
+	public Rectangle getBounds() {
+		double width = Math.max(Math.max(normalBlockImage.getWidth(), brokenBlockImage.getWidth()), noneImage.getWidth());
+		double height = Math.max(Math.max(normalBlockImage.getHeight(), brokenBlockImage.getHeight()), noneImage.getHeight());
+		return new Rectangle(new Point2D.Double(x(), y()), width, height);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * ブロックはダメージを受けて壊れるため、常にfalseを返します。
+	 */
+	@Override
+	public boolean isPermanent() {
+		return false;
 	}
 
 	/**
@@ -226,7 +327,7 @@ public class Block implements GameObject {
 	 */
 	@Override
 	public Point2D.Double getPosition() {
-		return (Point2D.Double) this.position.clone();
+		return new Point2D.Double(x(), y());
 	}
 
 	/**
@@ -234,7 +335,7 @@ public class Block implements GameObject {
 	 */
 	@Override
 	public void setPosition(Point2D.Double position) {
-		this.position.setLocation(position);
+		moveTo(position.x, position.y);
 	}
 
 	/**
@@ -242,7 +343,7 @@ public class Block implements GameObject {
 	 */
 	@Override
 	public int getHP() {
-		return this.hp;
+		return hp();
 	}
 
 	/**
@@ -251,7 +352,7 @@ public class Block implements GameObject {
 	 */
 	@Override
 	public Team getTeam() {
-		return OBSTACLE;
+		return team();
 	}
 
 	// ============================= ゲッターセッター =============================
@@ -260,7 +361,7 @@ public class Block implements GameObject {
 	 * オブジェクトのスケールを考慮します。
 	 */
 	public double getWidth() {
-		return getImage().getWidth() * objectScale;
+		return halfWidth() * 2;
 	}
 
 	/**
@@ -268,6 +369,7 @@ public class Block implements GameObject {
 	 * オブジェクトのスケールを考慮します。
 	 */
 	public double getHeight() {
-		return getImage().getHeight() * objectScale;
+		return halfHeight() * 2;
 	}
+
 }
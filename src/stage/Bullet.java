@@ -2,6 +2,7 @@ package stage;
 
 import client.GameEngine;
 import client.SoundManager;
+import protocol.EntityState;
 
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
@@ -13,7 +14,7 @@ import javax.imageio.ImageIO;
 
 import static stage.Team.*;
 
-public class Bullet implements GameObject, Projectile {
+public class Bullet extends Entity implements MovingObject, Projectile {
 
     // 特徴
     private static final int COLLISION_RADIUS = 5;
@@ -23,9 +24,12 @@ public class Bullet implements GameObject, Projectile {
 
     // 状態（クライアント間の同期に必要)
     private Tank shooter;
-    private final Point2D.Double position; // 弾丸オブジェクトの中心座標
     private final double dx, dy;
     private int lifeFrame = LIFE_TIME;
+    // 位置と前回の衝突判定から進んだ量は、Entityの列に持つ
+
+    // 衝突判定用
+    private final Circle shape; // getShapeのたびに列から中心を書き込む
 
     // 演出用定数
     private final int DEBRIS_LIFE_FRAME = GameEngine.FPS / 4;
@@ -44,6 +48,8 @@ public class Bullet implements GameObject, Projectile {
         NORMAL, DEBRIS, SHOULD_REMOVE
     }
 
+    private static final State[] STATES = State.values();
+
     static {
         try {
             noneImage = ImageIO.read(Objects.requireNonNull(Bullet.class.getResource("/client/assets/none_image.png")));
@@ -65,16 +71,48 @@ public class Bullet implements GameObject, Projectile {
         Point2D.Double tankPosition = shooter.getPosition();
         double x = tankPosition.x + (shooter.getBulletReleaseRadius() + this.getCollisionRadius()) * Math.cos(shooter.getGunAngle());
         double y = tankPosition.y + (shooter.getBulletReleaseRadius() + this.getCollisionRadius()) * Math.sin(shooter.getGunAngle());
-        this.position = new Point2D.Double(x, y);
+        this.shape = new Circle(new Point2D.Double(), COLLISION_RADIUS);
         this.shooter = shooter;
+        initialize(x, y);
 
         // 角度から速度ベクトルを計算
         this.dx = Math.cos(angle) * getVelocity();
         this.dy = Math.sin(angle) * getVelocity();
     }
 
+    /**
+     * サーバーのシミュレーションで発射された弾丸を、指定された位置と向きで生成します。
+     */
+    Bullet(Tank shooter, Point2D.Double position, double angle) {
+        this.shape = new Circle(new Point2D.Double(), COLLISION_RADIUS);
+        this.shooter = shooter;
+        initialize(position.x, position.y);
+        this.dx = Math.cos(angle) * getVelocity();
+        this.dy = Math.sin(angle) * getVelocity();
+    }
+
     // ============================= Bulletクラス独自のメソッド =============================
 
+    /**
+     * 位置と、弾丸の間は変わらないチーム、HP、形状の大きさを列に書き込みます。
+     */
+    private void initialize(double x, double y) {
+        moveTo(x, y);
+        setTeam(shooter.getTeam());
+        setHp(10);
+        setExtents(COLLISION_RADIUS, COLLISION_RADIUS, true);
+        refreshState();
+    }
+
+    /**
+     * タイマーから決まる状態と、当たり判定の有無を列に書き込み直します。
+     * タイマーを変えたメソッドの最後に呼びます。
+     */
+    private void refreshState() {
+        State state = computeState();
+        setState(state.ordinal(), state == State.NORMAL);
+    }
+
     /**
      * 弾丸が爆発する際の処理を実行します。
      * 爆発音を再生し、弾丸を破片状態にし、寿命を終了させます。
@@ -83,6 +121,7 @@ public class Bullet implements GameObject, Projectile {
         sound.bulletExplosion();
         this.debrisLifeFrame = DEBRIS_LIFE_FRAME;
         this.lifeFrame = 0;
+        refreshState();
     }
 
     /**
@@ -103,7 +142,7 @@ public class Bullet implements GameObject, Projectile {
      * {@inheritDoc}
      */
     public Team getTeam() {
-        return this.shooter.getTeam();
+        return team();
     }
 
     /**
@@ -125,13 +164,87 @@ public class Bullet implements GameObject, Projectile {
 
     /**
      * 弾丸の現在の状態を取得します。
+     * 状態は列に書き込んだものを読みます（{@link #refreshState()}）。
      */
     private State getState() {
+        return STATES[state()];
+    }
+
+    /**
+     * タイマーから、弾丸の現在の状態を求めます。
+     */
+    private State computeState() {
         if (debrisLifeFrame > 0) return State.DEBRIS;
         if (lifeFrame <= 0) return State.SHOULD_REMOVE;
         return State.NORMAL;
     }
 
+    /**
+     * 弾丸を撃った戦車を取得します。
+     */
+    Tank getShooter() {
+        return shooter;
+    }
+
+    /**
+     * 撃たれてから届くまでに経過したフレームの分だけ、弾丸を進めます。
+     * 撃った人のステージで弾丸がある位置に合わせるために使います。途中で当たった場合はそこで爆発します。
+     *
+     * @param stage 弾丸を置いたステージ
+     * @param frames 進めるフレーム数
+     */
+    public void fastForward(GameStage stage, int frames) {
+        for (int i = 0; i < frames && getState() == State.NORMAL; i++) {
+            update();
+            stage.resolveCollisions(this);
+        }
+    }
+
+    // ============================= スナップショット =============================
+
+    /**
+     * サーバーのシミュレーション結果として送る状態を書き出します。
+     * 状態は飛んでいれば0、爆発した後なら1です。HPの欄には飛んでいる間は寿命が尽きるティックを入れます（毎ティック変わらないので差分が増えません）。
+     *
+     * @param tick 書き出すスナップショットのティック番号
+     */
+    void writeState(EntityState state, int tick) {
+        state.kind = EntityState.Kind.BULLET;
+        state.x = x();
+        state.y = y();
+        state.angle = Math.atan2(dy, dx);
+        boolean flying = getState() == State.NORMAL;
+        state.state = flying ? 0 : 1;
+        state.hp = flying ? tick + lifeFrame : 0;
+    }
+
+    /**
+     * サーバーのシミュレーション結果を反映します。
+     * サーバーで爆発していれば、クライアントでも爆発させます。
+     */
+    void applyState(EntityState state) {
+        if (getState() != State.NORMAL) return;
+        if (state.state != 0) {
+            explode();
+            return;
+        }
+        moveTo(state.x, state.y);
+    }
+
+    /**
+     * サーバーのシミュレーション結果から、クライアントにまだ無い弾丸を生成します。
+     *
+     * @param tick スナップショットのティック番号
+     * @return 生成した弾丸。既に爆発している弾丸の場合はnull
+     */
+    static Bullet fromState(Tank shooter, EntityState state, int tick) {
+        if (state.state != 0) return null;
+        Bullet bullet = shooter.shootBullet(new Point2D.Double(state.x, state.y), state.angle);
+        if (state.hp > tick) bullet.lifeFrame = state.hp - tick;// 寿命の残り
+        bullet.refreshState();
+        return bullet;
+    }
+
     // ============================= GameObjectインタフェースのメソッド =============================
 
 
@@ -148,8 +261,8 @@ public class Bullet implements GameObject, Projectile {
         }
         switch (getState()) {
             case NORMAL: {
-                this.position.x += dx;
-                this.position.y += dy;
+                moveTo(x() + dx, y() + dy);
+                setMotion(motionX() + dx, motionY() + dy);
                 break;
             }
             case DEBRIS: {
@@ -158,6 +271,7 @@ public class Bullet implements GameObject, Projectile {
                 break;
             }
         }
+        refreshState();
     }
 
 
@@ -169,7 +283,7 @@ public class Bullet implements GameObject, Projectile {
     public void draw(Graphics2D graphics) {
         BufferedImage image = getImage();
         AffineTransform trans = new AffineTransform();
-        trans.translate(this.position.x, this.position.y);
+        trans.translate(x(), y());
         trans.rotate(Math.atan2(dy, dx));
         trans.scale(renderScale, renderScale);
         trans.translate(-image.getWidth() / 2.0, -image.getHeight() / 2.0);
@@ -212,7 +326,7 @@ public class Bullet implements GameObject, Projectile {
      */
     @Override
     public boolean hasRigidBody() {
-        return getState() == State.NORMAL;
+        return rigid();
     }
 
     /**
@@ -234,11 +348,12 @@ public class Bullet implements GameObject, Projectile {
 
     /**
      * {@inheritDoc}
-     * 弾丸は円形の形状を持ちます。
+     * 弾丸は円形の形状を持ちます。返す形状は使い回しで、呼ぶたびに列の位置を書き込みます。
      */
     @Override
     public Shape getShape() {
-        return new Circle(this.position, this.getCollisionRadius());
+        shape.center.setLocation(x(), y());
+        return shape;
     }
 
     /**
@@ -246,7 +361,7 @@ public class Bullet implements GameObject, Projectile {
      */
     @Override
     public Point2D.Double getPosition() {
-        return (Point2D.Double) this.position.clone();
+        return new Point2D.Double(x(), y());
     }
 
     /**
@@ -254,7 +369,7 @@ public class Bullet implements GameObject, Projectile {
      */
     @Override
     public void setPosition(Point2D.Double position) {
-        this.position.setLocation(position);
+        moveTo(position.x, position.y);
     }
 
     /**
@@ -263,10 +378,39 @@ public class Bullet implements GameObject, Projectile {
      */
     @Override
     public int getHP() {
-        return 10;
+        return hp();
     }
 
 
+    // ============================= MovingObjectインタフェースのメソッド =============================
+
+    /**
+     * {@inheritDoc}
+     * 飛んでいる間にフレーム更新で進んだ量です。
+     */
+    @Override
+    public double getMotionX() {
+        return motionX();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMotionY() {
+        return motionY();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resetMotion() {
+        setMotion(0, 0);
+    }
+
+
+
     // ============================= Projectileインタフェースのメソッド =============================
 
     /**
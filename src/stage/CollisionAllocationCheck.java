@@ -0,0 +1,127 @@
+package stage;
+
+import java.awt.geom.Point2D;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 衝突判定がフレームごとにヒープを確保していないことを確かめるプログラム。
+ * 壁（6割）、ブロック（2.5割）、動き回って弾丸を撃つ戦車（1.5割）を並べたステージを進め、
+ * 作業用の配列が十分な大きさになった後のフレームで、衝突判定（{@link GameStage#checkCollision()}）の間にこのスレッドが確保したバイト数を数える。
+ * 戦車の押し戻しや弾丸の命中など、衝突の通知も含めて数える。フレーム更新と弾丸の生成は数えない。
+ * 作業用の配列は、オブジェクトや候補の数がそれまでの最大を超えたときだけ広げるので、オブジェクトが多いほどウォームアップ（<code>--warmup</code>）を長くする。
+ * 総当たりと空間ハッシュの両方で確かめ、どちらかで確保があれば終了コード1で終わる。
+ *
+ * <pre>
+ * java -cp out stage.CollisionAllocationCheck [--objects 1000] [--warmup 1200] [--frames 600]
+ * </pre>
+ */
+class CollisionAllocationCheck {
+
+	private static final double SPACING = 150;// オブジェクト1つあたりの広さの一辺
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		int objects = 1000;
+		int warmup = 1200;
+		int frames = 600;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--objects":
+					objects = Integer.parseInt(args[++i]);
+					break;
+				case "--warmup":
+					warmup = Integer.parseInt(args[++i]);
+					break;
+				case "--frames":
+					frames = Integer.parseInt(args[++i]);
+					break;
+			}
+		}
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		System.out.println("objects=" + objects + " warmup=" + warmup + " frames=" + frames);
+		System.out.println(String.format("%10s %16s %16s", "collision", "bytes/frame", "bytes total"));
+		boolean allocationFree = true;
+		for (boolean broadphase : new boolean[]{false, true}) {
+			Scene scene = new Scene(objects, broadphase);
+			for (int frame = 0; frame < warmup; frame++) {
+				scene.prepare();
+				scene.stage.checkCollision();
+			}
+			long total = 0;
+			for (int frame = 0; frame < frames; frame++) {
+				scene.prepare();
+				long before = threads.getCurrentThreadAllocatedBytes();
+				scene.stage.checkCollision();
+				total += threads.getCurrentThreadAllocatedBytes() - before;
+			}
+			System.out.println(String.format("%10s %16.1f %16d", broadphase ? "hashed" : "pairwise", total / (double) frames, total));
+			if (total > 0) allocationFree = false;
+		}
+		System.out.println(allocationFree ? "OK: no allocation in collision" : "FAILED: collision allocates");
+		if (!allocationFree) System.exit(1);
+	}
+
+	/**
+	 * 確かめる1つのステージと、その上で動かす戦車。
+	 */
+	private static final class Scene {
+		final GameStage stage;
+		final List<Tank> tanks = new ArrayList<>();
+		int frame = 0;
+
+		Scene(int objects, boolean broadphase) {
+			Random random = new Random(1);
+			double half = Math.sqrt(objects) * SPACING / 2;
+			int walls = objects * 60 / 100;
+			int blocks = objects * 25 / 100;
+			StandardStageGenerator generator = new StandardStageGenerator(4);
+			stage = new GameStage(generator);
+			stage.useBroadphase(broadphase);
+
+			// 壁は格子に沿って、重ならないように置く
+			Set<Point2D.Double> occupied = new HashSet<>();
+			while (occupied.size() < walls) {
+				double x = Math.floor((random.nextDouble() * 2 - 1) * half / Wall.WIDTH) * Wall.WIDTH;
+				double y = Math.floor((random.nextDouble() * 2 - 1) * half / Wall.HEIGHT) * Wall.HEIGHT;
+				Point2D.Double point = new Point2D.Double(x, y);
+				if (occupied.add(point)) stage.addGameObject(new Wall(point));
+			}
+			for (int i = 0; i < blocks; i++) {
+				stage.addGameObject(new Block((random.nextDouble() * 2 - 1) * half, (random.nextDouble() * 2 - 1) * half, false));
+			}
+			for (int i = 0; i < objects - walls - blocks; i++) {
+				Tank tank = new Tank(i % 2 == 0 ? generator.getRedBase() : generator.getBlueBase());
+				tank.setPosition(new Point2D.Double((random.nextDouble() * 2 - 1) * half, (random.nextDouble() * 2 - 1) * half));
+				stage.addGameObject(tank);
+				tanks.add(tank);
+			}
+		}
+
+		/**
+		 * 戦車を動かして弾丸を撃たせ、衝突判定の前までフレームを進める。
+		 */
+		void prepare() {
+			for (int i = 0; i < tanks.size(); i++) {
+				Tank tank = tanks.get(i);
+				if (tank.isDead()) continue;
+				double angle = ((i * 7 + frame / 60) % 8) * Math.PI / 4;// 1秒ごとに向きを変える
+				tank.move(new Point2D.Double(Math.cos(angle), Math.sin(angle)));
+				if ((frame + i) % 60 == 0) {
+					Point2D.Double position = tank.getPosition();
+					tank.aimAt(new Point2D.Double(position.x + Math.sin(angle), position.y - Math.cos(angle)));
+					stage.addGameObject(tank.shootBullet());
+				}
+			}
+			stage.updateObjects();
+			frame++;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package stage;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * 衝突判定を総当たりで行う場合と、空間ハッシュで絞り込む場合のフレーム時間を比べるベンチマーク。
+ * 通常のステージに、壁（6割）、ブロック（2.5割）、動き回って弾丸を撃つ戦車（1.5割）を、オブジェクトの密度が一定になる広さに並べる。
+ * 同じ乱数の種で作った2つのステージを同じフレーム数だけ進め、チェックサムが一致することで、衝突の通知が同じだったことを確かめる。
+ * 総当たりはオブジェクト数の2乗で遅くなるので、時間の上限（<code>--budget</code>秒）を超えたらそこで打ち切る。
+ * <p>
+ * 続けて、戦車の数（<code>--tanks</code>）を固定して壁のタイルだけを増やし、壁の数がフレーム時間に影響しないことを確かめる。
+ *
+ * <pre>
+ * java -cp out stage.CollisionBenchmark [--objects 1000,10000,50000] [--walls 0,10000,50000] [--tanks 200] [--frames 120] [--budget 20]
+ * </pre>
+ */
+class CollisionBenchmark {
+
+	private static final double SPACING = 150;// オブジェクト1つあたりの広さの一辺
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		int[] objectSteps = {1000, 10000, 50000};
+		int[] wallSteps = {0, 10000, 50000};
+		int tanks = 200;
+		int frames = 120;
+		double budget = 20;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--objects":
+					objectSteps = parseSteps(args[++i]);
+					break;
+				case "--walls":
+					wallSteps = parseSteps(args[++i]);
+					break;
+				case "--tanks":
+					tanks = Integer.parseInt(args[++i]);
+					break;
+				case "--frames":
+					frames = Integer.parseInt(args[++i]);
+					break;
+				case "--budget":
+					budget = Double.parseDouble(args[++i]);
+					break;
+			}
+		}
+
+		// JITのコンパイルを済ませておく
+		for (boolean broadphase : new boolean[]{false, true}) {
+			World warmup = World.mixed(1000, broadphase);
+			for (int frame = 0; frame < 120; frame++) warmup.step();
+		}
+
+		System.out.println("frames=" + frames + " budget=" + budget + "s");
+		System.out.println(String.format("%8s %16s %16s %10s %10s", "objects", "pairwise ms/f", "hashed ms/f", "speedup", "checksum"));
+		for (int objects : objectSteps) {
+			compare(String.valueOf(objects), broadphase -> World.mixed(objects, broadphase), frames, budget);
+		}
+
+		System.out.println();
+		System.out.println("tanks=" + tanks);
+		System.out.println(String.format("%8s %16s %16s %10s %10s", "walls", "pairwise ms/f", "hashed ms/f", "speedup", "checksum"));
+		for (int walls : wallSteps) {
+			int tankCount = tanks;
+			compare(String.valueOf(walls), broadphase -> World.walled(walls, tankCount, broadphase), frames, budget);
+		}
+	}
+
+	/**
+	 * 同じステージを総当たりと絞り込みで進め、1行分の結果を出力する。
+	 *
+	 * @param label 行の先頭に出力する値
+	 * @param factory 判定の方法を指定してステージを作る処理
+	 */
+	private static void compare(String label, Function<Boolean, World> factory, int frames, double budget) {
+		// 総当たり。時間の上限を超えたら打ち切る
+		World pairwise = factory.apply(false);
+		long start = System.nanoTime();
+		int pairwiseFrames = 0;
+		while (pairwiseFrames < frames && (pairwiseFrames == 0 || System.nanoTime() - start < budget * 1e9)) {
+			pairwise.step();
+			pairwiseFrames++;
+		}
+		double pairwiseTime = (System.nanoTime() - start) / 1e6 / pairwiseFrames;
+
+		// 絞り込み。総当たりと同じフレーム数で結果を比べてから、残りのフレームも計測する
+		World hashed = factory.apply(true);
+		start = System.nanoTime();
+		for (int frame = 0; frame < pairwiseFrames; frame++) hashed.step();
+		boolean match = hashed.stage.checksum() == pairwise.stage.checksum();
+		for (int frame = pairwiseFrames; frame < frames; frame++) hashed.step();
+		double hashedTime = (System.nanoTime() - start) / 1e6 / frames;
+
+		System.out.println(String.format("%8s %16.3f %16.3f %9.1fx %10s", label, pairwiseTime, hashedTime, pairwiseTime / hashedTime,
+				(match ? "match" : "MISMATCH") + "@" + pairwiseFrames));
+	}
+
+	/**
+	 * カンマ区切りの段階を読む。
+	 */
+	private static int[] parseSteps(String text) {
+		String[] tokens = text.split(",");
+		int[] steps = new int[tokens.length];
+		for (int i = 0; i < tokens.length; i++) steps[i] = Integer.parseInt(tokens[i]);
+		return steps;
+	}
+
+	/**
+	 * 計測する1つのステージと、その上で動かす戦車。
+	 */
+	private static final class World {
+		final GameStage stage;
+		final List<Tank> tanks = new ArrayList<>();
+		final Random random = new Random(1);
+		int frame = 0;
+
+		/**
+		 * 壁（6割）、ブロック（2.5割）、戦車（1.5割）を、オブジェクトの密度が一定になる広さに並べる。
+		 */
+		static World mixed(int objects, boolean broadphase) {
+			int walls = objects * 60 / 100;
+			int blocks = objects * 25 / 100;
+			return new World(walls, blocks, objects - walls - blocks, Math.sqrt(objects) * SPACING / 2, broadphase);
+		}
+
+		/**
+		 * 通常のステージの広さに、壁のタイルと戦車だけを並べる。
+		 */
+		static World walled(int walls, int tanks, boolean broadphase) {
+			return new World(walls, 0, tanks, Math.max(3000, Math.sqrt(walls) * Wall.WIDTH), broadphase);
+		}
+
+		/**
+		 * @param half 並べる範囲の幅の半分
+		 */
+		World(int walls, int blocks, int tankCount, double half, boolean broadphase) {
+			StandardStageGenerator generator = new StandardStageGenerator(4);
+			stage = new GameStage(generator);
+			stage.useBroadphase(broadphase);
+
+			// 壁は格子に沿って、重ならないように置く
+			Set<Point2D.Double> occupied = new HashSet<>();
+			while (occupied.size() < walls) {
+				double x = Math.floor((random.nextDouble() * 2 - 1) * half / Wall.WIDTH) * Wall.WIDTH;
+				double y = Math.floor((random.nextDouble() * 2 - 1) * half / Wall.HEIGHT) * Wall.HEIGHT;
+				Point2D.Double point = new Point2D.Double(x, y);
+				if (occupied.add(point)) stage.addGameObject(new Wall(point));
+			}
+			for (int i = 0; i < blocks; i++) {
+				stage.addGameObject(new Block((random.nextDouble() * 2 - 1) * half, (random.nextDouble() * 2 - 1) * half, false));
+			}
+			for (int i = 0; i < tankCount; i++) {
+				Tank tank = new Tank(i % 2 == 0 ? generator.getRedBase() : generator.getBlueBase());
+				tank.setPosition(new Point2D.Double((random.nextDouble() * 2 - 1) * half, (random.nextDouble() * 2 - 1) * half));
+				stage.addGameObject(tank);
+				tanks.add(tank);
+			}
+		}
+
+		/**
+		 * 戦車を動かして弾丸を撃たせ、ステージを1フレーム進める。
+		 */
+		void step() {
+			for (int i = 0; i < tanks.size(); i++) {
+				Tank tank = tanks.get(i);
+				if (tank.isDead()) continue;
+				double angle = ((i * 7 + frame / 60) % 8) * Math.PI / 4;// 1秒ごとに向きを変える
+				tank.move(new Point2D.Double(Math.cos(angle), Math.sin(angle)));
+				if ((frame + i) % 60 == 0) {
+					Point2D.Double position = tank.getPosition();
+					tank.aimAt(new Point2D.Double(position.x + Math.sin(angle), position.y - Math.cos(angle)));
+					stage.addGameObject(tank.shootBullet());
+				}
+			}
+			stage.update();
+			frame++;
+		}
+	}
+}
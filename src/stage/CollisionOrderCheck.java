@@ -0,0 +1,170 @@
+package stage;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 空間ハッシュと占有マップを使った衝突判定が、総当たりと同じ組を同じ順番で通知していることを確かめるプログラム。
+ * 壁（5割）、ブロック（2割）、動き回って弾丸を撃ちブロックを置く戦車（3割）を並べた同じステージを、総当たりと空間ハッシュで並べて進め、
+ * フレームごとに、衝突の通知（通知を受けるオブジェクトと相手のID）の列が1つ残らず同じ順番かを比べる。
+ * 戦車を壁に押し戻す通知や、弾丸でブロックが壊れる通知の順番が変われば、その後の結果も変わるので、結果の一致ではなく通知の列で比べる。
+ * 種（<code>--seeds</code>）ごとに、遅延を登録した弾丸が混ざるステージでも確かめる。1つでも違えば終了コード1で終わる。
+ *
+ * <pre>
+ * java -cp out stage.CollisionOrderCheck [--objects 400] [--frames 3000] [--seeds 4]
+ * </pre>
+ */
+class CollisionOrderCheck {
+
+	private static final double SPACING = 120;// オブジェクト1つあたりの広さの一辺
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		int objects = 400;
+		int frames = 3000;
+		int seeds = 4;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--objects":
+					objects = Integer.parseInt(args[++i]);
+					break;
+				case "--frames":
+					frames = Integer.parseInt(args[++i]);
+					break;
+				case "--seeds":
+					seeds = Integer.parseInt(args[++i]);
+					break;
+			}
+		}
+
+		System.out.println("objects=" + objects + " frames=" + frames + " seeds=" + seeds);
+		System.out.println(String.format("%6s %6s %16s %10s", "seed", "lagged", "notifications", "order"));
+		boolean same = true;
+		for (int seed = 1; seed <= seeds; seed++) {
+			for (boolean lagged : new boolean[]{false, true}) {
+				Scene pairwise = new Scene(objects, seed, lagged, false);
+				Scene hashed = new Scene(objects, seed, lagged, true);
+				long notifications = 0;
+				String result = "same";
+				for (int frame = 0; frame < frames; frame++) {
+					pairwise.step();
+					hashed.step();
+					int mismatch = mismatch(pairwise.trace, hashed.trace);
+					if (mismatch >= 0) {
+						result = "differs@" + frame;
+						System.out.println("  frame " + frame + ", notification " + mismatch + ": pairwise "
+								+ describe(pairwise.trace, mismatch) + ", hashed " + describe(hashed.trace, mismatch));
+						same = false;
+						break;
+					}
+					notifications += pairwise.trace.size() / 2;
+				}
+				System.out.println(String.format("%6d %6s %16d %10s", seed, lagged, notifications, result));
+			}
+		}
+		System.out.println(same ? "OK: same notifications in the same order" : "FAILED: notification order differs");
+		if (!same) System.exit(1);
+	}
+
+	/**
+	 * 2つの通知の列で、最初に違う通知の番号を求める。
+	 *
+	 * @return 通知の番号。同じなら-1
+	 */
+	private static int mismatch(List<Integer> a, List<Integer> b) {
+		int length = Math.min(a.size(), b.size());
+		for (int k = 0; k < length; k++) {
+			if (!a.get(k).equals(b.get(k))) return k / 2;
+		}
+		return a.size() == b.size() ? -1 : length / 2;
+	}
+
+	/**
+	 * 通知の列の、指定した番号の通知を文字列にする。
+	 */
+	private static String describe(List<Integer> trace, int notification) {
+		if (notification * 2 >= trace.size()) return "(none)";
+		return trace.get(notification * 2) + "<-" + trace.get(notification * 2 + 1);
+	}
+
+	/**
+	 * 確かめる1つのステージと、その上で動かす戦車。
+	 */
+	private static final class Scene {
+		final GameStage stage;
+		final List<Tank> tanks = new ArrayList<>();
+		final Random random;
+		final LagCompensation lagCompensation;
+		final Map<GameObject, Integer> ids = new IdentityHashMap<>();
+		final List<Integer> trace = new ArrayList<>();// 通知を受けるオブジェクトと相手のIDを交互に並べた列
+		int frame = 0;
+
+		Scene(int objects, int seed, boolean lagged, boolean broadphase) {
+			random = new Random(seed);
+			double half = Math.sqrt(objects) * SPACING / 2;
+			int walls = objects * 50 / 100;
+			int blocks = objects * 20 / 100;
+			StandardStageGenerator generator = new StandardStageGenerator(4);
+			stage = new GameStage(generator);
+			stage.useBroadphase(broadphase);
+			lagCompensation = lagged ? stage.enableLagCompensation(10) : null;
+			stage.traceCollisions((object, other) -> {
+				trace.add(ids.getOrDefault(object, -1));
+				trace.add(ids.getOrDefault(other, -1));
+			});
+
+			// 壁は格子に沿って、重ならないように置く
+			Set<Point2D.Double> occupied = new HashSet<>();
+			while (occupied.size() < walls) {
+				double x = Math.floor((random.nextDouble() * 2 - 1) * half / Wall.WIDTH) * Wall.WIDTH;
+				double y = Math.floor((random.nextDouble() * 2 - 1) * half / Wall.HEIGHT) * Wall.HEIGHT;
+				Point2D.Double point = new Point2D.Double(x, y);
+				if (occupied.add(point)) stage.addGameObject(new Wall(point));
+			}
+			for (int i = 0; i < blocks; i++) {
+				stage.addGameObject(new Block((random.nextDouble() * 2 - 1) * half, (random.nextDouble() * 2 - 1) * half, false));
+			}
+			for (int i = 0; i < objects - walls - blocks; i++) {
+				Tank tank = new Tank(i % 2 == 0 ? generator.getRedBase() : generator.getBlueBase());
+				tank.setPosition(new Point2D.Double((random.nextDouble() * 2 - 1) * half, (random.nextDouble() * 2 - 1) * half));
+				stage.addGameObject(tank);
+				tanks.add(tank);
+			}
+		}
+
+		/**
+		 * 戦車を動かして弾丸を撃たせ、ときどきブロックを置かせて、1フレーム進める。
+		 * 後から置いたブロックと弾丸は、戦車より大きいIDになるので、動くオブジェクトと動かないオブジェクトのIDが入り混じる。
+		 */
+		void step() {
+			for (int i = 0; i < tanks.size(); i++) {
+				Tank tank = tanks.get(i);
+				if (tank.isDead()) continue;
+				double angle = ((i * 7 + frame / 45) % 8) * Math.PI / 4;
+				tank.move(new Point2D.Double(Math.cos(angle), Math.sin(angle)));
+				if ((frame + i) % 20 == 0) {
+					Point2D.Double position = tank.getPosition();
+					tank.aimAt(new Point2D.Double(position.x + Math.sin(angle), position.y - Math.cos(angle)));
+					Bullet bullet = tank.shootBullet();
+					stage.addGameObject(bullet);
+					if (lagCompensation != null) lagCompensation.track(bullet, random.nextInt(lagCompensation.getWindow()));
+				}
+				if ((frame + i) % 150 == 0) {
+					Block block = tank.createBlock();
+					if (block != null) stage.addGameObject(block);
+				}
+			}
+			ids.clear();
+			for (Map.Entry<Integer, GameObject> entry : stage.getEntries()) ids.put(entry.getValue(), entry.getKey());
+			trace.clear();
+			stage.update();
+			frame++;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package stage;
+
+import protocol.Message;
+
+import java.awt.geom.Point2D;
+
+/**
+ * 戦車への操作コマンドをステージに反映するクラス。
+ * 中継モードのクライアントが他のプレイヤーの操作を再現するときと、サーバーのシミュレーションがプレイヤーの入力を処理するときの両方で使う。
+ */
+public class CommandApplier {
+
+	private CommandApplier() {
+	}
+
+	/**
+	 * コマンドをステージに反映します。
+	 * 対象の戦車が存在しない場合や、戦車への操作でないコマンドの場合は何もしません。
+	 *
+	 * @param stage 反映先のステージ
+	 * @param message 反映するコマンド
+	 * @return コマンドによってステージに追加した弾丸・ミサイル・ブロック。追加しなかった場合はnull
+	 */
+	public static GameObject apply(GameStage stage, Message message) {
+		return apply(stage, message, -1);
+	}
+
+	/**
+	 * 送られた時刻のわかっているコマンドをステージに反映します。
+	 * 位置と照準は、送られた時刻の状態として他のプレイヤーの戦車の補間の履歴に積みます。
+	 *
+	 * @param stage 反映先のステージ
+	 * @param message 反映するコマンド
+	 * @param sentTime 送られた時刻（System.nanoTimeのミリ秒）。不明なら-1
+	 * @return コマンドによってステージに追加した弾丸・ミサイル・ブロック。追加しなかった場合はnull
+	 */
+	public static GameObject apply(GameStage stage, Message message, long sentTime) {
+		GameObject object = stage.getGameObject(message.id);
+		if (!(object instanceof Tank)) return null;
+		Tank tank = (Tank) object;
+
+		switch (message.command) {
+			case LOCATE: {
+				tank.locate(new Point2D.Double(message.x, message.y), sentTime);
+				break;
+			}
+			case MOVE: {
+				tank.move(new Point2D.Double(message.x, message.y));
+				break;
+			}
+			case AIM: {
+				tank.aimAt(new Point2D.Double(message.x, message.y), sentTime);
+				break;
+			}
+			case BULLET: {
+				Bullet bullet = tank.shootBullet();
+				if (bullet != null) stage.addGameObject(bullet);// リロード中などで撃てない場合はnull
+				return bullet;
+			}
+			case START_CHARGE: {
+				Missile missile = tank.startEnergyCharge();
+				if (missile != null) stage.addGameObject(missile);
+				return missile;
+			}
+			case FINISH_CHARGE: {
+				tank.finishEnergyCharge();
+				break;
+			}
+			case BLOCK: {
+				Block block = tank.createBlock();
+				if (block != null) stage.addGameObject(block);// 基地の上では生成できない
+				return block;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,116 @@
+package stage;
+
+/**
+ * 状態を{@link EntityStore}の列に持つゲームオブジェクト（戦車、弾丸、ミサイル、ブロック）の共通部分。
+ * 位置、動いた量、形状の大きさ、チーム、HP、状態はフィールドに持たず、今いるストアの席の列を読み書きする。
+ * ステージに置かれていない間は、1席だけの自分用のストアの席を使い、ステージに置くとステージのストアの席に移る（移すのはストア）。
+ * <p>
+ * 状態と当たり判定の有無、形状の大きさは、タイマーやHPから決まるので、それらを変えたオブジェクトが列に書き込み直す。
+ * 衝突判定はオブジェクトのメソッドを呼ばずに列を読むので、書き込み忘れがあると判定がずれる。
+ */
+abstract class Entity {
+
+	// 今いるストアと席番号。ストアが席を移すときに差し替える
+	volatile EntityStore.Slot slot = EntityStore.detached();
+
+	// ============================= 列の読み書き =============================
+
+	final double x() {
+		EntityStore.Slot s = slot;
+		return s.store.getX(s.index);
+	}
+
+	final double y() {
+		EntityStore.Slot s = slot;
+		return s.store.getY(s.index);
+	}
+
+	/**
+	 * 位置を書き込む。
+	 */
+	final void moveTo(double x, double y) {
+		EntityStore.Slot s = slot;
+		s.store.setPosition(s.index, x, y);
+	}
+
+	final double motionX() {
+		EntityStore.Slot s = slot;
+		return s.store.getMotionX(s.index);
+	}
+
+	final double motionY() {
+		EntityStore.Slot s = slot;
+		return s.store.getMotionY(s.index);
+	}
+
+	/**
+	 * 前回の衝突判定から動いた量を書き込む。
+	 */
+	final void setMotion(double motionX, double motionY) {
+		EntityStore.Slot s = slot;
+		s.store.setMotion(s.index, motionX, motionY);
+	}
+
+	final double halfWidth() {
+		EntityStore.Slot s = slot;
+		return s.store.getHalfWidth(s.index);
+	}
+
+	final double halfHeight() {
+		EntityStore.Slot s = slot;
+		return s.store.getHalfHeight(s.index);
+	}
+
+	/**
+	 * 形状の大きさを書き込む。
+	 *
+	 * @param halfWidth 外接矩形の幅の半分。円なら半径
+	 * @param halfHeight 外接矩形の高さの半分。円なら半径
+	 * @param round 形状が円ならtrue
+	 */
+	final void setExtents(double halfWidth, double halfHeight, boolean round) {
+		EntityStore.Slot s = slot;
+		s.store.setExtents(s.index, halfWidth, halfHeight, round);
+	}
+
+	final Team team() {
+		EntityStore.Slot s = slot;
+		return s.store.getTeam(s.index);
+	}
+
+	final void setTeam(Team team) {
+		EntityStore.Slot s = slot;
+		s.store.setTeam(s.index, team);
+	}
+
+	final int hp() {
+		EntityStore.Slot s = slot;
+		return s.store.getHp(s.index);
+	}
+
+	final void setHp(int hp) {
+		EntityStore.Slot s = slot;
+		s.store.setHp(s.index, hp);
+	}
+
+	/**
+	 * オブジェクトの種類ごとの状態の番号を取得する。
+	 */
+	final int state() {
+		EntityStore.Slot s = slot;
+		return s.store.getState(s.index);
+	}
+
+	/**
+	 * 状態の番号と、その状態で当たり判定があるかを書き込む。
+	 */
+	final void setState(int state, boolean rigid) {
+		EntityStore.Slot s = slot;
+		s.store.setState(s.index, state, rigid);
+	}
+
+	final boolean rigid() {
+		EntityStore.Slot s = slot;
+		return s.store.isRigid(s.index);
+	}
+}
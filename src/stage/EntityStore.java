@@ -0,0 +1,427 @@
+package stage;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * ステージ上のオブジェクトの状態を、席番号で引くプリミティブの配列（列）に並べて持つ構造体配列（structure of arrays）。
+ * 位置、動いた量、形状の大きさ、チーム、HP、状態、当たり判定の有無を列に持つ。
+ * 衝突判定で組ごとに一緒に読む位置と形状の大きさは1つの列に席ごとに並べ（{@link #SHAPE_STRIDE}個ずつ）、1組の判定で読むキャッシュラインを減らす。
+ * 戦車・弾丸・ミサイル・ブロック（{@link Entity}）はこれらを自分のフィールドには持たず、今いるストアの席の列を読み書きするので、
+ * <code>GameObject</code>のメソッドは列を読むビューになる。フレーム更新と衝突判定は、オブジェクトのメソッドを呼ばずに列を走査する。
+ * <p>
+ * ステージに置く前のオブジェクトは、1席だけの自分用のストアを持つ。ステージに置くと、その席の値をステージのストアの席に写して移り、
+ * 取り除くと自分用のストアに戻る。席を移るときは{@link Slot}を作り直すので、描画など別のスレッドから読んでも、ストアと席番号が食い違わない。
+ * <code>Entity</code>でないオブジェクト（基地など）の列は、{@link #refreshForeign()}でメソッドから写す。
+ * <p>
+ * 状態が変わらない壁（{@link StaticObject#isPermanent()}）は持たない。席は登録した順に振り（空いた席は再利用する）、
+ * フレーム更新と衝突判定のために、IDの順に並べた一覧も持つ。
+ * オブジェクトの追加と削除は受信のスレッドからも行われるので、{@link #add}と{@link #remove}は変更を積むだけにして、
+ * フレーム更新を行うスレッドが{@link #applyChanges()}でまとめて反映する。
+ */
+class EntityStore {
+
+	private static final Team[] TEAMS = Team.values();
+
+	/**
+	 * 形状の列で、1つの席が使う要素の数。位置（形状の中心）のx座標、y座標、外接矩形の幅の半分、高さの半分の順に並べる。
+	 */
+	static final int SHAPE_STRIDE = 4;
+
+	private static final byte RIGID = 1;// 当たり判定がある
+	private static final byte ROUND = 2;// 形状が円
+
+	// 列。席番号→値
+	private double[] shapes;// 位置と外接矩形の幅と高さの半分（円なら半径）。席番号 * SHAPE_STRIDEから
+	private double[] motions;// 前回の衝突判定から動いた量のx成分とy成分。席番号 * 2から
+	private byte[] flags;// RIGIDとROUND
+	private byte[] teams;// Teamの番号
+	private int[] hps;
+	private byte[] states;// オブジェクトの種類ごとの状態の番号
+
+	// ステージの登録。自分用のストアでは使わない
+	private final Queue<Change> changes;
+	private final Map<GameObject, Integer> slots;// オブジェクト→席番号
+	private GameObject[] objects;// 席番号→オブジェクト。空席はnull
+	private int slotCount = 0;// 使ったことのある席の数
+	private int[] freeSlots = new int[16];
+	private int freeSlotCount = 0;
+	private int[] ids;// 席番号→オブジェクトID
+	private boolean[] moving;// 席番号→動くオブジェクト（StaticObjectでない）か
+	private int[] order;// 登録中の席番号を、IDの小さい順に並べたもの
+	private int count = 0;// 登録中のオブジェクトの数
+	private int[] foreign = new int[4];// Entityでないオブジェクトの席番号
+	private int foreignCount = 0;
+
+	/**
+	 * オブジェクトが列を読み書きする、ストアと席番号の組。席を移るたびに作り直す。
+	 */
+	static final class Slot {
+		final EntityStore store;
+		final int index;
+
+		Slot(EntityStore store, int index) {
+			this.store = store;
+			this.index = index;
+		}
+	}
+
+	private static final class Change {
+		final int id;
+		final GameObject object;
+		final boolean added;
+
+		Change(int id, GameObject object, boolean added) {
+			this.id = id;
+			this.object = object;
+			this.added = added;
+		}
+	}
+
+	/**
+	 * ステージのストアを作る。
+	 */
+	EntityStore() {
+		this(16, true);
+	}
+
+	private EntityStore(int capacity, boolean shared) {
+		shapes = new double[capacity * SHAPE_STRIDE];
+		motions = new double[capacity * 2];
+		flags = new byte[capacity];
+		teams = new byte[capacity];
+		hps = new int[capacity];
+		states = new byte[capacity];
+		changes = shared ? new ConcurrentLinkedQueue<>() : null;
+		slots = shared ? new IdentityHashMap<>() : null;
+		objects = shared ? new GameObject[capacity] : null;
+		ids = shared ? new int[capacity] : null;
+		moving = shared ? new boolean[capacity] : null;
+		order = shared ? new int[capacity] : null;
+	}
+
+	/**
+	 * ステージに置かれていないオブジェクトのための、1席だけの自分用のストアの席を作る。
+	 */
+	static Slot detached() {
+		return new Slot(new EntityStore(1, false), 0);
+	}
+
+	/**
+	 * オブジェクトを登録する。次の{@link #applyChanges()}で反映する。
+	 */
+	void add(int id, GameObject object) {
+		changes.add(new Change(id, object, true));
+	}
+
+	/**
+	 * オブジェクトの登録を取り消す。次の{@link #applyChanges()}で反映する。
+	 */
+	void remove(GameObject object) {
+		changes.add(new Change(-1, object, false));
+	}
+
+	/**
+	 * 積んでおいた追加と削除を、積んだ順に反映する。
+	 */
+	void applyChanges() {
+		Change change;
+		while ((change = changes.poll()) != null) {
+			if (change.added) insert(change.id, change.object);
+			else delete(change.object);
+		}
+	}
+
+	/**
+	 * 席のオブジェクトを取得する。
+	 */
+	GameObject get(int slot) {
+		return objects[slot];
+	}
+
+	/**
+	 * 席のオブジェクトのIDを取得する。
+	 */
+	int getId(int slot) {
+		return ids[slot];
+	}
+
+	/**
+	 * 席のオブジェクトが動くオブジェクト（{@link StaticObject}でない）かを判定する。
+	 */
+	boolean isMoving(int slot) {
+		return moving[slot];
+	}
+
+	/**
+	 * 登録中のオブジェクトの数を取得する。
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * IDの小さい方から数えた順番の、オブジェクトの席番号を取得する。
+	 *
+	 * @param rank 0から{@link #getCount()} - 1までの順番
+	 */
+	int slotAt(int rank) {
+		return order[rank];
+	}
+
+	// ============================= 列の読み書き =============================
+
+	double getX(int slot) {
+		return shapes[slot * SHAPE_STRIDE];
+	}
+
+	double getY(int slot) {
+		return shapes[slot * SHAPE_STRIDE + 1];
+	}
+
+	/**
+	 * 席の位置（形状の中心）を設定する。
+	 */
+	void setPosition(int slot, double x, double y) {
+		shapes[slot * SHAPE_STRIDE] = x;
+		shapes[slot * SHAPE_STRIDE + 1] = y;
+	}
+
+	/**
+	 * 席の形状の外接矩形の幅の半分を取得する。円なら半径。
+	 */
+	double getHalfWidth(int slot) {
+		return shapes[slot * SHAPE_STRIDE + 2];
+	}
+
+	/**
+	 * 席の形状の外接矩形の高さの半分を取得する。円なら半径。
+	 */
+	double getHalfHeight(int slot) {
+		return shapes[slot * SHAPE_STRIDE + 3];
+	}
+
+	/**
+	 * 席の形状が円かを判定する。円でなければ長方形。
+	 */
+	boolean isRound(int slot) {
+		return (flags[slot] & ROUND) != 0;
+	}
+
+	/**
+	 * 席の形状の大きさを設定する。
+	 *
+	 * @param halfWidth 外接矩形の幅の半分。円なら半径
+	 * @param halfHeight 外接矩形の高さの半分。円なら半径
+	 * @param round 形状が円ならtrue
+	 */
+	void setExtents(int slot, double halfWidth, double halfHeight, boolean round) {
+		shapes[slot * SHAPE_STRIDE + 2] = halfWidth;
+		shapes[slot * SHAPE_STRIDE + 3] = halfHeight;
+		flags[slot] = (byte) (round ? flags[slot] | ROUND : flags[slot] & ~ROUND);
+	}
+
+	/**
+	 * 席の、前回の衝突判定から動いた量のx成分を取得する。
+	 */
+	double getMotionX(int slot) {
+		return motions[slot * 2];
+	}
+
+	/**
+	 * 席の、前回の衝突判定から動いた量のy成分を取得する。
+	 */
+	double getMotionY(int slot) {
+		return motions[slot * 2 + 1];
+	}
+
+	/**
+	 * 席の、前回の衝突判定から動いた量を設定する。
+	 */
+	void setMotion(int slot, double motionX, double motionY) {
+		motions[slot * 2] = motionX;
+		motions[slot * 2 + 1] = motionY;
+	}
+
+	/**
+	 * 席のチームを取得する。
+	 */
+	Team getTeam(int slot) {
+		return TEAMS[teams[slot]];
+	}
+
+	/**
+	 * 席のチームを設定する。
+	 */
+	void setTeam(int slot, Team value) {
+		teams[slot] = (byte) value.ordinal();
+	}
+
+	int getHp(int slot) {
+		return hps[slot];
+	}
+
+	void setHp(int slot, int hp) {
+		hps[slot] = hp;
+	}
+
+	/**
+	 * 席のオブジェクトの種類ごとの状態の番号を取得する。
+	 */
+	int getState(int slot) {
+		return states[slot];
+	}
+
+	/**
+	 * 席の当たり判定があるかを判定する。
+	 */
+	boolean isRigid(int slot) {
+		return (flags[slot] & RIGID) != 0;
+	}
+
+	/**
+	 * 席の状態の番号と、その状態で当たり判定があるかを設定する。
+	 */
+	void setState(int slot, int state, boolean rigid) {
+		states[slot] = (byte) state;
+		flags[slot] = (byte) (rigid ? flags[slot] | RIGID : flags[slot] & ~RIGID);
+	}
+
+	/**
+	 * <code>Entity</code>でないオブジェクトの列を、オブジェクトのメソッドから写し直す。
+	 * 衝突判定の前と、衝突の通知の後（通知で状態が変わることがある）に呼ぶ。
+	 */
+	void refreshForeign() {
+		for (int k = 0; k < foreignCount; k++) refresh(foreign[k]);
+	}
+
+	/**
+	 * 2つの席の形状が重なっているかを、列だけで判定する。
+	 */
+	boolean overlaps(int slot1, int slot2) {
+		int i = slot1 * SHAPE_STRIDE, j = slot2 * SHAPE_STRIDE;
+		return GameStage.overlaps(shapes[i], shapes[i + 1], shapes[i + 2], shapes[i + 3], isRound(slot1),
+				shapes[j], shapes[j + 1], shapes[j + 2], shapes[j + 3], isRound(slot2));
+	}
+
+	/**
+	 * オブジェクトに席を割り当てる。<code>Entity</code>なら今の席の値を写してこのストアの席に移し、そうでなければメソッドから写す。
+	 */
+	private void insert(int id, GameObject object) {
+		if (slots.containsKey(object)) return;
+		int slot;
+		if (freeSlotCount > 0) {
+			slot = freeSlots[--freeSlotCount];
+		} else {
+			slot = slotCount++;
+			if (slot == objects.length) growSlots(slot * 2);
+		}
+		slots.put(object, slot);
+		objects[slot] = object;
+		ids[slot] = id;
+		moving[slot] = !(object instanceof StaticObject);
+		if (object instanceof Entity) {
+			Entity entity = (Entity) object;
+			Slot from = entity.slot;
+			copy(from.store, from.index, slot);
+			entity.slot = new Slot(this, slot);
+		} else {
+			if (foreignCount == foreign.length) foreign = Arrays.copyOf(foreign, foreignCount * 2);
+			foreign[foreignCount++] = slot;
+			refresh(slot);
+		}
+
+		// IDの順の一覧に挟み込む。同じIDなら後に登録したものを後ろにする
+		if (count == order.length) order = Arrays.copyOf(order, count * 2);
+		int rank = rankOf(id + 1L);
+		System.arraycopy(order, rank, order, rank + 1, count - rank);
+		order[rank] = slot;
+		count++;
+	}
+
+	/**
+	 * オブジェクトの席を空ける。<code>Entity</code>なら席の値を写して自分用のストアに戻す。
+	 */
+	private void delete(GameObject object) {
+		Integer removed = slots.remove(object);
+		if (removed == null) return;
+		int slot = removed;
+		if (object instanceof Entity) {
+			Entity entity = (Entity) object;
+			if (entity.slot.store == this && entity.slot.index == slot) {
+				Slot detached = detached();
+				detached.store.copy(this, slot, detached.index);
+				entity.slot = detached;
+			}
+		} else {
+			int k = 0;
+			while (foreign[k] != slot) k++;
+			foreign[k] = foreign[--foreignCount];
+		}
+		objects[slot] = null;
+		int rank = rankOf(ids[slot]);
+		while (order[rank] != slot) rank++;
+		System.arraycopy(order, rank + 1, order, rank, count - rank - 1);
+		count--;
+		if (freeSlotCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+		freeSlots[freeSlotCount++] = slot;
+	}
+
+	/**
+	 * 別のストアの席の値を、このストアの席に写す。
+	 */
+	private void copy(EntityStore from, int fromSlot, int slot) {
+		System.arraycopy(from.shapes, fromSlot * SHAPE_STRIDE, shapes, slot * SHAPE_STRIDE, SHAPE_STRIDE);
+		System.arraycopy(from.motions, fromSlot * 2, motions, slot * 2, 2);
+		flags[slot] = from.flags[fromSlot];
+		teams[slot] = from.teams[fromSlot];
+		hps[slot] = from.hps[fromSlot];
+		states[slot] = from.states[fromSlot];
+	}
+
+	/**
+	 * <code>Entity</code>でないオブジェクトの列を、オブジェクトのメソッドから写す。
+	 */
+	private void refresh(int slot) {
+		GameObject object = objects[slot];
+		Shape shape = object.getShape();
+		setPosition(slot, SpatialHash.center(shape).x, SpatialHash.center(shape).y);
+		setExtents(slot, SpatialHash.halfWidth(shape), SpatialHash.halfHeight(shape), shape instanceof Circle);
+		boolean moves = object instanceof MovingObject;
+		setMotion(slot, moves ? ((MovingObject) object).getMotionX() : 0, moves ? ((MovingObject) object).getMotionY() : 0);
+		setTeam(slot, object.getTeam());
+		setHp(slot, object.getHP());
+		setState(slot, 0, object.hasRigidBody());
+	}
+
+	/**
+	 * IDの順の一覧で、指定したID以上のIDを持つ最初のオブジェクトの順番を二分探索で求める。
+	 */
+	private int rankOf(long id) {
+		int low = 0, high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (ids[order[middle]] < id) low = middle + 1;
+			else high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * 席番号の配列を広げる。
+	 */
+	private void growSlots(int capacity) {
+		shapes = Arrays.copyOf(shapes, capacity * SHAPE_STRIDE);
+		motions = Arrays.copyOf(motions, capacity * 2);
+		flags = Arrays.copyOf(flags, capacity);
+		teams = Arrays.copyOf(teams, capacity);
+		hps = Arrays.copyOf(hps, capacity);
+		states = Arrays.copyOf(states, capacity);
+		objects = Arrays.copyOf(objects, capacity);
+		ids = Arrays.copyOf(ids, capacity);
+		moving = Arrays.copyOf(moving, capacity);
+	}
+}
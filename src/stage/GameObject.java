@@ -48,6 +48,8 @@ public interface GameObject {
 
 	/**
 	 * オブジェクトの衝突判定に使用される形状を取得します。
+	 * 衝突判定で何度も呼ばれるため、形状はオブジェクトごとに使い回し、呼び出すたびに今の位置と大きさに合わせて返します。
+	 * 返された形状を書き換えたり、後の呼び出しの後まで持っておいたりしないでください。
 	 * @return オブジェクトの形状を表すShapeオブジェクト
 	 */
 	Shape getShape();
@@ -1,18 +1,20 @@
 package stage;
 
-import util.Util;
-
 import java.awt.*;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
 import static stage.Team.*;
 
 public class GameStage implements StageInfo {
 
+	// falseなら、衝突判定で空間ハッシュを使わずに総当たりで判定する（比較用）
+	private static final boolean BROADPHASE = !"false".equals(System.getProperty("game.broadphase"));
+
 	// 描画範囲の情報
 	private final double stageWidth;
 	private final double stageHeight;
@@ -26,9 +28,39 @@ public class GameStage implements StageInfo {
 	// ステージ上のオブジェクト。
 	private final Map<Integer, GameObject> objects = new ConcurrentHashMap<>();
 
+	// 衝突判定用に、動かないオブジェクト（StaticObject）を占有マップにも持つ
+	private final StaticCollisionMap staticMap = new StaticCollisionMap();// アクセスはstaticMapで同期する
+
+	// フレーム更新が必要なオブジェクトの状態の列。状態が変わらない壁は含めない。IDの順に並べた一覧も持つ。アクセスはstaticMapで同期する
+	private final EntityStore store = new EntityStore();
+
 	// ステージ外のテクスチャのアニメーション用
 	double outerStageAnimationFrame = 0;
 
+	// nullでなければ、このオブジェクトと他のオブジェクトの衝突だけを判定する
+	private GameObject collisionSubject;
+
+	// nullでなければ、遅延を登録したプロジェクタイルと戦車・ブロックの衝突を過去の位置で判定する（サーバーのシミュレーションのみ）
+	private LagCompensation lagCompensation;
+
+	// nullでなければ、衝突の通知を送るたびに、通知を受けるオブジェクトと相手を渡す（判定の順番を確かめる用）
+	private BiConsumer<GameObject, GameObject> collisionTrace;
+
+	// 衝突判定の作業用。ティックごとに作り直さないよう使い回す
+	private boolean broadphase = BROADPHASE;// falseなら総当たりで判定する
+	private final ArrayList<GameObject> objectList = new ArrayList<>();// 動くオブジェクト。IDの順
+	private int[] objectIds = new int[16];// 番号→オブジェクトID
+	private int[] objectSlots = new int[16];// 番号→ストアの席番号
+	private final SpatialHash spatialHash = new SpatialHash();
+	private int[] laggedIndices = new int[16];// 巻き戻して判定するプロジェクタイルの番号
+	private int laggedCount = 0;
+	private boolean[] swept = new boolean[16];// 番号→経路に沿って判定を済ませたプロジェクタイルか
+	private GameObject[] hitObjects = new GameObject[16];// 経路に沿って当たる相手。衝突時刻の早い順
+	private int[] hitIndices = new int[16];// 当たる相手の番号。動かないオブジェクトなら-1
+	private double[] hitTimes = new double[16];
+	private int hitCount = 0;
+	private final Point2D.Double contact = new Point2D.Double();// プロジェクタイルを当たった位置に置くときの座標
+
 	// ステージジェネレータへの参照
 	private final StageGenerator generator;
 
@@ -71,7 +103,7 @@ public class GameStage implements StageInfo {
 	public int addGameObject(GameObject gameObject) {
 		if (gameObject == null) throw new NullPointerException();
 		int id = getNextPrivateObjectID();
-		objects.put(id, gameObject);
+		place(id, gameObject);
 		return id;
 	}
 
@@ -88,6 +120,72 @@ public class GameStage implements StageInfo {
 		return idList;
 	}
 
+	/**
+	 * 指定したオブジェクトIDでオブジェクトを配置します。
+	 * サーバーのシミュレーション結果をクライアントに反映するときなど、IDを相手と揃える必要がある場合に使います。
+	 * 同じIDのオブジェクトが既にあれば置き換えます。
+	 *
+	 * @param id オブジェクトID
+	 * @param gameObject ステージに配置したいゲームオブジェクト
+	 */
+	public void putGameObject(int id, GameObject gameObject) {
+		if (gameObject == null) throw new NullPointerException();
+		synchronized (this) {
+			if (nextPrivateObjectID <= id) nextPrivateObjectID = id + 1;
+		}
+		place(id, gameObject);
+	}
+
+	/**
+	 * 指定したオブジェクトIDのオブジェクトをステージから取り除きます。
+	 *
+	 * @param id オブジェクトID
+	 */
+	public void removeGameObject(int id) {
+		GameObject removed = objects.remove(id);
+		if (removed != null) forget(removed);
+	}
+
+	/**
+	 * オブジェクトをIDで配置し、フレーム更新と衝突判定のためにストアと占有マップに登録する。
+	 * 同じIDのオブジェクトがあれば置き換える。
+	 */
+	private void place(int id, GameObject gameObject) {
+		GameObject replaced = objects.put(id, gameObject);
+		if (replaced != null) forget(replaced);
+		if (gameObject instanceof StaticObject) staticMap.add(id, (StaticObject) gameObject);
+		if (!(gameObject instanceof StaticObject) || !((StaticObject) gameObject).isPermanent()) store.add(id, gameObject);
+	}
+
+	/**
+	 * 取り除いたオブジェクトの、ストアと占有マップへの登録を取り消す。
+	 */
+	private void forget(GameObject gameObject) {
+		if (gameObject instanceof StaticObject) staticMap.remove((StaticObject) gameObject);
+		store.remove(gameObject);
+	}
+
+	/**
+	 * ステージ上のオブジェクトとそのIDの一覧を返します。
+	 * 返した一覧を通してオブジェクトを追加・削除しないでください。
+	 *
+	 * @return オブジェクトID→オブジェクトの一覧
+	 */
+	Iterable<Map.Entry<Integer, GameObject>> getEntries() {
+		return objects.entrySet();
+	}
+
+	/**
+	 * 衝突判定を、指定したオブジェクトと他のオブジェクトの組み合わせだけに絞ります。
+	 * 衝突の通知も指定したオブジェクトにだけ送ります。
+	 * サーバーがシミュレーションを行う場合に、クライアントが自分の戦車の移動を予測するためだけに使います。
+	 *
+	 * @param subject 衝突判定を行うオブジェクト。nullなら全ての組み合わせを判定する
+	 */
+	public void restrictCollisionTo(GameObject subject) {
+		this.collisionSubject = subject;
+	}
+
 	/**
 	 * 与えらたオブジェクトIDに対応する<code>GameObject</code>を返す。
 	 * @param id オブジェクトID
@@ -122,119 +220,701 @@ public class GameStage implements StageInfo {
 	/**
 	 * ステージ上の<code>GameObject</code>のフレーム更新をおこなう。
 	 * 他にも、衝突を判定し該当のオブジェクトに通知を送ったり、削除可能なオブジェクトをメモリから削除したりする。
+	 * 状態が変わらない壁（{@link StaticObject#isPermanent()}）は、フレーム更新でも衝突判定でも調べない。
 	 */
 	public void update() {
 
-		// ゲームオブジェクトのフレーム更新
-		for (GameObject object : objects.values()) {
-			object.update();
-		}
-
-		// 削除可能なオブジェクトがあれば削除
-		removeExpiredObjects();
+		// ゲームオブジェクトのフレーム更新と、削除可能なオブジェクトの削除
+		updateObjects();
 
 		// 衝突判定。衝突があれば該当オブジェクトに通知を送る
 		checkCollision();
 
+		// 次のティック以降の巻き戻しのために、このティックの位置を記録
+		if (lagCompensation != null) {
+			synchronized (staticMap) {
+				lagCompensation.record(store);
+			}
+		}
+
 		// ステージ演出アニメーション用の変数をインクリメント
 		outerStageAnimationFrame++;
 	}
 
+	/**
+	 * ゲームオブジェクトのフレーム更新をIDの順におこない、削除可能なオブジェクトがあれば削除する。
+	 * ベンチマークで衝突判定と分けて計測できるよう、{@link #update()}の前半だけをパッケージ内に公開する。
+	 */
+	void updateObjects() {
+		synchronized (staticMap) {
+			store.applyChanges();
+
+			// ゲームオブジェクトのフレーム更新。更新の間に追加・削除されたオブジェクトは、次に反映するまで一覧に現れない
+			for (int rank = 0; rank < store.getCount(); rank++) {
+				store.get(store.slotAt(rank)).update();
+			}
+
+			// 削除可能なオブジェクトがあれば削除。衝突判定の前に反映しておく
+			removeExpiredObjects();
+			store.applyChanges();
+		}
+
+	}
+
 	/**
 	 * <code>GameObject</code>同士の衝突判定をおこない、衝突があれば該当のオブジェクトに通知を送る。
 	 * 衝突判定は両方ののオブジェクトが<code>hasRigidBody()</code>が<code>true</code>を返した場合のみ行います。
 	 * 「衝突判定のの通知」は、該当オブジェクトの<code>onCollision()</code>を呼ぶことで送られます。
+	 * <code>restrictCollisionTo()</code>で対象が指定されている場合は、そのオブジェクトが関わる組だけを判定します。
+	 * 組は、全てのオブジェクトをIDの小さい順に並べて総当たりした順番（IDの小さい方、大きい方の順）に判定します。
+	 * ただし、動かないオブジェクト（{@link StaticObject}）同士は判定しません。
+	 * 動かないオブジェクトとの組は占有マップ（{@link StaticCollisionMap}）で、動くオブジェクト同士の組は空間ハッシュ（{@link SpatialHash}）で、
+	 * 近くにあるものだけ判定しますが、判定する組の順番と通知は総当たりの場合と同じです。
+	 * <p>
+	 * フレームの間に動いたプロジェクタイルは、先に、動く前の位置から今の位置までの経路に沿って判定します（{@link SweptCollision}）。
+	 * 経路の途中で当たる相手を衝突時刻の早い順に通知するので、速いプロジェクタイルも相手をすり抜けず、最初に当たった相手で止まります。
+	 * ベンチマークで衝突判定だけを計測できるよう、パッケージ内に公開しています。
 	 */
-	private void checkCollision() {
-		ArrayList<GameObject> objectList = new ArrayList<>(objects.values());
-		for (int i = 0; i < objectList.size(); i++) {
-			for (int j = i + 1; j < objectList.size(); j++) {
+	void checkCollision() {
+		GameObject subject = collisionSubject;
+		if (subject != null) {
+			// 指定されたオブジェクトの分だけ判定する
+			resolveCollisions(subject);
+			synchronized (staticMap) {
+				for (int rank = 0; rank < store.getCount(); rank++) {
+					GameObject object = store.get(store.slotAt(rank));
+					if (object instanceof MovingObject) ((MovingObject) object).resetMotion();
+				}
+			}
+			return;
+		}
 
-				// オブジェクトの組（総組み合わせ）を取得
-				GameObject o1 = objectList.get(i);
-				GameObject o2 = objectList.get(j);
-				stage.Shape shape1 = o1.getShape();
-				stage.Shape shape2 = o2.getShape();
+		synchronized (staticMap) {
+			checkAllCollisions();
+		}
+	}
 
-				// 同一のオブジェクト同士では衝突判定を行わない
-				if (o1 == o2) continue;
+	/**
+	 * 全ての組の衝突判定をおこなう。staticMapで同期して呼ぶ。
+	 */
+	private void checkAllCollisions() {
 
-				// 衝突判定は、両方がRigidBodyじゃないと行わない。
-				if (!o1.hasRigidBody() || !o2.hasRigidBody()) continue;
+		// オブジェクトの追加・削除を反映してから、動くオブジェクトごとに判定する
+		staticMap.applyChanges();
+		store.applyChanges();
+		store.refreshForeign();
+		collectMovingObjects();
+		int[] lags = lagCompensation != null ? lagCompensation.lagsOf(objectList) : null;// 組ごとに引かないよう、先に求めておく
+		int size = objectList.size();
+		if (broadphase) spatialHash.rebuild(store, objectSlots, size);
+		resolveAll(lags, size);
 
+		// 次の衝突判定で経路に沿って判定するために、動いた量を数え直す
+		for (int i = 0; i < size; i++) {
+			GameObject object = objectList.get(i);
+			if (object instanceof MovingObject) ((MovingObject) object).resetMotion();
+		}
+	}
 
-				boolean isCollided = false;
+	/**
+	 * ストアから、動くオブジェクトとそのIDと席番号をIDの順に集める。staticMapで同期して呼ぶ。
+	 */
+	private void collectMovingObjects() {
+		objectList.clear();
+		int count = store.getCount();
+		if (objectIds.length < count) {
+			objectIds = new int[Math.max(count, objectIds.length * 2)];
+			objectSlots = new int[objectIds.length];
+		}
+		for (int rank = 0; rank < count; rank++) {
+			int slot = store.slotAt(rank);
+			if (!store.isMoving(slot)) continue;
+			objectIds[objectList.size()] = store.getId(slot);
+			objectSlots[objectList.size()] = slot;
+			objectList.add(store.get(slot));
+		}
+	}
 
-				if (shape1 instanceof stage.Rectangle && shape2 instanceof stage.Rectangle) {
+	/**
+	 * objectListの全ての組の衝突を判定する。staticMapで同期して呼ぶ。
+	 *
+	 * @param lags 番号→遅延（ティック数）。遅延を登録していなければnull
+	 * @param size objectListの大きさ
+	 */
+	private void resolveAll(int[] lags, int size) {
+		// 動いたプロジェクタイルを、経路に沿って判定する。ここで判定した組は、以降では判定しない
+		if (swept.length < size) swept = new boolean[Math.max(size, swept.length * 2)];
+		for (int i = 0; i < size; i++) {
+			swept[i] = isSweepable(i, lags != null ? lags[i] : 0);
+			if (swept[i]) resolveSwept(objectList.get(i), i, true);
+		}
 
-					// ============================= 長方形 vs 長方形 =============================
-					// 相対的な位置関係を取得
-					stage.Rectangle rec1 = (stage.Rectangle) shape1;
-					stage.Rectangle rec2 = (stage.Rectangle) shape2;
-					Point2D.Double vector = Util.subtract(rec1.center, rec2.center);
+		if (!broadphase) {
+			// IDの順で、前のオブジェクトごとに後ろのオブジェクトとの組を判定する
+			int next = 0;// 次の動かないオブジェクトの、IDの順の順番
+			for (int i = 0; i <= size; i++) {
 
-					// 衝突判定
-					double xCollisionRange = (rec1.width + rec2.width) / 2.0;
-					double yCollisionRange = (rec1.height + rec2.height) / 2.0;
-					if (Math.abs(vector.x) < xCollisionRange && Math.abs(vector.y) < yCollisionRange) {
-						isCollided = true;
+				// 動くオブジェクトiより前の、動かないオブジェクトと後ろの動くオブジェクト
+				for (; next < staticMap.getCount() && (i == size || staticMap.getId(staticMap.slotAt(next)) < objectIds[i]); next++) {
+					StaticObject o1 = staticMap.get(staticMap.slotAt(next));
+					for (int j = i; j < size; j++) {
+						if (!swept[j]) resolvePair(o1, -1, 0, objectList.get(j), objectSlots[j], lags != null ? lags[j] : 0);
 					}
+				}
+				if (i == size || swept[i]) continue;
 
-				} else if (shape1 instanceof Circle && shape2 instanceof Circle) {
+				// 動くオブジェクトiと、後ろの動かないオブジェクトと動くオブジェクト
+				GameObject o1 = objectList.get(i);
+				int slot1 = objectSlots[i];
+				int lag1 = lags != null ? lags[i] : 0;
+				int rank = next;
+				for (int j = i + 1; j <= size; j++) {
+					for (; rank < staticMap.getCount() && (j == size || staticMap.getId(staticMap.slotAt(rank)) < objectIds[j]); rank++) {
+						resolvePair(o1, slot1, lag1, staticMap.get(staticMap.slotAt(rank)), -1, 0);
+					}
+					if (j < size && !swept[j]) resolvePair(o1, slot1, lag1, objectList.get(j), objectSlots[j], lags != null ? lags[j] : 0);
+				}
+			}
+			return;
+		}
 
-					// ============================= 円 vs 円 =============================
-					Circle circle1 = (Circle) shape1;
-					Circle circle2 = (Circle) shape2;
+		// 近くにあるオブジェクトの組だけを、総当たりと同じ順番で判定する。
+		// 巻き戻して判定するプロジェクタイルは、過去の位置の相手と判定するので、セルに関係なく判定する
+		laggedCount = 0;
+		if (lags != null) {
+			for (int i = 0; i < size; i++) {
+				if (lags[i] == 0) continue;
+				if (laggedCount == laggedIndices.length) laggedIndices = Arrays.copyOf(laggedIndices, laggedCount * 2);
+				laggedIndices[laggedCount++] = i;
+			}
+		}
 
-					// 衝突判定
-					double collisionRange = circle1.radius + circle2.radius;
-					double distance = circle1.center.distance(circle2.center);
-					if (distance < collisionRange) {
-						isCollided = true;
-					}
+		// 動かないオブジェクトが前になる組は、後ろの動くオブジェクトと重なる動かないオブジェクトだけを予約しておき、
+		// 動くオブジェクトの組とIDの順に交互に取り出して判定する
+		for (int i = 0; i < size; i++) {
+			if (!swept[i]) scheduleStatics(i, -1, objectIds[i]);
+		}
+		int i = 0;
+		while (true) {
+			int slot = staticMap.peekScheduled();
+			if (i < size && (slot < 0 || objectIds[i] <= staticMap.getId(slot))) {
+				if (!swept[i]) resolveRow(i, lags, size);
+				i++;
+			} else if (slot >= 0) {
+				resolveStaticRow(staticMap.pollScheduled(), i, lags);
+			} else {
+				break;
+			}
+		}
+	}
 
+	/**
+	 * 動くオブジェクトと、IDの順で後ろにある近くのオブジェクトの組を、IDの順に判定する。
+	 * 動かないオブジェクトは占有マップで、動くオブジェクトは空間ハッシュで集めた候補を、IDの順に混ぜて判定する。
+	 * 押し戻されて形状の範囲が変わった場合は、残りの候補を今の位置で集め直す。staticMapで同期して呼ぶ。
+	 * 位置と大きさ、当たり判定の有無は、オブジェクトのメソッドを呼ばずにストアの列から読む。
+	 *
+	 * @param i objectListの番号
+	 * @param lags 番号→遅延（ティック数）。遅延を登録していなければnull
+	 * @param size objectListの大きさ
+	 */
+	private void resolveRow(int i, int[] lags, int size) {
+		int slot1 = objectSlots[i];
+		if (!store.isRigid(slot1)) return;
+		GameObject o1 = objectList.get(i);
+		int id1 = objectIds[i];
+		int lag1 = lags != null ? lags[i] : 0;
+		int after = id1;// 判定を済ませた最後の相手のID
+		boolean moved = true;
+		while (moved) {
+			moved = false;
+			double x = store.getX(slot1), y = store.getY(slot1);
+			double halfWidth = store.getHalfWidth(slot1), halfHeight = store.getHalfHeight(slot1);
+			int staticCount = staticMap.collect(x - halfWidth, y - halfHeight, x + halfWidth, y + halfHeight, after, Integer.MAX_VALUE);
+			int[] statics = staticMap.getCandidates();
+
+			// 巻き戻して判定するプロジェクタイルは、後ろの全ての動くオブジェクトと判定する
+			int j = indexAfter(after, size) + 1;
+			int dynamicCount = 0;
+			int[] dynamics = null;
+			if (lag1 == 0) {
+				dynamicCount = spatialHash.collect(i, j - 1);
+				for (int k = 0; k < laggedCount; k++) {
+					if (laggedIndices[k] >= j) dynamicCount = spatialHash.addCandidate(laggedIndices[k]);
+				}
+				dynamics = spatialHash.getCandidates();
+			}
+			int s = 0, d = 0;
+			while (!moved) {
+				if (lag1 == 0) j = d < dynamicCount ? dynamics[d] : size;
+				if (s < staticCount && (j == size || staticMap.getId(statics[s]) < objectIds[j])) {
+					after = staticMap.getId(statics[s]);
+					if (!resolvePair(o1, slot1, lag1, staticMap.get(statics[s++]), -1, 0)) continue;
+				} else if (j < size) {
+					after = objectIds[j];
+					d++;
+					int index = j++;
+					if (swept[index]) continue;
+					if (!resolvePair(o1, slot1, lag1, objectList.get(index), objectSlots[index], lags != null ? lags[index] : 0)) continue;
+					if (spatialHash.update(index)) scheduleStatics(index, id1, objectIds[index]);
 				} else {
+					break;
+				}
+				spatialHash.update(i);
+				moved = store.getX(slot1) != x || store.getY(slot1) != y
+						|| store.getHalfWidth(slot1) != halfWidth || store.getHalfHeight(slot1) != halfHeight;
+			}
+		}
+	}
+
+	/**
+	 * 動かないオブジェクトと、IDの順で後ろにある動くオブジェクトのうち、近くにあるものとの組を番号の順に判定する。staticMapで同期して呼ぶ。
+	 *
+	 * @param slot 動かないオブジェクトの席番号
+	 * @param from IDの順で後ろにある、最初の動くオブジェクトの番号
+	 * @param lags 番号→遅延（ティック数）。遅延を登録していなければnull
+	 */
+	private void resolveStaticRow(int slot, int from, int[] lags) {
+		StaticObject o1 = staticMap.get(slot);
+		if (!o1.hasRigidBody()) return;
+		int id1 = staticMap.getId(slot);
+		Shape shape = o1.getShape();
+		double x = SpatialHash.center(shape).x, y = SpatialHash.center(shape).y;
+		double halfWidth = SpatialHash.halfWidth(shape), halfHeight = SpatialHash.halfHeight(shape);
+		int count = spatialHash.collect(x - halfWidth, y - halfHeight, x + halfWidth, y + halfHeight, from - 1);
+		for (int k = 0; k < laggedCount; k++) {
+			if (laggedIndices[k] >= from) count = spatialHash.addCandidate(laggedIndices[k]);
+		}
+		int[] candidates = spatialHash.getCandidates();
+		for (int k = 0; k < count; k++) {
+			int j = candidates[k];
+			if (swept[j]) continue;
+			if (!resolvePair(o1, -1, 0, objectList.get(j), objectSlots[j], lags != null ? lags[j] : 0)) continue;
+			if (spatialHash.update(j)) scheduleStatics(j, id1, objectIds[j]);
+		}
+	}
+
+	/**
+	 * 動くオブジェクトが空間ハッシュに登録した範囲に重なる、IDが指定した範囲の動かないオブジェクトを予約する。
+	 * 予約した動かないオブジェクトは、IDの順に後ろの動くオブジェクトとの組を判定する。
+	 * 形状は登録した範囲からはみ出さないので、衝突の通知で動いたオブジェクトも、登録し直したときだけ予約し直せばよい。
+	 *
+	 * @param index objectListの番号
+	 * @param after これより大きいIDだけを予約する
+	 * @param before これより小さいIDだけを予約する
+	 */
+	private void scheduleStatics(int index, int after, int before) {
+		if (!spatialHash.isRegistered(index)) return;
+		staticMap.schedule(spatialHash.getLeft(index), spatialHash.getTop(index), spatialHash.getRight(index), spatialHash.getBottom(index),
+				after, before);
+	}
+
+	/**
+	 * objectListで、IDが指定したID以下の最後の番号を二分探索で求める。
+	 *
+	 * @return 番号。無ければ-1
+	 */
+	private int indexAfter(int id, int size) {
+		int low = 0, high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (objectIds[middle] <= id) low = middle + 1;
+			else high = middle;
+		}
+		return low - 1;
+	}
+
+	/**
+	 * objectListのオブジェクトが、経路に沿って判定するオブジェクトか（{@link #isSweepable(GameObject, int)}）を、ストアの列で判定する。
+	 *
+	 * @param index objectListの番号
+	 * @param lag オブジェクトの遅延（ティック数）。登録していなければ0
+	 */
+	private boolean isSweepable(int index, int lag) {
+		int slot = objectSlots[index];
+		if (lag > 0 || !store.isRigid(slot) || !store.isRound(slot) || !(objectList.get(index) instanceof Projectile)) return false;
+		return store.getMotionX(slot) != 0 || store.getMotionY(slot) != 0;
+	}
+
+	/**
+	 * 経路に沿って判定するオブジェクトかを判定する。
+	 * フレームの間に動いた、円形のプロジェクタイルが対象。撃った人の遅延を登録したプロジェクタイルは、巻き戻して判定するので対象にしない。
+	 *
+	 * @param lag オブジェクトの遅延（ティック数）。登録していなければ0
+	 */
+	private static boolean isSweepable(GameObject object, int lag) {
+		if (lag > 0 || !(object instanceof Projectile) || !(object instanceof MovingObject) || !object.hasRigidBody()) return false;
+		MovingObject moving = (MovingObject) object;
+		return (moving.getMotionX() != 0 || moving.getMotionY() != 0) && object.getShape() instanceof Circle;
+	}
+
+	/**
+	 * 動いたプロジェクタイルと、経路の途中で重なる相手を衝突時刻の早い順に集め、その順に通知を送る。
+	 * 通知の間はプロジェクタイルを当たった位置に置き、通知の後も当たり判定があれば（貫通した場合）今の位置に戻す。
+	 * 当たり判定が無くなった（止まった）場合は当たった位置に残し、後の相手には通知しない。staticMapで同期して呼ぶ。
+	 *
+	 * @param projectile 動いたプロジェクタイル（{@link #isSweepable}）
+	 * @param index 全ての組の判定では、objectListの番号。指定したオブジェクトだけの判定では-1
+	 * @param mutual falseなら、プロジェクタイルにだけ通知を送る
+	 */
+	private void resolveSwept(GameObject projectile, int index, boolean mutual) {
+		MovingObject moving = (MovingObject) projectile;
+		Circle circle = (Circle) projectile.getShape();
+		double motionX = moving.getMotionX(), motionY = moving.getMotionY();
+
+		// 動かないオブジェクトは、経路が通るタイルにあるものだけ
+		hitCount = 0;
+		if (broadphase || index < 0) {
+			double x = circle.center.x, y = circle.center.y, radius = circle.radius;
+			int count = staticMap.collect(Math.min(x, x - motionX) - radius, Math.min(y, y - motionY) - radius,
+					Math.max(x, x - motionX) + radius, Math.max(y, y - motionY) + radius, -1, Integer.MAX_VALUE);
+			int[] candidates = staticMap.getCandidates();
+			for (int k = 0; k < count; k++) addHit(circle, motionX, motionY, staticMap.get(candidates[k]), -1);
+		} else {
+			for (int rank = 0; rank < staticMap.getCount(); rank++) {
+				addHit(circle, motionX, motionY, staticMap.get(staticMap.slotAt(rank)), -1);
+			}
+		}
+
+		// 動くオブジェクト。経路に沿って判定を済ませたプロジェクタイルとの組は、既に判定している
+		if (index < 0) {
+			for (int rank = 0; rank < store.getCount(); rank++) {
+				int slot = store.slotAt(rank);
+				GameObject other = store.get(slot);
+				if (store.isMoving(slot) && other != projectile) addHit(circle, motionX, motionY, other, -1);
+			}
+		} else if (broadphase) {
+			int count = spatialHash.collect(index, -1);
+			int[] candidates = spatialHash.getCandidates();
+			for (int k = 0; k < count; k++) {
+				int j = candidates[k];
+				if (j != index && !(j < index && swept[j])) addHit(circle, motionX, motionY, objectList.get(j), j);
+			}
+		} else {
+			for (int j = 0; j < objectList.size(); j++) {
+				if (j != index && !(j < index && swept[j])) addHit(circle, motionX, motionY, objectList.get(j), j);
+			}
+		}
 
-					// ============================= 長方形 vs 円 =============================
-					// 型のキャスト
-					GameObject circleObj, rectObj;
-					Circle circle;
-					stage.Rectangle rectangle;
-					if (shape1 instanceof Circle) {
-						circleObj = o1;
-						rectObj = o2;
+		// 当たる順に通知する
+		double endX = circle.center.x, endY = circle.center.y;
+		for (int h = 0; h < hitCount && projectile.hasRigidBody(); h++) {
+			GameObject other = hitObjects[h];
+			if (!other.hasRigidBody()) continue;
+			double rest = 1 - hitTimes[h];
+			contact.setLocation(endX - rest * motionX, endY - rest * motionY);
+			projectile.setPosition(contact);
+			notifyCollision(projectile, other);
+			if (mutual) notifyCollision(other, projectile);
+			store.refreshForeign();
+			if (broadphase && hitIndices[h] >= 0) spatialHash.update(hitIndices[h]);
+			if (projectile.hasRigidBody()) {
+				contact.setLocation(endX, endY);
+				projectile.setPosition(contact);
+			}
+		}
+		Arrays.fill(hitObjects, 0, hitCount, null);
+	}
+
+	/**
+	 * 動いた円が相手に当たるなら、衝突時刻の早い順になるよう当たる相手の一覧に加える。時刻が同じなら加えた順にする。
+	 * 相手も動いていれば、相手から見た相対的な動きで判定する。
+	 *
+	 * @param circle プロジェクタイルの今の位置の円
+	 * @param motionX プロジェクタイルが動いた量のx成分
+	 * @param motionY プロジェクタイルが動いた量のy成分
+	 * @param other 相手
+	 * @param index 相手の番号。動かないオブジェクトなら-1
+	 */
+	private void addHit(Circle circle, double motionX, double motionY, GameObject other, int index) {
+		if (!other.hasRigidBody()) return;
+		if (other instanceof MovingObject) {
+			motionX -= ((MovingObject) other).getMotionX();
+			motionY -= ((MovingObject) other).getMotionY();
+		}
+		double time = SweptCollision.timeOfImpact(circle, motionX, motionY, other.getShape());
+		if (time == SweptCollision.MISS) return;
+		if (hitCount == hitObjects.length) {
+			hitObjects = Arrays.copyOf(hitObjects, hitCount * 2);
+			hitIndices = Arrays.copyOf(hitIndices, hitCount * 2);
+			hitTimes = Arrays.copyOf(hitTimes, hitCount * 2);
+		}
+		int h = hitCount++;
+		for (; h > 0 && hitTimes[h - 1] > time; h--) {
+			hitObjects[h] = hitObjects[h - 1];
+			hitIndices[h] = hitIndices[h - 1];
+			hitTimes[h] = hitTimes[h - 1];
+		}
+		hitObjects[h] = other;
+		hitIndices[h] = index;
+		hitTimes[h] = time;
+	}
+
+	/**
+	 * 衝突判定に空間ハッシュを使うかを切り替える。ベンチマークで総当たりと比べるために使う。
+	 *
+	 * @param enabled falseなら総当たりで判定する
+	 */
+	void useBroadphase(boolean enabled) {
+		this.broadphase = enabled;
+	}
+
+	/**
+	 * 1つの組の衝突を判定し、衝突があれば両方に通知を送る。
+	 * ストアの席が分かっているオブジェクトは、当たり判定の有無と形状をメソッドを呼ばずに列から読む。
+	 *
+	 * @param slot1 1つ目のオブジェクトのストアの席番号。動かないオブジェクトなら-1
+	 * @param lag1 1つ目のオブジェクトの遅延（ティック数）。登録していなければ0
+	 * @param slot2 2つ目のオブジェクトのストアの席番号。動かないオブジェクトなら-1
+	 * @param lag2 2つ目のオブジェクトの遅延（ティック数）。登録していなければ0
+	 * @return 通知を送った可能性がある場合はtrue
+	 */
+	private boolean resolvePair(GameObject o1, int slot1, int lag1, GameObject o2, int slot2, int lag2) {
+
+		// 同一のオブジェクト同士では衝突判定を行わない
+		if (o1 == o2) return false;
+
+		// 衝突判定は、両方がRigidBodyじゃないと行わない。
+		if (!(slot1 >= 0 ? store.isRigid(slot1) : o1.hasRigidBody()) || !(slot2 >= 0 ? store.isRigid(slot2) : o2.hasRigidBody())) return false;
+
+		// 撃った人の遅延を登録したプロジェクタイルは、戦車・ブロックと過去の位置で判定する
+		if ((lag1 > 0 || lag2 > 0) && resolveCompensated(o1, lag1, o2, lag2)) return true;
+
+		if (slot1 >= 0 && slot2 >= 0 ? store.overlaps(slot1, slot2) : isCollided(o1, o2)) {
+			notifyCollision(o1, o2);
+			notifyCollision(o2, o1);
+			store.refreshForeign();// 基地の形状は通知で変わることがある
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 指定したオブジェクトと他のオブジェクトの衝突を判定し、衝突があれば指定したオブジェクトにだけ通知を送る。
+	 * フレーム更新とは別に、予測した移動をやり直すときにも使う。
+	 * 相手は全ての組の判定と同じくIDの順に判定し、動かないオブジェクトは占有マップで近くにあるものだけ判定する。
+	 * 押し戻されて形状の範囲が変わった場合は、残りの動かないオブジェクトを今の位置で集め直す。
+	 * 前回の判定から動いたプロジェクタイルは、経路に沿って当たる順に判定する。
+	 *
+	 * @param subject 衝突判定を行うオブジェクト
+	 */
+	public void resolveCollisions(GameObject subject) {
+		if (!subject.hasRigidBody()) return;
+		synchronized (staticMap) {
+			staticMap.applyChanges();
+			store.applyChanges();
+			store.refreshForeign();
+			if (isSweepable(subject, 0)) {
+				resolveSwept(subject, -1, false);
+				((MovingObject) subject).resetMotion();
+				return;
+			}
+
+			int next = nextMoving(0);// 次に判定する動くオブジェクトの、ストアのIDの順の順番
+			int after = -1;// 判定を済ませた最後の相手のID
+			boolean moved = true;
+			while (moved) {
+				moved = false;
+				Shape shape = subject.getShape();
+				double x = SpatialHash.center(shape).x, y = SpatialHash.center(shape).y;
+				double halfWidth = SpatialHash.halfWidth(shape), halfHeight = SpatialHash.halfHeight(shape);
+				int count = staticMap.collect(x - halfWidth, y - halfHeight, x + halfWidth, y + halfHeight, after, Integer.MAX_VALUE);
+				int[] candidates = staticMap.getCandidates();
+				int k = 0;
+				while (!moved && subject.hasRigidBody()) {
+					GameObject other;
+					int nextId = next < store.getCount() ? store.getId(store.slotAt(next)) : Integer.MAX_VALUE;
+					if (k < count && (next == store.getCount() || staticMap.getId(candidates[k]) < nextId)) {
+						after = staticMap.getId(candidates[k]);
+						other = staticMap.get(candidates[k++]);
+					} else if (next < store.getCount()) {
+						after = nextId;
+						other = store.get(store.slotAt(next));
+						next = nextMoving(next + 1);
 					} else {
-						circleObj = o2;
-						rectObj = o1;
-					}
-					circle = (Circle) circleObj.getShape();
-					rectangle = (Rectangle) rectObj.getShape();
-
-					// 円の中心座標を、長方形を原点としたローカル座標系に変換
-					Point2D.Double circleCenterInRectLocal = Util.subtract(circle.center, rectangle.center);
-
-					// 長方形の境界内に、円の中心座標をクランプ（射影）する
-					//    clampedX/Yは、長方形上で円の中心に最も近い点の座標（ローカル座標）
-					double halfW = rectangle.width / 2.0;
-					double halfH = rectangle.height / 2.0;
-					double clampedX = Math.max(-halfW, Math.min(halfW, circleCenterInRectLocal.x));
-					double clampedY = Math.max(-halfH, Math.min(halfH, circleCenterInRectLocal.y));
-
-					// クランプした点と、円の中心（ローカル座標）との距離を計算
-					Point2D.Double clampedPoint = new Point2D.Double(clampedX, clampedY);
-					double distance = circleCenterInRectLocal.distance(clampedPoint);
-
-					// 距離が円の半径より小さければ衝突している
-					if (distance < circle.radius) {
-						isCollided = true;
+						break;
 					}
+					if (other == subject || !other.hasRigidBody() || !isCollided(subject, other)) continue;
+					notifyCollision(subject, other);
+					store.refreshForeign();
+					Shape now = subject.getShape();
+					moved = SpatialHash.center(now).x != x || SpatialHash.center(now).y != y
+							|| SpatialHash.halfWidth(now) != halfWidth || SpatialHash.halfHeight(now) != halfHeight;
 				}
+			}
+		}
+	}
 
-				if(isCollided) {
-					o1.onCollision(o2);
-					o2.onCollision(o1);
-				}
+	/**
+	 * ストアのIDの順の一覧で、指定した順番以降にある最初の動くオブジェクトの順番を求める。staticMapで同期して呼ぶ。
+	 *
+	 * @return 順番。無ければ登録中のオブジェクトの数
+	 */
+	private int nextMoving(int rank) {
+		while (rank < store.getCount() && !store.isMoving(store.slotAt(rank))) rank++;
+		return rank;
+	}
+
+	/**
+	 * 衝突の通知を送る。判定の順番を確かめるために登録された先があれば、通知を受けるオブジェクトと相手を渡す。
+	 *
+	 * @param object 通知を受けるオブジェクト
+	 * @param other 衝突した相手
+	 */
+	private void notifyCollision(GameObject object, GameObject other) {
+		if (collisionTrace != null) collisionTrace.accept(object, other);
+		object.onCollision(other);
+	}
+
+	/**
+	 * 衝突の通知を送るたびに、通知を受けるオブジェクトと相手を渡す先を登録する。
+	 * 総当たりと空間ハッシュで、通知の順番が同じかを確かめるために使う。
+	 *
+	 * @param trace 渡す先。nullなら登録を取り消す
+	 */
+	void traceCollisions(BiConsumer<GameObject, GameObject> trace) {
+		this.collisionTrace = trace;
+	}
+
+	/**
+	 * 遅延を登録したプロジェクタイルと戦車・ブロックの組なら、相手を過去の位置に巻き戻して判定する。
+	 * 当たった場合はプロジェクタイルにだけ通知を送り、相手への被弾通知はプロジェクタイルから現在の相手に送られる。
+	 * 相手の現在の位置はプロジェクタイルから離れていることがあるので、相手の<code>onCollision()</code>（押し戻し）は呼ばない。
+	 *
+	 * @param lag1 1つ目のオブジェクトの遅延（ティック数）。登録していなければ0
+	 * @param lag2 2つ目のオブジェクトの遅延（ティック数）。登録していなければ0
+	 * @return 巻き戻して判定する組だった場合はtrue
+	 */
+	private boolean resolveCompensated(GameObject o1, int lag1, GameObject o2, int lag2) {
+		GameObject projectile, target;
+		int lag;
+		if (lag1 > 0 && LagCompensation.isRewindable(o2)) {
+			projectile = o1;
+			target = o2;
+			lag = lag1;
+		} else if (lag2 > 0 && LagCompensation.isRewindable(o1)) {
+			projectile = o2;
+			target = o1;
+			lag = lag2;
+		} else {
+			return false;
+		}
+		if (lagCompensation.isHit(projectile, lag, target)) notifyCollision(projectile, target);
+		return true;
+	}
+
+	/**
+	 * プロジェクタイルの当たり判定を撃った人が見ていた過去の位置で行えるようにする。
+	 * 以降、ティックごとに戦車とブロックの位置を記録する。
+	 *
+	 * @param window 覚えておくティック数
+	 * @return 遅延を登録するためのオブジェクト
+	 */
+	public LagCompensation enableLagCompensation(int window) {
+		lagCompensation = new LagCompensation(window);
+		return lagCompensation;
+	}
+
+	/**
+	 * 2つの<code>GameObject</code>の形状が重なっているかを判定する。
+	 *
+	 * @param o1 1つ目のオブジェクト
+	 * @param o2 2つ目のオブジェクト
+	 * @return 重なっていればtrue
+	 */
+	private boolean isCollided(GameObject o1, GameObject o2) {
+		return overlaps(o1.getShape(), o2.getShape());
+	}
+
+	/**
+	 * 2つの形状が重なっているかを判定する。
+	 *
+	 * @param shape1 1つ目の形状
+	 * @param shape2 2つ目の形状
+	 * @return 重なっていればtrue
+	 */
+	static boolean overlaps(stage.Shape shape1, stage.Shape shape2) {
+		Point2D.Double center2 = SpatialHash.center(shape2);
+		return overlaps(shape1, shape2, center2.x, center2.y);
+	}
+
+	/**
+	 * 2つ目の形状を指定した位置に移したとして、2つの形状が重なっているかを判定する。
+	 * 形状を作り直さずに、座標と大きさだけで判定する。
+	 *
+	 * @param shape1 1つ目の形状
+	 * @param shape2 2つ目の形状
+	 * @param x2 2つ目の形状の中心のx座標
+	 * @param y2 2つ目の形状の中心のy座標
+	 * @return 重なっていればtrue
+	 */
+	static boolean overlaps(stage.Shape shape1, stage.Shape shape2, double x2, double y2) {
+		Point2D.Double center1 = SpatialHash.center(shape1);
+		return overlaps(center1.x, center1.y, SpatialHash.halfWidth(shape1), SpatialHash.halfHeight(shape1), shape1 instanceof Circle,
+				x2, y2, SpatialHash.halfWidth(shape2), SpatialHash.halfHeight(shape2), shape2 instanceof Circle);
+	}
+
+	/**
+	 * 2つの形状が重なっているかを、中心の座標と外接矩形の大きさだけで判定する。ストアの列から直接判定するために使う。
+	 *
+	 * @param x1 1つ目の形状の中心のx座標
+	 * @param y1 1つ目の形状の中心のy座標
+	 * @param halfWidth1 1つ目の形状の外接矩形の幅の半分。円なら半径
+	 * @param halfHeight1 1つ目の形状の外接矩形の高さの半分。円なら半径
+	 * @param round1 1つ目の形状が円ならtrue、長方形ならfalse
+	 * @param x2 2つ目の形状の中心のx座標
+	 * @param y2 2つ目の形状の中心のy座標
+	 * @param halfWidth2 2つ目の形状の外接矩形の幅の半分。円なら半径
+	 * @param halfHeight2 2つ目の形状の外接矩形の高さの半分。円なら半径
+	 * @param round2 2つ目の形状が円ならtrue、長方形ならfalse
+	 * @return 重なっていればtrue
+	 */
+	static boolean overlaps(double x1, double y1, double halfWidth1, double halfHeight1, boolean round1,
+							double x2, double y2, double halfWidth2, double halfHeight2, boolean round2) {
+
+		if (!round1 && !round2) {
+
+			// ============================= 長方形 vs 長方形 =============================
+			// 中心の距離が、縦横とも大きさの和の半分より小さければ衝突している
+			double xCollisionRange = halfWidth1 + halfWidth2;
+			double yCollisionRange = halfHeight1 + halfHeight2;
+			return Math.abs(x1 - x2) < xCollisionRange && Math.abs(y1 - y2) < yCollisionRange;
+
+		} else if (round1 && round2) {
+
+			// ============================= 円 vs 円 =============================
+			// 中心の距離が半径の和より小さければ衝突している（平方根を取らずに比べる）
+			double collisionRange = halfWidth1 + halfWidth2;
+			double dx = x1 - x2, dy = y1 - y2;
+			return dx * dx + dy * dy < collisionRange * collisionRange;
+
+		} else {
+
+			// ============================= 長方形 vs 円 =============================
+			// 円の中心座標を、長方形を原点としたローカル座標系に変換
+			double localX, localY, radius, halfW, halfH;
+			if (round1) {
+				localX = x1 - x2;
+				localY = y1 - y2;
+				radius = halfWidth1;
+				halfW = halfWidth2;
+				halfH = halfHeight2;
+			} else {
+				localX = x2 - x1;
+				localY = y2 - y1;
+				radius = halfWidth2;
+				halfW = halfWidth1;
+				halfH = halfHeight1;
 			}
+
+			// 長方形の境界内に、円の中心座標をクランプ（射影）する
+			//    clampedX/Yは、長方形上で円の中心に最も近い点の座標（ローカル座標）
+			double clampedX = Math.max(-halfW, Math.min(halfW, localX));
+			double clampedY = Math.max(-halfH, Math.min(halfH, localY));
+
+			// クランプした点と円の中心との距離が、円の半径より小さければ衝突している
+			double dx = localX - clampedX, dy = localY - clampedY;
+			return dx * dx + dy * dy < radius * radius;
 		}
 	}
 
@@ -243,17 +923,13 @@ public class GameStage implements StageInfo {
 	 * 具体的には、<code>isExpired()</code>が<code>true</code>を<code>this.objects</code>から削除する。
 	 */
 	private void removeExpiredObjects() {
-		Iterator<GameObject> iterator = this.objects.values().iterator();
-		while (iterator.hasNext()) {
-			GameObject object = iterator.next();
-
-			if (object == null) {
-				iterator.remove();
-				continue;
-			}
+		for (int rank = 0; rank < store.getCount(); rank++) {
+			int slot = store.slotAt(rank);
+			GameObject object = store.get(slot);
 
-			if (object.isExpired()) {
-				iterator.remove();
+			// ストアからの削除は積まれるだけなので、走査中の一覧は変わらない
+			if (object.isExpired() && this.objects.remove(store.getId(slot), object)) {
+				forget(object);
 			}
 		}
 	}
@@ -340,7 +1016,8 @@ public class GameStage implements StageInfo {
 			for (GameObject object : this.objects.values()) {
 				if (object instanceof Tank) {
 					Tank tank = (Tank) object;
-					boolean isBlue = tank.getTeam() == BLUE;
+					boolean isBlue
+ = tank.getTeam() == BLUE;
 					boolean isAlive = !tank.isDead();
 					if (isBlue && isAlive) count++;
 				}
@@ -349,6 +1026,28 @@ public class GameStage implements StageInfo {
 		return count;
 	}
 
+	/**
+	 * ステージの状態のチェックサムを求めます。
+	 * ロックステップで、各クライアントのステージが同じ状態にあるかを確かめるために使います。
+	 * オブジェクトのID、種類、位置とHPから求め、オブジェクトを走査する順番には依存しません。
+	 *
+	 * @return チェックサム
+	 */
+	public int checksum() {
+		int sum = 0;
+		for (Map.Entry<Integer, GameObject> entry : objects.entrySet()) {
+			GameObject object = entry.getValue();
+			Point2D.Double position = object.getPosition();
+			int hash = entry.getKey();
+			hash = hash * 31 + object.getClass().getSimpleName().hashCode();
+			hash = hash * 31 + Double.hashCode(position.x);
+			hash = hash * 31 + Double.hashCode(position.y);
+			hash = hash * 31 + object.getHP();
+			sum += hash * 0x9E3779B1;
+		}
+		return sum;
+	}
+
 	@Override
 	public boolean hasFinished() {
 		boolean redAllDead = redBase.isRuins() && getRedTank() == 0;
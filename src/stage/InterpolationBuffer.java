@@ -0,0 +1,152 @@
+package stage;
+
+import java.awt.geom.Point2D;
+
+/**
+ * 他のプレイヤーの戦車の位置と砲塔の角度を、時刻付きで覚えておく履歴。
+ * 受信したそのままの位置に置くと、パケットの届く間隔がばらつくたびに戦車が飛ぶので、
+ * 描画は一定の遅延だけ過去の時刻で行い、その前後の2つの状態を補間する。
+ * 遅延より長くパケットが途切れた場合は、最後の2つの状態から短い間だけ外挿し、それ以上は最後の状態で止める。
+ * <p>
+ * 状態の時刻は送信側の時計（スナップショットのティックから求めた時刻、または受信時刻）で表し、
+ * 受信時刻との差の最小値を送信側と受信側の時計のずれとして推定する。
+ * 受信のスレッドが状態を積み、ゲームのスレッドが補間するので、メソッドは同期する。
+ */
+public class InterpolationBuffer {
+
+	private static final int CAPACITY = 32;
+	private static final int CLOCK_RELAX = 64;// 時計のずれの推定値を、遅れてきた状態に向けて1/64ずつ戻す
+	private static final double TELEPORT_DISTANCE = 600;// これ以上離れた状態はリスポーンなどの瞬間移動とみなし、補間しない
+
+	private final long delay;
+	private final long extrapolationLimit;
+	private final long[] times = new long[CAPACITY];
+	private final double[] xs = new double[CAPACITY];
+	private final double[] ys = new double[CAPACITY];
+	private final double[] angles = new double[CAPACITY];
+	private int newest = -1;// 最も新しい状態の位置
+	private int count = 0;
+	private long clockOffset;// 受信時刻 - 送信時刻 の推定値
+	private boolean hasClockOffset = false;
+
+	/**
+	 * InterpolationBufferのコンストラクタ。
+	 *
+	 * @param delay 描画を遅らせる時間（ミリ秒）。状態が届く間隔とそのばらつきより長くする
+	 * @param extrapolationLimit 状態が途切れたときに外挿する最大の時間（ミリ秒）
+	 */
+	public InterpolationBuffer(long delay, long extrapolationLimit) {
+		this.delay = delay;
+		this.extrapolationLimit = extrapolationLimit;
+	}
+
+	/**
+	 * 状態を追加します。
+	 * 最も新しい状態と同じ時刻の場合は上書きし、それより古い状態は捨てます。
+	 *
+	 * @param senderTime 送信側の時計での時刻（ミリ秒）
+	 * @param receivedTime 受信した時刻（ミリ秒）
+	 * @param position 位置
+	 * @param angle 砲塔の角度（ラジアン）
+	 */
+	public synchronized void add(long senderTime, long receivedTime, Point2D.Double position, double angle) {
+		// 最も早く届いた状態を基準に時計のずれを推定する。遅延が増えたときのために少しずつ戻す
+		long offset = receivedTime - senderTime;
+		if (!hasClockOffset || offset < clockOffset) {
+			clockOffset = offset;
+			hasClockOffset = true;
+		} else {
+			clockOffset += (offset - clockOffset) / CLOCK_RELAX;
+		}
+
+		// 瞬間移動した場合は、それまでの履歴との間を補間しない
+		if (count > 0 && position.distance(xs[newest], ys[newest]) > TELEPORT_DISTANCE) count = 0;
+
+		if (count > 0 && senderTime <= times[newest]) {
+			if (senderTime < times[newest]) return;// 順番が入れ替わって届いた古い状態
+		} else {
+			newest = (newest + 1) % CAPACITY;
+			if (count < CAPACITY) count++;
+		}
+		times[newest] = senderTime;
+		xs[newest] = position.x;
+		ys[newest] = position.y;
+		angles[newest] = angle;
+	}
+
+	/**
+	 * 最も新しい状態の位置を取得します。
+	 *
+	 * @return 位置。状態が1つも無い場合はnull
+	 */
+	public synchronized Point2D.Double getLatestPosition() {
+		if (count == 0) return null;
+		return new Point2D.Double(xs[newest], ys[newest]);
+	}
+
+	/**
+	 * 最も新しい状態の角度を取得します。
+	 *
+	 * @param defaultAngle 状態が1つも無い場合に返す角度
+	 * @return 角度（ラジアン）
+	 */
+	public synchronized double getLatestAngle(double defaultAngle) {
+		if (count == 0) return defaultAngle;
+		return angles[newest];
+	}
+
+	/**
+	 * 描画する時刻の状態を求めます。
+	 *
+	 * @param now 現在の時刻（ミリ秒、受信時刻と同じ時計）
+	 * @param position 補間した位置を書き込む先
+	 * @param angle 補間した角度を書き込む先（要素数1）
+	 * @return 状態が1つも無く求められない場合はfalse
+	 */
+	public synchronized boolean sample(long now, Point2D.Double position, double[] angle) {
+		if (count == 0) return false;
+		double renderTime = now - clockOffset - delay;
+
+		// 最も新しい状態より後は、短い間だけ直前の動きを延長する
+		if (renderTime >= times[newest]) {
+			if (count == 1) {
+				set(newest, position, angle);
+			} else {
+				int previous = Math.floorMod(newest - 1, CAPACITY);
+				double extrapolated = Math.min(renderTime, times[newest] + extrapolationLimit);
+				interpolate(previous, newest, (extrapolated - times[previous]) / (times[newest] - times[previous]), position, angle);
+			}
+			return true;
+		}
+
+		// 描画する時刻を挟む2つの状態を新しい方から探す
+		int later = newest;
+		for (int i = 1; i < count; i++) {
+			int earlier = Math.floorMod(later - 1, CAPACITY);
+			if (times[earlier] <= renderTime) {
+				interpolate(earlier, later, (renderTime - times[earlier]) / (times[later] - times[earlier]), position, angle);
+				return true;
+			}
+			later = earlier;
+		}
+
+		// 最も古い状態より前は、最も古い状態で止める
+		set(later, position, angle);
+		return true;
+	}
+
+	/**
+	 * 2つの状態の間を補間する。割合が1を超える場合は外挿になる。
+	 * 角度は近い方の向きに回す。
+	 */
+	private void interpolate(int from, int to, double ratio, Point2D.Double position, double[] angle) {
+		position.setLocation(xs[from] + (xs[to] - xs[from]) * ratio, ys[from] + (ys[to] - ys[from]) * ratio);
+		double difference = Math.IEEEremainder(angles[to] - angles[from], 2 * Math.PI);
+		angle[0] = angles[from] + difference * ratio;
+	}
+
+	private void set(int index, Point2D.Double position, double[] angle) {
+		position.setLocation(xs[index], ys[index]);
+		angle[0] = angles[index];
+	}
+}
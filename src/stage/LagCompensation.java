@@ -0,0 +1,142 @@
+package stage;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * サーバーのシミュレーションで、弾丸とミサイルの当たり判定を撃った人が見ていた時点の世界で行うためのクラス。
+ * クライアントは他の戦車を往復遅延と補間の遅延の分だけ過去の位置に描くので、現在の位置で判定すると遅延の分だけ先を狙わないと当たらない。
+ * そこで戦車とブロックの位置と当たり判定の有無をティックごとに一定数だけ覚えておき、
+ * 撃ったときの遅延（ティック数）を登録したプロジェクタイルは、その分だけ巻き戻した位置と判定する。
+ * 当たったときの通知（{@link GameObject#onHitBy}によるダメージなど）は現在の状態に対して行う。
+ * <p>
+ * 覚えておくのは最大{@link #getWindow()}ティック分で、オブジェクトごとに固定長の配列を使い回すので、メモリは戦車とブロックの数に比例して上限がある。
+ * 巻き戻した判定は形の位置だけを差し替えて行うので、1回の判定のコストは通常の判定と同じ。
+ */
+public class LagCompensation {
+
+	private final int window;
+	private int tick = 0;// 記録したティック数
+	private final Map<GameObject, History> histories = new IdentityHashMap<>();
+	private final Map<GameObject, Integer> lags = new IdentityHashMap<>();// プロジェクタイル→巻き戻すティック数
+
+	/**
+	 * オブジェクト1つ分の、過去の位置の履歴。ティック番号を長さで割った余りの位置に書く。
+	 */
+	private static final class History {
+		final double[] x;
+		final double[] y;
+		final boolean[] rigid;
+		final int since;// 記録を始めたティック
+		int last;// 最後に記録したティック
+
+		History(int window, int since) {
+			this.x = new double[window];
+			this.y = new double[window];
+			this.rigid = new boolean[window];
+			this.since = since;
+		}
+	}
+
+	/**
+	 * LagCompensationのコンストラクタ。
+	 *
+	 * @param window 覚えておくティック数。これより大きい遅延は、この分だけ巻き戻す
+	 */
+	public LagCompensation(int window) {
+		this.window = Math.max(1, window);
+	}
+
+	/**
+	 * 覚えておくティック数を取得する。
+	 */
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * 1ティック分の戦車とブロックの位置を記録する。ステージの更新の最後に呼ぶ。
+	 * 位置と当たり判定の有無は、オブジェクトのメソッドを呼ばずにストアの列から読む。
+	 * ステージから無くなったオブジェクトの履歴と、登録した遅延は捨てる。
+	 *
+	 * @param store ステージのストア（変更を反映済みのもの）
+	 */
+	void record(EntityStore store) {
+		tick++;
+		int index = tick % window;
+		for (int rank = 0; rank < store.getCount(); rank++) {
+			int slot = store.slotAt(rank);
+			GameObject object = store.get(slot);
+			if (!isRewindable(object)) continue;
+			History history = histories.get(object);
+			if (history == null) {
+				history = new History(window, tick);
+				histories.put(object, history);
+			}
+			history.x[index] = store.getX(slot);
+			history.y[index] = store.getY(slot);
+			history.rigid[index] = store.isRigid(slot);
+			history.last = tick;
+		}
+
+		histories.values().removeIf(history -> history.last != tick);
+		for (Iterator<GameObject> iterator = lags.keySet().iterator(); iterator.hasNext(); ) {
+			if (iterator.next().isExpired()) iterator.remove();
+		}
+	}
+
+	/**
+	 * プロジェクタイルを撃った人の遅延を登録する。以降このプロジェクタイルの戦車とブロックとの判定は、その分だけ巻き戻して行う。
+	 *
+	 * @param projectile ステージに追加したプロジェクタイル
+	 * @param lag 撃った人が見ていた世界が、現在から何ティック前か。{@link #getWindow()}で打ち切る
+	 */
+	public void track(GameObject projectile, int lag) {
+		lag = Math.min(lag, window - 1);
+		if (lag > 0) lags.put(projectile, lag);
+	}
+
+	/**
+	 * オブジェクトごとに登録した遅延を求める。
+	 *
+	 * @param objects ステージ上の全オブジェクト
+	 * @return 同じ順番の遅延（ティック数）。登録していないオブジェクトは0
+	 */
+	int[] lagsOf(List<GameObject> objects) {
+		int[] result = new int[objects.size()];
+		if (lags.isEmpty()) return result;
+		for (int i = 0; i < result.length; i++) {
+			if (!(objects.get(i) instanceof Projectile)) continue;
+			Integer lag = lags.get(objects.get(i));
+			if (lag != null) result[i] = lag;
+		}
+		return result;
+	}
+
+	/**
+	 * 巻き戻して判定する相手（戦車とブロック）かを判定する。壁と基地は動かないので現在の位置で判定する。
+	 */
+	static boolean isRewindable(GameObject object) {
+		return object instanceof Tank || object instanceof Block;
+	}
+
+	/**
+	 * プロジェクタイルが、撃った人が見ていた時点の相手に当たっているかを判定する。
+	 * その時点で相手がまだ無かった場合や、当たり判定が無かった（破壊されていた）場合は当たらない。
+	 *
+	 * @param projectile 遅延を登録したプロジェクタイル
+	 * @param lag プロジェクタイルの遅延（ティック数）
+	 * @param target 戦車またはブロック
+	 * @return 当たっていればtrue
+	 */
+	boolean isHit(GameObject projectile, int lag, GameObject target) {
+		int past = tick + 1 - lag;// 更新中のティックから遅延の分だけ前
+		History history = histories.get(target);
+		if (history == null || past < history.since) return false;// 撃った人にはまだ見えていなかった
+		int index = past % window;
+		if (!history.rigid[index]) return false;
+		return GameStage.overlaps(projectile.getShape(), target.getShape(), history.x[index], history.y[index]);
+	}
+}
@@ -1,6 +1,7 @@
 package stage;
 
 import client.GameEngine;
+import protocol.EntityState;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
@@ -12,7 +13,7 @@ import java.util.Objects;
 
 import static stage.Team.*;
 
-public class Missile implements GameObject, Projectile {
+public class Missile extends Entity implements MovingObject, Projectile {
 
     // 定数
     private static final double VELOCITY = 50;
@@ -21,11 +22,14 @@ public class Missile implements GameObject, Projectile {
 
     // 状態
     private Tank shooter;
-    private Point2D.Double position;
     private double angle;
-    private Status state = Status.CHARGING;
     private int chargeCount = 0;
     private int damageTotal = 0;
+    // 位置、前回の衝突判定から飛んだ量（チャージ中に戦車についていく分は含めない）、状態（Statusの番号）、
+    // HP（ダメージ能力）は、Entityの列に持つ
+
+    // 衝突判定用
+    private final Circle shape; // getShapeのたびに列から書き込む
 
     // 演出用定数
     private static final int CANCEL_ANIMATION_FRAME = (int) (GameEngine.FPS * 0.5);
@@ -44,6 +48,8 @@ public class Missile implements GameObject, Projectile {
         CHARGING, CANCELLED, FLYING, DEBRIS, SHOULD_REMOVE
     }
 
+    private static final Status[] STATUSES = Status.values();
+
     static {
         try {
             noneImage = ImageIO.read(Objects.requireNonNull(Missile.class.getResource("/client/assets/none_image.png")));
@@ -67,7 +73,9 @@ public class Missile implements GameObject, Projectile {
      */
     public Missile(Tank shooter) {
         this.shooter = shooter;
-        this.position = new Point2D.Double();
+        this.shape = new Circle(new Point2D.Double(), 0);
+        setTeam(shooter.getTeam());
+        setStatus(Status.CHARGING);
         setPositionBaseOn(shooter);
     }
 
@@ -80,6 +88,7 @@ public class Missile implements GameObject, Projectile {
      */
     public void decreaseDamageAbility(int damage) {
         damageTotal += damage;
+        refreshState();
         if (this.getHP() <= 0) explode();
     }
 
@@ -87,7 +96,32 @@ public class Missile implements GameObject, Projectile {
      * ミサイルを爆発させ、状態をDEBRIS（破片）に変更します。
      */
     public void explode() {
-        this.state = Status.DEBRIS;
+        setStatus(Status.DEBRIS);
+    }
+
+    /**
+     * ミサイルの現在の状態を取得します。状態は列に持ちます。
+     */
+    private Status getStatus() {
+        return STATUSES[state()];
+    }
+
+    /**
+     * ミサイルの状態を変更し、状態から決まる列を書き込み直します。
+     */
+    private void setStatus(Status status) {
+        setState(status.ordinal(), status == Status.CHARGING || status == Status.FLYING);
+        refreshState();
+    }
+
+    /**
+     * 状態とチャージ量から決まる、HP（ダメージ能力）と形状の大きさを列に書き込み直します。
+     * チャージ量や与えたダメージ量を変えたメソッドの最後に呼びます（状態を変えたときは{@link #setStatus}が呼びます）。
+     */
+    private void refreshState() {
+        setHp(computeDamageAbility());
+        double radius = getImage().getWidth() / 2.0 * getObjectScale();
+        setExtents(radius, radius, true);
     }
 
     /**
@@ -108,14 +142,14 @@ public class Missile implements GameObject, Projectile {
      * ミサイルを発射し、状態をFLYING（飛行中）に変更します。
      */
     public void launch() {
-        this.state = Status.FLYING;
+        setStatus(Status.FLYING);
     }
 
     /**
      * {@inheritDoc}
      */
     public Team getTeam() {
-        return this.shooter.getTeam();
+        return team();
     }
 
     /**
@@ -123,7 +157,7 @@ public class Missile implements GameObject, Projectile {
      * 状態やダメージ能力によってスケールが異なります。
      */
     private double getObjectScale() {
-        switch (this.state) {
+        switch (getStatus()) {
             case DEBRIS:
             case CANCELLED:
             case SHOULD_REMOVE:
@@ -132,16 +166,16 @@ public class Missile implements GameObject, Projectile {
             case FLYING:
                 return Math.max(MAX_OBJECT_SCALE, getDamageAbility() / 100.0);
             default:
-                throw new IllegalStateException("Unexpected value: " + this.state);
+                throw new IllegalStateException("Unexpected value: " + getStatus());
         }
     }
 
     /**
      * ミサイルの衝突半径を取得します。
-     * これはミサイルの画像サイズと現在のオブジェクトスケールに基づいて計算されます。
+     * これはミサイルの画像サイズと現在のオブジェクトスケールに基づいて計算され、列に書き込んであります（{@link #refreshState()}）。
      */
     private double getCollisionRadius() {
-        return getImage().getWidth() / 2.0 * getObjectScale();
+        return halfWidth();
     }
 
     /**
@@ -149,7 +183,8 @@ public class Missile implements GameObject, Projectile {
      */
     private BufferedImage getImage() {
         boolean isRed = (getTeam() == RED);
-        switch (this.state) {
+        Status status = getStatus();
+        switch (status) {
             case CHARGING:
             case CANCELLED:
                 return isRed ? redChargingMissileImage : blueChargingMissileImage;
@@ -160,10 +195,54 @@ public class Missile implements GameObject, Projectile {
             case SHOULD_REMOVE:
                 return noneImage;
             default:
-                throw new RuntimeException("Unknown Status: " + state);
+                throw new RuntimeException("Unknown Status: " + status);
         }
     }
 
+    /**
+     * ミサイルを撃った戦車を取得します。
+     */
+    Tank getShooter() {
+        return shooter;
+    }
+
+    // ============================= スナップショット =============================
+
+    /**
+     * サーバーのシミュレーション結果として送る状態を書き出します。
+     * 状態はStatusの番号、HPの欄にはチャージ量を入れます。
+     */
+    void writeState(EntityState state) {
+        state.kind = EntityState.Kind.MISSILE;
+        state.x = x();
+        state.y = y();
+        state.angle = angle;
+        state.state = state();
+        state.hp = chargeCount;
+    }
+
+    /**
+     * サーバーのシミュレーション結果を反映します。
+     */
+    void applyState(EntityState state) {
+        moveTo(state.x, state.y);
+        this.angle = state.angle;
+        this.chargeCount = state.hp;
+        setStatus(STATUSES[state.state]);
+    }
+
+    /**
+     * サーバーのシミュレーション結果から、クライアントにまだ無いミサイルを生成します。
+     *
+     * @return 生成したミサイル。チャージ中・飛行中でない場合はnull
+     */
+    static Missile fromState(Tank shooter, EntityState state) {
+        if (state.state != Status.CHARGING.ordinal() && state.state != Status.FLYING.ordinal()) return null;
+        Missile missile = new Missile(shooter);
+        missile.applyState(state);
+        return missile;
+    }
+
     // ============================= GameObjectインターフェースのメソッド =============================
 
     /**
@@ -173,15 +252,15 @@ public class Missile implements GameObject, Projectile {
     @Override
     public void update() {
         // チャージ中は戦車の位置や砲塔の向きに合わせてミサイルの位置を変える
-        switch (this.state) {
+        switch (getStatus()) {
             case CHARGING:
                 setPositionBaseOn(shooter);
                 break;
             case FLYING:
                 double dx = VELOCITY * Math.cos(this.angle);
                 double dy = VELOCITY * Math.sin(this.angle);
-                this.position.x += dx;
-                this.position.y += dy;
+                moveTo(x() + dx, y() + dy);
+                setMotion(motionX() + dx, motionY() + dy);
                 break;
         }
 
@@ -189,7 +268,8 @@ public class Missile implements GameObject, Projectile {
         if (cancelAnimationFrame > 0) cancelAnimationFrame--;
 
         // フレームカウントアップ
-        if (state == Status.CHARGING) chargeCount++;
+        if (getStatus() == Status.CHARGING) chargeCount++;
+        refreshState();
     }
 
     /**
@@ -201,7 +281,7 @@ public class Missile implements GameObject, Projectile {
         BufferedImage image = getImage();
         double objectScale = this.getObjectScale();
         AffineTransform trans = new AffineTransform();
-        trans.translate(position.x, position.y);
+        trans.translate(x(), y());
         trans.rotate(angle);
         trans.scale(objectScale, objectScale);
         trans.translate(-image.getWidth() / 2.0, -image.getHeight() / 2.0);
@@ -215,7 +295,7 @@ public class Missile implements GameObject, Projectile {
      */
     @Override
     public void onCollision(GameObject other) {
-        if (this.state == Status.CHARGING) explode();
+        if (getStatus() == Status.CHARGING) explode();
 
         // 衝突が相手のオブジェクトなら、被弾通知をおくる。
         if (other.getTeam() != this.getTeam()) {
@@ -242,7 +322,7 @@ public class Missile implements GameObject, Projectile {
      */
     @Override
     public boolean isExpired() {
-        switch (this.state) {
+        switch (getStatus()) {
             case CANCELLED:
                 return cancelAnimationFrame <= 0;
             case SHOULD_REMOVE:
@@ -258,17 +338,7 @@ public class Missile implements GameObject, Projectile {
      */
     @Override
     public boolean hasRigidBody() {
-        switch (this.state) {
-            case CHARGING:
-            case FLYING:
-                return true;
-            case CANCELLED:
-            case DEBRIS:
-            case SHOULD_REMOVE:
-                return false;
-            default:
-                throw new IllegalStateException("Unexpected value: " + this.state);
-        }
+        return rigid();
     }
 
     /**
@@ -277,7 +347,7 @@ public class Missile implements GameObject, Projectile {
      */
     @Override
     public RenderLayer getRenderLayer() {
-        switch (this.state) {
+        switch (getStatus()) {
             case CHARGING:
             case CANCELLED:
             case FLYING:
@@ -286,17 +356,19 @@ public class Missile implements GameObject, Projectile {
             case SHOULD_REMOVE:
                 return RenderLayer.DEBRIS;
             default:
-                throw new IllegalStateException("Unexpected value: " + this.state);
+                throw new IllegalStateException("Unexpected value: " + getStatus());
         }
     }
 
     /**
      * {@inheritDoc}
-     * ミサイルは円形の形状を持ちます。
+     * ミサイルは円形の形状を持ちます。返す形状は使い回しで、呼ぶたびに列の位置と半径を書き込みます。
      */
     @Override
     public Shape getShape() {
-        return new Circle(this.position, getCollisionRadius());
+        shape.center.setLocation(x(), y());
+        shape.radius = getCollisionRadius();
+        return shape;
     }
 
     /**
@@ -304,7 +376,7 @@ public class Missile implements GameObject, Projectile {
      */
     @Override
     public Point2D.Double getPosition() {
-        return (Point2D.Double) this.position.clone();
+        return new Point2D.Double(x(), y());
     }
 
     /**
@@ -312,7 +384,7 @@ public class Missile implements GameObject, Projectile {
      */
     @Override
     public void setPosition(Point2D.Double position) {
-        this.position.setLocation(position);
+        moveTo(position.x, position.y);
     }
 
     /**
@@ -325,15 +397,51 @@ public class Missile implements GameObject, Projectile {
     }
 
 
+    // ============================= MovingObjectインターフェースのメソッド =============================
+
+    /**
+     * {@inheritDoc}
+     * 飛行中にフレーム更新で飛んだ量です。
+     */
+    @Override
+    public double getMotionX() {
+        return motionX();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMotionY() {
+        return motionY();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resetMotion() {
+        setMotion(0, 0);
+    }
+
+
     // ============================= Projectileインターフェースのメソッド =============================
 
     /**
      * {@inheritDoc}
-     * 飛行中のミサイルのチャージ時間と既に与えたダメージ量に基づいて計算されます。
+     * 飛行中のミサイルのチャージ時間と既に与えたダメージ量に基づいて計算され、列のHPに書き込んであります。
      */
     @Override
     public int getDamageAbility() {
-        if (this.state == Status.FLYING) {
+        return hp();
+    }
+
+    /**
+     * 飛行中のミサイルのチャージ時間と既に与えたダメージ量から、ダメージ能力を求めます。
+     */
+    private int computeDamageAbility() {
+        if (getStatus() == Status.FLYING) {
+
             int damageAbility = Math.min(chargeCount / GameEngine.FPS * 10, MAX_DAMAGE_ABILITY) - damageTotal;
             return Math.max(damageAbility, 0);
         }
@@ -0,0 +1,29 @@
+package stage;
+
+/**
+ * フレームごとに動くオブジェクト。戦車（{@link Tank}）、弾丸（{@link Bullet}）、ミサイル（{@link Missile}）が実装する。
+ * 衝突判定の間に動いた量を報告し、速いプロジェクタイルを経路に沿って判定するのに使われる（{@link SweptCollision}）。
+ */
+public interface MovingObject extends GameObject {
+
+	/**
+	 * 前回の衝突判定から今回の衝突判定までに動いた量のx成分を取得します。
+	 * リスポーンやサーバーの結果に合わせた補正のような瞬間移動は含めません。
+	 * 衝突判定では、プロジェクタイルがこの間の経路で最初に当たる相手を求めるのに使います（{@link SweptCollision}）。
+	 * @return 動いた量のx成分
+	 */
+	double getMotionX();
+
+	/**
+	 * 前回の衝突判定から今回の衝突判定までに動いた量のy成分を取得します。
+	 * @return 動いた量のy成分
+	 * @see #getMotionX()
+	 */
+	double getMotionY();
+
+	/**
+	 * 衝突判定を終えたときに呼び出されます。次に動いた量は、ここから数えます。
+	 */
+	void resetMotion();
+
+}
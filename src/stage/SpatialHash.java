@@ -0,0 +1,344 @@
+package stage;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+
+/**
+ * 衝突判定の組を絞り込むための、一様なグリッドの空間ハッシュ（ブロードフェーズ）。
+ * ティックごとに、当たり判定のあるオブジェクトを形状の外接矩形が重なる全てのセルに登録し直す。
+ * オブジェクトの位置、大きさ、動いた量、当たり判定の有無は、オブジェクトのメソッドを呼ばずに{@link EntityStore}の列から読む。
+ * 重なっている2つのオブジェクトは必ず同じセルに登録されるので、同じセルに登録されたオブジェクトの組だけを判定すればよい。
+ * <p>
+ * セルはハッシュ表のバケットに割り当て、バケットごとの登録数を数えてから詰めて並べる（計数ソート）。
+ * 配列はティックをまたいで使い回すので、オブジェクトの数が増えない限り登録し直しても確保は起きない。
+ * 別のセルが同じバケットに入ることがあるが、候補が増えるだけで、重なりの判定は呼び出し側が行うので結果は変わらない。
+ * <p>
+ * 動いたオブジェクト（{@link MovingObject}）は、フレームの間に通った範囲で判定できるよう、動く前と後の外接矩形を合わせた範囲を登録する。
+ * 衝突の通知で押し戻されたオブジェクトも同じ登録で判定できるよう、外接矩形を{@link #SLOP}だけ広げて登録する。
+ * 押し戻しがそれより大きく、広げた範囲からはみ出したオブジェクトは、{@link #update}で今の位置のセルに追加で登録する。
+ * 追加の登録はバケットごとの連結リストに持ち、次に登録し直すまで元の登録と一緒に調べる。
+ */
+class SpatialHash {
+
+	/**
+	 * セルの一辺の長さ。壁（100x100）や戦車が1〜4個のセルに収まる大きさにする。
+	 */
+	static final double CELL_SIZE = 128;
+
+	/**
+	 * 外接矩形を広げる幅。戦車が1回押し戻されても収まるようにする。
+	 */
+	static final double SLOP = Tank.VELOCITY;
+
+	private boolean[] registered = new boolean[0];// 番号→登録したか
+	private double[] bounds = new double[0];// 番号×4→広げた外接矩形の左端、上端、右端、下端
+	private int[] cells = new int[0];// 番号×4→外接矩形が重なるセルの範囲（左、上、右、下）
+	private int mask = 0;// バケット数 - 1
+	private int[] starts = new int[1];// バケット→entriesの開始位置。最後の要素は全体の登録数
+	private int[] cursors = new int[0];// 詰めるときの、バケットごとの次の書き込み位置
+	private int[] entries = new int[0];// バケットごとに詰めて並べた番号
+	private int[] extraHeads = new int[0];// バケット→追加の登録の先頭。無ければ-1
+	private int[] extraIndices = new int[16], extraNexts = new int[16];// 追加の登録の番号と、同じバケットの次の追加の登録
+	private int extraCount = 0;
+	private int[] marks = new int[0];// 番号→最後に候補に入れた問い合わせ
+	private int query = 0;// 問い合わせの通し番号
+	private int[] candidates = new int[16];
+	private int candidateCount = 0;
+	private EntityStore store;// 列を読むストア
+	private int[] slots = new int[0];// 番号→ストアの席番号
+
+	/**
+	 * オブジェクトを登録し直す。当たり判定の無いオブジェクトは登録しない。
+	 *
+	 * @param store オブジェクトの列を持つストア
+	 * @param slots 判定するオブジェクトの席番号の一覧。以降、一覧の番号でオブジェクトを指す。次に登録し直すまで書き換えないこと
+	 * @param count 一覧の長さ
+	 */
+	void rebuild(EntityStore store, int[] slots, int count) {
+		this.store = store;
+		this.slots = slots;
+		ensureCapacity(count);
+
+		// 外接矩形が重なるセルの範囲と、登録数を求める
+		int total = 0;
+		for (int i = 0; i < count; i++) {
+			registered[i] = store.isRigid(slots[i]);
+			if (!registered[i]) continue;
+			measure(i);
+			total += (cells[i * 4 + 2] - cells[i * 4] + 1) * (cells[i * 4 + 3] - cells[i * 4 + 1] + 1);
+		}
+
+		// バケット数は登録数の2倍以上の2の累乗にする
+		int buckets = Integer.highestOneBit(Math.max(16, total * 2 - 1)) << 1;
+		mask = buckets - 1;
+		if (starts.length < buckets + 1) {
+			starts = new int[buckets + 1];
+			cursors = new int[buckets];
+			extraHeads = new int[buckets];
+		} else {
+			Arrays.fill(starts, 0, buckets + 1, 0);
+		}
+		Arrays.fill(extraHeads, 0, buckets, -1);
+		extraCount = 0;
+		if (entries.length < total) entries = new int[Math.max(total, entries.length * 2)];
+
+		// バケットごとに数えて開始位置を決め、番号の小さい順に詰める
+		for (int i = 0; i < count; i++) {
+			if (!registered[i]) continue;
+			for (int cy = cells[i * 4 + 1]; cy <= cells[i * 4 + 3]; cy++) {
+				for (int cx = cells[i * 4]; cx <= cells[i * 4 + 2]; cx++) starts[bucket(cx, cy) + 1]++;
+			}
+		}
+		for (int b = 0; b < buckets; b++) starts[b + 1] += starts[b];
+		System.arraycopy(starts, 0, cursors, 0, buckets);
+		for (int i = 0; i < count; i++) {
+			if (!registered[i]) continue;
+			for (int cy = cells[i * 4 + 1]; cy <= cells[i * 4 + 3]; cy++) {
+				for (int cx = cells[i * 4]; cx <= cells[i * 4 + 2]; cx++) entries[cursors[bucket(cx, cy)]++] = i;
+			}
+		}
+	}
+
+	/**
+	 * 指定した番号のオブジェクトと同じセルに登録された、指定した番号より大きい番号のオブジェクトを候補に集める。
+	 * 広げた外接矩形同士が重ならないオブジェクトは、形状も重ならないので候補に入れない。
+	 * 集めた候補は{@link #getCandidates()}で取得する。
+	 *
+	 * @param index オブジェクトの番号
+	 * @param after これより大きい番号だけを集める
+	 * @return 候補の数
+	 */
+	int collect(int index, int after) {
+		beginQuery();
+		if (!registered[index]) return 0;
+		int c = index * 4;
+		for (int cy = cells[c + 1]; cy <= cells[c + 3]; cy++) {
+			for (int cx = cells[c]; cx <= cells[c + 2]; cx++) {
+				int b = bucket(cx, cy);
+				for (int k = starts[b + 1] - 1; k >= starts[b] && entries[k] > after; k--) {// 番号の小さい順に詰めてあるので、後ろから読んで打ち切る
+					if (isNear(index, entries[k])) addCandidate(entries[k]);
+				}
+				if (extraCount == 0) continue;
+				for (int k = extraHeads[b]; k >= 0; k = extraNexts[k]) {
+					if (extraIndices[k] > after && isNear(index, extraIndices[k])) addCandidate(extraIndices[k]);
+				}
+			}
+		}
+		return candidateCount;
+	}
+
+	/**
+	 * 指定した範囲に重なるセルに登録された、指定した番号より大きい番号のオブジェクトを候補に集める。
+	 * 広げた外接矩形が範囲に重ならないオブジェクトは候補に入れない。動かないオブジェクトと判定する相手を集めるために使う。
+	 * 集めた候補は{@link #getCandidates()}で取得する。
+	 *
+	 * @param left 範囲の左端
+	 * @param top 範囲の上端
+	 * @param right 範囲の右端
+	 * @param bottom 範囲の下端
+	 * @param after これより大きい番号だけを集める
+	 * @return 候補の数
+	 */
+	int collect(double left, double top, double right, double bottom, int after) {
+		beginQuery();
+		for (int cy = cell(top); cy <= cell(bottom); cy++) {
+			for (int cx = cell(left); cx <= cell(right); cx++) {
+				int b = bucket(cx, cy);
+				for (int k = starts[b + 1] - 1; k >= starts[b] && entries[k] > after; k--) {
+					if (isNear(entries[k], left, top, right, bottom)) addCandidate(entries[k]);
+				}
+				if (extraCount == 0) continue;
+				for (int k = extraHeads[b]; k >= 0; k = extraNexts[k]) {
+					if (extraIndices[k] > after && isNear(extraIndices[k], left, top, right, bottom)) addCandidate(extraIndices[k]);
+				}
+			}
+		}
+		return candidateCount;
+	}
+
+	/**
+	 * 直前の{@link #collect}の候補に、セルに関係なく判定するオブジェクトを加える。既に候補に入っていれば加えない。
+	 *
+	 * @param index オブジェクトの番号
+	 * @return 候補の数
+	 */
+	int addCandidate(int index) {
+		if (marks[index] != query) {
+			marks[index] = query;
+			if (candidateCount == candidates.length) candidates = Arrays.copyOf(candidates, candidateCount * 2);
+			candidates[candidateCount++] = index;
+		}
+		return candidateCount;
+	}
+
+	/**
+	 * 集めた候補を番号の小さい順に並べて取得する。有効なのは先頭から候補の数だけ。
+	 *
+	 * @return 候補の番号の配列
+	 */
+	int[] getCandidates() {
+		Arrays.sort(candidates, 0, candidateCount);
+		return candidates;
+	}
+
+	/**
+	 * 衝突の通知で動いたオブジェクトが、登録したときに広げた外接矩形からはみ出していれば、今の位置のセルに追加で登録する。
+	 * 元のセルの登録は残るが、候補が増えるだけで結果は変わらない。
+	 *
+	 * @param index オブジェクトの番号
+	 * @return 登録し直した場合はtrue。呼び出し側は、このオブジェクトの候補を集め直す
+	 */
+	boolean update(int index) {
+		if (!registered[index]) return false;
+		int slot = slots[index];
+		double x = store.getX(slot), y = store.getY(slot);
+		double halfWidth = store.getHalfWidth(slot), halfHeight = store.getHalfHeight(slot);
+		int c = index * 4;
+		if (x - halfWidth >= bounds[c] && x + halfWidth <= bounds[c + 2]
+				&& y - halfHeight >= bounds[c + 1] && y + halfHeight <= bounds[c + 3]) return false;
+
+		measure(index);
+		for (int cy = cells[c + 1]; cy <= cells[c + 3]; cy++) {
+			for (int cx = cells[c]; cx <= cells[c + 2]; cx++) {
+				if (extraCount == extraIndices.length) {
+					extraIndices = Arrays.copyOf(extraIndices, extraCount * 2);
+					extraNexts = Arrays.copyOf(extraNexts, extraCount * 2);
+				}
+				int b = bucket(cx, cy);
+				extraIndices[extraCount] = index;
+				extraNexts[extraCount] = extraHeads[b];
+				extraHeads[b] = extraCount++;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * オブジェクトを登録したかを判定する。
+	 */
+	boolean isRegistered(int index) {
+		return registered[index];
+	}
+
+	/**
+	 * 登録した、広げた外接矩形の左端を取得する。形状はこの範囲からはみ出さない（はみ出せば{@link #update}で登録し直す）。
+	 */
+	double getLeft(int index) {
+		return bounds[index * 4];
+	}
+
+	/**
+	 * 登録した、広げた外接矩形の上端を取得する。
+	 */
+	double getTop(int index) {
+		return bounds[index * 4 + 1];
+	}
+
+	/**
+	 * 登録した、広げた外接矩形の右端を取得する。
+	 */
+	double getRight(int index) {
+		return bounds[index * 4 + 2];
+	}
+
+	/**
+	 * 登録した、広げた外接矩形の下端を取得する。
+	 */
+	double getBottom(int index) {
+		return bounds[index * 4 + 3];
+	}
+
+	/**
+	 * オブジェクトの外接矩形を広げた範囲と、それが重なるセルの範囲を求める。
+	 * 動いたオブジェクトは、動く前の外接矩形も含める。
+	 */
+	private void measure(int index) {
+		int slot = slots[index];
+		double x = store.getX(slot), y = store.getY(slot);
+		double halfWidth = store.getHalfWidth(slot) + SLOP, halfHeight = store.getHalfHeight(slot) + SLOP;
+		double motionX = store.getMotionX(slot), motionY = store.getMotionY(slot);// 動かないオブジェクトは0
+		int b = index * 4;
+		bounds[b] = x - halfWidth - Math.max(motionX, 0);
+		bounds[b + 1] = y - halfHeight - Math.max(motionY, 0);
+		bounds[b + 2] = x + halfWidth - Math.min(motionX, 0);
+		bounds[b + 3] = y + halfHeight - Math.min(motionY, 0);
+		for (int k = 0; k < 4; k++) cells[b + k] = cell(bounds[b + k]);
+	}
+
+	/**
+	 * 2つのオブジェクトの広げた外接矩形が重なっているかを判定する。
+	 */
+	private boolean isNear(int i, int j) {
+		int a = i * 4, b = j * 4;
+		return bounds[a] < bounds[b + 2] && bounds[b] < bounds[a + 2] && bounds[a + 1] < bounds[b + 3] && bounds[b + 1] < bounds[a + 3];
+	}
+
+	/**
+	 * オブジェクトの広げた外接矩形が、指定した範囲に重なっているかを判定する。
+	 */
+	private boolean isNear(int i, double left, double top, double right, double bottom) {
+		int a = i * 4;
+		return bounds[a] <= right && left <= bounds[a + 2] && bounds[a + 1] <= bottom && top <= bounds[a + 3];
+	}
+
+	/**
+	 * 候補を空にして、新しい問い合わせを始める。
+	 */
+	private void beginQuery() {
+		candidateCount = 0;
+		if (++query == 0) {// 一周したら印を消す
+			Arrays.fill(marks, 0);
+			query = 1;
+		}
+	}
+
+	/**
+	 * オブジェクトの数に合わせて配列を広げる。
+	 */
+	private void ensureCapacity(int size) {
+		if (registered.length >= size) return;
+		int capacity = Math.max(size, registered.length * 2);
+		registered = new boolean[capacity];
+		bounds = new double[capacity * 4];
+		cells = new int[capacity * 4];
+		marks = new int[capacity];
+		query = 0;
+	}
+
+	/**
+	 * 形状の中心を取得する。
+	 */
+	static Point2D.Double center(Shape shape) {
+		return shape instanceof Rectangle ? ((Rectangle) shape).center : ((Circle) shape).center;
+	}
+
+	/**
+	 * 形状の外接矩形の幅の半分を取得する。
+	 */
+	static double halfWidth(Shape shape) {
+		return shape instanceof Rectangle ? ((Rectangle) shape).width / 2.0 : ((Circle) shape).radius;
+	}
+
+	/**
+	 * 形状の外接矩形の高さの半分を取得する。
+	 */
+	static double halfHeight(Shape shape) {
+		return shape instanceof Rectangle ? ((Rectangle) shape).height / 2.0 : ((Circle) shape).radius;
+	}
+
+	/**
+	 * 座標をセルの番号にする。
+	 */
+	private static int cell(double coordinate) {
+		return (int) Math.floor(coordinate / CELL_SIZE);
+	}
+
+	/**
+	 * セルをバケットに割り当てる。
+	 */
+	private int bucket(int cx, int cy) {
+		int hash = cx * 0x9E3779B1 ^ cy * 0x85EBCA6B;
+		hash ^= hash >>> 15;
+		return hash & mask;
+	}
+}
@@ -0,0 +1,152 @@
+package stage;
+
+import client.GameEngine;
+import protocol.EntityState;
+import protocol.Snapshot;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <code>GameStage</code>と{@link Snapshot}の相互変換を行うクラス。
+ * サーバーはシミュレーション中のステージからスナップショットを作り、クライアントは受け取ったスナップショットを自分のステージに反映する。
+ * 壁は動かず壊れないので対象外。戦車と基地は両方のステージに最初から同じIDで存在する。
+ */
+public class StageSnapshot {
+
+	private StageSnapshot() {
+	}
+
+	/**
+	 * ステージの現在の状態からスナップショットを作ります。
+	 *
+	 * @param stage シミュレーション中のステージ
+	 * @param tick ティック番号
+	 * @return 作成したスナップショット
+	 */
+	public static Snapshot capture(GameStage stage, int tick) {
+		return capture(stage, tick, null);
+	}
+
+	/**
+	 * ステージの現在の状態から、戦車ごとの処理済みの移動入力の連番を添えたスナップショットを作ります。
+	 *
+	 * @param stage シミュレーション中のステージ
+	 * @param tick ティック番号
+	 * @param inputSequences 戦車IDごとの、処理した最後の移動入力の連番。nullの場合は添えない
+	 * @return 作成したスナップショット
+	 */
+	public static Snapshot capture(GameStage stage, int tick, int[] inputSequences) {
+		// 弾丸・ミサイルの撃った戦車をIDで表すため、先に戦車のIDを集める
+		Map<GameObject, Integer> tankIDs = new IdentityHashMap<>();
+		for (Map.Entry<Integer, GameObject> entry : stage.getEntries()) {
+			if (entry.getValue() instanceof Tank) tankIDs.put(entry.getValue(), entry.getKey());
+		}
+
+		Snapshot snapshot = new Snapshot();
+		snapshot.tick = tick;
+		for (Map.Entry<Integer, GameObject> entry : stage.getEntries()) {
+			GameObject object = entry.getValue();
+			if (object.isExpired()) continue;
+
+			EntityState state = new EntityState();
+			state.id = entry.getKey();
+			if (object instanceof Tank) {
+				((Tank) object).writeState(state, tick);
+				if (inputSequences != null && state.id < inputSequences.length) state.input = inputSequences[state.id];
+			} else if (object instanceof Bullet) {
+				Bullet bullet = (Bullet) object;
+				bullet.writeState(state, tick);
+				state.owner = tankIDs.getOrDefault(bullet.getShooter(), -1);
+			} else if (object instanceof Missile) {
+				Missile missile = (Missile) object;
+				missile.writeState(state);
+				state.owner = tankIDs.getOrDefault(missile.getShooter(), -1);
+			} else if (object instanceof Block) {
+				((Block) object).writeState(state, tick);
+			} else if (object instanceof Base) {
+				((Base) object).writeState(state);
+			} else {
+				continue;
+			}
+			snapshot.entities.add(state);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * スナップショットをステージに反映します。
+	 * クライアントに無い弾丸・ミサイル・ブロックは生成し、サーバーで消えたものは取り除きます。
+	 *
+	 * @param stage クライアントのステージ
+	 * @param snapshot サーバーから受け取ったスナップショット
+	 * @param predictedTankID クライアントが移動を予測している自分の戦車のID
+	 */
+	public static void apply(GameStage stage, Snapshot snapshot, int predictedTankID) {
+		long serverTime = snapshot.tick * 1000L / GameEngine.FPS;// 補間の時刻はティックから求める
+		Set<Integer> present = new HashSet<>();
+		for (EntityState state : snapshot.entities) {
+			present.add(state.id);
+			GameObject object = stage.getGameObject(state.id);
+
+			if (object == null) {
+				GameObject created = create(stage, state, snapshot.tick);
+				if (created != null) stage.putGameObject(state.id, created);
+				continue;
+			}
+
+			switch (state.kind) {
+				case TANK:
+					if (object instanceof Tank) ((Tank) object).applyState(state, state.id == predictedTankID, snapshot.tick, serverTime);
+					break;
+				case BULLET:
+					if (object instanceof Bullet) ((Bullet) object).applyState(state);
+					break;
+				case MISSILE:
+					if (object instanceof Missile) ((Missile) object).applyState(state);
+					break;
+				case BLOCK:
+					if (object instanceof Block) ((Block) object).applyState(state);
+					break;
+				case BASE:
+					if (object instanceof Base) ((Base) object).applyState(state);
+					break;
+			}
+		}
+
+		// サーバーで消えたオブジェクトを取り除く
+		List<Integer> removed = new ArrayList<>();
+		for (Map.Entry<Integer, GameObject> entry : stage.getEntries()) {
+			GameObject object = entry.getValue();
+			boolean isTransient = object instanceof Bullet || object instanceof Missile || object instanceof Block;
+			if (isTransient && !present.contains(entry.getKey())) removed.add(entry.getKey());
+		}
+		for (int id : removed) stage.removeGameObject(id);
+	}
+
+	/**
+	 * スナップショットにあってクライアントに無いオブジェクトを生成します。
+	 *
+	 * @param tick スナップショットのティック番号。残りのフレーム数をティックで書いた状態を戻すのに使う
+	 * @return 生成したオブジェクト。生成する必要が無い場合はnull
+	 */
+	private static GameObject create(GameStage stage, EntityState state, int tick) {
+		GameObject owner = state.owner >= 0 ? stage.getGameObject(state.owner) : null;
+		switch (state.kind) {
+			case BULLET:
+				if (!(owner instanceof Tank)) return null;
+				return Bullet.fromState((Tank) owner, state, tick);
+			case MISSILE:
+				if (!(owner instanceof Tank)) return null;
+				return Missile.fromState((Tank) owner, state);
+			case BLOCK:
+				return Block.fromState(state, tick);
+			default:
+				return null;// 戦車と基地は最初から存在する
+		}
+	}
+}
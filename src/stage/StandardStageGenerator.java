@@ -0,0 +1,130 @@
+package stage;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * 対戦で使うステージのジェネレータ。
+ * クライアントとサーバーのシミュレーションが同じ順番でオブジェクトを配置するので、
+ * 戦車（0からプレイヤー数-1）、壁、基地のオブジェクトIDはどちらでも一致する。
+ */
+public class StandardStageGenerator implements StageGenerator {
+
+    /**
+     * ステージの幅と高さ。ジェネレータを作らずに大きさだけを知りたいサーバーの部屋でも使う。
+     */
+    public static final int STAGE_WIDTH = 6000;
+    public static final int STAGE_HEIGHT = 6000;
+
+    private final int playerCount;
+    private final Base redBase;
+    private final Base blueBase;
+    private final int stageWidth = STAGE_WIDTH;
+    private final int stageHeight = STAGE_HEIGHT;
+
+    // 背景のテクスチャ。描画するときに初めて読み込む
+    private BufferedImage floorTexture, outerStageTexture;
+
+    /**
+     * 指定したプレイヤー数のステージを生成するジェネレータを作成します。
+     *
+     * @param playerCount プレイヤー数（戦車の数）
+     */
+    public StandardStageGenerator(int playerCount) {
+        this.playerCount = playerCount;
+        this.redBase = new Base(2000, 2000, Team.RED, playerCount * 80);
+        this.blueBase = new Base(-2000, -2000, Team.BLUE, playerCount * 80);
+    }
+
+    @Override
+    public GameObject[] getGameObjects() {
+        ArrayList<GameObject> objects = new ArrayList<>();
+
+        // 戦車の生成
+        for (int i = 0; i < playerCount; i++) {
+            Tank tank = new Tank(i % 2 == 0 ? redBase : blueBase);
+            objects.add(tank);
+        }
+
+        // 壁の生成
+        int verticalWall = stageHeight / Wall.HEIGHT;
+        int horizontalWall = stageWidth / Wall.WIDTH;
+        for (int i = 0; i <= verticalWall; i++) {
+            for (int j = 0; j <= horizontalWall; j++) {
+                if (i != 0 && i != verticalWall && j != 0 && j != horizontalWall) continue;
+                double x = Wall.WIDTH * i - stageWidth / 2.0;
+                double y = Wall.HEIGHT * j - stageHeight / 2.0;
+                Point2D.Double point = new Point2D.Double(x, y);
+                Wall wall = new Wall(point);
+                objects.add(wall);
+            }
+        }
+
+        // リスポーン地点の生成
+        objects.add(redBase);
+        objects.add(blueBase);
+
+
+        return objects.toArray(new GameObject[0]);
+    }
+
+    @Override
+    public ScreenObject[] getScreenObjects() {
+        return new ScreenObject[0];
+    }
+
+    @Override
+    public Base getRedBase() {
+        return redBase;
+    }
+
+    @Override
+    public Base getBlueBase() {
+        return blueBase;
+    }
+
+    @Override
+    public double getStageWidth() {
+        return stageWidth;
+    }
+
+    @Override
+    public double getStageHeight() {
+        return stageHeight;
+    }
+
+    @Override
+    public void drawBackground(Graphics2D graphics, double visibleWidth, double visibleHeight, double animationFrame) {
+        // 画像リソースの読み込み
+        if (floorTexture == null) {
+            try {
+                floorTexture = ImageIO.read(Objects.requireNonNull(StandardStageGenerator.class.getResource("/client/assets/floor_texture.png")));
+                outerStageTexture = ImageIO.read(Objects.requireNonNull(StandardStageGenerator.class.getResource("/client/assets/ocean_texture.png")));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        // ステージ外の描画
+        double textureSize = 1000;
+        double translate = animationFrame * 10 % textureSize;
+        Rectangle2D outerStageAnchor = new Rectangle2D.Double(translate, translate, textureSize, textureSize);
+        TexturePaint outerStagePaint = new TexturePaint(outerStageTexture, outerStageAnchor);
+        graphics.setPaint(outerStagePaint);
+        int fillWidth = (int) (stageWidth + visibleWidth);
+        int fillHeight = (int) (stageHeight + visibleHeight);
+        graphics.fillRect(-fillWidth / 2, -fillHeight / 2, fillWidth, fillHeight);
+
+        // フローリングの描画
+        Rectangle2D floorAnchor = new Rectangle2D.Double(0, 0, floorTexture.getWidth(), floorTexture.getHeight());
+        TexturePaint floorPaint = new TexturePaint(floorTexture, floorAnchor);
+        graphics.setPaint(floorPaint);
+        graphics.fillRect(-stageWidth / 2, -stageHeight / 2, stageWidth, stageHeight);
+    }
+}
@@ -0,0 +1,406 @@
+package stage;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 動かないオブジェクト（{@link StaticObject}）の当たり判定のための、タイルの占有マップ。
+ * ステージを壁と同じ大きさのタイルに区切り、タイルごとに{@link StaticObject#getBounds()}が重なるオブジェクトの一覧を持つ。
+ * 登録はオブジェクトを置いたときと取り除いたときにだけ行うので、壁がいくつあってもフレームごとのコストにはならない。
+ * 戦車やプロジェクタイルは自分の形状が重なるタイルを調べるだけで、動かないオブジェクト同士は判定しない。
+ * <p>
+ * タイルの範囲は登録したオブジェクトに合わせて広げる。タイルごとの一覧は連結リストで、節点の配列は使い回す。
+ * オブジェクトには登録した順に席番号を振る（空いた席は再利用する）。衝突判定はオブジェクトIDの順に行うので、
+ * 同じタイルに重なる候補はIDの小さい順に返し、総当たりで判定するためにIDの順に並べた一覧も持つ。
+ * 動くオブジェクトより前の順番で判定する組のために、判定する動かないオブジェクトをIDの順に取り出す予約の列（二分ヒープ）も持つ。
+ * <p>
+ * オブジェクトの追加と削除は受信のスレッドからも行われるので、{@link #add}と{@link #remove}は変更を積むだけにして、
+ * 衝突判定を行うスレッドが{@link #applyChanges()}でまとめて反映する。
+ */
+class StaticCollisionMap {
+
+	/**
+	 * タイルの一辺の長さ。壁と同じ大きさにする。
+	 */
+	static final double TILE_SIZE = Wall.WIDTH;
+
+	private static final int MARGIN = 8;// 範囲を広げるときに、余分に確保するタイルの数
+
+	private final Queue<Change> changes = new ConcurrentLinkedQueue<>();
+	private final Map<StaticObject, Integer> slots = new IdentityHashMap<>();// オブジェクト→席番号
+	private StaticObject[] objects = new StaticObject[16];// 席番号→オブジェクト。空席はnull
+	private int slotCount = 0;// 使ったことのある席の数
+	private int[] freeSlots = new int[16];
+	private int freeSlotCount = 0;
+	private int[] ids = new int[16];// 席番号→オブジェクトID
+	private int[] order = new int[16];// 登録中の席番号を、IDの小さい順に並べたもの
+	private int count = 0;// 登録中のオブジェクトの数
+	private int[] minX = new int[16], minY = new int[16], maxX = new int[16], maxY = new int[16];// 席番号→重なるタイルの範囲
+	private double[] boundsLeft = new double[16], boundsTop = new double[16], boundsRight = new double[16], boundsBottom = new double[16];// 席番号→getBounds()の範囲
+
+	// タイルの範囲。(originX, originY)のタイルから、columns x rows枚
+	private int originX = 0, originY = 0, columns = 0, rows = 0;
+	private int[] heads = new int[0];// タイル→節点の先頭。無ければ-1
+	private int[] nodeSlots = new int[64], nodeNexts = new int[64];// 節点の席番号と、同じタイルの次の節点
+	private int nodeCount = 0;
+	private int freeNode = -1;// 空いた節点の連結リストの先頭
+
+	private int[] marks = new int[16];// 席番号→最後に候補に入れた問い合わせ
+	private int query = 0;
+	private int[] candidates = new int[16];
+	private int candidateCount = 0;
+
+	private boolean[] scheduled = new boolean[16];// 席番号→予約の列に入っているか
+	private int[] heap = new int[16];// 予約した席番号の、IDについての二分ヒープ
+	private int heapCount = 0;
+
+	/**
+	 * 反映を待っている変更。
+	 */
+	private static final class Change {
+		final int id;
+		final StaticObject object;
+		final boolean added;
+
+		Change(int id, StaticObject object, boolean added) {
+			this.id = id;
+			this.object = object;
+			this.added = added;
+		}
+	}
+
+	/**
+	 * オブジェクトを登録する。次の{@link #applyChanges()}で反映する。
+	 *
+	 * @param id オブジェクトID
+	 * @param object 動かないオブジェクト
+	 */
+	void add(int id, StaticObject object) {
+		changes.add(new Change(id, object, true));
+	}
+
+	/**
+	 * オブジェクトの登録を取り消す。次の{@link #applyChanges()}で反映する。
+	 *
+	 * @param object 動かないオブジェクト
+	 */
+	void remove(StaticObject object) {
+		changes.add(new Change(-1, object, false));
+	}
+
+	/**
+	 * 積まれた変更を、積まれた順に反映する。
+	 */
+	void applyChanges() {
+		Change change;
+		while ((change = changes.poll()) != null) {
+			if (change.added) insert(change.id, change.object);
+			else delete(change.object);
+		}
+	}
+
+	/**
+	 * 席番号のオブジェクトを取得する。
+	 *
+	 * @param slot 席番号
+	 * @return オブジェクト。空席ならnull
+	 */
+	StaticObject get(int slot) {
+		return objects[slot];
+	}
+
+	/**
+	 * 席番号のオブジェクトのIDを取得する。
+	 *
+	 * @param slot 席番号
+	 * @return オブジェクトID
+	 */
+	int getId(int slot) {
+		return ids[slot];
+	}
+
+	/**
+	 * 登録中のオブジェクトの数を取得する。
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * IDの小さい順に数えて、指定した番目のオブジェクトの席番号を取得する。
+	 *
+	 * @param rank 0から{@link #getCount()}未満の順番
+	 * @return 席番号
+	 */
+	int slotAt(int rank) {
+		return order[rank];
+	}
+
+	/**
+	 * 指定した範囲に重なるタイルに登録された、IDが指定した範囲にあるオブジェクトを候補に集める。
+	 * 集めた候補は{@link #getCandidates()}で取得する。
+	 *
+	 * @param left 範囲の左端
+	 * @param top 範囲の上端
+	 * @param right 範囲の右端
+	 * @param bottom 範囲の下端
+	 * @param after これより大きいIDだけを集める
+	 * @param before これより小さいIDだけを集める
+	 * @return 候補の数
+	 */
+	int collect(double left, double top, double right, double bottom, int after, int before) {
+		candidateCount = 0;
+		if (++query == 0) {// 一周したら印を消す
+			Arrays.fill(marks, 0);
+			query = 1;
+		}
+		int x0 = Math.max(tile(left) - originX, 0), x1 = Math.min(tile(right) - originX, columns - 1);
+		int y0 = Math.max(tile(top) - originY, 0), y1 = Math.min(tile(bottom) - originY, rows - 1);
+		for (int y = y0; y <= y1; y++) {
+			for (int x = x0; x <= x1; x++) {
+				for (int node = heads[y * columns + x]; node >= 0; node = nodeNexts[node]) {
+					int slot = nodeSlots[node];
+					if (ids[slot] <= after || ids[slot] >= before || marks[slot] == query) continue;
+					marks[slot] = query;
+					if (candidateCount == candidates.length) candidates = Arrays.copyOf(candidates, candidateCount * 2);
+					candidates[candidateCount++] = slot;
+				}
+			}
+		}
+		return candidateCount;
+	}
+
+	/**
+	 * 集めた候補をIDの小さい順に並べて取得する。有効なのは先頭から候補の数だけ。
+	 * 候補は数個なので、挿入ソートで並べる。
+	 *
+	 * @return 候補の席番号の配列
+	 */
+	int[] getCandidates() {
+		for (int k = 1; k < candidateCount; k++) {
+			int slot = candidates[k];
+			int h = k;
+			for (; h > 0 && ids[candidates[h - 1]] > ids[slot]; h--) candidates[h] = candidates[h - 1];
+			candidates[h] = slot;
+		}
+		return candidates;
+	}
+
+	/**
+	 * 指定した範囲に{@link StaticObject#getBounds()}が重なる、IDが指定した範囲にあるオブジェクトを予約の列に入れる。
+	 * 既に列に入っているオブジェクトは入れない。{@link #collect}の候補は変えない。
+	 *
+	 * @param left 範囲の左端
+	 * @param top 範囲の上端
+	 * @param right 範囲の右端
+	 * @param bottom 範囲の下端
+	 * @param after これより大きいIDだけを入れる
+	 * @param before これより小さいIDだけを入れる
+	 */
+	void schedule(double left, double top, double right, double bottom, int after, int before) {
+		int x0 = Math.max(tile(left) - originX, 0), x1 = Math.min(tile(right) - originX, columns - 1);
+		int y0 = Math.max(tile(top) - originY, 0), y1 = Math.min(tile(bottom) - originY, rows - 1);
+		for (int y = y0; y <= y1; y++) {
+			for (int x = x0; x <= x1; x++) {
+				for (int node = heads[y * columns + x]; node >= 0; node = nodeNexts[node]) {
+					int slot = nodeSlots[node];
+					if (ids[slot] <= after || ids[slot] >= before || scheduled[slot]) continue;
+					if (boundsRight[slot] < left || right < boundsLeft[slot] || boundsBottom[slot] < top || bottom < boundsTop[slot]) continue;
+					scheduled[slot] = true;
+					if (heapCount == heap.length) heap = Arrays.copyOf(heap, heapCount * 2);
+					int h = heapCount++;
+					for (; h > 0 && ids[heap[(h - 1) / 2]] > ids[slot]; h = (h - 1) / 2) heap[h] = heap[(h - 1) / 2];
+					heap[h] = slot;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 予約の列で、IDが最も小さいオブジェクトの席番号を取得する。
+	 *
+	 * @return 席番号。列が空なら-1
+	 */
+	int peekScheduled() {
+		return heapCount > 0 ? heap[0] : -1;
+	}
+
+	/**
+	 * 予約の列から、IDが最も小さいオブジェクトを取り出す。
+	 *
+	 * @return 席番号。列が空なら-1
+	 */
+	int pollScheduled() {
+		if (heapCount == 0) return -1;
+		int first = heap[0];
+		scheduled[first] = false;
+		int last = heap[--heapCount];
+		int h = 0;
+		while (true) {
+			int child = h * 2 + 1;
+			if (child >= heapCount) break;
+			if (child + 1 < heapCount && ids[heap[child + 1]] < ids[heap[child]]) child++;
+			if (ids[heap[child]] >= ids[last]) break;
+			heap[h] = heap[child];
+			h = child;
+		}
+		heap[h] = last;
+		return first;
+	}
+
+	/**
+	 * オブジェクトに席を割り当て、重なるタイルに登録する。
+	 */
+	private void insert(int id, StaticObject object) {
+		if (slots.containsKey(object)) return;
+		int slot;
+		if (freeSlotCount > 0) {
+			slot = freeSlots[--freeSlotCount];
+		} else {
+			slot = slotCount++;
+			if (slot == objects.length) growSlots(slot * 2);
+		}
+		Rectangle bounds = object.getBounds();
+		boundsLeft[slot] = bounds.center.x - bounds.width / 2.0;
+		boundsTop[slot] = bounds.center.y - bounds.height / 2.0;
+		boundsRight[slot] = bounds.center.x + bounds.width / 2.0;
+		boundsBottom[slot] = bounds.center.y + bounds.height / 2.0;
+		minX[slot] = tile(boundsLeft[slot]);
+		minY[slot] = tile(boundsTop[slot]);
+		maxX[slot] = tile(boundsRight[slot]);
+		maxY[slot] = tile(boundsBottom[slot]);
+		ensureTiles(minX[slot], minY[slot], maxX[slot], maxY[slot]);
+		slots.put(object, slot);
+		objects[slot] = object;
+		ids[slot] = id;
+		link(slot);
+
+		// IDの順の一覧に挟み込む。同じIDなら後に登録したものを後ろにする
+		if (count == order.length) order = Arrays.copyOf(order, count * 2);
+		int rank = rankOf(id + 1L);
+		System.arraycopy(order, rank, order, rank + 1, count - rank);
+		order[rank] = slot;
+		count++;
+	}
+
+	/**
+	 * オブジェクトを重なるタイルから外し、席を空ける。
+	 */
+	private void delete(StaticObject object) {
+		Integer removed = slots.remove(object);
+		if (removed == null) return;
+		int slot = removed;
+		for (int y = minY[slot]; y <= maxY[slot]; y++) {
+			for (int x = minX[slot]; x <= maxX[slot]; x++) {
+				int tile = (y - originY) * columns + (x - originX);
+				int previous = -1;
+				for (int node = heads[tile]; node >= 0; previous = node, node = nodeNexts[node]) {
+					if (nodeSlots[node] != slot) continue;
+					if (previous < 0) heads[tile] = nodeNexts[node];
+					else nodeNexts[previous] = nodeNexts[node];
+					nodeNexts[node] = freeNode;
+					freeNode = node;
+					break;
+				}
+			}
+		}
+		objects[slot] = null;
+		int rank = rankOf(ids[slot]);
+		while (order[rank] != slot) rank++;
+		System.arraycopy(order, rank + 1, order, rank, count - rank - 1);
+		count--;
+		if (freeSlotCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+		freeSlots[freeSlotCount++] = slot;
+	}
+
+	/**
+	 * IDの順の一覧で、指定したID以上のIDを持つ最初のオブジェクトの順番を二分探索で求める。
+	 */
+	private int rankOf(long id) {
+		int low = 0, high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (ids[order[middle]] < id) low = middle + 1;
+			else high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * 席のオブジェクトを、重なる全てのタイルの連結リストに加える。
+	 */
+	private void link(int slot) {
+		for (int y = minY[slot]; y <= maxY[slot]; y++) {
+			for (int x = minX[slot]; x <= maxX[slot]; x++) {
+				int node;
+				if (freeNode >= 0) {
+					node = freeNode;
+					freeNode = nodeNexts[node];
+				} else {
+					node = nodeCount++;
+					if (node == nodeSlots.length) {
+						nodeSlots = Arrays.copyOf(nodeSlots, node * 2);
+						nodeNexts = Arrays.copyOf(nodeNexts, node * 2);
+					}
+				}
+				int tile = (y - originY) * columns + (x - originX);
+				nodeSlots[node] = slot;
+				nodeNexts[node] = heads[tile];
+				heads[tile] = node;
+			}
+		}
+	}
+
+	/**
+	 * タイルの範囲が指定した範囲を含むよう広げる。広げた場合は全てのオブジェクトを登録し直す。
+	 * 少しずつ広げ続けることのないよう、足りない方向には今の範囲の半分以上を余分に広げる。
+	 */
+	private void ensureTiles(int x0, int y0, int x1, int y1) {
+		if (columns > 0 && x0 >= originX && y0 >= originY && x1 < originX + columns && y1 < originY + rows) return;
+		int newX0 = x0 - MARGIN, newY0 = y0 - MARGIN, newX1 = x1 + MARGIN, newY1 = y1 + MARGIN;
+		if (columns > 0) {
+			int marginX = Math.max(MARGIN, columns / 2), marginY = Math.max(MARGIN, rows / 2);
+			newX0 = x0 < originX ? Math.min(originX, x0) - marginX : originX;
+			newY0 = y0 < originY ? Math.min(originY, y0) - marginY : originY;
+			newX1 = x1 >= originX + columns ? x1 + marginX : originX + columns - 1;
+			newY1 = y1 >= originY + rows ? y1 + marginY : originY + rows - 1;
+		}
+		originX = newX0;
+		originY = newY0;
+		columns = newX1 - newX0 + 1;
+		rows = newY1 - newY0 + 1;
+		heads = new int[Math.multiplyExact(columns, rows)];
+		Arrays.fill(heads, -1);
+		nodeCount = 0;
+		freeNode = -1;
+		for (int slot : slots.values()) link(slot);
+	}
+
+	/**
+	 * 席番号の配列を広げる。
+	 */
+	private void growSlots(int capacity) {
+		objects = Arrays.copyOf(objects, capacity);
+		minX = Arrays.copyOf(minX, capacity);
+		minY = Arrays.copyOf(minY, capacity);
+		maxX = Arrays.copyOf(maxX, capacity);
+		maxY = Arrays.copyOf(maxY, capacity);
+		boundsLeft = Arrays.copyOf(boundsLeft, capacity);
+		boundsTop = Arrays.copyOf(boundsTop, capacity);
+		boundsRight = Arrays.copyOf(boundsRight, capacity);
+		boundsBottom = Arrays.copyOf(boundsBottom, capacity);
+		marks = Arrays.copyOf(marks, capacity);
+		ids = Arrays.copyOf(ids, capacity);
+		scheduled = Arrays.copyOf(scheduled, capacity);
+	}
+
+	/**
+	 * 座標をタイルの番号にする。
+	 */
+	private static int tile(double coordinate) {
+		return (int) Math.floor(coordinate / TILE_SIZE);
+	}
+}
@@ -0,0 +1,25 @@
+package stage;
+
+/**
+ * ステージに置いた後は動かないオブジェクト。壁（{@link Wall}）と設置したブロック（{@link Block}）が実装する。
+ * 衝突判定では、動くオブジェクトとは別にタイルの占有マップ（{@link StaticCollisionMap}）で管理される。
+ */
+public interface StaticObject extends GameObject {
+
+	/**
+	 * 当たり判定がある間の形状が収まる範囲を取得します。
+	 * ステージに置いた後は動かないオブジェクト（壁と設置したブロック）が実装し、
+	 * 衝突判定では{@link StaticCollisionMap}に1度だけ登録されます。
+	 * 当たり判定の有無や形状の大きさは変わってもよいですが、常にこの範囲に収まる必要があります。
+	 * @return 形状が収まる長方形
+	 */
+	Rectangle getBounds();
+
+	/**
+	 * ステージに置いた後、状態が変わらず取り除かれることもないかを判定します。
+	 * trueを返すオブジェクトは、フレーム更新（<code>update()</code>や<code>isExpired()</code>の確認）の対象になりません。
+	 * @return 状態が変わらなければtrue
+	 */
+	boolean isPermanent();
+
+}
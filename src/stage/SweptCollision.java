@@ -0,0 +1,114 @@
+package stage;
+
+/**
+ * 1フレームの間に動いた円が、相手の形状に最初に重なる時刻（衝突時刻）を求める連続的な衝突判定。
+ * フレームの終わりの位置だけで重なりを調べると、速いプロジェクタイルは薄い相手や向かってくる戦車をすり抜けてしまう。
+ * ここでは円の中心がフレームの始めの位置から終わりの位置まで直線で動いたとみなし、その線分と、相手の形状を円の半径だけ太らせた形を交差させる。
+ * <ul>
+ * <li>円と円：半径の和の円と線分の交差（2次方程式）</li>
+ * <li>円と長方形：長方形を半径だけ太らせた角の丸い長方形を、縦横に伸ばした2つの長方形と4隅の円に分けて、それぞれと線分を交差させた最も早い時刻</li>
+ * </ul>
+ * 相手も動いている場合は、相手から見た相対的な動きで判定する。時刻はフレームの始めを0、終わりを1とする。
+ */
+final class SweptCollision {
+
+	/**
+	 * 当たらなかったことを表す時刻。
+	 */
+	static final double MISS = -1;
+
+	private SweptCollision() {
+	}
+
+	/**
+	 * 動いた円が、止まっている相手の形状に最初に重なる時刻を求める。
+	 * フレームの始めに既に重なっていれば0を返す。終わりの位置で重なっていれば、必ず1以下の時刻を返す。
+	 *
+	 * @param circle フレームの終わりの位置の円
+	 * @param dx フレームの間に動いた量のx成分（相手から見た相対的な動き）
+	 * @param dy フレームの間に動いた量のy成分（相手から見た相対的な動き）
+	 * @param target 相手の形状
+	 * @return 0以上1以下の衝突時刻。当たらなければ{@link #MISS}
+	 */
+	static double timeOfImpact(Circle circle, double dx, double dy, Shape target) {
+		double startX = circle.center.x - dx, startY = circle.center.y - dy;
+		double time;
+		if (target instanceof Circle) {
+			Circle other = (Circle) target;
+			time = circleTime(startX - other.center.x, startY - other.center.y, dx, dy, circle.radius + other.radius);
+		} else {
+			Rectangle rectangle = (Rectangle) target;
+			time = rectangleTime(startX - rectangle.center.x, startY - rectangle.center.y, dx, dy,
+					rectangle.width / 2.0, rectangle.height / 2.0, circle.radius);
+		}
+		if (time == MISS && GameStage.overlaps(circle, target)) return 1;// 丸め誤差で取りこぼしても、終わりの位置の判定より悪くはしない
+		return time;
+	}
+
+	/**
+	 * 原点を中心とする半径radiusの円と、(x, y)から(x + dx, y + dy)への線分が最初に交わる時刻を求める。
+	 */
+	private static double circleTime(double x, double y, double dx, double dy, double radius) {
+		double c = x * x + y * y - radius * radius;
+		if (c < 0) return 0;
+		double a = dx * dx + dy * dy;
+		if (a == 0) return MISS;
+		double b = x * dx + y * dy;
+		if (b >= 0) return MISS;// 離れていく
+		double discriminant = b * b - a * c;
+		if (discriminant <= 0) return MISS;// かすりもしないか、接するだけ
+		double time = (-b - Math.sqrt(discriminant)) / a;
+		return time <= 1 ? time : MISS;
+	}
+
+	/**
+	 * 原点を中心とする幅2 * halfWidth、高さ2 * halfHeightの長方形を半径radiusだけ太らせた形と、
+	 * (x, y)から(x + dx, y + dy)への線分が最初に交わる時刻を求める。
+	 */
+	private static double rectangleTime(double x, double y, double dx, double dy, double halfWidth, double halfHeight, double radius) {
+
+		// 始めの位置で重なっている
+		double nearestX = Math.max(-halfWidth, Math.min(halfWidth, x)), nearestY = Math.max(-halfHeight, Math.min(halfHeight, y));
+		if ((x - nearestX) * (x - nearestX) + (y - nearestY) * (y - nearestY) < radius * radius) return 0;
+
+		// 横に伸ばした長方形、縦に伸ばした長方形、4隅の円のうち、最も早く交わる時刻
+		double time = earliest(MISS, boxTime(x, y, dx, dy, halfWidth + radius, halfHeight));
+		time = earliest(time, boxTime(x, y, dx, dy, halfWidth, halfHeight + radius));
+		for (int corner = 0; corner < 4; corner++) {
+			double cornerX = (corner & 1) == 0 ? -halfWidth : halfWidth, cornerY = (corner & 2) == 0 ? -halfHeight : halfHeight;
+			time = earliest(time, circleTime(x - cornerX, y - cornerY, dx, dy, radius));
+		}
+		return time;
+	}
+
+	/**
+	 * 原点を中心とする幅2 * halfWidth、高さ2 * halfHeightの長方形と、(x, y)から(x + dx, y + dy)への線分が最初に交わる時刻を求める（スラブ法）。
+	 */
+	private static double boxTime(double x, double y, double dx, double dy, double halfWidth, double halfHeight) {
+		double enter = 0, exit = 1;
+		if (dx == 0) {
+			if (Math.abs(x) >= halfWidth) return MISS;
+		} else {
+			double t1 = (-halfWidth - x) / dx, t2 = (halfWidth - x) / dx;
+			enter = Math.max(enter, Math.min(t1, t2));
+			exit = Math.min(exit, Math.max(t1, t2));
+		}
+		if (dy == 0) {
+			if (Math.abs(y) >= halfHeight) return MISS;
+		} else {
+			double t1 = (-halfHeight - y) / dy, t2 = (halfHeight - y) / dy;
+			enter = Math.max(enter, Math.min(t1, t2));
+			exit = Math.min(exit, Math.max(t1, t2));
+		}
+		return enter < exit ? enter : MISS;
+	}
+
+	/**
+	 * 2つの時刻のうち早い方を返す。どちらかが{@link #MISS}なら、もう一方を返す。
+	 */
+	private static double earliest(double time1, double time2) {
+		if (time1 == MISS) return time2;
+		if (time2 == MISS) return time1;
+		return Math.min(time1, time2);
+	}
+}
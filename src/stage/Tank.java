@@ -2,7 +2,7 @@ package stage;
 
 import client.GameEngine;
 import client.SoundManager;
-import util.Util;
+import protocol.EntityState;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
@@ -10,23 +10,25 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.List;
 import java.util.Objects;
 import java.util.Random;
 
 import static stage.Team.*;
 
-public class Tank implements GameObject {
+public class Tank extends Entity implements MovingObject {
 
     // 特徴（定数）
     public static final double VELOCITY = 20;
     private static final int INITIAL_HP = 50;
+    private static final double CORRECTION_SNAP_DISTANCE = VELOCITY * 10; // 予測の補正がこれより大きければ（リスポーンなど）、描画も瞬時に合わせる
+    private static final double CORRECTION_DECAY = 0.85; // 描画位置の補正の残りを1フレームごとに縮める割合
 
     // 状態（クライアント間の同期に必要)
     private final Base base;
-    private final Point2D.Double position; // オブジェクトの中心の座標
     private double gunAngle; // ラジアン
-    private int hp = INITIAL_HP;
     private Missile holdingMissile;
+    // 位置とHPは、Entityの列に持つ
 
     // 演出用定数
     private final static int DAMAGE_FLUSH_FRAME = (int) (GameEngine.FPS * 1.5);
@@ -41,6 +43,13 @@ public class Tank implements GameObject {
     protected int respawnAnimateFrame = RESPAWN_ANIMATE_FRAME; // StartScreenTankからいじりたいから、これだけprotected
     private boolean hadBroken = false;
     private boolean isOnBase = false;
+    private final Point2D.Double correction = new Point2D.Double(); // 予測の補正で飛んだ分を、描画だけ元の位置から追いつかせるためのずれ
+    private InterpolationBuffer interpolation; // 他のプレイヤーの戦車の場合、受信した位置と角度の履歴
+    private final Point2D.Double sampledPosition = new Point2D.Double();
+    private final double[] sampledAngle = new double[1];
+    private final Random nudge = new Random(0); // 重なったときにずらす向き。ロックステップで全員が同じ結果になるよう、種を固定する
+    private double originX, originY; // 前回の衝突判定を終えたときの位置
+    private final Rectangle shape; // getShapeのたびに列から書き込む
 
     // 効果音
     private static final SoundManager sound = new SoundManager();
@@ -58,6 +67,8 @@ public class Tank implements GameObject {
         RESPAWNING, NORMAL, BROKEN, DEBRIS, NONE
     }
 
+    private static final State[] STATES = State.values();
+
     static {
         try {
             // 本当の本当に透明
@@ -97,8 +108,15 @@ public class Tank implements GameObject {
      * 戦車は指定された基地の位置にスポーンします。
      */
     public Tank(Base base) {
-        this.position = base.getPosition();
+        Point2D.Double spawnPoint = base.getPosition();
+        this.shape = new Rectangle(new Point2D.Double(), 0, 0);
         this.base = base;
+        setTeam(base.getTeam());
+        setHp(INITIAL_HP);
+        this.originX = spawnPoint.x;
+        this.originY = spawnPoint.y;
+        reposition(spawnPoint.x, spawnPoint.y);
+        refreshState();
     }
 
     // ============================= Tankクラス独自のメソッド =============================
@@ -108,8 +126,66 @@ public class Tank implements GameObject {
      * ミサイルをチャージ中の場合は砲塔を動かせません。
      */
     public void aimAt(Point2D.Double coordinate) {
+        aimAt(coordinate, -1);
+    }
+
+    /**
+     * 受信した照準に戦車の砲塔を向かせます。
+     * 補間を有効にしている場合は、送られた時刻の状態として履歴に積みます。
+     *
+     * @param coordinate 照準の座標
+     * @param sentTime 送られた時刻（System.nanoTimeのミリ秒）。不明なら-1で、受信した時刻とみなします
+     */
+    void aimAt(Point2D.Double coordinate, long sentTime) {
         if (holdingMissile != null) return;
-        this.gunAngle = Math.atan2(coordinate.y - this.position.y, coordinate.x - this.position.x);
+        if (interpolation != null) {
+            // 受信した照準は、最後に受信した位置からの角度として履歴に積む
+            Point2D.Double latest = interpolation.getLatestPosition();
+            Point2D.Double origin = latest != null ? latest : getPosition();
+            long now = System.nanoTime() / 1000000;
+            interpolation.add(sentTime >= 0 ? sentTime : now, now, origin, Math.atan2(coordinate.y - origin.y, coordinate.x - origin.x));
+            return;
+        }
+        this.gunAngle = Math.atan2(coordinate.y - y(), coordinate.x - x());
+    }
+
+    /**
+     * 受信した位置に戦車を置きます。
+     * 補間を有効にしている場合は、すぐには動かさず履歴に積みます。
+     *
+     * @param position 受信した位置
+     */
+    public void locate(Point2D.Double position) {
+        locate(position, -1);
+    }
+
+    /**
+     * 受信した位置に戦車を置きます。
+     * 補間を有効にしている場合は、送られた時刻の状態として履歴に積みます。
+     * 届く間隔がばらついても、送られた間隔のとおりに補間できます。
+     *
+     * @param position 受信した位置
+     * @param sentTime 送られた時刻（System.nanoTimeのミリ秒）。不明なら-1で、受信した時刻とみなします
+     */
+    void locate(Point2D.Double position, long sentTime) {
+        if (interpolation == null) {
+            setPosition(position);
+            return;
+        }
+        long now = System.nanoTime() / 1000000;
+        interpolation.add(sentTime >= 0 ? sentTime : now, now, position, interpolation.getLatestAngle(gunAngle));
+    }
+
+    /**
+     * 他のプレイヤーの戦車として、受信した位置と照準を補間して描くようにします。
+     * 以降の{@link #aimAt}と{@link #locate}、サーバーのスナップショットは履歴に積まれ、
+     * フレーム更新のたびに指定した遅延だけ過去の状態が反映されます。
+     *
+     * @param delay 描画を遅らせる時間（ミリ秒）
+     * @param extrapolationLimit 受信が途切れたときに動きを延長する最大の時間（ミリ秒）
+     */
+    public void enableInterpolation(long delay, long extrapolationLimit) {
+        this.interpolation = new InterpolationBuffer(delay, extrapolationLimit);
     }
 
     /**
@@ -117,12 +193,28 @@ public class Tank implements GameObject {
      * ミサイルをチャージ中の場合は移動できません。
      */
     public void move(Point2D.Double vector) {
+        move(vector.x, vector.y);
+    }
+
+    /**
+     * 戦車を指定された方向に、速度の分だけ移動させます。
+     * ミサイルをチャージ中の場合は移動できません。
+     */
+    private void move(double x, double y) {
         if (holdingMissile != null) return;
-        Point2D.Double p = new Point2D.Double(vector.x, vector.y);
-        p = Util.normalize(p);
-        p = Util.multiple(p, this.getVelocity());
-        p = Util.addition(this.position, p);
-        this.position.setLocation(p);
+        double norm = Math.sqrt(x * x + y * y);
+        if (norm == 0) return;
+        reposition(x() + x / norm * this.getVelocity(), y() + y / norm * this.getVelocity());
+    }
+
+    /**
+     * 戦車を指定された位置に置き、前回の衝突判定を終えたときの位置からのずれを列に書き込みます。
+     * リスポーンのように、移動では届かないほど位置が飛んだ場合は、ずれを0とします。
+     */
+    private void reposition(double x, double y) {
+        moveTo(x, y);
+        boolean teleported = Point2D.distance(originX, originY, x, y) > CORRECTION_SNAP_DISTANCE;
+        setMotion(teleported ? 0 : x - originX, teleported ? 0 : y - originY);
     }
 
     /**
@@ -133,6 +225,14 @@ public class Tank implements GameObject {
         return new Bullet(this);
     }
 
+    /**
+     * サーバーのシミュレーションで発射された弾丸を、指定された位置と向きで生成します。
+     */
+    Bullet shootBullet(Point2D.Double position, double angle) {
+        sound.shootGun();
+        return new Bullet(this, position, angle);
+    }
+
     /**
      * エネルギーチャージを開始し、新しいミサイルを生成して保持します。
      */
@@ -159,7 +259,7 @@ public class Tank implements GameObject {
     public Block createBlock() {
         if (isOnBase) return null;
         sound.createBlock();
-        return new Block(this.position.x, this.position.y, true);
+        return new Block(x(), y(), true);
     }
 
     /**
@@ -170,10 +270,11 @@ public class Tank implements GameObject {
     public void damage(int damage) {
         this.damageFlushFrame = DAMAGE_FLUSH_FRAME;
         this.respawnLagFrame = RESPAWN_LAG_FRAME;
-        this.hp -= damage;
-        if (this.hp <= 0) {
+        setHp(hp() - damage);
+        if (hp() <= 0) {
             onDie();
         }
+        refreshState();
     }
 
     /**
@@ -181,9 +282,10 @@ public class Tank implements GameObject {
      */
     public void onDie() {
         sound.objectExplosion();
-        this.hp = 0;
+        setHp(0);
         this.damageFlushFrame = 0;
         this.debrisLifeFrame = DEBRIS_LIFE_FRAME;
+        refreshState();
     }
 
     /**
@@ -192,10 +294,11 @@ public class Tank implements GameObject {
      */
     public void respawn() {
         if (base.isRuins()) return;
-        this.hp = INITIAL_HP;
+        setHp(INITIAL_HP);
         this.respawnAnimateFrame = RESPAWN_ANIMATE_FRAME;
         Point2D.Double spawnPoint = base.getPosition();
         this.setPosition(spawnPoint);
+        refreshState();
     }
 
     /**
@@ -203,7 +306,14 @@ public class Tank implements GameObject {
      * 戦車の現在の状態（リスポーン中、通常、破壊など）に応じてスケールが異なります。
      */
     private double getObjectScale() {
-        switch (getState()) {
+        return getObjectScale(getState());
+    }
+
+    /**
+     * 指定された状態での、戦車の描画スケールを取得します。
+     */
+    private double getObjectScale(State state) {
+        switch (state) {
             case RESPAWNING:
                 return 1.0 - respawnAnimateFrame / (double) RESPAWN_ANIMATE_FRAME;
             case NORMAL:
@@ -222,9 +332,16 @@ public class Tank implements GameObject {
      * ダメージを受けた直後は点滅演出のため透明な画像が返されることがあります。
      */
     private BufferedImage getChassisImage() {
+        return getChassisImage(getState());
+    }
+
+    /**
+     * 指定された状態での、戦車のシャシーの画像を取得します。
+     */
+    private BufferedImage getChassisImage(State state) {
         boolean isRed = (base.getTeam() == RED);
         boolean isFlushing = (damageFlushFrame > 0) && damageFlushFrame % 20 == 0;
-        switch (getState()) {
+        switch (state) {
             case RESPAWNING:
                 return isRed ? redTransparentChassisImage : blueTransparentChassisImage;
             case NORMAL:
@@ -238,7 +355,7 @@ public class Tank implements GameObject {
             case NONE:
                 return noneImage;
             default:
-                throw new IllegalStateException("Unexpected value: " + getState());
+                throw new IllegalStateException("Unexpected value: " + state);
         }
     }
 
@@ -285,22 +402,118 @@ public class Tank implements GameObject {
 
     /**
      * 戦車の現在の状態（RESPAWNING, NORMAL, BROKEN, DEBRIS, NONE）を取得します。
+     * 状態は列に書き込んだものを読みます（{@link #refreshState()}）。
      */
     private State getState() {
+        return STATES[state()];
+    }
+
+    /**
+     * タイマーとHPから、戦車の現在の状態を求めます。
+     */
+    private State computeState() {
         if (respawnAnimateFrame > 0) return State.RESPAWNING;
 
         // 残骸は一定時間経過後画面から消える
-        if (debrisLifeFrame <= 0 && hp <= 0) return State.NONE;
+        if (debrisLifeFrame <= 0 && hp() <= 0) return State.NONE;
 
         // 破壊されたときに、画面に残骸が表示される
-        if (hp <= 0) return State.DEBRIS;
+        if (hp() <= 0) return State.DEBRIS;
 
         // ダメージが蓄積されると戦車にひびが入る演出
-        if (hp < INITIAL_HP / 2.0) return State.BROKEN;
+        if (hp() < INITIAL_HP / 2.0) return State.BROKEN;
 
         return State.NORMAL;
     }
 
+    /**
+     * タイマーとHPから決まる状態と、当たり判定の有無、形状の大きさ（今の状態のシャシーの画像）を列に書き込み直します。
+     * タイマーやHPを変えたメソッドの最後に呼びます。
+     */
+    private void refreshState() {
+        State state = computeState();
+        BufferedImage chassisImage = getChassisImage(state);
+        double objectScale = getObjectScale(state);
+        setState(state.ordinal(), state == State.RESPAWNING || state == State.NORMAL || state == State.BROKEN);
+        setExtents(chassisImage.getWidth() * objectScale / 2.0, chassisImage.getHeight() * objectScale / 2.0, false);
+    }
+
+    // ============================= スナップショット =============================
+
+    /**
+     * サーバーのシミュレーション結果として送る状態を書き出します。
+     * 状態は、倒れていればリスポーンするティック、リスポーンの演出中なら演出が終わるティック、それ以外は0です。
+     *
+     * @param tick 書き出すスナップショットのティック番号
+     */
+    void writeState(EntityState state, int tick) {
+        state.kind = EntityState.Kind.TANK;
+        state.x = x();
+        state.y = y();
+        state.angle = gunAngle;
+        state.hp = hp();
+        if (hp() <= 0) state.state = tick + respawnLagFrame;
+        else state.state = respawnAnimateFrame > 0 ? tick + respawnAnimateFrame : 0;
+    }
+
+    /**
+     * サーバーのシミュレーション結果を反映します。
+     * HPが減った場合はダメージとして扱うので、点滅や爆発の演出はクライアントでも再生されます。
+     * リスポーンまでの時間とリスポーンの演出の残りは、状態のティックから戻します。
+     * 自分の戦車は移動と照準をクライアントで予測しているので、位置は{@link #reconcile}で補正します。
+     *
+     * 補間を有効にしている戦車は、位置と角度をサーバーの時刻とともに履歴に積みます。
+     *
+     * @param predicted 自分の戦車であればtrue
+     * @param tick スナップショットのティック番号
+     * @param serverTime スナップショットのサーバーでの時刻（ミリ秒）
+     */
+    void applyState(EntityState state, boolean predicted, int tick, long serverTime) {
+        if (!predicted && interpolation != null) {
+            interpolation.add(serverTime, System.nanoTime() / 1000000, new Point2D.Double(state.x, state.y), state.angle);
+        } else if (!predicted) {
+            reposition(state.x, state.y);
+            gunAngle = state.angle;
+        }
+
+        if (state.hp < hp()) {
+            damage(hp() - state.hp);
+        } else if (state.hp > hp()) {
+            setHp(state.hp); // サーバーでリスポーンした。演出の残りは下で状態から戻す
+        }
+        if (hp() <= 0) { // 倒れてからの経過は、リスポーンするティックから戻す
+            respawnLagFrame = Math.max(0, state.state - tick);
+            respawnAnimateFrame = 0;
+            debrisLifeFrame = Math.max(0, DEBRIS_LIFE_FRAME - (RESPAWN_LAG_FRAME - respawnLagFrame));
+        } else {
+            respawnAnimateFrame = Math.max(0, state.state - tick); // 演出の大きさで弾丸の出る位置が変わるので揃える
+        }
+        refreshState();
+    }
+
+    /**
+     * サーバーが確定した位置から、サーバーがまだ処理していない移動入力をやり直して、予測している位置を補正します。
+     * やり直すときは、クライアントのフレーム更新と同じく移動の間に衝突判定を挟むので、壁際でも予測と同じ位置になります。
+     * 補正で飛んだ分は描画のずれとして残し、数フレームかけて追いつかせるので、画面上では戦車が瞬間移動しません。
+     *
+     * @param authoritative サーバーが確定した位置
+     * @param pendingMoves サーバーがまだ処理していない移動入力（古い順）
+     * @param stage 衝突判定に使うステージ
+     */
+    public void reconcile(Point2D.Double authoritative, List<Point2D.Double> pendingMoves, GameStage stage) {
+        double previousX = x();
+        double previousY = y();
+        reposition(authoritative.x, authoritative.y);
+        for (int i = 0; i < pendingMoves.size(); i++) {
+            if (i > 0) stage.resolveCollisions(this); // 最後の移動の衝突判定は次のフレーム更新で行われる
+            move(pendingMoves.get(i));
+        }
+
+        correction.x += previousX - x();
+        correction.y += previousY - y();
+        if (correction.distance(0, 0) > CORRECTION_SNAP_DISTANCE) correction.setLocation(0, 0);
+    }
+
     // ============================= GameObjectインタフェースのメソッド =============================
 
     /**
@@ -318,12 +531,17 @@ public class Tank implements GameObject {
         if (respawnAnimateFrame > 0) respawnAnimateFrame--;
         if (damageFlushFrame > 0) damageFlushFrame--;
         if (debrisLifeFrame > 0) debrisLifeFrame--;
+        correction.setLocation(correction.x * CORRECTION_DECAY, correction.y * CORRECTION_DECAY);
+        if (interpolation != null && interpolation.sample(System.nanoTime() / 1000000, sampledPosition, sampledAngle)) {
+            reposition(sampledPosition.x, sampledPosition.y);
+            gunAngle = sampledAngle[0];
+        }
         if (respawnLagFrame > 0) {
             respawnLagFrame--;
         } else {
-            if (hp == 0) respawn();
+            if (hp() == 0) respawn();
         }
-
+        refreshState();
     }
 
 
@@ -338,16 +556,20 @@ public class Tank implements GameObject {
         double objectScale = getObjectScale();
 
 
+        // 予測の補正が残っている間は、補正前の位置寄りに描く
+        double drawX = x() + correction.x;
+        double drawY = y() + correction.y;
+
         // 台車の描画
         AffineTransform chassisTransform = new AffineTransform();
-        chassisTransform.translate(position.x, position.y);
+        chassisTransform.translate(drawX, drawY);
         chassisTransform.scale(objectScale, objectScale);
         chassisTransform.translate(-chassisImage.getWidth() / 2.0, -chassisImage.getHeight() / 2.0);
         graphics.drawImage(chassisImage, chassisTransform, null);
 
         // 砲塔のの描画
         AffineTransform gunTransform = new AffineTransform();
-        gunTransform.translate(position.x, position.y);
+        gunTransform.translate(drawX, drawY);
         gunTransform.rotate(this.gunAngle);
         gunTransform.scale(objectScale, objectScale);
         gunTransform.translate(-gunImage.getWidth() / 2.0, -gunImage.getHeight() / 2.0);
@@ -375,52 +597,52 @@ public class Tank implements GameObject {
 
         // ============================= オブジェクトがのめりこまないように、適切な方向に逃げる =============================
 
-        // 相対的な位置関係を取得 (相手 - 自分)
-        Point2D.Double vector = Util.subtract(other.getPosition(), this.getPosition());
-
-        // 全く同じ位置だった場合、少しだけずらす
-        if (vector.x == 0 && vector.y == 0) {
-            Random random = new Random();
-            vector.x = random.nextDouble() - 0.5;
-            vector.y = random.nextDouble() - 0.5;
-        }
-
         // 相手のサイズを取得
+        Shape otherShape = other.getShape();
         double otherWidth, otherHeight;
-        if (other.getShape() instanceof Rectangle) {
-            Rectangle rect = (Rectangle) other.getShape();
+        Point2D.Double otherCenter;
+        if (otherShape instanceof Rectangle) {
+            Rectangle rect = (Rectangle) otherShape;
             otherWidth = rect.width;
             otherHeight = rect.height;
+            otherCenter = rect.center;
         } else {
-            assert other.getShape() instanceof Circle;
-            Circle circle = (Circle) other.getShape();
+            assert otherShape instanceof Circle;
+            Circle circle = (Circle) otherShape;
             otherWidth = otherHeight = circle.radius * 2; // 半径x2 = 直径(幅)
+            otherCenter = circle.center;
+        }
+
+        // 相対的な位置関係を取得 (相手 - 自分)
+        double vectorX = otherCenter.x - x();
+        double vectorY = otherCenter.y - y();
+
+        // 全く同じ位置だった場合、少しだけずらす
+        if (vectorX == 0 && vectorY == 0) {
+            vectorX = nudge.nextDouble() - 0.5;
+            vectorY = nudge.nextDouble() - 0.5;
         }
 
         // 衝突判定に使う「合体した矩形」のサイズ
-        double totalWidth = this.getWidth() + otherWidth;
-        double totalHeight = this.getHeight() + otherHeight;
+        Rectangle own = (Rectangle) getShape();
+        double totalWidth = own.width + otherWidth;
+        double totalHeight = own.height + otherHeight;
 
         // ベクトルの絶対値
-        double absX = Math.abs(vector.x);
-        double absY = Math.abs(vector.y);
-
-        // 逃げる方向（自分から相手への逆 = 自分自身の移動方向）
-        vector = Util.multiple(vector, -1);
+        double absX = Math.abs(vectorX);
+        double absY = Math.abs(vectorY);
 
         // 対角線判定: (absY / absX) < (totalHeight / totalWidth)
         // 式変形して割り算をなくすと: absY * totalWidth < absX * totalHeight
         // これが成り立つなら「横長」の領域にいるため、横（左右）からの衝突
+        // 逃げる方向は、自分から相手への逆 = 自分自身の移動方向
         if (absY * totalWidth < absX * totalHeight) {
             // 横方向 (左右) からの衝突 -> Y成分を0にして、純粋にX方向に逃げる
-            vector.y = 0;
+            move(-vectorX, 0);
         } else {
             // 縦方向 (上下) からの衝突 -> X成分を0にして、純粋にY方向に逃げる
-            vector.x = 0;
+            move(0, -vectorY);
         }
-
-        // 移動実行
-        move(vector);
     }
 
     /**
@@ -448,17 +670,7 @@ public class Tank implements GameObject {
      */
     @Override
     public boolean hasRigidBody() {
-        switch (getState()) {
-            case RESPAWNING:
-            case NORMAL:
-            case BROKEN:
-                return true;
-            case DEBRIS:
-            case NONE:
-                return false;
-            default:
-                throw new RuntimeException();
-        }
+        return rigid();
     }
 
     /**
@@ -482,11 +694,15 @@ public class Tank implements GameObject {
 
     /**
      * {@inheritDoc}
-     * 戦車は長方形の形状を持ちます。
+     * 戦車は長方形の形状を持ちます。大きさは今の状態のシャシーの画像に合わせます。
+     * 返す形状は使い回しで、呼ぶたびに列の位置と大きさを書き込みます。
      */
     @Override
     public Shape getShape() {
-        return new Rectangle(this.position, getWidth(), getHeight());
+        shape.center.setLocation(x(), y());
+        shape.width = halfWidth() * 2;
+        shape.height = halfHeight() * 2;
+        return shape;
     }
 
     /**
@@ -494,7 +710,7 @@ public class Tank implements GameObject {
      */
     @Override
     public Point2D.Double getPosition() {
-        return (Point2D.Double) this.position.clone();
+        return new Point2D.Double(x(), y());
     }
 
     /**
@@ -502,7 +718,7 @@ public class Tank implements GameObject {
      */
     @Override
     public void setPosition(Point2D.Double position) {
-        this.position.setLocation(position);
+        reposition(position.x, position.y);
     }
 
     /**
@@ -510,7 +726,36 @@ public class Tank implements GameObject {
      */
     @Override
     public int getHP() {
-        return this.hp;
+        return hp();
+    }
+
+    // ============================= MovingObjectインタフェースのメソッド =============================
+
+    /**
+     * {@inheritDoc}
+     * 前回の衝突判定を終えたときの位置からのずれです。リスポーンのように大きく飛んだ場合は0とします。
+     */
+    @Override
+    public double getMotionX() {
+        return motionX();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMotionY() {
+        return motionY();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resetMotion() {
+        originX = x();
+        originY = y();
+        setMotion(0, 0);
     }
 
     // ============================= ゲッター・セッター =============================
@@ -527,7 +772,7 @@ public class Tank implements GameObject {
      * これは戦車が紐付けられている基地のチームです。
      */
     public Team getTeam() {
-        return this.base.getTeam();
+        return team();
     }
 
     /**
@@ -535,7 +780,7 @@ public class Tank implements GameObject {
      * オブジェクトのスケールを考慮します。
      */
     public double getHeight() {
-        return getChassisImage().getHeight() * getObjectScale();
+        return halfHeight() * 2;
     }
 
     /**
@@ -543,9 +788,10 @@ public class Tank implements GameObject {
      * オブジェクトのスケールを考慮します。
      */
     public double getWidth() {
-        return getChassisImage().getWidth() * getObjectScale();
+        return halfWidth() * 2;
     }
 
+
     /**
      * 弾丸が戦車から放出される際の半径を取得します。
      * これは砲身の長さと戦車の半径を考慮して計算されます。
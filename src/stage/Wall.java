@@ -9,7 +9,7 @@ import java.util.Objects;
 
 import static stage.Team.*;
 
-public class Wall implements GameObject {
+public class Wall implements StaticObject {
 
 	// 特徴
 	public static final int WIDTH = 100;
@@ -18,6 +18,9 @@ public class Wall implements GameObject {
 	// 状態（クライアント間の同期に必要)
 	private final Point2D.Double position;
 
+	// 衝突判定用
+	private final Rectangle shape;
+
 	// 画像リソース
 	private static final Image wallImage;
 
@@ -35,6 +38,7 @@ public class Wall implements GameObject {
 	 */
 	public Wall(Point2D.Double coordinate) {
 		this.position = (Point2D.Double) coordinate.clone();
+		this.shape = new Rectangle(this.position, WIDTH, HEIGHT);
 	}
 
 	// ============================= GameObjectインタフェースのメソッド =============================
@@ -107,7 +111,25 @@ public class Wall implements GameObject {
 	 */
 	@Override
 	public Shape getShape() {
-		return new Rectangle(this.position, WIDTH, HEIGHT);
+		return shape;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 壁の形状は変わらないため、形状と同じ長方形を返します。
+	 */
+	@Override
+	public Rectangle getBounds() {
+		return shape;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 壁は状態が変わらず、ゲーム終了までステージに残り続けるため、常にtrueを返します。
+	 */
+	@Override
+	public boolean isPermanent() {
+		return true;
 	}
 
 	/**